@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.api;
+
+/**
+ * Consumes the results of a benchmark, so that the compiler can't find that they are unused and
+ * remove the work that computed them.  A benchmark method gets one by taking it as a parameter
+ * after the reps, e.g. {@code timeClone(int reps, Blackhole blackhole)}, and passes it whatever
+ * each rep computes:
+ *
+ * <pre>   {@code
+ *   @Benchmark void cloneFormat(int reps, Blackhole blackhole) {
+ *     for (int i = 0; i < reps; i++) {
+ *       blackhole.consume(format.clone());
+ *     }
+ *   }}</pre>
+ *
+ * <p>Consuming a value costs about as much as a couple of field reads, which is timed along with
+ * the benchmark.  Returning a result from the benchmark method is cheaper still, but only keeps
+ * the last rep's work alive.
+ *
+ * <p>This API is likely to change.
+ */
+public final class Blackhole {
+  /*
+   * Each value is compared with two fields that never hold the same value.  The compiler can't
+   * know that, since the fields are volatile, so it has to compute the value and keep the branch,
+   * which is never taken.
+   */
+  private volatile int int1 = 1;
+  private volatile int int2 = 2;
+  private volatile long long1 = 1;
+  private volatile long long2 = 2;
+  private volatile float float1 = 1;
+  private volatile float float2 = 2;
+  private volatile double double1 = 1;
+  private volatile double double2 = 2;
+
+  /*
+   * Objects can't be compared that way: an object that doesn't escape can't be equal to any other
+   * reference, so the compiler could remove its allocation.  Instead, an object is written to a
+   * field now and then, with a chance that halves each time, so that any of them could escape.
+   */
+  private int seed = (int) System.nanoTime();
+  private int mask = 1;
+  private volatile Object escaped;
+
+  /** Written only by branches that are never taken. */
+  private volatile Object never;
+
+  public Blackhole() {}
+
+  public void consume(boolean value) {
+    consume(value ? 1 : 0);
+  }
+
+  public void consume(byte value) {
+    consume((int) value);
+  }
+
+  public void consume(short value) {
+    consume((int) value);
+  }
+
+  public void consume(char value) {
+    consume((int) value);
+  }
+
+  public void consume(int value) {
+    if (value == int1 & value == int2) {
+      never = value;
+    }
+  }
+
+  public void consume(long value) {
+    if (value == long1 & value == long2) {
+      never = value;
+    }
+  }
+
+  public void consume(float value) {
+    if (value == float1 & value == float2) {
+      never = value;
+    }
+  }
+
+  public void consume(double value) {
+    if (value == double1 & value == double2) {
+      never = value;
+    }
+  }
+
+  public void consume(Object value) {
+    // the low k bits of a linear congruential generator repeat every 2^k values, so each mask
+    // matches once in its period
+    int next = seed * 1664525 + 1013904223;
+    seed = next;
+    if ((next & mask) == 0) {
+      escaped = value;
+      mask = (mask << 1) | 1;
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.api;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation applied to a benchmark that specifies the numbers of threads on which each of its
+ * runtime benchmark methods should be run at once, e.g. {@code @Threads({1, 2, 4, 8})}.  Each
+ * number of threads is another dimension of the experiments, like a parameter, and is recorded as
+ * the {@code threads} parameter of each scenario, so the benchmark must not have a parameter of
+ * that name.  The threads all call the same instance of the benchmark, so its fields are shared by
+ * all of them.  The runtime is then that of all the threads together, per rep, and the throughput
+ * of all of them and of each one is reported as well.  The {@code --threads} option overrides this
+ * annotation.
+ *
+ * <p>This API is likely to change.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Threads {
+  int[] value();
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.bridge;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Value;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map.Entry;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads and writes the frames of the {@link MessageEncoding#BINARY} encoding.
+ *
+ * <p>Every frame is the length of its payload as an {@code int}, a type byte and the payload.
+ * Strings are written as the length of their UTF-8 encoding as an {@code int}, followed by the
+ * bytes.  The types of frames are:
+ *
+ * <ul>
+ *   <li>{@code 0}: a line of text, e.g. a control message without a binary form rendered by
+ *       {@link ControlLogMessageRenderer}, or a line that is only interesting in verbose mode.
+ *       The payload is the string.
+ *   <li>{@code 1}: a {@link StartMeasurementLogMessage}, without a payload.
+ *   <li>{@code 2}: a {@link StopMeasurementLogMessage}.  The payload is the number of measurements
+ *       as an {@code int} and, for each one, its magnitude ({@code double}), unit (string), weight
+ *       ({@code double}) and description (string).
+ *   <li>{@code 3}: a {@link FailureLogMessage}.  The payload is the stack trace string.
+ *   <li>{@code 4}: a {@link ShouldContinueMessage} that grants at most one credit, from the runner
+ *       to the worker.  The payload is whether to continue ({@code boolean}).
+ *   <li>{@code 5}: a {@link StopMeasurementLogMessage} with latencies or samples, written instead
+ *       of {@code 2} if it has either.  The payload is that of {@code 2}, followed by the number
+ *       of latency buckets as an {@code int} and, for each one, its value and count (both
+ *       {@code long}), and finally the number of samples written to the {@link SampleBuffer}
+ *       ({@code long}).  Only the workers that a runner asks to time single invocations or to
+ *       write samples send it.
+ *   <li>{@code 6}: a {@link ShouldContinueMessage} that grants more than one credit, written
+ *       instead of {@code 4}.  The payload is that of {@code 4}, followed by the number of credits
+ *       ({@code int}).
+ * </ul>
+ *
+ * <p>Frames of other types are skipped, so that new ones can be added without breaking older
+ * runners.  The layout of a type never changes; a message that gains a field gets a new type.
+ */
+public final class BinaryMessageCodec {
+  private static final byte TEXT = 0;
+  private static final byte START_MEASUREMENT = 1;
+  private static final byte STOP_MEASUREMENT = 2;
+  private static final byte FAILURE = 3;
+  private static final byte SHOULD_CONTINUE = 4;
+  private static final byte STOP_MEASUREMENT_WITH_SAMPLES = 5;
+  private static final byte SHOULD_CONTINUE_WITH_CREDITS = 6;
+
+  private static final byte[] NO_PAYLOAD = new byte[0];
+
+  /** The longest payload that a frame may have; a longer one means that the stream is corrupt. */
+  public static final int MAX_FRAME_LENGTH = 1 << 24;
+
+  private BinaryMessageCodec() {}
+
+  /** Writes a line of text, which the runner parses like a line from the worker's output. */
+  public static void writeLine(DataOutputStream out, String line) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(line.length() + 4);
+    writeString(new DataOutputStream(payload), line);
+    writeFrame(out, TEXT, payload.toByteArray());
+  }
+
+  /**
+   * Writes a control message.  Messages without a binary form are written as a line of text,
+   * rendered by {@code renderer}.
+   */
+  public static void write(DataOutputStream out, CaliperControlLogMessage message,
+      Renderer<CaliperControlLogMessage> renderer) throws IOException {
+    if (message instanceof StartMeasurementLogMessage) {
+      writeFrame(out, START_MEASUREMENT, NO_PAYLOAD);
+    } else if (message instanceof StopMeasurementLogMessage) {
+      StopMeasurementLogMessage stop = (StopMeasurementLogMessage) message;
+      ImmutableList<Measurement> measurements = stop.measurements();
+      ImmutableSortedMap<Long, Long> latencies = stop.latencies();
+      ByteArrayOutputStream bytes =
+          new ByteArrayOutputStream(16 + 64 * measurements.size() + 16 * latencies.size());
+      DataOutputStream payload = new DataOutputStream(bytes);
+      payload.writeInt(measurements.size());
+      for (Measurement measurement : measurements) {
+        payload.writeDouble(measurement.value().magnitude());
+        writeString(payload, measurement.value().unit());
+        payload.writeDouble(measurement.weight());
+        writeString(payload, measurement.description());
+      }
+      if (latencies.isEmpty() && stop.samplesWritten() == 0) {
+        writeFrame(out, STOP_MEASUREMENT, bytes.toByteArray());
+      } else {
+        payload.writeInt(latencies.size());
+        for (Entry<Long, Long> bucket : latencies.entrySet()) {
+          payload.writeLong(bucket.getKey());
+          payload.writeLong(bucket.getValue());
+        }
+        payload.writeLong(stop.samplesWritten());
+        writeFrame(out, STOP_MEASUREMENT_WITH_SAMPLES, bytes.toByteArray());
+      }
+    } else if (message instanceof FailureLogMessage) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      writeString(new DataOutputStream(bytes), ((FailureLogMessage) message).stackTrace());
+      writeFrame(out, FAILURE, bytes.toByteArray());
+    } else {
+      writeLine(out, renderer.render(message));
+    }
+  }
+
+  public static void write(DataOutputStream out, ShouldContinueMessage message)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(5);
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeBoolean(message.shouldContinue());
+    if (message.credits() <= 1) {
+      writeFrame(out, SHOULD_CONTINUE, bytes.toByteArray());
+    } else {
+      payload.writeInt(message.credits());
+      writeFrame(out, SHOULD_CONTINUE_WITH_CREDITS, bytes.toByteArray());
+    }
+  }
+
+  /**
+   * Reads the runner's answer to a {@link StopMeasurementLogMessage}, blocking until it's there.
+   */
+  public static ShouldContinueMessage readShouldContinue(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    byte type = in.readByte();
+    if (type == SHOULD_CONTINUE && length == 1) {
+      return new ShouldContinueMessage(in.readBoolean());
+    } else if (type == SHOULD_CONTINUE_WITH_CREDITS && length == 5) {
+      return new ShouldContinueMessage(in.readBoolean(), in.readInt());
+    }
+    throw new IOException("Expected a ShouldContinueMessage, but got a frame of type " + type);
+  }
+
+  /** Reads the next frame from a worker, or returns null if the stream has ended. */
+  @Nullable public static Frame readFrame(DataInputStream in) throws IOException {
+    while (true) {
+      int first = in.read();
+      if (first == -1) {
+        return null;
+      }
+      int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8
+          | in.readUnsignedByte();
+      if (length < 0 || length > MAX_FRAME_LENGTH) {
+        throw new IOException(String.format(
+            "Received a frame of length %s, but frames may be at most %s bytes long",
+            length, MAX_FRAME_LENGTH));
+      }
+      byte type = in.readByte();
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+      switch (type) {
+        case TEXT:
+          return new Frame(readString(payload), null);
+        case START_MEASUREMENT:
+          return new Frame(null, new StartMeasurementLogMessage());
+        case STOP_MEASUREMENT:
+        case STOP_MEASUREMENT_WITH_SAMPLES:
+          int count = payload.readInt();
+          ImmutableList.Builder<Measurement> measurements = ImmutableList.builder();
+          for (int i = 0; i < count; i++) {
+            double magnitude = payload.readDouble();
+            String unit = readString(payload);
+            measurements.add(new Measurement.Builder()
+                .value(Value.create(magnitude, unit))
+                .weight(payload.readDouble())
+                .description(readString(payload))
+                .build());
+          }
+          ImmutableMap.Builder<Long, Long> latencies = ImmutableMap.builder();
+          long samplesWritten = 0;
+          if (type == STOP_MEASUREMENT_WITH_SAMPLES) {
+            int buckets = payload.readInt();
+            for (int i = 0; i < buckets; i++) {
+              latencies.put(payload.readLong(), payload.readLong());
+            }
+            samplesWritten = payload.readLong();
+          }
+          return new Frame(null, new StopMeasurementLogMessage(
+              measurements.build(), latencies.build(), samplesWritten));
+        case FAILURE:
+          return new Frame(null, new FailureLogMessage(readString(payload)));
+        default:
+          // written by a newer worker; it can't rely on being understood
+      }
+    }
+  }
+
+  /** A frame from a worker: either a line of text or a control message. */
+  public static final class Frame {
+    @Nullable private final String line;
+    @Nullable private final CaliperControlLogMessage message;
+
+    private Frame(@Nullable String line, @Nullable CaliperControlLogMessage message) {
+      this.line = line;
+      this.message = message;
+    }
+
+    /** The line of text, which must be parsed like any other, or null for a control message. */
+    @Nullable public String line() {
+      return line;
+    }
+
+    /** The control message, or null for a line of text. */
+    @Nullable public CaliperControlLogMessage message() {
+      return message;
+    }
+  }
+
+  private static void writeFrame(DataOutputStream out, byte type, byte[] payload)
+      throws IOException {
+    out.writeInt(payload.length);
+    out.writeByte(type);
+    out.write(payload);
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = checkNotNull(string).getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -28,4 +28,12 @@ public abstract class CaliperControlLogMessage extends LogMessage {
       + SEPARATOR;
 
   CaliperControlLogMessage() {}
+
+  /**
+   * Returns true if the line is a message that the worker sent in its json form, as opposed to
+   * output of the worker VM, such as that of {@code -XX:+PrintGC}, that is parsed into a message.
+   */
+  public static boolean isControlLine(String line) {
+    return line.startsWith(CONTROL_PREFIX);
+  }
 }
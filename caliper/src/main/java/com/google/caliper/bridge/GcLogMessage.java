@@ -17,16 +17,20 @@
 package com.google.caliper.bridge;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.google.caliper.util.ShortDuration;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 
+import javax.annotation.Nullable;
 
 /**
- * A message representing output produced by the JVM when {@code -XX:+PrintGC} is enabled.
+ * A message representing a garbage collection in the worker.  The worker reports the collections
+ * that it is notified about by the collectors' management beans, but the message is also parsed
+ * from the output of {@code -XX:+PrintGC}, in case that is passed to the worker VM.
  */
-public final class GcLogMessage extends LogMessage {
+public final class GcLogMessage extends CaliperControlLogMessage {
   /**
    * The type of the garbage collection performed.
    */
@@ -36,11 +40,17 @@ public final class GcLogMessage extends LogMessage {
   }
 
   private final Type type;
-  private final ShortDuration duration;
+  private final long durationNanos;
+  @Nullable private final Long startOffsetMillis;
 
   GcLogMessage(Type type, ShortDuration duration) {
+    this(type, duration, null);
+  }
+
+  public GcLogMessage(Type type, ShortDuration duration, @Nullable Long startOffsetMillis) {
     this.type = checkNotNull(type);
-    this.duration = checkNotNull(duration);
+    this.durationNanos = duration.to(NANOSECONDS);
+    this.startOffsetMillis = startOffsetMillis;
   }
 
   public Type type() {
@@ -48,7 +58,16 @@ public final class GcLogMessage extends LogMessage {
   }
 
   public ShortDuration duration() {
-    return duration;
+    return ShortDuration.of(durationNanos, NANOSECONDS);
+  }
+
+  /**
+   * Returns the number of milliseconds from the start of the timing window to the start of the
+   * collection, which is negative if the collection had already started.  This is null if the
+   * time isn't known, e.g. for a message parsed from {@code -XX:+PrintGC} output.
+   */
+  @Nullable public Long startOffsetMillis() {
+    return startOffsetMillis;
   }
 
   @Override
@@ -58,7 +77,7 @@ public final class GcLogMessage extends LogMessage {
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(type, duration);
+    return Objects.hashCode(type, durationNanos, startOffsetMillis);
   }
 
   @Override
@@ -68,7 +87,8 @@ public final class GcLogMessage extends LogMessage {
     } else if (obj instanceof GcLogMessage) {
       GcLogMessage that = (GcLogMessage) obj;
       return this.type == that.type
-          && this.duration.equals(that.duration);
+          && this.durationNanos == that.durationNanos
+          && Objects.equal(this.startOffsetMillis, that.startOffsetMillis);
     } else {
       return false;
     }
@@ -78,7 +98,8 @@ public final class GcLogMessage extends LogMessage {
   public String toString() {
     return MoreObjects.toStringHelper(this)
         .addValue(type)
-        .add("duration", duration)
+        .add("duration", duration())
+        .add("startOffsetMillis", startOffsetMillis)
         .toString();
   }
 }
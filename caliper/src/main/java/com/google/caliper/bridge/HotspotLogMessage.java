@@ -16,15 +16,73 @@
 
 package com.google.caliper.bridge;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.caliper.util.ShortDuration;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
 
 /**
- * A message representing output produced by the JVM when {@code -XX:+PrintCompliation} is enabled.
+ * A message representing work done by the JVM to compile or load code.  The worker sends one
+ * when the counters of the compilation and class loading management beans have moved since it
+ * last looked at them, but the message is also parsed from the output of
+ * {@code -XX:+PrintCompilation}, in case that is passed to the worker VM.
  */
-public final class HotspotLogMessage extends LogMessage {
-  HotspotLogMessage() {}
+public final class HotspotLogMessage extends CaliperControlLogMessage {
+  private final long compilationMillis;
+  private final long loadedClasses;
+
+  /** A compilation that is only known to have happened. */
+  HotspotLogMessage() {
+    this(0, 0);
+  }
+
+  public HotspotLogMessage(long compilationMillis, long loadedClasses) {
+    this.compilationMillis = compilationMillis;
+    this.loadedClasses = loadedClasses;
+  }
+
+  /**
+   * Returns the time spent compiling, which is zero if it isn't known or took less than a
+   * millisecond.
+   */
+  public ShortDuration compilationTime() {
+    return ShortDuration.of(compilationMillis, MILLISECONDS);
+  }
+
+  /** Returns the number of classes that were loaded. */
+  public long loadedClasses() {
+    return loadedClasses;
+  }
 
   @Override
   public void accept(LogMessageVisitor visitor) {
     visitor.visit(this);
   }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(compilationMillis, loadedClasses);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    } else if (obj instanceof HotspotLogMessage) {
+      HotspotLogMessage that = (HotspotLogMessage) obj;
+      return this.compilationMillis == that.compilationMillis
+          && this.loadedClasses == that.loadedClasses;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("compilationTime", compilationTime())
+        .add("loadedClasses", loadedClasses)
+        .toString();
+  }
 }
@@ -22,6 +22,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.google.caliper.util.Parser;
 import com.google.caliper.util.ShortDuration;
+import com.google.common.base.CharMatcher;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -30,11 +31,16 @@ import com.google.inject.Inject;
 
 import java.math.BigDecimal;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
 
 /**
  * Parses {@link LogMessage} strings.
+ *
+ * <p>Lines are classified by scanning them directly rather than with regular expressions: with
+ * {@code -XX:+PrintCompilation} and {@code -XX:+PrintFlagsFinal} there are thousands of lines per
+ * trial, and nearly all of them end up as {@link HotspotLogMessage}s or
+ * {@link VmOptionLogMessage}s.
  */
 final class LogMessageParser implements Parser<LogMessage> {
   private final Gson gson;
@@ -42,11 +48,15 @@ final class LogMessageParser implements Parser<LogMessage> {
 
   @Inject LogMessageParser(Gson gson) {
     this.gson = gson;
-    this.typeMap = createMapForTypes(ImmutableSet.of(
-        FailureLogMessage.class,
-        StartMeasurementLogMessage.class,
-        StopMeasurementLogMessage.class,
-        VmPropertiesLogMessage.class));
+    this.typeMap = createMapForTypes(
+        ImmutableSet.<Class<? extends CaliperControlLogMessage>>builder()
+            .add(FailureLogMessage.class)
+            .add(GcLogMessage.class)
+            .add(HotspotLogMessage.class)
+            .add(StartMeasurementLogMessage.class)
+            .add(StopMeasurementLogMessage.class)
+            .add(VmPropertiesLogMessage.class)
+            .build());
   }
 
   private static ImmutableBiMap<Class<? extends CaliperControlLogMessage>, String>
@@ -59,40 +69,163 @@ final class LogMessageParser implements Parser<LogMessage> {
     return builder.build();
   }
 
-  private static final Pattern GC_PATTERN =
-      Pattern.compile(".*\\[(?:(Full) )?GC.*(\\d+\\.\\d+) secs\\]");
-  private static final Pattern JIT_PATTERN =
-      Pattern.compile(".*::.*( \\(((\\d+ bytes)|(static))\\))?");
-  private static final Pattern VM_OPTION_PATTERN =
-      Pattern.compile("\\s*(\\w+)\\s+(\\w+)\\s+:?=\\s+([^\\s]*)\\s+\\{([^}]*)\\}\\s*");
+  /** Log messages without any data are all alike, so the same instances are reused. */
+  private static final GenericLogMessage GENERIC_MESSAGE = new GenericLogMessage();
+  private static final HotspotLogMessage HOTSPOT_MESSAGE = new HotspotLogMessage();
+
+  private static final String GC_SUFFIX = " secs]";
 
+  /** The characters that {@code \s} matches. */
+  private static final CharMatcher WHITESPACE = CharMatcher.anyOf(" \t\n\u000B\f\r");
+  private static final CharMatcher NON_WHITESPACE = WHITESPACE.negate();
+  /** The characters that {@code \w} matches. */
+  private static final CharMatcher WORD = CharMatcher.inRange('a', 'z')
+      .or(CharMatcher.inRange('A', 'Z'))
+      .or(CharMatcher.inRange('0', '9'))
+      .or(CharMatcher.is('_'))
+      .precomputed();
+  private static final CharMatcher DIGIT = CharMatcher.inRange('0', '9');
 
   @Override public LogMessage parse(CharSequence text) {
-    // TODO(gak): do this stuff in terms of CharSequence instead of String
-    String string = text.toString();
-    if (string.startsWith(CONTROL_PREFIX)) {
+    if (startsWith(text, 0, CONTROL_PREFIX)) {
       ImmutableList<String> parts = ImmutableList.copyOf(
-          CONTROL_TYPE_SPLITTER.split(string.substring(CONTROL_PREFIX.length())));
+          CONTROL_TYPE_SPLITTER.split(text.subSequence(CONTROL_PREFIX.length(), text.length())));
       Class<? extends CaliperControlLogMessage> messageType = typeMap.inverse().get(parts.get(0));
       return gson.fromJson(parts.get(1), messageType);
-    } else {
-      Matcher gcMatcher = GC_PATTERN.matcher(string);
-      if (gcMatcher.matches()) {
-        return new GcLogMessage(
-            "Full".equals(gcMatcher.group(1))
-                ? GcLogMessage.Type.FULL
-                : GcLogMessage.Type.INCREMENTAL,
-            ShortDuration.of(BigDecimal.valueOf(Double.parseDouble(gcMatcher.group(2))), SECONDS));
+    }
+    GcLogMessage gcMessage = parseGcMessage(text);
+    if (gcMessage != null) {
+      return gcMessage;
+    }
+    if (indexOf(text, "::") != -1) {
+      return HOTSPOT_MESSAGE;
+    }
+    VmOptionLogMessage vmOptionMessage = parseVmOptionMessage(text);
+    if (vmOptionMessage != null) {
+      return vmOptionMessage;
+    }
+    return GENERIC_MESSAGE;
+  }
+
+  /**
+   * Parses lines like {@code [GC 987K->384K(62848K), 0.0012320 secs]} or
+   * {@code [Full GC 384K->288K(62848K), 0.0054550 secs]}, which may be preceded by time stamps.
+   */
+  @Nullable private static GcLogMessage parseGcMessage(CharSequence text) {
+    int end = text.length() - GC_SUFFIX.length();
+    if (end < 0 || !startsWith(text, end, GC_SUFFIX)) {
+      return null;
+    }
+    int point = skipBackward(DIGIT, text, end) - 1;
+    if (point == end - 1 || point < 0 || text.charAt(point) != '.') {
+      return null;
+    }
+    int start = skipBackward(DIGIT, text, point);
+    if (start == point) {
+      return null;
+    }
+    // the last bracket that opens a GC message; at least one digit of the duration follows it
+    for (int i = point - 4; i >= 0; i--) {
+      if (text.charAt(i) == '[') {
+        if (startsWith(text, i + 1, "GC")) {
+          return gcMessage(GcLogMessage.Type.INCREMENTAL, text, start, end);
+        }
+        if (i + 8 < point && startsWith(text, i + 1, "Full GC")) {
+          return gcMessage(GcLogMessage.Type.FULL, text, start, end);
+        }
       }
-      Matcher jitMatcher = JIT_PATTERN.matcher(string);
-      if (jitMatcher.matches()) {
-        return new HotspotLogMessage();
+    }
+    return null;
+  }
+
+  private static GcLogMessage gcMessage(GcLogMessage.Type type, CharSequence text, int start,
+      int end) {
+    double seconds = Double.parseDouble(text.subSequence(start, end).toString());
+    return new GcLogMessage(type, ShortDuration.of(BigDecimal.valueOf(seconds), SECONDS));
+  }
+
+  /**
+   * Parses the lines of {@code -XX:+PrintFlagsFinal}, like
+   * {@code      bool UseSerialGC       := true       {product}}.
+   */
+  @Nullable private static VmOptionLogMessage parseVmOptionMessage(CharSequence text) {
+    int typeStart = skip(WHITESPACE, text, 0);
+    int typeEnd = skip(WORD, text, typeStart);
+    int nameStart = skip(WHITESPACE, text, typeEnd);
+    int nameEnd = skip(WORD, text, nameStart);
+    int i = skip(WHITESPACE, text, nameEnd);
+    if (typeEnd == typeStart || nameStart == typeEnd || nameEnd == nameStart || i == nameEnd) {
+      return null;
+    }
+    if (i < text.length() && text.charAt(i) == ':') {
+      i++;
+    }
+    if (i == text.length() || text.charAt(i) != '=') {
+      return null;
+    }
+    int valueStart = skip(WHITESPACE, text, i + 1);
+    int valueEnd = skip(NON_WHITESPACE, text, valueStart);
+    int kindStart = skip(WHITESPACE, text, valueEnd);
+    String name = text.subSequence(nameStart, nameEnd).toString();
+    if (kindStart > valueEnd && isOptionKind(text, kindStart)) {
+      return new VmOptionLogMessage(name, text.subSequence(valueStart, valueEnd).toString());
+    }
+    // an empty value, e.g. "ccstr OnError = {product}"
+    if (valueStart - i > 2 && isOptionKind(text, valueStart)) {
+      return new VmOptionLogMessage(name, "");
+    }
+    return null;
+  }
+
+  /** Whether the rest of the line is something like {@code {product}}, and trailing space. */
+  private static boolean isOptionKind(CharSequence text, int start) {
+    if (start == text.length() || text.charAt(start) != '{') {
+      return false;
+    }
+    int end = indexOf(text, "}", start + 1);
+    return end != -1 && skip(WHITESPACE, text, end + 1) == text.length();
+  }
+
+  private static boolean startsWith(CharSequence text, int start, String prefix) {
+    if (start + prefix.length() > text.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (text.charAt(start + i) != prefix.charAt(i)) {
+        return false;
       }
-      Matcher vmOptionMatcher = VM_OPTION_PATTERN.matcher(string);
-      if (vmOptionMatcher.matches()) {
-        return new VmOptionLogMessage(vmOptionMatcher.group(2), vmOptionMatcher.group(3));
+    }
+    return true;
+  }
+
+  private static int indexOf(CharSequence text, String string) {
+    return indexOf(text, string, 0);
+  }
+
+  private static int indexOf(CharSequence text, String string, int start) {
+    for (int i = start; i + string.length() <= text.length(); i++) {
+      if (startsWith(text, i, string)) {
+        return i;
       }
-      return new GenericLogMessage();
     }
+    return -1;
+  }
+
+  /** Returns the index of the first character at or after {@code start} not matched. */
+  private static int skip(CharMatcher matcher, CharSequence text, int start) {
+    int i = start;
+    while (i < text.length() && matcher.matches(text.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  /** Returns the index after the last character before {@code end} not matched. */
+  private static int skipBackward(CharMatcher matcher, CharSequence text, int end) {
+    int i = end;
+    while (i > 0 && matcher.matches(text.charAt(i - 1))) {
+      i--;
+    }
+    return i;
   }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.bridge;
+
+/**
+ * The encodings of the messages that the runner and a worker exchange over their socket after the
+ * worker has announced itself with a {@link StartupAnnounceMessage}, which is always json.
+ *
+ * <p>The runner asks for an encoding in the {@link WorkerSpec} and the worker confirms the one it
+ * uses in its {@link StartupAnnounceMessage}.  Either one being absent means {@link #JSON}, which
+ * is what workers that predate the other encodings use.
+ */
+public enum MessageEncoding {
+  /**
+   * A line of text per message: json for {@link ShouldContinueMessage} and rendered by
+   * {@link ControlLogMessageRenderer} for control messages.  Slower, but readable when debugging.
+   */
+  JSON,
+
+  /** Length-prefixed binary frames, as described in {@link BinaryMessageCodec}. */
+  BINARY,
+}
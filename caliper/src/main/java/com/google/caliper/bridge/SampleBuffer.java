@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.bridge;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.math.IntMath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ring of raw {@code long} samples in a memory-mapped file, through which a worker can hand the
+ * runner far more samples than it could send as messages over the socket.  The runner
+ * {@linkplain #create creates} the file and names it in the {@link WorkerSpec}; the worker
+ * {@linkplain #open opens} it and {@linkplain #offer writes} samples without allocating, while the
+ * runner {@linkplain #drainTo reads} them concurrently.  The socket still carries the messages
+ * that start and stop each measurement.  A worker writes all the samples of a measurement before
+ * it sends the message that stops it, and that message says how many samples it had
+ * {@linkplain #samplesWritten written} by then, so that the runner can tell which samples belong
+ * to which measurement even if it reads them ahead.
+ *
+ * <p>There must be exactly one writer and one reader.  The file starts with a header in which the
+ * capacity, the number of samples written, the number dropped because the ring was full and the
+ * number read each have their own place, so that the writer and the reader never write to the same
+ * cache line.  The samples follow the header.
+ *
+ * <p>The Java memory model doesn't say in which order another process sees the writes to a
+ * mapping, so a reader on a weakly ordered processor could in principle see the count of samples
+ * written before the last of those samples, and so read a stale sample.  This is a known limitation:
+ * the runner reads the buffer ahead of the messages to make room, so the socket doesn't order the
+ * reads either.
+ */
+public final class SampleBuffer {
+  private static final int CAPACITY_OFFSET = 0;
+  private static final int WRITTEN_OFFSET = 64;
+  private static final int DROPPED_OFFSET = 72;
+  private static final int READ_OFFSET = 128;
+  private static final int SAMPLES_OFFSET = 192;
+
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final int mask;
+
+  /** The counts in the header as this side last wrote them; each one has only one writer. */
+  private long written;
+  private long dropped;
+  private long read;
+
+  /** The reader's count as the writer last saw it, up to which it can write without looking. */
+  private long lastSeenRead;
+
+  /**
+   * Written after each sample and before the count that publishes it, and read after the count and
+   * before the samples.  This only orders the accesses for the Java memory model, which knows
+   * nothing about the other process: that the reader sees a sample once it sees the count rests
+   * on HotSpot compiling volatile accesses to the processor's barriers, which order the stores to
+   * the mapping too.  That holds on x86, but isn't promised, so on weakly ordered processors the
+   * reader could in principle see a count before the sample it publishes.
+   */
+  private volatile boolean fence;
+
+  private SampleBuffer(MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    this.capacity = buffer.getInt(CAPACITY_OFFSET);
+    this.mask = capacity - 1;
+    this.written = buffer.getLong(WRITTEN_OFFSET);
+    this.dropped = buffer.getLong(DROPPED_OFFSET);
+    this.read = buffer.getLong(READ_OFFSET);
+    this.lastSeenRead = read;
+  }
+
+  /**
+   * Creates the file for a buffer with room for {@code capacity} samples, replacing whatever was in
+   * it, and returns the reading side of the buffer.
+   */
+  public static SampleBuffer create(File file, int capacity) throws IOException {
+    checkArgument(capacity > 0 && IntMath.isPowerOfTwo(capacity),
+        "the capacity (%s) must be a power of 2", capacity);
+    long size = SAMPLES_OFFSET + 8L * capacity;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    MappedByteBuffer buffer;
+    try {
+      raf.setLength(0);
+      raf.setLength(size);
+      buffer = map(raf, size);
+    } finally {
+      // the mapping stays valid without the file
+      raf.close();
+    }
+    buffer.putInt(CAPACITY_OFFSET, capacity);
+    return new SampleBuffer(buffer);
+  }
+
+  /** Opens the writing side of a buffer that the runner has {@linkplain #create created}. */
+  public static SampleBuffer open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long size = raf.length();
+      if (size < SAMPLES_OFFSET) {
+        throw new IOException("Not a sample buffer: " + file);
+      }
+      MappedByteBuffer buffer = map(raf, size);
+      int capacity = buffer.getInt(CAPACITY_OFFSET);
+      if (capacity <= 0 || !IntMath.isPowerOfTwo(capacity)
+          || size != SAMPLES_OFFSET + 8L * capacity) {
+        throw new IOException("Not a sample buffer: " + file);
+      }
+      return new SampleBuffer(buffer);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static MappedByteBuffer map(RandomAccessFile raf, long size) throws IOException {
+    MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    // both sides are on the same host
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+
+  /** Returns the number of samples that can be written before the reader has to catch up. */
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Writes a sample, unless the reader has fallen so far behind that the ring is full, in which
+   * case the sample is counted as dropped.  Only the worker calls this.
+   *
+   * @return whether the sample was written
+   */
+  public boolean offer(long sample) {
+    if (written - lastSeenRead == capacity) {
+      lastSeenRead = buffer.getLong(READ_OFFSET);
+      if (written - lastSeenRead == capacity) {
+        dropped++;
+        buffer.putLong(DROPPED_OFFSET, dropped);
+        return false;
+      }
+    }
+    buffer.putLong(SAMPLES_OFFSET + 8 * ((int) written & mask), sample);
+    fence = true;
+    written++;
+    buffer.putLong(WRITTEN_OFFSET, written);
+    return true;
+  }
+
+  /**
+   * Copies as many of the samples that haven't been read yet as fit into {@code samples}, oldest
+   * first, and makes room for that many more.  Only the runner calls this.
+   *
+   * @return the number of samples copied
+   */
+  public int drainTo(long[] samples) {
+    return drainTo(samples, 0);
+  }
+
+  /**
+   * Copies as many of the samples that haven't been read yet as fit into {@code samples} from
+   * {@code offset} on, oldest first, and makes room for that many more.  Only the runner calls
+   * this.
+   *
+   * @return the number of samples copied
+   */
+  public int drainTo(long[] samples, int offset) {
+    long available = buffer.getLong(WRITTEN_OFFSET) - read;
+    boolean unused = fence;
+    int count = (int) Math.min(available, samples.length - offset);
+    for (int i = 0; i < count; i++) {
+      samples[offset + i] = buffer.getLong(SAMPLES_OFFSET + 8 * ((int) (read + i) & mask));
+    }
+    fence = unused;
+    read += count;
+    buffer.putLong(READ_OFFSET, read);
+    return count;
+  }
+
+  /**
+   * Returns the number of samples that this side has written to the buffer, not counting those
+   * that were dropped.  Only the worker calls this.
+   */
+  public long samplesWritten() {
+    return written;
+  }
+
+  /** Returns the number of samples that have been read from this buffer. */
+  public long samplesRead() {
+    return read;
+  }
+
+  /** Returns the number of samples that the writer has dropped because the ring was full. */
+  public long samplesDropped() {
+    return buffer.getLong(DROPPED_OFFSET);
+  }
+}
@@ -16,27 +16,57 @@
 
 package com.google.caliper.bridge;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Objects;
+
 /**
  * A message sent from the runner to the worker to indicate whether or not measuring should 
  * continue.
+ *
+ * <p>Rather than answering each measurement before the worker may take the next one, the runner
+ * grants the worker credits: each one allows it to take one more measurement without waiting.  So
+ * the worker can keep measuring while the runner's answers are on their way, until it has used up
+ * its credits or it is told to stop.
  */
 public class ShouldContinueMessage {
   private final boolean shouldContinue;
+  private final int credits;
 
+  /** Lets the worker take exactly one more measurement, or tells it to stop. */
   public ShouldContinueMessage(boolean shouldContinue) {
+    this(shouldContinue, shouldContinue ? 1 : 0);
+  }
+
+  public ShouldContinueMessage(boolean shouldContinue, int credits) {
+    checkArgument(shouldContinue ? credits > 0 : credits == 0,
+        "Only a message to continue grants credits: %s", credits);
     this.shouldContinue = shouldContinue;
+    this.credits = credits;
   }
   
   public boolean shouldContinue() {
     return shouldContinue;
   }
+
+  /**
+   * The number of measurements that the worker may take in addition to those that it was already
+   * granted.
+   */
+  public int credits() {
+    // runners that predate credits always grant one
+    return shouldContinue ? Math.max(1, credits) : 0;
+  }
   
   @Override public int hashCode() {
-    return Boolean.valueOf(shouldContinue).hashCode();
+    return Objects.hashCode(shouldContinue, credits());
   }
 
   @Override public boolean equals(Object obj) {
-    return obj instanceof ShouldContinueMessage 
-        && shouldContinue == ((ShouldContinueMessage) obj).shouldContinue;
+    if (obj instanceof ShouldContinueMessage) {
+      ShouldContinueMessage that = (ShouldContinueMessage) obj;
+      return this.shouldContinue == that.shouldContinue && this.credits() == that.credits();
+    }
+    return false;
   }
 }
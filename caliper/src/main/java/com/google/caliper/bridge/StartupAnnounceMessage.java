@@ -18,29 +18,47 @@ package com.google.caliper.bridge;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.common.base.Objects;
+
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 /**
  * A message sent from the worker to the runner immediately after startup to identify the trial
- * that it is performing.
+ * that it is performing and the {@link MessageEncoding} of the messages that follow it.
  */
 public final class StartupAnnounceMessage {
   private final UUID trialId;
+  /** Absent in messages from workers that only speak json. */
+  @Nullable private final MessageEncoding encoding;
 
   public StartupAnnounceMessage(UUID trialId) {
+    this(trialId, MessageEncoding.JSON);
+  }
+
+  public StartupAnnounceMessage(UUID trialId, MessageEncoding encoding) {
     this.trialId = checkNotNull(trialId);
+    this.encoding = checkNotNull(encoding);
   }
 
   public UUID trialId() {
     return trialId;
   }
 
+  public MessageEncoding encoding() {
+    return encoding == null ? MessageEncoding.JSON : encoding;
+  }
+
   @Override public int hashCode() {
-    return trialId.hashCode();
+    return Objects.hashCode(trialId, encoding());
   }
 
   @Override public boolean equals(Object obj) {
-    return obj instanceof StartupAnnounceMessage
-        && trialId.equals(((StartupAnnounceMessage) obj).trialId);
+    if (obj instanceof StartupAnnounceMessage) {
+      StartupAnnounceMessage that = (StartupAnnounceMessage) obj;
+      return trialId.equals(that.trialId) && encoding() == that.encoding();
+    }
+    return false;
   }
 }
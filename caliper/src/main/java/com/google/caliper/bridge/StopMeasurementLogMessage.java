@@ -19,6 +19,10 @@ package com.google.caliper.bridge;
 import com.google.caliper.model.Measurement;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.Map;
 
 /**
  * A message signaling that the timing interval has ended in the worker.
@@ -26,21 +30,60 @@ import com.google.common.collect.ImmutableList;
 // TODO(gak): rename in terms of measurement
 public class StopMeasurementLogMessage extends CaliperControlLogMessage {
   private final ImmutableList<Measurement> measurements;
+  private final ImmutableMap<Long, Long> latencies;
+  private final long samplesWritten;
 
   public StopMeasurementLogMessage(Iterable<Measurement> measurements) {
+    this(measurements, ImmutableMap.<Long, Long>of());
+  }
+
+  /**
+   * @param latencies the latencies of single invocations that the worker timed along with the
+   *     measurements, as {@link com.google.caliper.util.LatencyHistogram#counts()} returns them
+   */
+  public StopMeasurementLogMessage(Iterable<Measurement> measurements,
+      Map<Long, Long> latencies) {
+    this(measurements, latencies, 0);
+  }
+
+  /**
+   * @param samplesWritten the number of samples that the worker had written to its
+   *     {@link SampleBuffer} when the measurement ended; those since the previous measurement
+   *     ended belong to this one
+   */
+  public StopMeasurementLogMessage(Iterable<Measurement> measurements,
+      Map<Long, Long> latencies, long samplesWritten) {
     this.measurements = ImmutableList.copyOf(measurements);
+    this.latencies = ImmutableMap.copyOf(latencies);
+    this.samplesWritten = samplesWritten;
   }
 
   public ImmutableList<Measurement> measurements() {
     return measurements;
   }
 
+  /**
+   * Returns the number of latencies in each bucket of the worker's histogram that counted any, by
+   * the value of the bucket, or an empty map if the worker didn't time single invocations.
+   */
+  public ImmutableSortedMap<Long, Long> latencies() {
+    return ImmutableSortedMap.copyOf(latencies);
+  }
+
+  /**
+   * Returns the number of samples that the worker had written to its {@link SampleBuffer} when
+   * the measurement ended, or 0 if it doesn't have one.
+   */
+  public long samplesWritten() {
+    return samplesWritten;
+  }
+
   @Override public void accept(LogMessageVisitor visitor) {
     visitor.visit(this);
   }
 
   @Override public int hashCode() {
-    return Objects.hashCode(measurements);
+    return Objects.hashCode(measurements, latencies, samplesWritten);
   }
 
   @Override
@@ -49,7 +92,9 @@ public class StopMeasurementLogMessage extends CaliperControlLogMessage {
       return true;
     } else if (obj instanceof StopMeasurementLogMessage) {
       StopMeasurementLogMessage that = (StopMeasurementLogMessage) obj;
-      return this.measurements.equals(that.measurements);
+      return this.measurements.equals(that.measurements)
+          && this.latencies.equals(that.latencies)
+          && this.samplesWritten == that.samplesWritten;
     } else {
       return false;
     }
@@ -22,6 +22,8 @@ import com.google.common.collect.ImmutableMap;
 
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 /**
  * This object is sent from the parent process to the child to tell it what to do. If the child
  * does not do it, it will not get its allowance this week.
@@ -38,20 +40,41 @@ public final class WorkerSpec {
    * The names of the benchmark method parameters so that the method can be uniquely identified.
    */
   public final ImmutableList<String> methodParameterClassNames;
+
+  /** The address of the runner, which is on another host if the worker was started by an agent. */
+  public final String host;
   public final int port;
 
+  /**
+   * The encoding that the runner asks the worker to use for its messages, or null for
+   * {@link MessageEncoding#JSON}.
+   */
+  @Nullable public final MessageEncoding encoding;
+
+  /**
+   * The file of the {@link SampleBuffer} that the worker writes its samples to, or null if it only
+   * reports measurements.  Only workers on the runner's host get one.
+   */
+  @Nullable public final String sampleBufferPath;
+
   public WorkerSpec(
       UUID trialId,
       String workerClassName,
       ImmutableMap<String, String> workerOptions,
       BenchmarkSpec benchmarkSpec,
       ImmutableList<String> methodParameterClassNames,
-      int port) {
+      String host,
+      int port,
+      MessageEncoding encoding,
+      @Nullable String sampleBufferPath) {
     this.trialId = trialId;
     this.workerClassName = workerClassName;
     this.workerOptions = workerOptions;
     this.benchmarkSpec = benchmarkSpec;
     this.methodParameterClassNames = methodParameterClassNames;
+    this.host = host;
     this.port = port;
+    this.encoding = encoding;
+    this.sampleBufferPath = sampleBufferPath;
   }
 }
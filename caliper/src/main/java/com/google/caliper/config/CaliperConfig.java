@@ -22,6 +22,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import java.io.File;
 import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -31,9 +32,11 @@ import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
 import com.google.caliper.api.ResultProcessor;
+import com.google.caliper.bridge.MessageEncoding;
 import com.google.caliper.config.VmConfig.Builder;
 import com.google.caliper.util.Util;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ascii;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
@@ -136,6 +139,43 @@ public final class CaliperConfig {
         .build();
   }
 
+  /**
+   * Returns the encoding that workers should use for their messages, as configured by
+   * {@code worker.messageEncoding}.  Defaults to {@link MessageEncoding#BINARY}.
+   */
+  public MessageEncoding getWorkerMessageEncoding() throws InvalidConfigurationException {
+    String encoding = properties.get("worker.messageEncoding");
+    if (Strings.isNullOrEmpty(encoding)) {
+      return MessageEncoding.BINARY;
+    }
+    try {
+      return MessageEncoding.valueOf(Ascii.toUpperCase(encoding.trim()));
+    } catch (IllegalArgumentException e) {
+      throw new InvalidConfigurationException(String.format(
+          "worker.messageEncoding must be one of %s, but was %s",
+          Ascii.toLowerCase(Arrays.toString(MessageEncoding.values())), encoding));
+    }
+  }
+
+  /**
+   * Returns true if workers should map their classes from a class data sharing archive, as
+   * configured by {@code worker.classDataArchives}.  Defaults to true.
+   */
+  public boolean useClassDataArchives() throws InvalidConfigurationException {
+    String enabled = properties.get("worker.classDataArchives");
+    if (Strings.isNullOrEmpty(enabled)) {
+      return true;
+    }
+    String value = Ascii.toLowerCase(enabled.trim());
+    if (value.equals("true")) {
+      return true;
+    } else if (value.equals("false")) {
+      return false;
+    }
+    throw new InvalidConfigurationException(String.format(
+        "worker.classDataArchives must be true or false, but was %s", enabled));
+  }
+
   private static final Pattern INSTRUMENT_CLASS_PATTERN = Pattern.compile("([^\\.]+)\\.class");
 
   public ImmutableSet<String> getConfiguredInstruments() {
@@ -34,14 +34,23 @@ import java.util.Map;
  * Loads caliper configuration files and, if necessary, creates new versions from the defaults.
  */
 public final class CaliperConfigLoader {
-  private final CaliperOptions options;
+  private final File configFile;
+  private final Map<String, String> configProperties;
 
   @Inject CaliperConfigLoader(CaliperOptions options) {
-    this.options = options;
+    this(options.caliperConfigFile(), options.configProperties());
+  }
+
+  /**
+   * Loads {@code configFile}, with {@code configProperties} overriding it, for a process that
+   * isn't given {@link CaliperOptions}.
+   */
+  public CaliperConfigLoader(File configFile, Map<String, String> configProperties) {
+    this.configFile = configFile;
+    this.configProperties = configProperties;
   }
 
   public CaliperConfig loadOrCreate() throws InvalidConfigurationException {
-    File configFile = options.caliperConfigFile();
     ImmutableMap<String, String> defaults;
     try {
       defaults = Util.loadProperties(
@@ -56,7 +65,7 @@ public final class CaliperConfigLoader {
       try {
         ImmutableMap<String, String> user =
             Util.loadProperties(Files.asByteSource(configFile));
-        return new CaliperConfig(mergeProperties(options.configProperties(), user, defaults));
+        return new CaliperConfig(mergeProperties(configProperties, user, defaults));
       } catch (IOException keepGoing) {
       }
     }
@@ -70,7 +79,7 @@ public final class CaliperConfigLoader {
     } catch (IOException e) {
       throw new AssertionError(e); // class path must be messed up
     }
-    return new CaliperConfig(mergeProperties(options.configProperties(), user, defaults));
+    return new CaliperConfig(mergeProperties(configProperties, user, defaults));
   }
 
   private static ImmutableMap<String, String> mergeProperties(Map<String, String> commandLine,
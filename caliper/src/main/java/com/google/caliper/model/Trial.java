@@ -21,13 +21,17 @@ import static com.google.common.base.Preconditions.checkState;
 import static javax.persistence.AccessType.FIELD;
 import static javax.persistence.CascadeType.MERGE;
 import static javax.persistence.CascadeType.PERSIST;
+import static org.hibernate.annotations.SortType.NATURAL;
 
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.UUID;
 
 import javax.persistence.Access;
 import javax.persistence.Cacheable;
 import javax.persistence.Column;
+import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
@@ -37,13 +41,16 @@ import javax.persistence.OrderColumn;
 import javax.persistence.QueryHint;
 
 import org.hibernate.annotations.Immutable;
+import org.hibernate.annotations.Sort;
 import org.hibernate.annotations.Type;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * An invocation of a single scenario measured with a single instrument and the results thereof.
@@ -74,6 +81,21 @@ public final class Trial { // used to be Result
   @OneToMany(cascade = {MERGE, PERSIST})
   @OrderColumn(name = "id") // because hibernate breaks hashCode otherwise
   private List<Measurement> measurements;
+  /** The measurements taken during the warmup, if they were kept; they aren't in the others. */
+  @OneToMany(cascade = {MERGE, PERSIST})
+  @OrderColumn(name = "id")
+  private List<WarmupMeasurement> warmupMeasurements;
+  /**
+   * Properties describing how the trial was executed (as opposed to what was measured), e.g. the
+   * worker slot that it ran in.
+   */
+  @ElementCollection @Sort(type = NATURAL) private SortedMap<String, String> properties;
+  /**
+   * The latencies of single invocations, if the worker timed them one by one: the number of them
+   * in each bucket of a {@link com.google.caliper.util.LatencyHistogram} that counted any, by the
+   * value of the bucket in nanoseconds.
+   */
+  @ElementCollection @Sort(type = NATURAL) private SortedMap<Long, Long> latencies;
 
   private Trial() {
     this.id = Defaults.UUID;
@@ -81,6 +103,9 @@ public final class Trial { // used to be Result
     this.instrumentSpec = InstrumentSpec.DEFAULT;
     this.scenario = Scenario.DEFAULT;
     this.measurements = Lists.newArrayList();
+    this.warmupMeasurements = Lists.newArrayList();
+    this.properties = Maps.newTreeMap();
+    this.latencies = Maps.newTreeMap();
   }
 
   private Trial(Builder builder) {
@@ -89,6 +114,9 @@ public final class Trial { // used to be Result
     this.instrumentSpec = builder.instrumentSpec;
     this.scenario = builder.scenario;
     this.measurements = Lists.newArrayList(builder.measurements);
+    this.warmupMeasurements = Lists.newArrayList(builder.warmupMeasurements);
+    this.properties = Maps.newTreeMap(builder.properties);
+    this.latencies = Maps.newTreeMap(builder.latencies);
   }
 
   public UUID id() {
@@ -111,6 +139,18 @@ public final class Trial { // used to be Result
     return ImmutableList.copyOf(measurements);
   }
 
+  public ImmutableList<WarmupMeasurement> warmupMeasurements() {
+    return ImmutableList.copyOf(warmupMeasurements);
+  }
+
+  public ImmutableSortedMap<String, String> properties() {
+    return ImmutableSortedMap.copyOf(properties);
+  }
+
+  public ImmutableSortedMap<Long, Long> latencies() {
+    return ImmutableSortedMap.copyOf(latencies);
+  }
+
   @Override public boolean equals(Object obj) {
     if (obj == this) {
       return true;
@@ -120,14 +160,19 @@ public final class Trial { // used to be Result
           && this.run.equals(that.run)
           && this.instrumentSpec.equals(that.instrumentSpec)
           && this.scenario.equals(that.scenario)
-          && this.measurements.equals(that.measurements);
+          && this.measurements.equals(that.measurements)
+          && this.warmupMeasurements.equals(that.warmupMeasurements)
+          && this.properties.equals(that.properties)
+          && this.latencies.equals(that.latencies);
     } else {
       return false;
     }
   }
 
   @Override public int hashCode() {
-    return Objects.hashCode(id, run, instrumentSpec, scenario, measurements);
+    return Objects.hashCode(
+        id, run, instrumentSpec, scenario, measurements, warmupMeasurements, properties,
+        latencies);
   }
 
   @Override public String toString() {
@@ -137,6 +182,9 @@ public final class Trial { // used to be Result
         .add("instrumentSpec", instrumentSpec)
         .add("scenario", scenario)
         .add("measurements", measurements)
+        .add("warmupMeasurements", warmupMeasurements)
+        .add("properties", properties)
+        .add("latencies", latencies)
         .toString();
   }
 
@@ -146,6 +194,9 @@ public final class Trial { // used to be Result
     private InstrumentSpec instrumentSpec;
     private Scenario scenario;
     private final List<Measurement> measurements = Lists.newArrayList();
+    private final List<WarmupMeasurement> warmupMeasurements = Lists.newArrayList();
+    private final SortedMap<String, String> properties = Maps.newTreeMap();
+    private final SortedMap<Long, Long> latencies = Maps.newTreeMap();
 
     public Builder(UUID id) {
       this.id = checkNotNull(id);
@@ -192,6 +243,36 @@ public final class Trial { // used to be Result
       return this;
     }
 
+    public Builder addWarmupMeasurement(WarmupMeasurement warmupMeasurement) {
+      this.warmupMeasurements.add(checkNotNull(warmupMeasurement));
+      return this;
+    }
+
+    public Builder addAllWarmupMeasurements(Iterable<WarmupMeasurement> warmupMeasurements) {
+      Iterables.addAll(this.warmupMeasurements, warmupMeasurements);
+      return this;
+    }
+
+    public Builder addProperty(String key, String value) {
+      properties.put(checkNotNull(key), checkNotNull(value));
+      return this;
+    }
+
+    public Builder addAllProperties(Map<String, String> properties) {
+      this.properties.putAll(properties);
+      return this;
+    }
+
+    /** Adds the latencies in each bucket to those already in it. */
+    public Builder addAllLatencies(Map<Long, Long> latencies) {
+      for (Map.Entry<Long, Long> entry : latencies.entrySet()) {
+        Long count = this.latencies.get(entry.getKey());
+        this.latencies.put(checkNotNull(entry.getKey()),
+            (count == null) ? entry.getValue() : count + entry.getValue());
+      }
+      return this;
+    }
+
     public Trial build() {
       checkState(run != null);
       checkState(instrumentSpec != null);
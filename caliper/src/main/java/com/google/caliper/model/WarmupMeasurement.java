@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static javax.persistence.AccessType.FIELD;
+import static javax.persistence.CascadeType.MERGE;
+import static javax.persistence.CascadeType.PERSIST;
+
+import javax.persistence.Access;
+import javax.persistence.Cacheable;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.OneToOne;
+
+import org.hibernate.annotations.Immutable;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * A measurement that was taken while the benchmark warmed up, along with how long after the start
+ * of the warmup it was taken, so that the warmup of a trial can be told apart from its steady
+ * state.
+ */
+@Entity
+@Access(FIELD)
+@Immutable
+@Cacheable
+public class WarmupMeasurement {
+  @Id
+  @GeneratedValue
+  @ExcludeFromJson
+  private int id;
+  @OneToOne(optional = false, cascade = {MERGE, PERSIST})
+  private Measurement measurement;
+  /** The time from the start of the first warmup measurement to the end of this one. */
+  private long elapsedNanos;
+
+  private WarmupMeasurement() {
+    this.measurement = null;
+    this.elapsedNanos = 0;
+  }
+
+  private WarmupMeasurement(Builder builder) {
+    this.measurement = builder.measurement;
+    this.elapsedNanos = builder.elapsedNanos;
+  }
+
+  @Override public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    } else if (obj instanceof WarmupMeasurement) {
+      WarmupMeasurement that = (WarmupMeasurement) obj;
+      return Objects.equal(this.measurement, that.measurement)
+          && this.elapsedNanos == that.elapsedNanos;
+    } else {
+      return false;
+    }
+  }
+
+  @Override public int hashCode() {
+    return Objects.hashCode(measurement, elapsedNanos);
+  }
+
+  @Override public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("measurement", measurement)
+        .add("elapsedNanos", elapsedNanos)
+        .toString();
+  }
+
+  public Measurement measurement() {
+    return measurement;
+  }
+
+  public long elapsedNanos() {
+    return elapsedNanos;
+  }
+
+  public static final class Builder {
+    private Measurement measurement;
+    private Long elapsedNanos;
+
+    public Builder measurement(Measurement measurement) {
+      this.measurement = checkNotNull(measurement);
+      return this;
+    }
+
+    public Builder elapsedNanos(long elapsedNanos) {
+      checkArgument(elapsedNanos >= 0);
+      this.elapsedNanos = elapsedNanos;
+      return this;
+    }
+
+    public WarmupMeasurement build() {
+      checkArgument(measurement != null);
+      checkArgument(elapsedNanos != null);
+      return new WarmupMeasurement(this);
+    }
+  }
+}
@@ -15,11 +15,16 @@
 package com.google.caliper.options;
 
 import com.google.caliper.util.ShortDuration;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.net.HostAndPort;
 
 import java.io.File;
+import java.util.UUID;
 
 public interface CaliperOptions {
   String benchmarkClassName();
@@ -30,8 +35,20 @@ public interface CaliperOptions {
   ImmutableMap<String, String> configProperties();
   ImmutableSet<String> instrumentNames();
   int trialsPerScenario();
+  double targetPrecision();
+  int parallelism();
+  int dryRunThreads();
+  int workerReuse();
+  boolean prestartWorkers();
+  ImmutableList<HostAndPort> agents();
+  ImmutableSortedSet<Integer> threadCounts();
+  String trialOrder();
+  Optional<Long> trialOrderSeed();
+  ImmutableSet<String> blockParameters();
   ShortDuration timeLimit();
+  Optional<ShortDuration> timeBudget();
   String runName();
+  Optional<UUID> resumeRunId();
   boolean verbose();
   boolean printConfiguration();
   boolean dryRun();
@@ -20,6 +20,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import java.io.File;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import com.google.caliper.options.CommandLineParser.Leftovers;
 import com.google.caliper.options.CommandLineParser.Option;
@@ -34,9 +35,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Ordering;
+import com.google.common.net.HostAndPort;
 
 final class ParsedOptions implements CaliperOptions {
   public static ParsedOptions from(String[] args) throws InvalidCommandException {
@@ -140,6 +143,195 @@ final class ParsedOptions implements CaliperOptions {
     return trials;
   }
 
+  // --------------------------------------------------------------------------
+  // Target precision
+  // --------------------------------------------------------------------------
+
+  private double targetPrecision = 0;
+
+  @Option({"--target-precision"})
+  private void setTargetPrecision(double targetPrecision) throws InvalidCommandException {
+    dryRunIncompatible("target-precision");
+    if (!(targetPrecision >= 0)) {
+      throw new InvalidCommandException("target-precision must not be negative: "
+          + targetPrecision);
+    }
+    this.targetPrecision = targetPrecision;
+  }
+
+  @Override public double targetPrecision() {
+    return targetPrecision;
+  }
+
+  // --------------------------------------------------------------------------
+  // Parallelism
+  // --------------------------------------------------------------------------
+
+  private int parallelism = 1;
+
+  @Option({"--parallel"})
+  private void setParallelism(int parallelism) throws InvalidCommandException {
+    dryRunIncompatible("parallel");
+    if (parallelism < 0) {
+      throw new InvalidCommandException("parallel must not be negative: " + parallelism);
+    }
+    this.parallelism = parallelism;
+  }
+
+  @Override public int parallelism() {
+    return parallelism;
+  }
+
+  // --------------------------------------------------------------------------
+  // Dry run threads
+  // --------------------------------------------------------------------------
+
+  private int dryRunThreads = 1;
+
+  @Option({"--dry-run-threads"})
+  private void setDryRunThreads(int dryRunThreads) throws InvalidCommandException {
+    if (dryRunThreads < 0) {
+      throw new InvalidCommandException("dry-run-threads must not be negative: " + dryRunThreads);
+    }
+    this.dryRunThreads = dryRunThreads;
+  }
+
+  @Override public int dryRunThreads() {
+    return dryRunThreads;
+  }
+
+  // --------------------------------------------------------------------------
+  // Worker reuse
+  // --------------------------------------------------------------------------
+
+  private int workerReuse = 1;
+
+  @Option({"--worker-reuse"})
+  private void setWorkerReuse(int workerReuse) throws InvalidCommandException {
+    dryRunIncompatible("worker-reuse");
+    if (workerReuse < 1) {
+      throw new InvalidCommandException("worker-reuse must be positive: " + workerReuse);
+    }
+    this.workerReuse = workerReuse;
+  }
+
+  @Override public int workerReuse() {
+    return workerReuse;
+  }
+
+  // --------------------------------------------------------------------------
+  // Worker prestarting
+  // --------------------------------------------------------------------------
+
+  private boolean prestartWorkers = false;
+
+  @Option({"--prestart-workers"})
+  private void setPrestartWorkers(boolean prestartWorkers) throws InvalidCommandException {
+    dryRunIncompatible("prestart-workers");
+    this.prestartWorkers = prestartWorkers;
+  }
+
+  @Override public boolean prestartWorkers() {
+    return prestartWorkers;
+  }
+
+  // --------------------------------------------------------------------------
+  // Agents
+  // --------------------------------------------------------------------------
+
+  private ImmutableList<HostAndPort> agents = ImmutableList.of();
+
+  @Option({"--agents"})
+  private void setAgents(String agentsString) throws InvalidCommandException {
+    dryRunIncompatible("agents");
+    ImmutableList.Builder<HostAndPort> builder = ImmutableList.builder();
+    for (String agent : Splitter.on(delimiter).split(agentsString)) {
+      HostAndPort address;
+      try {
+        address = HostAndPort.fromString(agent);
+      } catch (IllegalArgumentException e) {
+        throw new InvalidCommandException("Invalid agent address: " + agent);
+      }
+      if (!address.hasPort()) {
+        throw new InvalidCommandException("Agent address must have a port: " + agent);
+      }
+      builder.add(address);
+    }
+    this.agents = builder.build();
+  }
+
+  @Override public ImmutableList<HostAndPort> agents() {
+    return agents;
+  }
+
+  // --------------------------------------------------------------------------
+  // Threads
+  // --------------------------------------------------------------------------
+
+  private ImmutableSortedSet<Integer> threadCounts = ImmutableSortedSet.of();
+
+  @Option({"--threads"})
+  private void setThreadCounts(String threadCountsString) throws InvalidCommandException {
+    ImmutableSortedSet.Builder<Integer> builder = ImmutableSortedSet.naturalOrder();
+    for (String threadCount : Splitter.on(delimiter).split(threadCountsString)) {
+      int threads;
+      try {
+        threads = Integer.parseInt(threadCount);
+      } catch (NumberFormatException e) {
+        throw new InvalidCommandException("Invalid number of threads: " + threadCount);
+      }
+      if (threads < 1) {
+        throw new InvalidCommandException("threads must be positive: " + threads);
+      }
+      builder.add(threads);
+    }
+    this.threadCounts = builder.build();
+  }
+
+  @Override public ImmutableSortedSet<Integer> threadCounts() {
+    return threadCounts;
+  }
+
+  // --------------------------------------------------------------------------
+  // Trial order
+  // --------------------------------------------------------------------------
+
+  private String trialOrder = "sequential";
+
+  @Option({"--trial-order"})
+  private void setTrialOrder(String trialOrder) throws InvalidCommandException {
+    dryRunIncompatible("trial-order");
+    this.trialOrder = trialOrder;
+  }
+
+  @Override public String trialOrder() {
+    return trialOrder;
+  }
+
+  private Optional<Long> trialOrderSeed = Optional.absent();
+
+  @Option({"--seed"})
+  private void setTrialOrderSeed(long seed) throws InvalidCommandException {
+    dryRunIncompatible("seed");
+    this.trialOrderSeed = Optional.of(seed);
+  }
+
+  @Override public Optional<Long> trialOrderSeed() {
+    return trialOrderSeed;
+  }
+
+  private ImmutableSet<String> blockParameters = ImmutableSet.of();
+
+  @Option({"--block-params"})
+  private void setBlockParameters(String blockParametersString) throws InvalidCommandException {
+    dryRunIncompatible("block-params");
+    this.blockParameters = split(blockParametersString);
+  }
+
+  @Override public ImmutableSet<String> blockParameters() {
+    return blockParameters;
+  }
+
   // --------------------------------------------------------------------------
   // Time limit
   // --------------------------------------------------------------------------
@@ -159,6 +351,31 @@ final class ParsedOptions implements CaliperOptions {
     return runTime;
   }
 
+  // --------------------------------------------------------------------------
+  // Time budget
+  // --------------------------------------------------------------------------
+
+  private Optional<ShortDuration> timeBudget = Optional.absent();
+
+  @Option({"--time-budget"})
+  private void setTimeBudget(String timeBudgetString) throws InvalidCommandException {
+    dryRunIncompatible("time-budget");
+    ShortDuration timeBudget;
+    try {
+      timeBudget = ShortDuration.valueOf(timeBudgetString);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidCommandException("Invalid time budget: " + timeBudgetString);
+    }
+    if (timeBudget.equals(ShortDuration.zero())) {
+      throw new InvalidCommandException("time-budget must be positive: " + timeBudgetString);
+    }
+    this.timeBudget = Optional.of(timeBudget);
+  }
+
+  @Override public Optional<ShortDuration> timeBudget() {
+    return timeBudget;
+  }
+
   // --------------------------------------------------------------------------
   // Run name
   // --------------------------------------------------------------------------
@@ -266,6 +483,26 @@ final class ParsedOptions implements CaliperOptions {
     return ImmutableMap.copyOf(mutableConfigPropertes);
   }
 
+  // --------------------------------------------------------------------------
+  // Resume
+  // --------------------------------------------------------------------------
+
+  private Optional<UUID> resumeRunId = Optional.absent();
+
+  @Option({"--resume"})
+  private void setResumeRunId(String runId) throws InvalidCommandException {
+    dryRunIncompatible("resume");
+    try {
+      this.resumeRunId = Optional.of(UUID.fromString(runId));
+    } catch (IllegalArgumentException e) {
+      throw new InvalidCommandException("Invalid run id: " + runId);
+    }
+  }
+
+  @Override public Optional<UUID> resumeRunId() {
+    return resumeRunId;
+  }
+
   // --------------------------------------------------------------------------
   // Location of .caliper
   // --------------------------------------------------------------------------
@@ -352,6 +589,18 @@ final class ParsedOptions implements CaliperOptions {
         .add("vms", this.vmNames())
         .add("vmArguments", this.vmArguments())
         .add("trials", this.trialsPerScenario())
+        .add("targetPrecision", this.targetPrecision())
+        .add("parallel", this.parallelism())
+        .add("dryRunThreads", this.dryRunThreads())
+        .add("workerReuse", this.workerReuse())
+        .add("prestartWorkers", this.prestartWorkers())
+        .add("agents", this.agents())
+        .add("threads", this.threadCounts())
+        .add("trialOrder", this.trialOrder())
+        .add("seed", this.trialOrderSeed())
+        .add("blockParams", this.blockParameters())
+        .add("timeBudget", this.timeBudget())
+        .add("resume", this.resumeRunId())
         .add("verbose", this.verbose())
         .add("printConfig", this.printConfiguration())
         .add("delimiter", this.delimiter)
@@ -383,9 +632,55 @@ final class ParsedOptions implements CaliperOptions {
       "                    (default: \"" + Joiner.on(",").join(DEFAULT_INSTRUMENT_NAMES) + "\")",
       " -t, --trials       number of independent trials to peform per benchmark scenario; ",
       "                    a positive integer (default: 1)",
+      " --target-precision stop running trials of a scenario once the 95% confidence",
+      "                    interval of its median is narrower than this fraction of the",
+      "                    median (e.g. 0.02); --trials is then the maximum number of trials",
+      "                    per scenario. Use 0 to always run --trials trials. (default: 0)",
+      " --parallel         number of trials to run concurrently, each confined to its own",
+      "                    set of CPUs; use 0 to derive it from the number of available",
+      "                    processors (default: 1)",
+      " --dry-run-threads  number of scenarios to dry run concurrently, in-process, before",
+      "                    the trials; use 0 to derive it from the number of available",
+      "                    processors. Unless --dry-run is given, scenarios that an earlier",
+      "                    run already validated are only dry run again once the benchmark",
+      "                    class changes. (default: 1)",
+      " --worker-reuse     maximum number of trials to run in each worker JVM; values",
+      "                    greater than 1 keep workers alive between trials and run each",
+      "                    trial in a new class loader (default: 1)",
+      " --prestart-workers start the worker JVM of the next trial while the current trial",
+      "                    shuts down; it waits until the current worker has exited before",
+      "                    it runs. Ignored with --parallel or --worker-reuse.",
+      " --agents           comma-separated list of host:port addresses of worker agents",
+      "                    (com.google.caliper.runner.WorkerAgent) to run the trials on,",
+      "                    one at a time per agent, instead of on this host. Each agent",
+      "                    runs the VMs as configured on its own host. Can't be",
+      "                    combined with --parallel; ignores --worker-reuse and",
+      "                    --prestart-workers. (default: none)",
+      " --threads          comma-separated list of the numbers of threads to run each runtime",
+      "                    benchmark on at once, as another dimension of the experiments;",
+      "                    overrides the @Threads annotation of the benchmark class",
+      "                    (default: the annotation, or 1)",
+      " --trial-order      the order in which the scenarios of each round of trials are run:",
+      "                    sequential, shuffled (a new random order for every round) or",
+      "                    blocked (scenarios that only differ in benchmark method,",
+      "                    instrument or the parameters named by --block-params are run",
+      "                    back to back, in random order) (default: sequential)",
+      " --block-params     comma-separated list of benchmark parameters whose values may",
+      "                    differ within a block of the blocked trial order, e.g. the",
+      "                    parameter that selects the A or B variant (default: none)",
+      " --seed             the seed for random trial orders; recorded with every trial so",
+      "                    that an order can be repeated (default: random)",
       " -l, --time-limit   maximum length of time allowed for a single trial; use 0 to allow ",
       "                    trials to run indefinitely. (default: 30s) ",
+      " --time-budget      maximum length of time for the whole run (e.g. 45m); trials are",
+      "                    spread over the scenarios so that their medians become about",
+      "                    equally precise, and no trial is started that isn't expected to",
+      "                    finish in time. --trials is then the maximum number of trials",
+      "                    per scenario. (default: none)",
       " -r, --run-name     a user-friendly string used to identify the run",
+      " --resume           the id of a run that did not complete; the trials that it already",
+      "                    completed are not run again. Use the same options as the original",
+      "                    run.",
       " -v, --verbose      in addition to normal console output, display a raw feed of very",
       "                    detailed information from the worker (GC, compilation events, etc.).",
       "                    Runner output from loggers can be controlled via",
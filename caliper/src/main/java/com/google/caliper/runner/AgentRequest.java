@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import com.google.caliper.bridge.WorkerSpec;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * This object is sent from the runner to a {@link WorkerAgent} to ask it to start a worker.  The
+ * agent builds the command that starts it from its own configuration of the VM.
+ */
+final class AgentRequest {
+  /** The name of the VM, which must also be configured on the agent's host. */
+  final String vmName;
+
+  /**
+   * The options that the benchmark and the instrument add to those of the VM for this trial, such
+   * as {@code -Xint}.
+   */
+  final ImmutableList<String> vmOptions;
+
+  /** The worker spec, pointed at the runner as seen from the runner's host. */
+  final WorkerSpec workerSpec;
+
+  AgentRequest(String vmName, ImmutableList<String> vmOptions, WorkerSpec workerSpec) {
+    this.vmName = vmName;
+    this.vmOptions = vmOptions;
+    this.workerSpec = workerSpec;
+  }
+}
@@ -22,12 +22,14 @@ import static com.google.common.base.Throwables.propagateIfInstanceOf;
 import static java.util.logging.Level.SEVERE;
 
 import com.google.caliper.Benchmark;
+import com.google.caliper.api.Blackhole;
 import com.google.caliper.api.SkipThisScenarioException;
 import com.google.caliper.worker.MacrobenchmarkAllocationWorker;
 import com.google.caliper.worker.MicrobenchmarkAllocationWorker;
 import com.google.caliper.worker.Worker;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.monitoring.runtime.instrumentation.AllocationInstrumenter;
@@ -80,7 +82,8 @@ public final class AllocationInstrument extends Instrument {
       }
     } catch (IllegalArgumentException e) {
       throw new InvalidBenchmarkException("Benchmark methods must have no arguments or accept "
-          + "a single int or long parameter: %s", benchmarkMethod.getName());
+          + "an int or long parameter, optionally followed by a Blackhole: %s",
+          benchmarkMethod.getName());
     }
   }
 
@@ -90,11 +93,13 @@ public final class AllocationInstrument extends Instrument {
     }
 
     @Override
-    public void dryRun(Object benchmark) throws UserCodeException {
+    public ImmutableList<String> dryRun(Object benchmark) throws UserCodeException {
       // execute the benchmark method, but don't try to take any measurements, because this JVM
       // may not have the allocation instrumenter agent.
       try {
-        benchmarkMethod.invoke(benchmark, 1);
+        benchmarkMethod.invoke(
+            benchmark, BenchmarkMethods.arguments(benchmarkMethod, 1, new Blackhole()));
+        return ImmutableList.of();
       } catch (IllegalAccessException impossible) {
         throw new AssertionError(impossible);
       } catch (InvocationTargetException e) {
@@ -126,11 +131,12 @@ public final class AllocationInstrument extends Instrument {
     }
 
     @Override
-    public void dryRun(Object benchmark) throws InvalidBenchmarkException {
+    public ImmutableList<String> dryRun(Object benchmark) throws InvalidBenchmarkException {
       // execute the benchmark method, but don't try to take any measurements, because this JVM
       // may not have the allocation instrumenter agent.
       try {
         benchmarkMethod.invoke(benchmark);
+        return ImmutableList.of();
       } catch (IllegalAccessException impossible) {
         throw new AssertionError(impossible);
       } catch (InvocationTargetException e) {
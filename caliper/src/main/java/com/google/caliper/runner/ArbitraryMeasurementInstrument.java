@@ -24,6 +24,7 @@ import com.google.caliper.bridge.AbstractLogMessageVisitor;
 import com.google.caliper.bridge.StopMeasurementLogMessage;
 import com.google.caliper.model.ArbitraryMeasurement;
 import com.google.caliper.model.Measurement;
+import com.google.caliper.model.WarmupMeasurement;
 import com.google.caliper.util.Util;
 import com.google.caliper.worker.ArbitraryMeasurementWorker;
 import com.google.caliper.worker.Worker;
@@ -31,6 +32,7 @@ import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterables;
 
 import java.lang.reflect.InvocationTargetException;
@@ -79,9 +81,10 @@ public final class ArbitraryMeasurementInstrument extends Instrument {
     }
 
     @Override
-    public void dryRun(Object benchmark) throws InvalidBenchmarkException {
+    public ImmutableList<String> dryRun(Object benchmark) throws InvalidBenchmarkException {
       try {
         benchmarkMethod.invoke(benchmark);
+        return ImmutableList.of();
       } catch (IllegalAccessException impossible) {
         throw new AssertionError(impossible);
       } catch (InvocationTargetException e) {
@@ -125,6 +128,21 @@ public final class ArbitraryMeasurementInstrument extends Instrument {
       return ImmutableList.copyOf(measurement.asSet());
     }
 
+    @Override
+    public ImmutableList<WarmupMeasurement> getWarmupMeasurements() {
+      return ImmutableList.of();
+    }
+
+    @Override
+    public ImmutableSortedMap<Long, Long> getLatencies() {
+      return ImmutableSortedMap.of();
+    }
+
+    @Override
+    public ImmutableMap<String, String> properties() {
+      return ImmutableMap.of();
+    }
+
     @Override
     public void visit(StopMeasurementLogMessage logMessage) {
       this.measurement = Optional.of(Iterables.getOnlyElement(logMessage.measurements()));
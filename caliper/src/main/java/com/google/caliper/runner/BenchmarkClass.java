@@ -23,6 +23,7 @@ import com.google.caliper.AfterExperiment;
 import com.google.caliper.BeforeExperiment;
 import com.google.caliper.Param;
 import com.google.caliper.api.SkipThisScenarioException;
+import com.google.caliper.api.Threads;
 import com.google.caliper.api.VmOptions;
 import com.google.caliper.util.InvalidCommandException;
 import com.google.caliper.util.Reflection;
@@ -30,6 +31,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -47,6 +49,7 @@ final class BenchmarkClass {
   final Class<?> theClass;
   private final ParameterSet userParameters;
   private final ImmutableSet<String> benchmarkFlags;
+  private final ImmutableSortedSet<Integer> threadCounts;
 
   private BenchmarkClass(Class<?> theClass) throws InvalidBenchmarkException {
     this.theClass = checkNotNull(theClass);
@@ -68,6 +71,8 @@ final class BenchmarkClass {
     this.userParameters = ParameterSet.create(theClass, Param.class);
 
     this.benchmarkFlags = getVmOptions(theClass);
+
+    this.threadCounts = getThreadCounts(theClass);
   }
 
   ImmutableSet<Method> beforeExperimentMethods() {
@@ -86,6 +91,11 @@ final class BenchmarkClass {
     return benchmarkFlags;
   }
 
+  /** Returns the numbers of threads that the {@link Threads} annotation asks for, or just 1. */
+  public ImmutableSortedSet<Integer> threadCounts() {
+    return threadCounts;
+  }
+
   // TODO(gak): use these methods in the worker as well
   public void setUpBenchmark(Object benchmarkInstance) throws UserCodeException {
     boolean setupSuccess = false;
@@ -166,6 +176,27 @@ final class BenchmarkClass {
         : ImmutableSet.copyOf(annotation.value());
   }
 
+  private static ImmutableSortedSet<Integer> getThreadCounts(Class<?> benchmarkClass)
+      throws InvalidBenchmarkException {
+    Threads annotation = benchmarkClass.getAnnotation(Threads.class);
+    if (annotation == null) {
+      return ImmutableSortedSet.of(1);
+    }
+    ImmutableSortedSet.Builder<Integer> builder = ImmutableSortedSet.naturalOrder();
+    for (int threads : annotation.value()) {
+      if (threads < 1) {
+        throw new InvalidBenchmarkException(
+            "%s must only ask for positive numbers of threads: %s", benchmarkClass, threads);
+      }
+      builder.add(threads);
+    }
+    ImmutableSortedSet<Integer> threadCounts = builder.build();
+    if (threadCounts.isEmpty()) {
+      throw new InvalidBenchmarkException("%s asks for no threads", benchmarkClass);
+    }
+    return threadCounts;
+  }
+
   void validateParameters(ImmutableSetMultimap<String, String> parameters)
       throws InvalidCommandException {
     for (String paramName : parameters.keySet()) {
@@ -19,6 +19,7 @@ package com.google.caliper.runner;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import com.google.caliper.Benchmark;
+import com.google.caliper.api.Blackhole;
 import com.google.caliper.util.Util;
 
 import java.lang.reflect.Method;
@@ -31,6 +32,10 @@ final class BenchmarkMethods {
   private static final Class<?>[] MACROBENCHMARK_PARAMS = new Class<?>[] {};
   private static final Class<?>[] MICROBENCHMARK_PARAMS = new Class<?>[] {int.class};
   private static final Class<?>[] PICOBENCHMARK_PARAMS = new Class<?>[] {long.class};
+  private static final Class<?>[] MICROBENCHMARK_BLACKHOLE_PARAMS =
+      new Class<?>[] {int.class, Blackhole.class};
+  private static final Class<?>[] PICOBENCHMARK_BLACKHOLE_PARAMS =
+      new Class<?>[] {long.class, Blackhole.class};
 
   private BenchmarkMethods() {}
 
@@ -43,9 +48,11 @@ final class BenchmarkMethods {
       Class<?>[] parameterTypes = benchmarkMethod.getParameterTypes();
       if (Arrays.equals(parameterTypes, MACROBENCHMARK_PARAMS)) {
         return MACRO;
-      } else if (Arrays.equals(parameterTypes, MICROBENCHMARK_PARAMS)) {
+      } else if (Arrays.equals(parameterTypes, MICROBENCHMARK_PARAMS)
+          || Arrays.equals(parameterTypes, MICROBENCHMARK_BLACKHOLE_PARAMS)) {
         return MICRO;
-      } else if (Arrays.equals(parameterTypes, PICOBENCHMARK_PARAMS)) {
+      } else if (Arrays.equals(parameterTypes, PICOBENCHMARK_PARAMS)
+          || Arrays.equals(parameterTypes, PICOBENCHMARK_BLACKHOLE_PARAMS)) {
         return PICO;
       } else {
         throw new IllegalArgumentException("invalid method parameters: " + benchmarkMethod);
@@ -53,6 +60,18 @@ final class BenchmarkMethods {
     }
   }
 
+  /**
+   * Returns the arguments with which to call a micro or pico benchmark method for {@code reps}
+   * reps: the reps, as the type that the method takes, and the {@link Blackhole} if it takes one.
+   */
+  static Object[] arguments(Method benchmarkMethod, long reps, Blackhole blackhole) {
+    Class<?>[] parameterTypes = benchmarkMethod.getParameterTypes();
+    Object repsArgument = (parameterTypes[0] == int.class) ? (Object) (int) reps : (Object) reps;
+    return (parameterTypes.length == 1)
+        ? new Object[] {repsArgument}
+        : new Object[] {repsArgument, blackhole};
+  }
+
   /**
    * Several instruments look for benchmark methods like {@code timeBlah(int reps)}; this is the
    * centralized code that identifies such methods.
@@ -17,6 +17,7 @@ package com.google.caliper.runner;
 import static com.google.common.collect.ObjectArrays.concat;
 
 import com.google.caliper.bridge.BridgeModule;
+import com.google.caliper.bridge.MessageEncoding;
 import com.google.caliper.config.CaliperConfig;
 import com.google.caliper.config.ConfigModule;
 import com.google.caliper.config.InvalidConfigurationException;
@@ -133,6 +134,8 @@ public final class CaliperMain {
       }
       // check that the parameters are valid
       injector.getInstance(BenchmarkClass.class).validateParameters(options.userParameters());
+      // and that the workers can be configured, rather than finding out in the first trial
+      injector.getInstance(MessageEncoding.class);
       ServiceManager serviceManager = injector.getInstance(ServiceManager.class);
       serviceManager.startAsync().awaitHealthy();
       try {
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static java.util.logging.Level.WARNING;
+
+import com.google.caliper.config.CaliperConfig;
+import com.google.caliper.config.InvalidConfigurationException;
+import com.google.caliper.options.CaliperDirectory;
+import com.google.caliper.worker.WorkerMain;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Application class data sharing archives for worker JVMs.  Every worker loads the same classes
+ * (Guice, Gson, Guava, the benchmark, etc.) before it runs its trial, so mapping them from an
+ * archive that is built once shortens the startup of every worker after the first.
+ *
+ * <p>An archive is built for each distinct worker JVM command line (which includes the class path)
+ * and kept in the {@code cds} directory of the {@link CaliperDirectory}.  The archives are built by
+ * {@link #prepare} before the first trial runs, so that no trial waits for one.  To build one a
+ * worker is run with {@link WorkerMain#STARTUP_ONLY_PROPERTY} to record the classes that it loads,
+ * which the JVM then dumps into the archive.  JVMs that can't build or map such an archive (e.g.
+ * JDK 8, or JDKs before 19 if there are directories on the class path) are remembered and get no
+ * extra options; delete the directory of the archive to try again.  Archives are not used at all
+ * if {@code worker.classDataArchives} is configured to be false.
+ */
+@Singleton final class ClassDataArchives {
+  private static final Logger logger = Logger.getLogger(ClassDataArchives.class.getName());
+
+  private static final String ARCHIVE_FILE = "worker.jsa";
+  private static final String CLASS_LIST_FILE = "classes.lst";
+  private static final String UNSUPPORTED_FILE = "unsupported.txt";
+
+  /** The option that tells a worker which archive to use. */
+  static final String ARCHIVE_OPTION = "-XX:SharedArchiveFile=";
+
+  private final File directory;
+  private final boolean enabled;
+
+  @Inject ClassDataArchives(@CaliperDirectory File caliperDirectory, CaliperConfig config)
+      throws InvalidConfigurationException {
+    this(new File(caliperDirectory, "cds"), config.useClassDataArchives());
+  }
+
+  @VisibleForTesting ClassDataArchives(File directory, boolean enabled) {
+    this.directory = directory;
+    this.enabled = enabled;
+  }
+
+  /** Returns true unless class data archives are configured to be off. */
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Builds the archive for workers that are started with {@code jvmArgs} (the java executable and
+   * all of its options) and run {@link WorkerMain} with {@code workerArgs}, unless there already is
+   * an up to date one or the JVM is known not to support them.
+   */
+  void prepare(List<String> jvmArgs, List<String> workerArgs) {
+    if (!enabled) {
+      return;
+    }
+    File archiveDirectory = new File(directory, key(jvmArgs));
+    if (new File(archiveDirectory, UNSUPPORTED_FILE).exists()) {
+      return;
+    }
+    File archive = new File(archiveDirectory, ARCHIVE_FILE);
+    if (archive.isFile() && !isStale(archive, jvmArgs)) {
+      return;
+    }
+    try {
+      build(archiveDirectory, jvmArgs, workerArgs);
+    } catch (IOException e) {
+      logger.log(WARNING, "Could not build a class data archive in " + archiveDirectory, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the options that make a worker that is started with {@code jvmArgs} use the archive
+   * that {@link #prepare} built for it, or no options if there is no up to date archive for it.
+   * Never builds an archive itself.
+   */
+  ImmutableList<String> jvmOptions(List<String> jvmArgs) {
+    if (!enabled) {
+      return ImmutableList.of();
+    }
+    File archive = new File(new File(directory, key(jvmArgs)), ARCHIVE_FILE);
+    if (!archive.isFile() || isStale(archive, jvmArgs)) {
+      return ImmutableList.of();
+    }
+    return ImmutableList.of(ARCHIVE_OPTION + archive.getAbsolutePath(), "-Xshare:auto");
+  }
+
+  @VisibleForTesting static String key(List<String> jvmArgs) {
+    return Hashing.sha1().hashString(Joiner.on('\0').join(jvmArgs), Charsets.UTF_8).toString();
+  }
+
+  /** Returns true if a jar on the class path was modified after the archive was built. */
+  private static boolean isStale(File archive, List<String> jvmArgs) {
+    int classPathIndex = jvmArgs.indexOf("-cp") + 1;
+    if (classPathIndex == 0 || classPathIndex == jvmArgs.size()) {
+      return false;
+    }
+    for (String entry : Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+        .split(jvmArgs.get(classPathIndex))) {
+      File file = new File(entry);
+      if (file.isFile() && file.lastModified() > archive.lastModified()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Builds the archive in {@code archiveDirectory}.  A failure to record the classes may be
+   * specific to this run, so it is only remembered that the JVM can't use the archive if it fails
+   * to dump or map it.
+   */
+  private void build(File archiveDirectory, List<String> jvmArgs, List<String> workerArgs)
+      throws IOException, InterruptedException {
+    if (!archiveDirectory.isDirectory() && !archiveDirectory.mkdirs()) {
+      throw new IOException("Could not create " + archiveDirectory);
+    }
+    logger.fine(String.format("Building a class data archive for workers in %s",
+        archiveDirectory));
+    File classList = new File(archiveDirectory, CLASS_LIST_FILE);
+    Optional<String> failure = run(ImmutableList.<String>builder()
+        .addAll(jvmArgs)
+        .add("-Xshare:off")
+        .add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath())
+        .add("-D" + WorkerMain.STARTUP_ONLY_PROPERTY + "=true")
+        .add(WorkerMain.class.getName())
+        .addAll(workerArgs)
+        .build());
+    if (failure.isPresent()) {
+      logger.fine("Could not record the classes that workers load: " + failure.get());
+      return;
+    }
+    File newArchive = File.createTempFile(ARCHIVE_FILE, ".tmp", archiveDirectory);
+    try {
+      failure = run(ImmutableList.<String>builder()
+          .addAll(jvmArgs)
+          .add("-Xshare:dump")
+          .add("-XX:SharedClassListFile=" + classList.getAbsolutePath())
+          .add(ARCHIVE_OPTION + newArchive.getAbsolutePath())
+          .build());
+      if (!failure.isPresent()) {
+        // make sure that the JVM can actually map what it dumped
+        failure = run(ImmutableList.<String>builder()
+            .addAll(jvmArgs)
+            .add("-Xshare:on")
+            .add(ARCHIVE_OPTION + newArchive.getAbsolutePath())
+            .add("-version")
+            .build());
+      }
+      if (failure.isPresent()) {
+        logger.fine(String.format("The worker JVM can't use class data archives: %s",
+            failure.get()));
+        Files.write(failure.get(), new File(archiveDirectory, UNSUPPORTED_FILE), Charsets.UTF_8);
+        return;
+      }
+      Files.move(newArchive, new File(archiveDirectory, ARCHIVE_FILE));
+    } finally {
+      newArchive.delete();
+    }
+  }
+
+  /** Runs the command and returns a description of its failure, if it failed. */
+  private static Optional<String> run(List<String> command)
+      throws IOException, InterruptedException {
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    // use the default charset because that is what the JVM writes its output with
+    String output = CharStreams.toString(
+        new InputStreamReader(process.getInputStream(), Charset.defaultCharset()));
+    int exitValue = process.waitFor();
+    return exitValue == 0
+        ? Optional.<String>absent()
+        : Optional.of(String.format("%s exited with %d:%n%s",
+            Joiner.on(' ').join(command), exitValue, output));
+  }
+}
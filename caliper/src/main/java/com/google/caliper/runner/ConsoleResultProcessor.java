@@ -23,7 +23,10 @@ import com.google.caliper.model.Measurement;
 import com.google.caliper.model.Scenario;
 import com.google.caliper.model.Trial;
 import com.google.caliper.model.VmSpec;
+import com.google.caliper.util.LatencyHistogram;
 import com.google.caliper.util.Stdout;
+import com.google.caliper.worker.RuntimeWorker;
+import com.google.caliper.worker.ThreadedRuntimeWorker;
 import com.google.common.base.Function;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableListMultimap;
@@ -39,6 +42,7 @@ import org.apache.commons.math.stat.descriptive.rank.Percentile;
 
 import java.io.PrintWriter;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -70,6 +74,9 @@ final class ConsoleResultProcessor implements ResultProcessor {
             .build();
     for (Entry<String, Collection<Measurement>> entry : measurementsIndex.asMap().entrySet()) {
       Collection<Measurement> measurements = entry.getValue();
+      if (!isDerived(entry.getKey())) {
+        numMeasurements += measurements.size();
+      }
       ImmutableSet<String> units = FluentIterable.from(measurements)
           .transform(new Function<Measurement, String>() {
             @Override public String apply(Measurement input) {
@@ -93,12 +100,37 @@ final class ConsoleResultProcessor implements ResultProcessor {
           percentile.evaluate(50), descriptiveStatistics.getMean(),
           percentile.evaluate(75), descriptiveStatistics.getMax());
     }
+    if (!trial.latencies().isEmpty()) {
+      printLatencies(trial.latencies());
+    }
 
     instrumentSpecs.add(trial.instrumentSpec());
     Scenario scenario = trial.scenario();
     vmSpecs.add(scenario.vmSpec());
     benchmarkSpecs.add(scenario.benchmarkSpec());
-    numMeasurements += trial.measurements().size();
+  }
+
+  /**
+   * Returns true if the measurements with the description are computed from others of the same
+   * measurement, so that counting them would count that measurement more than once.
+   */
+  private static boolean isDerived(String description) {
+    return description.equals(RuntimeWorker.OVERHEAD_DESCRIPTION)
+        || description.equals(RuntimeWorker.CORRECTED_DESCRIPTION)
+        || description.equals(ThreadedRuntimeWorker.THROUGHPUT_DESCRIPTION)
+        || description.startsWith(ThreadedRuntimeWorker.THREAD_THROUGHPUT_DESCRIPTION_PREFIX);
+  }
+
+  /** Prints the tail latencies of the histogram that the trial's latencies make up. */
+  private void printLatencies(Map<Long, Long> latencies) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.recordAll(latencies);
+    stdout.printf(
+        "  latency(ns): p50=%d, p90=%d, p99=%d, p99.9=%d, p99.99=%d, max=%d (%d samples)%n",
+        histogram.valueAtPercentile(50), histogram.valueAtPercentile(90),
+        histogram.valueAtPercentile(99), histogram.valueAtPercentile(99.9),
+        histogram.valueAtPercentile(99.99), histogram.valueAtPercentile(100),
+        histogram.count());
   }
 
   @Override public void close() {
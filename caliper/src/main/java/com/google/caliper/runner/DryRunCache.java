@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static java.util.logging.Level.WARNING;
+
+import com.google.caliper.options.CaliperDirectory;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The outcomes of earlier dry runs of the scenarios of a benchmark class, so that scenarios that
+ * already passed (or were skipped) don't have to be dry run again.  The warnings that the
+ * instrument gave about a scenario are kept with its outcome, to be given again.
+ *
+ * <p>The outcomes are kept in the {@code dry-runs} directory of the {@link CaliperDirectory}, in a
+ * file per version of the benchmark class, which is identified by a hash of the bytecode of the
+ * class and its superclasses.  A scenario is identified by its instrument (with its options), its
+ * benchmark method and its parameter values, but not by its VM, since dry runs are in-process.
+ * Changes to other classes that the benchmark uses aren't noticed; delete the directory (or use
+ * {@code --dry-run}, which always runs them) to validate all scenarios again.
+ */
+@Singleton final class DryRunCache {
+  private static final Logger logger = Logger.getLogger(DryRunCache.class.getName());
+
+  private static final String SKIPPED = "skipped";
+
+  /** The file that the outcomes are kept in, absent if the bytecode can't be found. */
+  private final Optional<File> file;
+
+  @GuardedBy("this")
+  private Map<String, String> outcomes;
+
+  @GuardedBy("this")
+  private boolean modified;
+
+  @Inject DryRunCache(@CaliperDirectory File caliperDirectory,
+      @Running.BenchmarkClass Class<?> benchmarkClass) {
+    Optional<String> hash = bytecodeHash(benchmarkClass);
+    this.file = hash.isPresent()
+        ? Optional.of(new File(new File(caliperDirectory, "dry-runs"),
+            benchmarkClass.getName() + "-" + hash.get()))
+        : Optional.<File>absent();
+  }
+
+  /** The outcome of a dry run that didn't fail. */
+  static final class Outcome {
+    private static final Outcome SKIPPED_OUTCOME =
+        new Outcome(true, 0, ImmutableList.<String>of());
+
+    private final boolean skipped;
+    private final long nanos;
+    private final ImmutableList<String> warnings;
+
+    private Outcome(boolean skipped, long nanos, ImmutableList<String> warnings) {
+      this.skipped = skipped;
+      this.nanos = nanos;
+      this.warnings = warnings;
+    }
+
+    /**
+     * The scenario ran successfully; the dry run took {@code nanos} and the instrument warned about
+     * the benchmark with {@code warnings}.
+     */
+    static Outcome ran(long nanos, List<String> warnings) {
+      return new Outcome(false, nanos, ImmutableList.copyOf(warnings));
+    }
+
+    /** The scenario threw {@link com.google.caliper.api.SkipThisScenarioException}. */
+    static Outcome skipped() {
+      return SKIPPED_OUTCOME;
+    }
+
+    boolean isSkipped() {
+      return skipped;
+    }
+
+    long nanos() {
+      return nanos;
+    }
+
+    ImmutableList<String> warnings() {
+      return warnings;
+    }
+  }
+
+  /** Returns the outcome of an earlier dry run of the experiment, if there was one. */
+  synchronized Optional<Outcome> get(Experiment experiment) {
+    String outcome = outcomes().get(key(experiment));
+    if (outcome == null) {
+      return Optional.absent();
+    }
+    if (outcome.equals(SKIPPED)) {
+      return Optional.of(Outcome.skipped());
+    }
+    // the time of the dry run, followed by a line per warning
+    List<String> lines = Splitter.on('\n').splitToList(outcome);
+    try {
+      return Optional.of(Outcome.ran(Long.parseLong(lines.get(0)), lines.subList(1, lines.size())));
+    } catch (NumberFormatException e) {
+      return Optional.absent();
+    }
+  }
+
+  synchronized void put(Experiment experiment, Outcome outcome) {
+    outcomes().put(key(experiment), outcome.isSkipped()
+        ? SKIPPED
+        : Joiner.on('\n').join(Iterables.concat(
+            ImmutableList.of(Long.toString(outcome.nanos())), outcome.warnings())));
+    modified = true;
+  }
+
+  /** Writes the outcomes that were added since the cache was read. */
+  synchronized void save() {
+    if (!modified || !file.isPresent()) {
+      return;
+    }
+    Properties properties = new Properties();
+    properties.putAll(outcomes);
+    File directory = file.get().getParentFile();
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create " + directory);
+      }
+      File newFile = File.createTempFile(file.get().getName(), ".tmp", directory);
+      try {
+        OutputStream out = new FileOutputStream(newFile);
+        try {
+          properties.store(out, "Caliper dry runs");
+        } finally {
+          out.close();
+        }
+        Files.move(newFile, file.get());
+      } finally {
+        newFile.delete();
+      }
+      modified = false;
+    } catch (IOException e) {
+      logger.log(WARNING, "Could not save the outcomes of the dry runs in " + file.get(), e);
+    }
+  }
+
+  @GuardedBy("this")
+  private Map<String, String> outcomes() {
+    if (outcomes == null) {
+      outcomes = Maps.newHashMap();
+      if (file.isPresent() && file.get().isFile()) {
+        Properties properties = new Properties();
+        try {
+          InputStream in = new FileInputStream(file.get());
+          try {
+            properties.load(in);
+          } finally {
+            Closeables.closeQuietly(in);
+          }
+          outcomes.putAll(Maps.fromProperties(properties));
+        } catch (IOException e) {
+          logger.log(WARNING, "Could not read the outcomes of earlier dry runs from " + file.get(),
+              e);
+        }
+      }
+    }
+    return outcomes;
+  }
+
+  private static String key(Experiment experiment) {
+    Instrument instrument = experiment.instrumentation().instrument();
+    Method method = experiment.instrumentation().benchmarkMethod();
+    return instrument.name() + instrument.options() + " " + method.getName()
+        + Arrays.toString(method.getParameterTypes()) + " " + experiment.userParameters();
+  }
+
+  /**
+   * Returns a hash of the bytecode of the class and its superclasses, up to the first one that is
+   * loaded by the bootstrap class loader.
+   */
+  private static Optional<String> bytecodeHash(Class<?> benchmarkClass) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (Class<?> clazz = benchmarkClass; clazz != null && clazz.getClassLoader() != null;
+        clazz = clazz.getSuperclass()) {
+      InputStream in =
+          clazz.getClassLoader().getResourceAsStream(clazz.getName().replace('.', '/') + ".class");
+      if (in == null) {
+        return Optional.absent();
+      }
+      try {
+        try {
+          hasher.putBytes(ByteStreams.toByteArray(in));
+        } finally {
+          Closeables.closeQuietly(in);
+        }
+      } catch (IOException e) {
+        return Optional.absent();
+      }
+    }
+    return Optional.of(hasher.hash().toString());
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.google.caliper.runner;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Map;
@@ -27,22 +28,37 @@ import com.google.common.collect.ImmutableSortedMap;
 
 /**
  * A single "premise" for making benchmark measurements: which class and method to invoke, which VM
- * to use, which choices for user parameters and vmArguments to fill in and which instrument to use
- * to measure. A caliper run will compute all possible scenarios using
- * {@link FullCartesianExperimentSelector}, and will run one or more trials of each.
+ * to use, which choices for user parameters and vmArguments to fill in, which instrument to use
+ * to measure and on how many threads to run the method at once. A caliper run will compute all
+ * possible scenarios using {@link FullCartesianExperimentSelector}, and will run one or more
+ * trials of each.
  */
 final class Experiment {
+  /** The name of the parameter that records the number of threads in the results. */
+  static final String THREADS_PARAMETER = "threads";
+
   private final Instrumentation instrumentation;
   private final VirtualMachine vm;
   private final ImmutableSortedMap<String, String> userParameters;
+  private final int threads;
 
   Experiment(
       Instrumentation instrumentation,
       Map<String, String> userParameters,
       VirtualMachine vm) {
+    this(instrumentation, userParameters, vm, 1);
+  }
+
+  Experiment(
+      Instrumentation instrumentation,
+      Map<String, String> userParameters,
+      VirtualMachine vm,
+      int threads) {
+    checkArgument(threads > 0, "threads must be positive: %s", threads);
     this.instrumentation = checkNotNull(instrumentation);
     this.userParameters = ImmutableSortedMap.copyOf(userParameters);
     this.vm = checkNotNull(vm);
+    this.threads = threads;
   }
 
   Instrumentation instrumentation() {
@@ -57,26 +73,36 @@ final class Experiment {
     return vm;
   }
 
+  /** Returns the number of threads on which the benchmark method is run at once. */
+  int threads() {
+    return threads;
+  }
+
   @Override public boolean equals(Object object) {
     if (object instanceof Experiment) {
       Experiment that = (Experiment) object;
       return this.instrumentation.equals(that.instrumentation)
           && this.vm.equals(that.vm)
-          && this.userParameters.equals(that.userParameters);
+          && this.userParameters.equals(that.userParameters)
+          && this.threads == that.threads;
     }
     return false;
   }
 
   @Override public int hashCode() {
-    return Objects.hashCode(instrumentation, vm, userParameters);
+    return Objects.hashCode(instrumentation, vm, userParameters, threads);
   }
 
   @Override public String toString() {
-    return MoreObjects.toStringHelper("")
+    MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper("")
         .add("instrument", instrumentation.instrument())
         .add("benchmarkMethod", instrumentation.benchmarkMethod.getName())
         .add("vm", vm.name)
-        .add("parameters", userParameters)
-        .toString();
+        .add("parameters", userParameters);
+    if (threads != 1) {
+      // experiments on one thread are identified as they were before there was a choice
+      helper.add("threads", threads);
+    }
+    return helper.toString();
   }
 }
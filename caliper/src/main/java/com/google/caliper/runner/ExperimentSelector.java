@@ -18,11 +18,13 @@ package com.google.caliper.runner;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
 
 public interface ExperimentSelector {
   ImmutableSet<Instrument> instruments();
   ImmutableSet<VirtualMachine> vms();
   ImmutableSetMultimap<String, String> userParameters();
+  ImmutableSortedSet<Integer> threadCounts();
 
   // The important method
   ImmutableSet<Experiment> selectExperiments();
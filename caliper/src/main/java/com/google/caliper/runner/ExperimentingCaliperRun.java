@@ -19,17 +19,36 @@ import static java.util.logging.Level.WARNING;
 
 import com.google.caliper.api.ResultProcessor;
 import com.google.caliper.api.SkipThisScenarioException;
+import com.google.caliper.bridge.MessageEncoding;
+import com.google.caliper.bridge.WorkerSpec;
 import com.google.caliper.model.Trial;
 import com.google.caliper.options.CaliperOptions;
+import com.google.caliper.runner.TrialCountPolicy.StopReason;
+import com.google.caliper.runner.TrialScopes.TrialContext;
 import com.google.caliper.util.ShortDuration;
 import com.google.caliper.util.Stderr;
 import com.google.caliper.util.Stdout;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
 import com.google.inject.CreationException;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
@@ -39,8 +58,15 @@ import com.google.inject.spi.Message;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.inject.Provider;
@@ -62,6 +88,21 @@ public final class ExperimentingCaliperRun implements CaliperRun {
   private final ImmutableSet<ResultProcessor> resultProcessors;
   private final ExperimentSelector selector;
   private final Provider<TrialRunLoop> runLoopProvider;
+  private final Provider<WorkerProcess> workerProcessProvider;
+  private final WorkerPipeline workerPipeline;
+  private final ImmutableList<WorkerSlot> workerSlots;
+  private final TrialCountPolicy trialCountPolicy;
+  private final TrialOrder trialOrder;
+  private final TimeBudget timeBudget;
+  private final RunJournal journal;
+  private final DryRunCache dryRunCache;
+  private final ClassDataArchives classDataArchives;
+  private final Gson gson;
+  private final MessageEncoding encoding;
+  private final ImmutableSortedSet<Integer> threadCounts;
+
+  /** The warnings that dry runs gave, so that each one is only printed once. */
+  private final Set<String> dryRunWarnings = Sets.newConcurrentHashSet();
 
   /** This is 1-indexed because it's only used for display to users.  E.g. "Trial 1 of 27" */
   private volatile int trialNumber = 1;
@@ -76,7 +117,19 @@ public final class ExperimentingCaliperRun implements CaliperRun {
       ImmutableSet<Instrument> instruments,
       ImmutableSet<ResultProcessor> resultProcessors,
       ExperimentSelector selector,
-      Provider<TrialRunLoop> runLoopProvider) {
+      Provider<TrialRunLoop> runLoopProvider,
+      Provider<WorkerProcess> workerProcessProvider,
+      WorkerPipeline workerPipeline,
+      ImmutableList<WorkerSlot> workerSlots,
+      TrialCountPolicy trialCountPolicy,
+      TrialOrder trialOrder,
+      TimeBudget timeBudget,
+      RunJournal journal,
+      DryRunCache dryRunCache,
+      ClassDataArchives classDataArchives,
+      Gson gson,
+      MessageEncoding encoding,
+      @BenchmarkThreads ImmutableSortedSet<Integer> threadCounts) {
     this.injector = injector;
     this.options = options;
     this.stdout = stdout;
@@ -85,11 +138,24 @@ public final class ExperimentingCaliperRun implements CaliperRun {
     this.instruments = instruments;
     this.resultProcessors = resultProcessors;
     this.runLoopProvider = runLoopProvider;
+    this.workerProcessProvider = workerProcessProvider;
+    this.workerPipeline = workerPipeline;
     this.selector = selector;
+    this.workerSlots = workerSlots;
+    this.trialCountPolicy = trialCountPolicy;
+    this.trialOrder = trialOrder;
+    this.timeBudget = timeBudget;
+    this.journal = journal;
+    this.dryRunCache = dryRunCache;
+    this.classDataArchives = classDataArchives;
+    this.gson = gson;
+    this.encoding = encoding;
+    this.threadCounts = threadCounts;
   }
 
   @Override
   public void run() throws InvalidBenchmarkException {
+    timeBudget.start();
     stdout.println("Experiment selection: ");
     stdout.println("  Instruments:   " + FluentIterable.from(selector.instruments())
         .transform(new Function<Instrument, String>() {
@@ -98,6 +164,7 @@ public final class ExperimentingCaliperRun implements CaliperRun {
               }
             }));
     stdout.println("  User parameters:   " + selector.userParameters());
+    stdout.println("  Threads:           " + selector.threadCounts());
     stdout.println("  Virtual machines:  " + FluentIterable.from(selector.vms())
         .transform(
             new Function<VirtualMachine, String>() {
@@ -106,6 +173,7 @@ public final class ExperimentingCaliperRun implements CaliperRun {
               }
             }));
     stdout.println("  Selection type:    " + selector.selectionType());
+    stdout.println("  Trial order:       " + trialOrder);
     stdout.println();
 
     ImmutableSet<Experiment> allExperiments = selector.selectExperiments();
@@ -135,34 +203,45 @@ public final class ExperimentingCaliperRun implements CaliperRun {
 
     stdout.flush();
 
-    int totalTrials = experimentsToRun.size() * options.trialsPerScenario();
+    prepareClassDataArchives(experimentsToRun);
+    warnAboutUnsampledTrials(experimentsToRun);
+
+    int totalTrials = experimentsToRun.size() * trialCountPolicy.maxTrials();
+    Multiset<Experiment> completedTrials = replayJournal(experimentsToRun);
+    stdout.format(
+        "Completed trials will be recorded in %s (use --resume %s to resume this run).%n",
+        journal.file(), journal.run().id());
     Stopwatch stopwatch = Stopwatch.createStarted();
 
-    for (int i = 0; i < options.trialsPerScenario(); i++) {
-      for (Experiment experiment : experimentsToRun) {
-        stdout.printf("Starting trial %d of %d: %s\u2026 ",
-            trialNumber, totalTrials, experiment);
-        try {
-          Trial trial = TrialScopes.makeContext(UUID.randomUUID(), trialNumber, experiment)
-              .call(new Callable<Trial>() {
-                @Override public Trial call() throws Exception {
-                  return runLoopProvider.get().call();
-                }
-              });
-          stdout.println("Complete!");
-          for (ResultProcessor resultProcessor : resultProcessors) {
-            resultProcessor.processTrial(trial);
+    if (timeBudget.isLimited()) {
+      ImmutableList<Experiment> round =
+          timeBudget.nextRound(unfinished(experimentsToRun.asList()), trialCountPolicy);
+      while (!round.isEmpty()) {
+        runTrials(trialOrder.arrange(round), totalTrials);
+        round = timeBudget.nextRound(unfinished(experimentsToRun.asList()), trialCountPolicy);
+      }
+      int unfinished = unfinished(experimentsToRun.asList()).size();
+      if (unfinished > 0) {
+        stdout.format("%nThe time budget of %s ran out before %d of %d scenarios ran all of their"
+            + " trials.%n", timeBudget.budget(), unfinished, experimentsToRun.size());
+      }
+    } else if (trialCountPolicy.isAdaptive()) {
+      // run a round of trials at a time, dropping experiments as they converge
+      ImmutableList<Experiment> round = unfinished(experimentsToRun.asList());
+      while (!round.isEmpty()) {
+        runTrials(trialOrder.arrange(round), totalTrials);
+        round = unfinished(round);
+      }
+    } else {
+      ImmutableList.Builder<Experiment> trials = ImmutableList.builder();
+      for (int i = 0; i < trialCountPolicy.maxTrials(); i++) {
+        for (Experiment experiment : trialOrder.arrange(experimentsToRun.asList())) {
+          if (!completedTrials.remove(experiment)) {
+            trials.add(experiment);
           }
-        } catch (TrialFailureException e) {
-          stderr.println(
-              "ERROR: Trial failed to complete (its results will not be included in the run):\n"
-                  + "  " + e.getMessage());
-        } catch (Exception e) {
-          throw Throwables.propagate(e);
-        } finally {
-          trialNumber++;
         }
       }
+      runTrials(trials.build(), totalTrials);
     }
 
     stdout.print("\n");
@@ -176,46 +255,382 @@ public final class ExperimentingCaliperRun implements CaliperRun {
         logger.log(WARNING, "Could not close a result processor: " + resultProcessor, e);
       }
     }
+    journal.delete();
   }
 
   /**
-   * Attempts to run each given scenario once, in the current VM. Returns a set of all of the
-   * scenarios that didn't throw a {@link SkipThisScenarioException}.
+   * Builds the {@linkplain ClassDataArchives class data archives} of the workers that run on this
+   * host before any trial runs, so that none of the trials waits for one to be built.
    */
-  ImmutableSet<Experiment> dryRun(Iterable<Experiment> experiments)
-      throws InvalidBenchmarkException {
-    ImmutableSet.Builder<Experiment> builder = ImmutableSet.builder();
+  private void prepareClassDataArchives(ImmutableSet<Experiment> experiments) {
+    if (!classDataArchives.isEnabled()) {
+      return;
+    }
+    boolean anyLocalSlot = false;
+    for (WorkerSlot workerSlot : workerSlots) {
+      anyLocalSlot |= !workerSlot.agent().isPresent();
+    }
+    if (!anyLocalSlot) {
+      return;
+    }
     for (Experiment experiment : experiments) {
-      Class<?> clazz = benchmarkClass.benchmarkClass();
-      try {
-        Object benchmark = injector.createChildInjector(ExperimentModule.forExperiment(experiment))
-            .getInstance(Key.get(clazz));
-        benchmarkClass.setUpBenchmark(benchmark);
+      // the worker only starts up, so it needs no trial or runner to connect to
+      WorkerSpec workerSpec = WorkerProcess.workerSpec(UUID.randomUUID(), experiment,
+          TrialModule.benchmarkSpec(experiment, threadCounts), 0, encoding, null);
+      classDataArchives.prepare(WorkerProcess.workerJvmArgs(experiment, benchmarkClass),
+          ImmutableList.of(gson.toJson(workerSpec)));
+    }
+  }
+
+  /**
+   * Warns if any of the experiments sample latencies but some of their trials won't: those that run
+   * on an agent's host, where the worker can't map the runner's
+   * {@link com.google.caliper.bridge.SampleBuffer}, and those that run in the threaded worker.
+   */
+  private void warnAboutUnsampledTrials(ImmutableSet<Experiment> experiments) {
+    boolean anyAgentSlot = false;
+    for (WorkerSlot workerSlot : workerSlots) {
+      anyAgentSlot |= workerSlot.agent().isPresent();
+    }
+    ImmutableList.Builder<String> warnings = ImmutableList.builder();
+    for (Experiment experiment : experiments) {
+      if (experiment.instrumentation().sampleBufferCapacity() == 0) {
+        continue;
+      }
+      if (anyAgentSlot) {
+        warnings.add("Workers on agents don't sample latencies, so only the trials that run on "
+            + "this host will have them.");
+      }
+      if (WorkerProcess.runsThreaded(experiment.instrumentation(),
+          TrialModule.benchmarkSpec(experiment, threadCounts))) {
+        warnings.add("Benchmarks that declare thread counts don't sample latencies, so their "
+            + "trials won't have them.");
+      }
+    }
+    warn(warnings.build());
+  }
+
+  /** Returns the experiments that the trial count policy has not stopped yet. */
+  private ImmutableList<Experiment> unfinished(ImmutableList<Experiment> experiments) {
+    return FluentIterable.from(experiments)
+        .filter(new Predicate<Experiment>() {
+          @Override public boolean apply(Experiment experiment) {
+            return !trialCountPolicy.stopReason(experiment).isPresent();
+          }
+        })
+        .toList();
+  }
+
+  /**
+   * Hands the trials that were journaled before a resumed run was interrupted to the result
+   * processors and returns the number of trials of each experiment that were already run.
+   */
+  private Multiset<Experiment> replayJournal(ImmutableSet<Experiment> experimentsToRun) {
+    Multiset<Experiment> completedTrials = HashMultiset.create();
+    if (journal.entries().isEmpty()) {
+      return completedTrials;
+    }
+    stdout.format("Resuming run %s: replaying %d journaled trials.%n", journal.run().id(),
+        journal.entries().size());
+    ImmutableMap<String, Experiment> experimentsByName =
+        Maps.uniqueIndex(experimentsToRun, Functions.toStringFunction());
+    for (RunJournal.Entry entry : journal.entries()) {
+      Experiment experiment = experimentsByName.get(entry.experiment());
+      if (experiment == null) {
+        stderr.println("WARNING: Ignoring a journaled trial of an experiment that was not "
+            + "selected: " + entry.experiment());
+        continue;
+      }
+      completedTrials.add(experiment);
+      if (entry.trial().isPresent()) {
+        trialCountPolicy.recordTrial(experiment, entry.trial().get());
+        for (ResultProcessor resultProcessor : resultProcessors) {
+          resultProcessor.processTrial(entry.trial().get());
+        }
+      } else {
+        trialCountPolicy.recordFailure(experiment);
+      }
+    }
+    trialNumber += completedTrials.size();
+    return completedTrials;
+  }
+
+  /** Runs one trial of each of the given experiments, in order. */
+  private void runTrials(ImmutableList<Experiment> trials, int totalTrials) {
+    if (workerSlots.size() == 1) {
+      WorkerSlot workerSlot = Iterables.getOnlyElement(workerSlots);
+      TrialContext next = trials.isEmpty()
+          ? null
+          : TrialScopes.makeContext(UUID.randomUUID(), trialNumber, trials.get(0), workerSlot);
+      for (int i = 0; i < trials.size(); i++) {
+        TrialContext current = next;
+        next = (i + 1 < trials.size())
+            ? TrialScopes.makeContext(UUID.randomUUID(), trialNumber + 1, trials.get(i + 1),
+                workerSlot)
+            : null;
+        if (workerPipeline.isEnabled()) {
+          workerPipeline.setNextWorkerStarter(next == null ? null : workerStarter(next));
+        }
         try {
-          experiment.instrumentation().dryRun(benchmark);
-          builder.add(experiment);
+          runTrial(trials.get(i), current, totalTrials, workerSlot);
+        } catch (Exception e) {
+          throw Throwables.propagate(e);
         } finally {
-          // discard 'benchmark' now; the worker will have to instantiate its own anyway
-          benchmarkClass.cleanup(benchmark);
+          trialNumber++;
+        }
+      }
+    } else {
+      runTrialsInParallel(trials, totalTrials);
+    }
+  }
+
+  /** Returns a task that starts the worker of the given trial ahead of the trial itself. */
+  private Runnable workerStarter(final TrialContext context) {
+    return new Runnable() {
+      @Override public void run() {
+        try {
+          context.call(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+              workerProcessProvider.get().prestart();
+              return null;
+            }
+          });
+        } catch (Exception e) {
+          throw Throwables.propagate(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Runs a single trial of the given experiment in the given slot and hands the result to the
+   * result processors.  Trial failures are reported, but do not stop the run.
+   */
+  private void runTrial(final Experiment experiment, TrialContext context, int totalTrials,
+      WorkerSlot workerSlot) throws Exception {
+    int trialNumber = context.trialNumber();
+    boolean parallel = workerSlots.size() > 1;
+    if (parallel) {
+      stdout.printf("Starting trial %d of %d in slot %d: %s%n",
+          trialNumber, totalTrials, workerSlot.index(), experiment);
+    } else {
+      stdout.printf("Starting trial %d of %d: %s\u2026 ", trialNumber, totalTrials, experiment);
+    }
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    try {
+      Trial trial = context.call(new Callable<Trial>() {
+        @Override public Trial call() throws Exception {
+          return runLoopProvider.get().call();
         }
-      } catch (ProvisionException e) {
-        Throwable cause = e.getCause();
-        if (cause != null) {
-          throw new UserCodeException(cause);
+      });
+      timeBudget.recordTrial(experiment, stopwatch.elapsed(NANOSECONDS));
+      if (parallel) {
+        stdout.printf("Trial %d complete!%n", trialNumber);
+      } else {
+        stdout.println("Complete!");
+      }
+      trial = trialCountPolicy.recordTrial(experiment, trial);
+      journal.recordTrial(experiment, trial);
+      printStopReason(experiment);
+      synchronized (resultProcessors) {
+        for (ResultProcessor resultProcessor : resultProcessors) {
+          resultProcessor.processTrial(trial);
         }
-        throw e;
-      } catch (CreationException e) {
-        // Guice formatting is a little ugly
-        StringBuilder message = new StringBuilder(
-            "Could not create an instance of the benchmark class following reasons:");
-        int errorNum = 0;
-        for (Message guiceMessage : e.getErrorMessages()) {
-          message.append("\n  ").append(++errorNum).append(") ")
-              .append(guiceMessage.getMessage());
+      }
+    } catch (TrialFailureException e) {
+      stderr.println(
+          "ERROR: Trial " + (parallel ? trialNumber + " " : "")
+              + "failed to complete (its results will not be included in the run):\n"
+              + "  " + e.getMessage());
+      timeBudget.recordTrial(experiment, stopwatch.elapsed(NANOSECONDS));
+      trialCountPolicy.recordFailure(experiment);
+      journal.recordFailure(experiment);
+      printStopReason(experiment);
+    }
+  }
+
+  private void printStopReason(Experiment experiment) {
+    if (!trialCountPolicy.isAdaptive()) {
+      return;
+    }
+    Optional<StopReason> stopReason = trialCountPolicy.stopReason(experiment);
+    if (stopReason.isPresent()) {
+      Optional<Double> width = trialCountPolicy.relativeWidth(experiment);
+      stdout.printf("Stopped running trials of %s after %d trials (%s): %s%n", experiment,
+          trialCountPolicy.trialsRun(experiment), stopReason.get(),
+          width.isPresent()
+              ? String.format("the confidence interval of the median spans %.2f%% of it",
+                  width.get() * 100)
+              : "too few trials completed to estimate the median");
+    }
+  }
+
+  /**
+   * Runs all of the trials with one thread per {@link WorkerSlot}.  Trials are started in the same
+   * order as they would be run serially and each one takes whichever slot is free.
+   */
+  private void runTrialsInParallel(ImmutableList<Experiment> trials, final int totalTrials) {
+    final BlockingQueue<WorkerSlot> freeSlots = Queues.newArrayBlockingQueue(workerSlots.size());
+    freeSlots.addAll(workerSlots);
+    ExecutorService executor = Executors.newFixedThreadPool(workerSlots.size(),
+        new ThreadFactoryBuilder().setNameFormat("trial-runner-%d").setDaemon(true).build());
+    List<Future<Void>> futures = Lists.newArrayList();
+    try {
+      for (final Experiment experiment : trials) {
+        final int number = trialNumber++;
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override public Void call() throws Exception {
+            WorkerSlot workerSlot = freeSlots.take();
+            try {
+              runTrial(experiment,
+                  TrialScopes.makeContext(UUID.randomUUID(), number, experiment, workerSlot),
+                  totalTrials, workerSlot);
+            } finally {
+              freeSlots.add(workerSlot);
+            }
+            return null;
+          }
+        }));
+      }
+      executor.shutdown();
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Attempts to run each given scenario once, in the current VM and on up to
+   * {@link CaliperOptions#dryRunThreads()} threads. Returns a set of all of the scenarios that
+   * didn't throw a {@link SkipThisScenarioException}.
+   */
+  ImmutableSet<Experiment> dryRun(Iterable<Experiment> experiments)
+      throws InvalidBenchmarkException {
+    ImmutableList<Experiment> experimentList = ImmutableList.copyOf(experiments);
+    int threads = Math.min(experimentList.size(), options.dryRunThreads() == 0
+        ? Runtime.getRuntime().availableProcessors()
+        : options.dryRunThreads());
+    ImmutableSet.Builder<Experiment> builder = ImmutableSet.builder();
+    try {
+      if (threads <= 1) {
+        for (Experiment experiment : experimentList) {
+          if (dryRun(experiment)) {
+            builder.add(experiment);
+          }
         }
-        throw new InvalidBenchmarkException(message.toString(), e);
-      } catch (SkipThisScenarioException innocuous) {}
+      } else {
+        dryRunInParallel(experimentList, threads, builder);
+      }
+    } finally {
+      // the scenarios that passed are valid even if another one failed
+      dryRunCache.save();
     }
     return builder.build();
   }
+
+  /**
+   * Dry runs the scenarios on {@code threads} threads and adds those that weren't skipped to
+   * {@code builder}, in order.  If any of them fail, the first one's failure is thrown.
+   */
+  private void dryRunInParallel(ImmutableList<Experiment> experiments, int threads,
+      ImmutableSet.Builder<Experiment> builder) throws InvalidBenchmarkException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("dry-run-%d").setDaemon(true).build());
+    List<Future<Boolean>> futures = Lists.newArrayList();
+    try {
+      for (final Experiment experiment : experiments) {
+        futures.add(executor.submit(new Callable<Boolean>() {
+          @Override public Boolean call() throws InvalidBenchmarkException {
+            return dryRun(experiment);
+          }
+        }));
+      }
+      executor.shutdown();
+      for (int i = 0; i < experiments.size(); i++) {
+        if (futures.get(i).get()) {
+          builder.add(experiments.get(i));
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), InvalidBenchmarkException.class);
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Dry runs a single scenario, unless the cache says that an earlier run already did, and returns
+   * false if it was skipped.
+   */
+  private boolean dryRun(Experiment experiment) throws InvalidBenchmarkException {
+    if (!options.dryRun()) {
+      Optional<DryRunCache.Outcome> cached = dryRunCache.get(experiment);
+      if (cached.isPresent()) {
+        if (cached.get().isSkipped()) {
+          return false;
+        }
+        timeBudget.recordDryRun(experiment, cached.get().nanos());
+        warn(cached.get().warnings());
+        return true;
+      }
+    }
+    Class<?> clazz = benchmarkClass.benchmarkClass();
+    try {
+      Object benchmark = injector.createChildInjector(ExperimentModule.forExperiment(experiment))
+          .getInstance(Key.get(clazz));
+      benchmarkClass.setUpBenchmark(benchmark);
+      try {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        ImmutableList<String> warnings = experiment.instrumentation().dryRun(benchmark);
+        long nanos = stopwatch.elapsed(NANOSECONDS);
+        timeBudget.recordDryRun(experiment, nanos);
+        dryRunCache.put(experiment, DryRunCache.Outcome.ran(nanos, warnings));
+        warn(warnings);
+        return true;
+      } finally {
+        // discard 'benchmark' now; the worker will have to instantiate its own anyway
+        benchmarkClass.cleanup(benchmark);
+      }
+    } catch (ProvisionException e) {
+      Throwable cause = e.getCause();
+      if (cause != null) {
+        throw new UserCodeException(cause);
+      }
+      throw e;
+    } catch (CreationException e) {
+      // Guice formatting is a little ugly
+      StringBuilder message = new StringBuilder(
+          "Could not create an instance of the benchmark class following reasons:");
+      int errorNum = 0;
+      for (Message guiceMessage : e.getErrorMessages()) {
+        message.append("\n  ").append(++errorNum).append(") ")
+            .append(guiceMessage.getMessage());
+      }
+      throw new InvalidBenchmarkException(message.toString(), e);
+    } catch (SkipThisScenarioException innocuous) {
+      dryRunCache.put(experiment, DryRunCache.Outcome.skipped());
+      return false;
+    }
+  }
+
+  /** Prints the warnings, e.g. those that the dry runs gave, once each. */
+  private void warn(List<String> warnings) {
+    for (String warning : warnings) {
+      if (dryRunWarnings.add(warning)) {
+        stderr.println("WARNING: " + warning);
+      }
+    }
+    stderr.flush();
+  }
 }
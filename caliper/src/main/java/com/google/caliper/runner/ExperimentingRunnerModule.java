@@ -17,17 +17,24 @@
 package com.google.caliper.runner;
 
 import com.google.caliper.api.ResultProcessor;
+import com.google.caliper.bridge.MessageEncoding;
 import com.google.caliper.config.CaliperConfig;
 import com.google.caliper.config.InstrumentConfig;
+import com.google.caliper.config.InvalidConfigurationException;
 import com.google.caliper.model.Host;
 import com.google.caliper.model.Run;
+import com.google.caliper.options.CaliperDirectory;
 import com.google.caliper.options.CaliperOptions;
 import com.google.caliper.runner.Instrument.Instrumentation;
 import com.google.caliper.util.InvalidCommandException;
 import com.google.caliper.util.ShortDuration;
 import com.google.caliper.util.Util;
+import com.google.common.base.Ascii;
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
 import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
@@ -36,7 +43,9 @@ import com.google.common.collect.Multiset;
 import com.google.common.collect.Multisets;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.TreeMultiset;
+import com.google.common.net.HostAndPort;
 import com.google.common.util.concurrent.Service;
+import com.google.gson.Gson;
 import com.google.inject.AbstractModule;
 import com.google.inject.Injector;
 import com.google.inject.Provides;
@@ -46,13 +55,20 @@ import com.google.inject.multibindings.Multibinder;
 
 import org.joda.time.Instant;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.UUID;
+import java.util.logging.Logger;
 
 /**
  * Configures a {@link CaliperRun} that performs experiments.
  */
 final class ExperimentingRunnerModule extends AbstractModule {
+  private static final Logger logger = Logger.getLogger(ExperimentingRunnerModule.class.getName());
+
   @Override protected void configure() {
     install(new TrialModule());
     install(new RunnerModule());
@@ -61,6 +77,9 @@ final class ExperimentingRunnerModule extends AbstractModule {
     Multibinder.newSetBinder(binder(), Service.class)
         .addBinding()
         .to(ServerSocketService.class);
+    Multibinder.newSetBinder(binder(), Service.class)
+        .addBinding()
+        .to(WorkerPool.class);
   }
 
   @LocalPort 
@@ -78,6 +97,11 @@ final class ExperimentingRunnerModule extends AbstractModule {
     return builder.build();
   }
 
+  @Provides @Singleton MessageEncoding provideMessageEncoding(CaliperConfig config)
+      throws InvalidConfigurationException {
+    return config.getWorkerMessageEncoding();
+  }
+
   @Provides UUID provideUuid() {
     return UUID.randomUUID();
   }
@@ -87,12 +111,115 @@ final class ExperimentingRunnerModule extends AbstractModule {
     return benchmarkClass.userParameters().fillInDefaultsFor(options.userParameters());
   }
 
+  @Provides @BenchmarkThreads ImmutableSortedSet<Integer> provideBenchmarkThreads(
+      BenchmarkClass benchmarkClass, CaliperOptions options) throws InvalidBenchmarkException {
+    ImmutableSortedSet<Integer> threadCounts = options.threadCounts().isEmpty()
+        ? benchmarkClass.threadCounts()
+        : options.threadCounts();
+    if (!threadCounts.equals(ImmutableSortedSet.of(1))
+        && benchmarkClass.userParameters().get(Experiment.THREADS_PARAMETER) != null) {
+      throw new InvalidBenchmarkException(
+          "%s can't be run on more than one thread, because it has a parameter named %s",
+          benchmarkClass, Experiment.THREADS_PARAMETER);
+    }
+    return threadCounts;
+  }
+
   @Provides @Singleton Host provideHost(EnvironmentGetter environmentGetter) {
     return environmentGetter.getHost();
   }
 
-  @Provides @Singleton Run provideRun(UUID id, CaliperOptions options, Instant startTime) {
-    return new Run.Builder(id).label(options.runName()).startTime(startTime).build();
+  @Provides @Singleton RunJournal provideRunJournal(UUID id, CaliperOptions options,
+      Instant startTime, @CaliperDirectory File caliperDirectory, Gson gson)
+      throws InvalidCommandException {
+    if (options.resumeRunId().isPresent()) {
+      return RunJournal.resume(
+          RunJournal.journalFile(caliperDirectory, options.resumeRunId().get()), gson);
+    }
+    return RunJournal.create(RunJournal.journalFile(caliperDirectory, id), gson,
+        new Run.Builder(id).label(options.runName()).startTime(startTime).build());
+  }
+
+  @Provides @Singleton Run provideRun(RunJournal journal) {
+    return journal.run();
+  }
+
+  @Provides @Singleton ImmutableList<WorkerSlot> provideWorkerSlots(CaliperOptions options,
+      Host host, Gson gson) throws InvalidCommandException {
+    if (!options.agents().isEmpty()) {
+      if (options.parallelism() != 1) {
+        throw new InvalidCommandException(
+            "--parallel can't be combined with --agents; each agent runs one trial at a time");
+      }
+      ImmutableList.Builder<WorkerSlot> slots = ImmutableList.builder();
+      for (int i = 0; i < options.agents().size(); i++) {
+        HostAndPort address = options.agents().get(i);
+        try {
+          slots.add(new WorkerSlot(i, RemoteAgent.connect(address, gson)));
+        } catch (IOException e) {
+          throw new InvalidCommandException("Could not connect to agent %s: %s", address,
+              e.getMessage());
+        }
+      }
+      return slots.build();
+    }
+    boolean confineToCpus = WorkerSlot.isCpuAffinitySupported(host.properties().get("os.name"));
+    Optional<ImmutableList<Integer>> allowedCpus = confineToCpus
+        ? WorkerSlot.allowedCpus()
+        : Optional.<ImmutableList<Integer>>absent();
+    confineToCpus = allowedCpus.isPresent();
+    ImmutableList<Integer> availableCpus = allowedCpus.or(WorkerSlot.firstCpus(
+        Integer.parseInt(host.properties().get("host.availableProcessors"))));
+    int parallelism = options.parallelism();
+    if (parallelism == 0) {
+      parallelism = Math.max(1, availableCpus.size() / WorkerSlot.DEFAULT_CPUS_PER_SLOT);
+    } else if (parallelism > availableCpus.size()) {
+      throw new InvalidCommandException(
+          "Cannot run %d trials in parallel with only %d available processors",
+          parallelism, availableCpus.size());
+    }
+    if (parallelism > 1 && !confineToCpus) {
+      logger.warning("Worker CPU affinity is not supported on this host. Trials running in "
+          + "parallel may interfere with each other.");
+    }
+    return WorkerSlot.partition(parallelism, availableCpus, confineToCpus);
+  }
+
+  @Provides @Singleton TrialCountPolicy provideTrialCountPolicy(CaliperOptions options)
+      throws InvalidCommandException {
+    if (options.targetPrecision() == 0) {
+      return TrialCountPolicy.fixed(options.trialsPerScenario());
+    }
+    if (options.trialsPerScenario() < TrialCountPolicy.minimumTrials()) {
+      throw new InvalidCommandException(
+          "--target-precision requires --trials to allow at least %d trials per scenario",
+          TrialCountPolicy.minimumTrials());
+    }
+    return TrialCountPolicy.adaptive(options.targetPrecision(), options.trialsPerScenario());
+  }
+
+  @Provides @Singleton TimeBudget provideTimeBudget(CaliperOptions options,
+      ImmutableList<WorkerSlot> workerSlots) {
+    Optional<ShortDuration> budget = options.timeBudget();
+    return budget.isPresent()
+        ? TimeBudget.of(budget.get(), workerSlots.size(), Ticker.systemTicker())
+        : TimeBudget.unlimited();
+  }
+
+  @Provides @Singleton TrialOrder provideTrialOrder(CaliperOptions options)
+      throws InvalidCommandException {
+    TrialOrder.Strategy strategy;
+    try {
+      strategy = TrialOrder.Strategy.valueOf(Ascii.toUpperCase(options.trialOrder()));
+    } catch (IllegalArgumentException e) {
+      throw new InvalidCommandException("Invalid trial order: %s. Valid orders are %s",
+          options.trialOrder(), Ascii.toLowerCase(Arrays.toString(TrialOrder.Strategy.values())));
+    }
+    if (strategy != TrialOrder.Strategy.BLOCKED && !options.blockParameters().isEmpty()) {
+      throw new InvalidCommandException("--block-params only applies to --trial-order=blocked");
+    }
+    return new TrialOrder(strategy, options.trialOrderSeed().or(new Random().nextLong()),
+        options.blockParameters());
   }
 
   @Provides ImmutableSet<Instrument> provideInstruments(Injector injector,
@@ -22,6 +22,7 @@ import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
@@ -34,20 +35,24 @@ import java.util.Set;
 
 /**
  * A set of {@link Experiment experiments} constructed by taking all possible combinations of
- * instruments, benchmark methods, user parameters, VM specs and VM arguments.
+ * instruments, benchmark methods, user parameters, VM specs, VM arguments and numbers of threads.
+ * Instruments that can't run a benchmark on more than one thread only run it on one.
  */
 public final class FullCartesianExperimentSelector implements ExperimentSelector {
   private ImmutableSet<Instrumentation> instrumentations;
   private final ImmutableSet<VirtualMachine> vms;
   private final ImmutableSetMultimap<String, String> userParameters;
+  private final ImmutableSortedSet<Integer> threadCounts;
 
   @Inject FullCartesianExperimentSelector(
       ImmutableSet<Instrumentation> instrumentations,
       ImmutableSet<VirtualMachine> vms,
-      @BenchmarkParameters ImmutableSetMultimap<String, String> userParameters) {
+      @BenchmarkParameters ImmutableSetMultimap<String, String> userParameters,
+      @BenchmarkThreads ImmutableSortedSet<Integer> threadCounts) {
     this.instrumentations = instrumentations;
     this.vms = vms;
     this.userParameters = userParameters;
+    this.threadCounts = threadCounts;
   }
 
   // TODO(gak): put this someplace more sensible
@@ -69,14 +74,22 @@ public final class FullCartesianExperimentSelector implements ExperimentSelector
     return userParameters;
   }
 
+  @Override public ImmutableSortedSet<Integer> threadCounts() {
+    return threadCounts;
+  }
+
   @Override public ImmutableSet<Experiment> selectExperiments() {
     List<Experiment> experiments = Lists.newArrayList();
     for (Instrumentation instrumentation : instrumentations) {
+      ImmutableSortedSet<Integer> theseThreadCounts =
+          (instrumentation.threadedWorkerClass() == null) ? ImmutableSortedSet.of(1) : threadCounts;
       for (VirtualMachine vm : vms) {
         for (List<String> userParamsChoice : cartesian(userParameters)) {
           ImmutableMap<String, String> theseUserParams =
               zip(userParameters.keySet(), userParamsChoice);
-          experiments.add(new Experiment(instrumentation, theseUserParams, vm));
+          for (int threads : theseThreadCounts) {
+            experiments.add(new Experiment(instrumentation, theseUserParams, vm, threads));
+          }
         }
       }
     }
@@ -23,9 +23,11 @@ import java.lang.reflect.Method;
 
 import com.google.caliper.bridge.AbstractLogMessageVisitor;
 import com.google.caliper.bridge.LogMessageVisitor;
+import com.google.caliper.bridge.SampleBuffer;
 import com.google.caliper.bridge.StopMeasurementLogMessage;
 import com.google.caliper.model.InstrumentSpec;
 import com.google.caliper.model.Measurement;
+import com.google.caliper.model.WarmupMeasurement;
 import com.google.caliper.worker.Worker;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
@@ -34,10 +36,13 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 
+import javax.annotation.Nullable;
+
 public abstract class Instrument {
   protected ImmutableMap<String, String> options;
   private String name = getClass().getSimpleName();
@@ -108,10 +113,24 @@ public abstract class Instrument {
           .toString();
     }
 
-    public abstract void dryRun(Object benchmark) throws InvalidBenchmarkException;
+    /**
+     * Runs the benchmark once in this VM, to find problems with it before any trials run, and
+     * returns warnings about it for the user.  The warnings are kept along with the outcome of the
+     * dry run, so that they are given again when a later run doesn't repeat it.
+     */
+    public abstract ImmutableList<String> dryRun(Object benchmark)
+        throws InvalidBenchmarkException;
 
     public abstract Class<? extends Worker> workerClass();
 
+    /**
+     * Returns the worker that runs the benchmark method on more than one thread at once, or null
+     * if the instrument only measures it on one.
+     */
+    @Nullable public Class<? extends Worker> threadedWorkerClass() {
+      return null;
+    }
+
     /**
      * Return the subset of options (and possibly a transformation thereof) to be used in the
      * worker. Returns all instrument options by default.
@@ -121,6 +140,15 @@ public abstract class Instrument {
     }
 
     abstract MeasurementCollectingVisitor getMeasurementCollectingVisitor();
+
+    /**
+     * Returns the number of samples that the worker may write to its {@link SampleBuffer} before
+     * the runner reads them, or 0 if it only reports measurements.  The measurement collecting
+     * visitor of an instrumentation that returns more must be a {@link SampleCollectingVisitor}.
+     */
+    int sampleBufferCapacity() {
+      return 0;
+    }
   }
 
   public final ImmutableMap<String, String> options() {
@@ -166,6 +194,30 @@ public abstract class Instrument {
   interface MeasurementCollectingVisitor extends LogMessageVisitor {
     boolean isDoneCollecting();
     ImmutableList<Measurement> getMeasurements();
+
+    /** Returns the measurements taken during the warmup, if they are kept. */
+    ImmutableList<WarmupMeasurement> getWarmupMeasurements();
+
+    /**
+     * Returns the latencies of single invocations that the worker timed along with the collected
+     * measurements, as {@link com.google.caliper.util.LatencyHistogram#counts()} returns them.
+     */
+    ImmutableSortedMap<Long, Long> getLatencies();
+
+    /**
+     * Returns properties of the trial that describe how the measurements were collected, e.g. how
+     * long the warmup took, which are recorded in the {@link com.google.caliper.model.Trial}.
+     */
+    ImmutableMap<String, String> properties();
+  }
+
+  /**
+   * A {@link MeasurementCollectingVisitor} that is also given the samples that the worker writes to
+   * its {@link SampleBuffer}.  All the samples of a measurement, and only those, are collected
+   * before the visitor sees the message that stops it.
+   */
+  interface SampleCollectingVisitor extends MeasurementCollectingVisitor {
+    void collectSamples(long[] samples, int count);
   }
 
   /**
@@ -211,5 +263,17 @@ public abstract class Instrument {
     @Override public ImmutableList<Measurement> getMeasurements() {
       return ImmutableList.copyOf(measurementsByDescription.values());
     }
+
+    @Override public ImmutableList<WarmupMeasurement> getWarmupMeasurements() {
+      return ImmutableList.of();
+    }
+
+    @Override public ImmutableSortedMap<Long, Long> getLatencies() {
+      return ImmutableSortedMap.of();
+    }
+
+    @Override public ImmutableMap<String, String> properties() {
+      return ImmutableMap.of();
+    }
   }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.caliper.model.Host;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.net.HostAndPort;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The runner's side of a {@link WorkerAgent}: runs workers on the agent's host.
+ */
+final class RemoteAgent {
+  private static final Logger logger = Logger.getLogger(RemoteAgent.class.getName());
+
+  /** The size of the buffer between the agent and the trial that is reading a worker's output. */
+  private static final int PIPE_SIZE = 64 * 1024;
+
+  private final HostAndPort address;
+  private final Host host;
+  private final Gson gson;
+
+  private RemoteAgent(HostAndPort address, Host host, Gson gson) {
+    this.address = checkNotNull(address);
+    this.host = checkNotNull(host);
+    this.gson = gson;
+  }
+
+  /** Connects to the agent at {@code address} to find out which host it runs workers on. */
+  static RemoteAgent connect(HostAndPort address, Gson gson) throws IOException {
+    Socket socket = open(address);
+    try {
+      return new RemoteAgent(address, readHost(reader(socket), gson), gson);
+    } finally {
+      socket.close();
+    }
+  }
+
+  HostAndPort address() {
+    return address;
+  }
+
+  /** The host that the agent runs workers on. */
+  Host host() {
+    return host;
+  }
+
+  /**
+   * Asks the agent to start a worker on its host.  The returned process relays the output of the
+   * worker and destroying it destroys the worker.
+   */
+  Process startWorker(AgentRequest request) throws IOException {
+    Socket socket = open(address);
+    BufferedReader reader;
+    try {
+      reader = reader(socket);
+      readHost(reader, gson);
+      Writer writer = new OutputStreamWriter(socket.getOutputStream(), UTF_8);
+      writer.write(gson.toJson(request));
+      writer.write('\n');
+      writer.flush();
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    return new AgentProcess(socket, reader);
+  }
+
+  private static Socket open(HostAndPort address) throws IOException {
+    Socket socket = new Socket(address.getHostText(), address.getPort());
+    socket.setTcpNoDelay(true);
+    return socket;
+  }
+
+  private static BufferedReader reader(Socket socket) throws IOException {
+    return new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+  }
+
+  private static Host readHost(BufferedReader reader, Gson gson) throws IOException {
+    String line = reader.readLine();
+    if (line == null) {
+      throw new IOException("The agent closed the connection");
+    }
+    try {
+      return gson.fromJson(line, Host.class);
+    } catch (JsonParseException e) {
+      throw new IOException("Not a Caliper agent", e);
+    }
+  }
+
+  @Override public String toString() {
+    return address.toString();
+  }
+
+  /** A worker running on the agent's host. */
+  private final class AgentProcess extends Process {
+    final Socket socket;
+    final PipedOutputStream stdoutSink = new PipedOutputStream();
+    final PipedOutputStream stderrSink = new PipedOutputStream();
+    final InputStream stdout;
+    final InputStream stderr;
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile int exitValue = -1;
+
+    AgentProcess(Socket socket, final BufferedReader reader) throws IOException {
+      this.socket = socket;
+      this.stdout = new PipedInputStream(stdoutSink, PIPE_SIZE);
+      this.stderr = new PipedInputStream(stderrSink, PIPE_SIZE);
+      Thread pump = new Thread("agent-worker-output-" + address) {
+        @Override public void run() {
+          try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              onLine(line);
+            }
+          } catch (IOException e) {
+            logger.log(Level.FINE, "Lost the connection to agent " + address, e);
+          } finally {
+            Closeables.closeQuietly(reader);
+            closeQuietly(stdoutSink);
+            closeQuietly(stderrSink);
+            done.countDown();
+          }
+        }
+      };
+      pump.setDaemon(true);
+      pump.start();
+    }
+
+    private void onLine(String line) {
+      if (line.startsWith(WorkerAgent.EXIT_PREFIX)) {
+        exitValue = Integer.parseInt(line.substring(WorkerAgent.EXIT_PREFIX.length()));
+      } else if (line.startsWith(WorkerAgent.STDOUT_PREFIX)) {
+        write(stdoutSink, line.substring(WorkerAgent.STDOUT_PREFIX.length()));
+      } else if (line.startsWith(WorkerAgent.STDERR_PREFIX)) {
+        write(stderrSink, line.substring(WorkerAgent.STDERR_PREFIX.length()));
+      } else {
+        logger.warning(String.format("Unexpected line from agent %s: %s", address, line));
+      }
+    }
+
+    private void write(OutputStream sink, String line) {
+      try {
+        sink.write((line + '\n').getBytes(Charset.defaultCharset()));
+        // wakes the reader immediately rather than when it next polls the pipe
+        sink.flush();
+      } catch (IOException e) {
+        // nobody is reading the output of this worker anymore
+        logger.log(Level.FINEST, "Dropped output from agent " + address, e);
+      }
+    }
+
+    @Override public OutputStream getOutputStream() {
+      return ByteStreams.nullOutputStream();
+    }
+
+    @Override public InputStream getInputStream() {
+      return stdout;
+    }
+
+    @Override public InputStream getErrorStream() {
+      return stderr;
+    }
+
+    @Override public int waitFor() throws InterruptedException {
+      done.await();
+      return exitValue;
+    }
+
+    @Override public int exitValue() {
+      if (done.getCount() > 0) {
+        throw new IllegalThreadStateException("The worker has not exited yet");
+      }
+      return exitValue;
+    }
+
+    @Override public void destroy() {
+      // the agent destroys the worker when the connection is closed
+      try {
+        socket.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Could not close the connection to agent " + address, e);
+      }
+    }
+  }
+
+  private static void closeQuietly(OutputStream stream) {
+    try {
+      Closeables.close(stream, true);
+    } catch (IOException impossible) {
+      throw new AssertionError(impossible);
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.logging.Level.SEVERE;
+
+import com.google.caliper.model.Run;
+import com.google.caliper.model.Trial;
+import com.google.caliper.util.InvalidCommandException;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An append-only record of the trials of a run that have completed, so that a run can be resumed
+ * (see {@code --resume}) if the runner dies.
+ *
+ * <p>The journal is a file with one JSON document per line.  The first line is the {@link Run};
+ * every following line is an {@link Entry} for a trial that either completed or failed.  Each entry
+ * is synced to disk before the trial is handed to the result processors, and a line that was only
+ * partially written when the runner died is ignored when the journal is read.  The journal is
+ * deleted once the run completes.
+ */
+final class RunJournal {
+  private static final Logger logger = Logger.getLogger(RunJournal.class.getName());
+
+  private final File file;
+  private final Gson gson;
+  private final Run run;
+  private final ImmutableList<Entry> entries;
+
+  @GuardedBy("this")
+  private boolean headerWritten;
+
+  /** True until the first entry is appended to a journal that was read from disk. */
+  @GuardedBy("this")
+  private boolean resumed;
+
+  @GuardedBy("this")
+  private boolean failed;
+
+  @GuardedBy("this")
+  private boolean deleted;
+
+  private RunJournal(File file, Gson gson, Run run, ImmutableList<Entry> entries,
+      boolean headerWritten) {
+    this.file = file;
+    this.gson = gson;
+    this.run = run;
+    this.entries = entries;
+    this.headerWritten = headerWritten;
+    this.resumed = headerWritten;
+  }
+
+  /** Returns the file that journals the run with the given id. */
+  static File journalFile(File caliperDirectory, UUID runId) {
+    return new File(new File(caliperDirectory, "journal"), runId + ".json");
+  }
+
+  /** Creates a journal for a new run.  The file is not created until the first trial completes. */
+  static RunJournal create(File file, Gson gson, Run run) {
+    return new RunJournal(file, gson, run, ImmutableList.<Entry>of(), false);
+  }
+
+  /** Reads the journal of a run that is being resumed. */
+  static RunJournal resume(File file, Gson gson) throws InvalidCommandException {
+    if (!file.isFile()) {
+      throw new InvalidCommandException("Cannot resume the run: %s does not exist", file);
+    }
+    List<String> lines;
+    try {
+      lines = Files.readLines(file, Charsets.UTF_8);
+    } catch (IOException e) {
+      throw new InvalidCommandException("Cannot resume the run: could not read %s: %s", file,
+          e.getMessage());
+    }
+    Optional<Run> run = lines.isEmpty()
+        ? Optional.<Run>absent()
+        : parse(gson, lines.get(0), Run.class);
+    if (!run.isPresent()) {
+      throw new InvalidCommandException("Cannot resume the run: %s is corrupt", file);
+    }
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    for (String line : lines.subList(1, lines.size())) {
+      Optional<Entry> entry = parse(gson, line, Entry.class);
+      if (entry.isPresent()) {
+        entries.add(entry.get());
+      } else {
+        logger.warning(String.format("Ignoring an incomplete entry in %s: %s", file, line));
+      }
+    }
+    return new RunJournal(file, gson, run.get(), entries.build(), true);
+  }
+
+  private static <T> Optional<T> parse(Gson gson, String line, Class<T> type) {
+    try {
+      return Optional.fromNullable(gson.fromJson(line, type));
+    } catch (JsonParseException e) {
+      return Optional.absent();
+    }
+  }
+
+  File file() {
+    return file;
+  }
+
+  /** The run that is journaled. */
+  Run run() {
+    return run;
+  }
+
+  /** The trials that were journaled before this run was resumed, in the order they completed. */
+  ImmutableList<Entry> entries() {
+    return entries;
+  }
+
+  /** Records that a trial of the experiment completed. */
+  void recordTrial(Experiment experiment, Trial trial) {
+    append(new Entry(experiment, checkNotNull(trial)));
+  }
+
+  /** Records that a trial of the experiment failed. */
+  void recordFailure(Experiment experiment) {
+    append(new Entry(experiment, null));
+  }
+
+  private synchronized void append(Entry entry) {
+    if (failed || deleted) {
+      return;
+    }
+    try {
+      StringBuilder lines = new StringBuilder();
+      if (!headerWritten) {
+        Files.createParentDirs(file);
+        lines.append(gson.toJson(run)).append('\n');
+      } else if (resumed) {
+        terminateLastLine();
+      }
+      lines.append(gson.toJson(entry)).append('\n');
+      FileOutputStream stream = new FileOutputStream(file, true);
+      try {
+        stream.write(lines.toString().getBytes(Charsets.UTF_8));
+        stream.getFD().sync();
+      } finally {
+        stream.close();
+      }
+      headerWritten = true;
+      resumed = false;
+    } catch (IOException e) {
+      failed = true;
+      logger.log(SEVERE, String.format(
+          "Could not write to the journal %s. This run will not be resumable.", file), e);
+    }
+  }
+
+  /**
+   * Deletes the journal once its run has completed and its results have been processed, so that
+   * the journals of completed runs don't pile up and can't be resumed.  Nothing is appended
+   * afterwards.
+   */
+  synchronized void delete() {
+    deleted = true;
+    if (file.exists() && !file.delete()) {
+      logger.warning(String.format("Could not delete the journal %s", file));
+    }
+  }
+
+  /**
+   * Ensures that the next entry starts on a new line, even if the runner died while writing the
+   * previous one.
+   */
+  @GuardedBy("this")
+  private void terminateLastLine() throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      long length = randomAccessFile.length();
+      if (length > 0) {
+        randomAccessFile.seek(length - 1);
+        if (randomAccessFile.read() != '\n') {
+          randomAccessFile.write('\n');
+        }
+      }
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /** A trial of an experiment that either completed or failed. */
+  static final class Entry {
+    /** Identifies the experiment; see {@link Experiment#toString()}. */
+    private String experiment;
+    @Nullable private Trial trial;
+
+    private Entry() {} // for gson
+
+    Entry(Experiment experiment, @Nullable Trial trial) {
+      this.experiment = experiment.toString();
+      this.trial = trial;
+    }
+
+    String experiment() {
+      return experiment;
+    }
+
+    /** The trial, if it completed. */
+    Optional<Trial> trial() {
+      return Optional.fromNullable(trial);
+    }
+  }
+}
@@ -23,11 +23,13 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Throwables.propagateIfInstanceOf;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.google.caliper.Benchmark;
 import com.google.caliper.api.AfterRep;
 import com.google.caliper.api.BeforeRep;
+import com.google.caliper.api.Blackhole;
 import com.google.caliper.api.Macrobenchmark;
 import com.google.caliper.api.SkipThisScenarioException;
 import com.google.caliper.bridge.AbstractLogMessageVisitor;
@@ -36,22 +38,32 @@ import com.google.caliper.bridge.HotspotLogMessage;
 import com.google.caliper.bridge.StartMeasurementLogMessage;
 import com.google.caliper.bridge.StopMeasurementLogMessage;
 import com.google.caliper.model.Measurement;
+import com.google.caliper.model.WarmupMeasurement;
+import com.google.caliper.util.LatencyHistogram;
 import com.google.caliper.util.ShortDuration;
 import com.google.caliper.util.Stderr;
 import com.google.caliper.util.Stdout;
+import com.google.caliper.worker.LatencyHistogramWorker;
 import com.google.caliper.worker.MacrobenchmarkWorker;
 import com.google.caliper.worker.RuntimeWorker;
+import com.google.caliper.worker.ThreadedRuntimeWorker;
 import com.google.caliper.worker.Worker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.inject.Inject;
 
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
+import java.math.MathContext;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
@@ -64,8 +76,51 @@ import javax.annotation.Nullable;
 class RuntimeInstrument extends Instrument {
   private static final String SUGGEST_GRANULARITY_OPTION = "suggestGranularity";
   private static final String TIMING_INTERVAL_OPTION = "timingInterval";
+  private static final String LATENCY_HISTOGRAM_OPTION = "latencyHistogram";
+  private static final String SAMPLING_INTERVAL_OPTION = "samplingInterval";
+  private static final String STEADY_STATE_WARMUP_OPTION = "steadyStateWarmup";
+  private static final String MIN_WARMUP_OPTION = "minWarmup";
+  private static final String STEADY_STATE_WINDOW_OPTION = "steadyStateWindow";
+  private static final String STEADY_STATE_TOLERANCE_OPTION = "steadyStateTolerance";
+  private static final String RECORD_WARMUP_OPTION = "recordWarmup";
   private static final int DRY_RUN_REPS = 1;
 
+  /**
+   * The most sampled latencies that a worker can write before the runner reads them, which it does
+   * at least every 10ms: more than a worker samples in that time even if every rep is sampled and
+   * takes no more than 10ns.
+   */
+  private static final int SAMPLE_BUFFER_CAPACITY = 1 << 20;
+
+  /**
+   * The reps of the scaling check grow tenfold until they take at least this long, which is also
+   * long enough for the loop to be compiled, or until there are this many.
+   */
+  private static final long SCALING_CHECK_NANOS = MILLISECONDS.toNanos(1);
+  private static final long SCALING_CHECK_MAX_REPS = 10000000;
+
+  /** Ten times the reps should take about ten times as long; this is the least that is accepted. */
+  private static final int SCALING_CHECK_MIN_RATIO = 3;
+
+  /** How long the warmup took, as measured by the worker, in milliseconds. */
+  static final String WARMUP_MILLIS_PROPERTY = "warmup.millis";
+  /** How many measurements the warmup took. */
+  static final String WARMUP_MEASUREMENTS_PROPERTY = "warmup.measurements";
+  /** Whether the warmup ended because the runtime was steady, rather than at the maximum. */
+  static final String WARMUP_STEADY_STATE_PROPERTY = "warmup.steadyState";
+  /**
+   * The runtime per rep of the warmup measurements, in nanoseconds, separated by commas.  If there
+   * were more than {@link #WARMUP_CURVE_POINTS}, only that many are recorded, evenly spaced from the
+   * first to the last.
+   */
+  static final String WARMUP_CURVE_PROPERTY = "warmup.curve";
+
+  /** The most warmup measurements that the warmup curve records. */
+  @VisibleForTesting static final int WARMUP_CURVE_POINTS = 100;
+
+  /** The significant digits with which the warmup curve is recorded. */
+  private static final MathContext WARMUP_CURVE_PRECISION = new MathContext(4);
+
   private static final Logger logger = Logger.getLogger(RuntimeInstrument.class.getName());
 
 
@@ -92,7 +147,9 @@ class RuntimeInstrument extends Instrument {
   protected ImmutableSet<String> instrumentOptions() {
     return ImmutableSet.of(
         WARMUP_OPTION, TIMING_INTERVAL_OPTION, MEASUREMENTS_OPTION, GC_BEFORE_EACH_OPTION,
-        SUGGEST_GRANULARITY_OPTION);
+        SUGGEST_GRANULARITY_OPTION, LATENCY_HISTOGRAM_OPTION, SAMPLING_INTERVAL_OPTION,
+        STEADY_STATE_WARMUP_OPTION, MIN_WARMUP_OPTION, STEADY_STATE_WINDOW_OPTION,
+        STEADY_STATE_TOLERANCE_OPTION, RECORD_WARMUP_OPTION);
   }
 
   @Override
@@ -117,7 +174,8 @@ class RuntimeInstrument extends Instrument {
       }
     } catch (IllegalArgumentException e) {
       throw new InvalidBenchmarkException("Benchmark methods must have no arguments or accept "
-          + "a single int or long parameter: %s", benchmarkMethod.getName());
+          + "an int or long parameter, optionally followed by a Blackhole: %s",
+          benchmarkMethod.getName());
     }
   }
 
@@ -127,7 +185,7 @@ class RuntimeInstrument extends Instrument {
     }
 
     @Override
-    public void dryRun(Object benchmark) throws UserCodeException {
+    public ImmutableList<String> dryRun(Object benchmark) throws UserCodeException {
       ImmutableSet<Method> beforeRepMethods =
           getAnnotatedMethods(benchmarkMethod.getDeclaringClass(), BeforeRep.class);
       ImmutableSet<Method> afterRepMethods =
@@ -143,6 +201,7 @@ class RuntimeInstrument extends Instrument {
             afterRepMethod.invoke(benchmark);
           }
         }
+        return ImmutableList.of();
       } catch (IllegalAccessException e) {
         throw new AssertionError(e);
       } catch (InvocationTargetException e) {
@@ -154,7 +213,21 @@ class RuntimeInstrument extends Instrument {
 
     @Override
     public Class<? extends Worker> workerClass() {
-      return MacrobenchmarkWorker.class;
+      return latencyHistogram() ? LatencyHistogramWorker.class : MacrobenchmarkWorker.class;
+    }
+
+    @Override public ImmutableMap<String, String> workerOptions() {
+      if (!latencyHistogram()) {
+        return options;
+      }
+      return ImmutableMap.<String, String>builder()
+          .putAll(options)
+          .put(TIMING_INTERVAL_OPTION + "Nanos", toNanosString(TIMING_INTERVAL_OPTION))
+          .build();
+    }
+
+    private boolean latencyHistogram() {
+      return Boolean.parseBoolean(options.get(LATENCY_HISTOGRAM_OPTION));
     }
 
     @Override
@@ -170,9 +243,18 @@ class RuntimeInstrument extends Instrument {
       super(method);
     }
 
-    @Override public void dryRun(Object benchmark) throws UserCodeException {
+    @Override public ImmutableList<String> dryRun(Object benchmark) throws UserCodeException {
+      Blackhole blackhole = new Blackhole();
       try {
-        benchmarkMethod.invoke(benchmark, DRY_RUN_REPS);
+        benchmarkMethod.invoke(
+            benchmark, BenchmarkMethods.arguments(benchmarkMethod, DRY_RUN_REPS, blackhole));
+        if (!scales(benchmark, blackhole)) {
+          return ImmutableList.of(String.format("The time that %s takes doesn't grow with its "
+              + "reps. Perhaps the compiler removed its work because the results are never used, "
+              + "which a benchmark can prevent by passing them to a %s parameter.",
+              benchmarkMethod.getName(), Blackhole.class.getSimpleName()));
+        }
+        return ImmutableList.of();
       } catch (IllegalAccessException impossible) {
         throw new AssertionError(impossible);
       } catch (InvocationTargetException e) {
@@ -182,15 +264,52 @@ class RuntimeInstrument extends Instrument {
       }
     }
 
+    /**
+     * Returns whether ten times the reps take about ten times as long.  If they don't, the work of
+     * each rep was probably removed by the compiler, or the benchmark ignores its reps.  The reps
+     * grow until they take long enough to be timed and for the loop to be compiled, and then both
+     * times are taken again, so that they are taken with the same code.
+     */
+    private boolean scales(Object benchmark, Blackhole blackhole)
+        throws IllegalAccessException, InvocationTargetException {
+      long reps = DRY_RUN_REPS;
+      long nanos = time(benchmark, reps, blackhole);
+      while (nanos < SCALING_CHECK_NANOS && reps < SCALING_CHECK_MAX_REPS) {
+        reps *= 10;
+        nanos = time(benchmark, reps, blackhole);
+      }
+      if (reps == DRY_RUN_REPS) {
+        // a single rep was timed, so it can't have been removed
+        return true;
+      }
+      long fewerNanos = time(benchmark, reps / 10, blackhole);
+      nanos = time(benchmark, reps, blackhole);
+      return nanos >= SCALING_CHECK_MIN_RATIO * fewerNanos;
+    }
+
+    private long time(Object benchmark, long reps, Blackhole blackhole)
+        throws IllegalAccessException, InvocationTargetException {
+      Object[] arguments = BenchmarkMethods.arguments(benchmarkMethod, reps, blackhole);
+      long start = System.nanoTime();
+      benchmarkMethod.invoke(benchmark, arguments);
+      return System.nanoTime() - start;
+    }
+
     @Override public ImmutableMap<String, String> workerOptions() {
       return ImmutableMap.of(
           TIMING_INTERVAL_OPTION + "Nanos", toNanosString(TIMING_INTERVAL_OPTION),
-          GC_BEFORE_EACH_OPTION, options.get(GC_BEFORE_EACH_OPTION));
+          GC_BEFORE_EACH_OPTION, options.get(GC_BEFORE_EACH_OPTION),
+          SAMPLING_INTERVAL_OPTION, options.get(SAMPLING_INTERVAL_OPTION));
     }
 
-    private String toNanosString(String optionName) {
-      return String.valueOf(
-          ShortDuration.valueOf(options.get(optionName)).to(TimeUnit.NANOSECONDS));
+    @Override public Class<? extends Worker> threadedWorkerClass() {
+      return ThreadedRuntimeWorker.class;
+    }
+
+    @Override int sampleBufferCapacity() {
+      return Integer.parseInt(options.get(SAMPLING_INTERVAL_OPTION)) > 0
+          ? SAMPLE_BUFFER_CAPACITY
+          : 0;
     }
 
     @Override MeasurementCollectingVisitor getMeasurementCollectingVisitor() {
@@ -209,6 +328,11 @@ class RuntimeInstrument extends Instrument {
     }
   }
 
+  private String toNanosString(String optionName) {
+    return String.valueOf(
+        ShortDuration.valueOf(options.get(optionName)).to(TimeUnit.NANOSECONDS));
+  }
+
   private int getMeasurementsPerTrial() {
     @Nullable
     String measurementsString = options.get(MEASUREMENTS_OPTION);
@@ -229,12 +353,35 @@ class RuntimeInstrument extends Instrument {
     }
   }
 
+  /**
+   * Collects the measurements of a runtime worker once it has warmed up.  The warmup takes the
+   * whole warmup duration, unless steady state detection is turned on: then it ends as soon as the
+   * runtime per rep is steady, according to a {@link SteadyStateDetector}, but takes at least the
+   * minimum warmup.  The warmup measurements can be kept as well, along with how long after the
+   * start of the warmup each one ended.
+   */
   private abstract class RuntimeMeasurementCollector extends AbstractLogMessageVisitor
-      implements MeasurementCollectingVisitor {
+      implements SampleCollectingVisitor {
     final int targetMeasurements;
     final ShortDuration warmup;
+    final ShortDuration minWarmup;
+    /** Null unless the warmup may end once the runtime is steady. */
+    @Nullable final SteadyStateDetector steadyStateDetector;
+    final boolean recordWarmup;
     final List<Measurement> measurements = Lists.newArrayList();
+    final List<WarmupMeasurement> warmupMeasurements = Lists.newArrayList();
+    /** The latencies that came with the measurements that are kept. */
+    final LatencyHistogram latencies = new LatencyHistogram();
+    /** The latencies sampled during the current measurement, which are only kept along with it. */
+    final LatencyHistogram measurementSamples = new LatencyHistogram();
+    /** Started by the first measurement. */
+    final Stopwatch sinceWarmupStarted = Stopwatch.createUnstarted();
+    /** The runtime per rep of each warmup measurement. */
+    final List<Double> warmupCurve = Lists.newArrayList();
+    int runtimeMeasurements = 0;
     ShortDuration elapsedWarmup = ShortDuration.zero();
+    boolean warmedUp;
+    boolean steadyState = false;
     boolean measuring = false;
     boolean invalidateMeasurements = false;
     boolean notifiedAboutGc = false;
@@ -244,6 +391,18 @@ class RuntimeInstrument extends Instrument {
     RuntimeMeasurementCollector(int targetMeasurements, ShortDuration warmup) {
       this.targetMeasurements = targetMeasurements;
       this.warmup = warmup;
+      if (Boolean.parseBoolean(options.get(STEADY_STATE_WARMUP_OPTION))) {
+        this.minWarmup = Ordering.natural().min(
+            ShortDuration.valueOf(options.get(MIN_WARMUP_OPTION)), warmup);
+        this.steadyStateDetector = new SteadyStateDetector(
+            Integer.parseInt(options.get(STEADY_STATE_WINDOW_OPTION)),
+            Double.parseDouble(options.get(STEADY_STATE_TOLERANCE_OPTION)));
+      } else {
+        this.minWarmup = warmup;
+        this.steadyStateDetector = null;
+      }
+      this.recordWarmup = Boolean.parseBoolean(options.get(RECORD_WARMUP_OPTION));
+      this.warmedUp = warmup.compareTo(ShortDuration.zero()) <= 0;
     }
 
     @Override
@@ -277,6 +436,9 @@ class RuntimeInstrument extends Instrument {
     public void visit(StartMeasurementLogMessage logMessage) {
       checkState(!measuring);
       measuring = true;
+      if (!sinceWarmupStarted.isRunning()) {
+        sinceWarmupStarted.start();
+      }
     }
 
     @Override
@@ -284,22 +446,61 @@ class RuntimeInstrument extends Instrument {
       checkState(measuring);
       ImmutableList<Measurement> newMeasurements = logMessage.measurements();
       if (isInWarmup()) {
+        if (recordWarmup) {
+          long elapsedNanos = sinceWarmupStarted.elapsed(NANOSECONDS);
+          for (Measurement measurement : newMeasurements) {
+            warmupMeasurements.add(new WarmupMeasurement.Builder()
+                .measurement(measurement)
+                .elapsedNanos(elapsedNanos)
+                .build());
+          }
+        }
         for (Measurement measurement : newMeasurements) {
+          if (!RuntimeWorker.RUNTIME_DESCRIPTION.equals(measurement.description())) {
+            // the overhead and the corrected runtime are derived from it
+            continue;
+          }
           // TODO(gak): eventually we will need to resolve different units
           checkArgument("ns".equals(measurement.value().unit()));
           elapsedWarmup = elapsedWarmup.plus(
               ShortDuration.of(BigDecimal.valueOf(measurement.value().magnitude()), NANOSECONDS));
+          double nanosPerRep = measurement.value().magnitude() / measurement.weight();
+          warmupCurve.add(nanosPerRep);
+          if (steadyStateDetector != null) {
+            steadyStateDetector.add(nanosPerRep);
+          }
           validateMeasurement(measurement);
         }
+        boolean steady = steadyStateDetector != null && steadyStateDetector.isSteady();
+        if (elapsedWarmup.compareTo(warmup) >= 0
+            || (steady && elapsedWarmup.compareTo(minWarmup) >= 0)) {
+          warmedUp = true;
+          steadyState = steady;
+        }
       } else if (invalidateMeasurements) {
         logger.fine(String.format("Discarding %s as they were marked invalid.", newMeasurements));
       } else {
         this.measurements.addAll(newMeasurements);
+        latencies.recordAll(logMessage.latencies());
+        latencies.recordAll(measurementSamples.counts());
+        for (Measurement measurement : newMeasurements) {
+          if (RuntimeWorker.RUNTIME_DESCRIPTION.equals(measurement.description())) {
+            runtimeMeasurements++;
+          }
+        }
       }
+      measurementSamples.reset();
       invalidateMeasurements = false;
       measuring = false;
     }
 
+    @Override
+    public void collectSamples(long[] samples, int count) {
+      for (int i = 0; i < count; i++) {
+        measurementSamples.record(samples[i]);
+      }
+    }
+
     abstract void validateMeasurement(Measurement measurement);
 
     @Override
@@ -308,12 +509,40 @@ class RuntimeInstrument extends Instrument {
     }
 
     boolean isInWarmup() {
-      return elapsedWarmup.compareTo(warmup) < 0;
+      return !warmedUp;
+    }
+
+    @Override
+    public ImmutableList<WarmupMeasurement> getWarmupMeasurements() {
+      return ImmutableList.copyOf(warmupMeasurements);
+    }
+
+    @Override
+    public ImmutableSortedMap<Long, Long> getLatencies() {
+      return latencies.counts();
+    }
+
+    @Override
+    public ImmutableMap<String, String> properties() {
+      // a macrobenchmark has a warmup measurement per invocation, so there can be thousands
+      int points = Math.min(warmupCurve.size(), WARMUP_CURVE_POINTS);
+      List<String> curve = Lists.newArrayListWithCapacity(points);
+      for (int i = 0; i < points; i++) {
+        int index = (points == 1) ? 0
+            : (int) Math.round((double) i * (warmupCurve.size() - 1) / (points - 1));
+        curve.add(new BigDecimal(warmupCurve.get(index))
+            .round(WARMUP_CURVE_PRECISION).toPlainString());
+      }
+      return ImmutableMap.of(
+          WARMUP_MILLIS_PROPERTY, Long.toString(elapsedWarmup.to(MILLISECONDS)),
+          WARMUP_MEASUREMENTS_PROPERTY, Integer.toString(warmupCurve.size()),
+          WARMUP_STEADY_STATE_PROPERTY, Boolean.toString(steadyState),
+          WARMUP_CURVE_PROPERTY, Joiner.on(',').join(curve));
     }
 
     @Override
     public boolean isDoneCollecting() {
-      return measurements.size() >= targetMeasurements;
+      return runtimeMeasurements >= targetMeasurements;
     }
   }
 
@@ -342,7 +571,11 @@ class RuntimeInstrument extends Instrument {
     void hotspotWhileNotMeasuring() {
       stdout.println(
           "WARNING: Hotspot compilation occurred after warmup, but outside of timing. "
-                + "Results may be affected. Run with --verbose to see which method was compiled.");
+                + "Results may be affected. Run with --verbose and -XX:+PrintCompilation in "
+                + "vm.args to see which method was compiled. Without -XX:+PrintCompilation, "
+                + "compilation is only noticed once the VM's total compilation time, which it "
+                + "reports in whole milliseconds, goes up, so briefer compilations can go "
+                + "unreported.");
     }
 
     @Override
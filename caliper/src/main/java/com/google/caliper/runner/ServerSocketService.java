@@ -15,10 +15,15 @@
 package com.google.caliper.runner;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.logging.Level.WARNING;
 
+import com.google.caliper.bridge.BinaryMessageCodec;
+import com.google.caliper.bridge.BinaryMessageCodec.Frame;
+import com.google.caliper.bridge.CaliperControlLogMessage;
+import com.google.caliper.bridge.MessageEncoding;
 import com.google.caliper.bridge.StartupAnnounceMessage;
-import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
@@ -28,55 +33,70 @@ import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.Service.State;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
 
 import javax.annotation.concurrent.GuardedBy;
 
 /**
- * A {@link Service} that manages a {@link ServerSocket}.
+ * A {@link Service} that manages a {@link ServerSocketChannel} and the connections that are
+ * accepted from it.
  *
- * <p> This service provides two pieces of functionality:
+ * <p> This service provides three pieces of functionality:
  * <ol>
- *   <li>It adapts {@link ServerSocket#accept()} to a {@link ListenableFuture} of an opened socket.
- *   <li>It demultiplexes incomming connections based on a {@link StartupAnnounceMessage} that is 
+ *   <li>It adapts accepting connections to a {@link ListenableFuture} of an opened socket.
+ *   <li>It demultiplexes incomming connections based on a {@link StartupAnnounceMessage} that is
  *       sent over the socket.
+ *   <li>It reads from all of the connections that are {@linkplain OpenedSocket#startReading being
+ *       read} on the same thread, with a {@link Selector}, and hands the lines or messages to
+ *       their {@link OpenedSocket.Handler}.  So no matter how many workers are running at once,
+ *       their sockets don't need a thread each.
  * </ol>
  *
  * <p>The {@linkplain State states} of this service are as follows:
  * <ul>
- *   <li>{@linkplain State#NEW NEW} : Idle state, the {@link ServerSocket} is not open yet.
- *   <li>{@linkplain State#STARTING STARTING} : {@link ServerSocket} is opened
+ *   <li>{@linkplain State#NEW NEW} : Idle state, the {@link ServerSocketChannel} is not open yet.
+ *   <li>{@linkplain State#STARTING STARTING} : {@link ServerSocketChannel} is opened
  *   <li>{@linkplain State#RUNNING RUNNING} : We are continuously accepting and parsing connections
- *       from the socket.
+ *       from the socket, and reading from the connections.
  *   <li>{@linkplain State#STOPPING STOPPING} : The server socket is closing and all pending
  *       connection requests are terminated, connection requests will fail immediately.
  *   <li>{@linkplain State#TERMINATED TERMINATED} : Idle state, the socket is closed.
  *   <li>{@linkplain State#FAILED FAILED} : The service will transition to failed if it encounters
- *       any errors while accepting connections or reading from connections.
+ *       any errors while accepting connections.  Errors while reading from a connection are only
+ *       reported to its handler.
  * </ul>
- * 
- * <p>Note to future self.  There have been a few attempts to make it so that it is no longer 
+ *
+ * <p>Note to future self.  There have been a few attempts to make it so that it is no longer
  * necessary to dedicate a thread to this service (basically turn it into an AbstractIdleService).
  * The general idea has been to make callers to getConnection invoke accept, here is why it didn't
  * work.
  * <ul>
- *     <li>If you make getConnection a blocking method that calls accept until it finds the 
+ *     <li>If you make getConnection a blocking method that calls accept until it finds the
  *         connection with its id, then there is no way to deal with connections that never arrive.
  *         For example, if the worker crashes before connecting then the thread calling accept will
  *         block forever waiting for it.  The only way to unblock a thread stuck on accept() is to
@@ -92,17 +112,19 @@ import javax.annotation.concurrent.GuardedBy;
  * </ul>
  */
 @Singleton class ServerSocketService extends AbstractExecutionThreadService {
+  private static final Logger logger = Logger.getLogger(ServerSocketService.class.getName());
+
   private enum Source { REQUEST, ACCEPT}
-  
+
   private final Lock lock = new ReentrantLock();
-  
+
   /**
    * Contains futures that have either only been accepted or requested.  Once both occur they are
    * removed from this map.
    */
   @GuardedBy("lock")
   private final Map<UUID, SettableFuture<OpenedSocket>> halfFinishedConnections = Maps.newHashMap();
-  
+
   /**
    * Contains the history of connections so we can ensure that each id is only accepted once and
    * requested once.
@@ -110,8 +132,15 @@ import javax.annotation.concurrent.GuardedBy;
   @GuardedBy("lock")
   private final SetMultimap<Source, UUID> connectionState =
       MultimapBuilder.enumKeys(Source.class).hashSetValues().build();
-  
-  private ServerSocket serverSocket;
+
+  /**
+   * Changes to the registrations with the {@link #selector}, which have to be made on the thread
+   * that selects.
+   */
+  private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+
+  private ServerSocketChannel serverChannel;
+  private Selector selector;
   private final Gson gson;
 
   @Inject ServerSocketService(Gson gson) {
@@ -120,8 +149,8 @@ import javax.annotation.concurrent.GuardedBy;
 
   int getPort() {
     awaitRunning();
-    checkState(serverSocket != null, "Socket has not been opened yet");
-    return serverSocket.getLocalPort();
+    checkState(serverChannel != null, "Socket has not been opened yet");
+    return serverChannel.socket().getLocalPort();
   }
 
   /**
@@ -137,42 +166,94 @@ import javax.annotation.concurrent.GuardedBy;
   }
 
   @Override protected void startUp() throws Exception {
-    serverSocket = new ServerSocket(0 /* bind to any available port */);
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(null /* bind to any available port */);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
   }
 
   @Override protected void run() throws Exception {
     while (isRunning()) {
-      Socket socket;
-      try {
-        socket = serverSocket.accept();
-      } catch (SocketException e) {
-        // we were closed
-        return;
+      selector.select();
+      Runnable task;
+      while ((task = pendingTasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          logger.log(WARNING, "Failed to start reading from a connection", e);
+        }
       }
-      OpenedSocket openedSocket = OpenedSocket.fromSocket(socket);
-      UUID id = gson.fromJson(openedSocket.reader().readLine(), StartupAnnounceMessage.class)
-          .trialId();
-      // N.B. you should not call set with the lock held, to prevent same thread executors from
-      // running with the lock.
-      getConnectionImpl(id, Source.ACCEPT).set(openedSocket);
+      Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+      while (selectedKeys.hasNext()) {
+        SelectionKey key = selectedKeys.next();
+        selectedKeys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept();
+        } else if (key.isReadable()) {
+          OpenedSocket openedSocket = (OpenedSocket) key.attachment();
+          try {
+            openedSocket.readable();
+          } catch (RuntimeException e) {
+            openedSocket.handlerThrew(e);
+          }
+        }
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    // See comment in WorkerModule for why this is necessary.
+    channel.socket().setTcpNoDelay(true);
+    channel.configureBlocking(false);
+    OpenedSocket openedSocket = new OpenedSocket(this, channel);
+    openedSocket.key = channel.register(selector, SelectionKey.OP_READ, openedSocket);
+  }
+
+  /** Called on the selecting thread once a connection has announced itself. */
+  private void announced(OpenedSocket openedSocket, String announceLine) {
+    StartupAnnounceMessage announce;
+    try {
+      announce = gson.fromJson(announceLine, StartupAnnounceMessage.class);
+    } catch (JsonParseException e) {
+      logger.log(WARNING, "Closing a connection that didn't announce itself: " + announceLine, e);
+      openedSocket.close();
+      return;
     }
+    openedSocket.encoding = announce.encoding();
+    // N.B. you should not call set with the lock held, to prevent same thread executors from
+    // running with the lock.
+    getConnectionImpl(announce.trialId(), Source.ACCEPT).set(openedSocket);
+  }
+
+  /** Runs the task on the selecting thread, before it selects again. */
+  private void execute(Runnable task) {
+    pendingTasks.add(task);
+    selector.wakeup();
   }
 
   /**
    * Returns a {@link SettableFuture} from the map of connections.
-   * 
+   *
    * <p>This method has the following properties:
    * <ul>
-   *    <li>If the id is present in {@link #connectionState}, this will throw an 
+   *    <li>If the id is present in {@link #connectionState}, this will throw an
    *        {@link IllegalStateException}.
    *    <li>The id and source are recorded in {@link #connectionState}
-   *    <li>If the future is already in {@link #halfFinishedConnections}, it is removed and 
+   *    <li>If the future is already in {@link #halfFinishedConnections}, it is removed and
    *        returned.
-   *    <li>If the future is not in {@link #halfFinishedConnections}, a new {@link SettableFuture} 
+   *    <li>If the future is not in {@link #halfFinishedConnections}, a new {@link SettableFuture}
    *        is added and then returned.
-   * 
-   * <p>These features together ensure that each connection can only be accepted once, only 
-   * requested once and once both have happened it will be removed from 
+   *
+   * <p>These features together ensure that each connection can only be accepted once, only
+   * requested once and once both have happened it will be removed from
    * {@link #halfFinishedConnections}.
    */
   private SettableFuture<OpenedSocket> getConnectionImpl(UUID id, Source source) {
@@ -194,15 +275,17 @@ import javax.annotation.concurrent.GuardedBy;
   }
 
   @Override protected void triggerShutdown() {
-    try {
-      serverSocket.close();
-    } catch (IOException e) {
-      // best effort...
-    }
+    selector.wakeup();
   }
 
   @Override protected void shutDown() throws Exception {
-    serverSocket.close();
+    serverChannel.close();
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof OpenedSocket) {
+        ((OpenedSocket) key.attachment()).fail(new EOFException("The socket has been closed"));
+      }
+    }
+    selector.close();
     // Now we have either been asked to stop or have failed with some kind of exception, we want to
     // notify all pending requests, so if there are any references outside of this class they will
     // notice.
@@ -219,121 +302,359 @@ import javax.annotation.concurrent.GuardedBy;
   }
 
   /**
-   * A simple tuple for the opened streams of a socket.
+   * A connection that has announced itself.  What it sends is read by the service once
+   * {@link #startReading} is called, and handed to the {@link Handler} as lines or messages,
+   * depending on its {@link MessageEncoding}.  It is written to with either its {@link #writer()}
+   * or its {@link #dataOutput()}, which block until everything has been written.
    */
   static final class OpenedSocket {
-    @VisibleForTesting static OpenedSocket fromSocket(Socket socket) throws IOException {
-      // See comment in WorkerModule for why this is necessary.
-      socket.setTcpNoDelay(true);
-      return new OpenedSocket(
-          new OutputStreamWriter(getOutputStream(socket), UTF_8), 
-          new BufferedReader(new InputStreamReader(getInputStream(socket), UTF_8)));
+    /**
+     * Receives what is read from a socket.  It is called on the service's thread, so it must not
+     * block; it may {@linkplain OpenedSocket#pauseReading pause reading} instead.
+     */
+    interface Handler {
+      /** A line of text, which could be a control message in the json encoding. */
+      void line(String line);
+
+      /** A control message that was sent in its binary form. */
+      void message(CaliperControlLogMessage message);
+
+      /** The other end closed its output.  Nothing else is handed to the handler. */
+      void closed();
+
+      /**
+       * Reading failed, or the handler threw an exception, which is the cause of {@code e}.
+       * Nothing else is handed to the handler.
+       */
+      void failed(IOException e);
     }
-    
-    private final BufferedReader reader;
-    private final Writer writer;
 
-    private OpenedSocket(Writer writer, BufferedReader reader) {
-      this.reader = reader;
-      this.writer = writer;
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final ServerSocketService service;
+    private final SocketChannel channel;
+    private final ChannelOutputStream out = new ChannelOutputStream();
+
+    // These are only accessed by the service's thread.
+    private SelectionKey key;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private Handler handler;
+    /** Whether the other end has closed its output. */
+    private boolean endOfStream;
+    /** Whether the handler has been told that the connection was closed or failed. */
+    private boolean finished;
+    /** Whether the handler has paused reading. */
+    private boolean paused;
+
+    /** Null until the connection has announced itself. */
+    private volatile MessageEncoding encoding;
+
+    @GuardedBy("this")
+    private Writer writer;
+    @GuardedBy("this")
+    private DataOutputStream dataOutput;
+
+    private OpenedSocket(ServerSocketService service, SocketChannel channel) {
+      this.service = service;
+      this.channel = channel;
     }
 
-    BufferedReader reader() {
-      return reader;
+    MessageEncoding encoding() {
+      return encoding;
     }
-    
-    Writer writer() {
-      return writer;
+
+    /**
+     * Starts reading from the socket, including anything that was sent after the announcement
+     * before this was called.  This may only be called once.
+     */
+    void startReading(final Handler handler) {
+      checkNotNull(handler);
+      service.execute(new Runnable() {
+        @Override public void run() {
+          checkState(OpenedSocket.this.handler == null, "The socket is already being read");
+          OpenedSocket.this.handler = handler;
+          if (!channel.isOpen()) {
+            fail(new EOFException("The socket has been closed"));
+            return;
+          }
+          drain();
+        }
+      });
     }
-  }
 
-  /**
-   * Returns an {@link OutputStream} for the socket, but unlike {@link Socket#getOutputStream()}
-   * when you call {@link OutputStream#close() close} it only closes the output end of the socket
-   * instead of the entire socket.
-   */
-  private static OutputStream getOutputStream(final Socket socket) throws IOException {
-    final OutputStream delegate = socket.getOutputStream();
-    return new OutputStream() {
-
-      @Override public void close() throws IOException {
-        delegate.flush();
-        synchronized (socket) {
-          socket.shutdownOutput();
-          if (socket.isInputShutdown()) {
-            socket.close();
+    /**
+     * Stops reading from the socket, leaving what has been read but not handed to the handler in
+     * the buffer, until {@link #resumeReading} is called.  The sender has to wait once the
+     * socket's buffers are full.  This may only be called by the handler.
+     */
+    void pauseReading() {
+      paused = true;
+      key.interestOps(0);
+    }
+
+    /** Hands the rest of what was read to the handler and reads on, unless it pauses again. */
+    void resumeReading() {
+      service.execute(new Runnable() {
+        @Override public void run() {
+          if (!paused || finished) {
+            return;
           }
+          paused = false;
+          drain();
         }
+      });
+    }
+
+    synchronized Writer writer() {
+      checkState(dataOutput == null, "The socket is written as binary");
+      if (writer == null) {
+        writer = new OutputStreamWriter(out, UTF_8);
       }
-    
-      // Boring delegates from here on down
-      @Override public void write(int b) throws IOException {
-        delegate.write(b);
+      return writer;
+    }
+
+    synchronized DataOutputStream dataOutput() {
+      checkState(writer == null, "The socket is written as text");
+      if (dataOutput == null) {
+        // writes are flushed explicitly, once per message
+        dataOutput = new DataOutputStream(new BufferedOutputStream(out));
       }
-    
-      @Override public void write(byte[] b) throws IOException {
-        delegate.write(b);
+      return dataOutput;
+    }
+
+    /** Called on the service's thread when there is something to read. */
+    private void readable() {
+      int read;
+      try {
+        if (!buffer.hasRemaining()) {
+          ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+          buffer.flip();
+          larger.put(buffer);
+          buffer = larger;
+        }
+        read = channel.read(buffer);
+      } catch (IOException e) {
+        fail(e);
+        return;
       }
-    
-      @Override public void write(byte[] b, int off, int len) throws IOException {
-        delegate.write(b, off, len);
+      buffer.flip();
+      if (encoding == null) {
+        readAnnouncement();
+        if (!channel.isOpen()) {
+          return;
+        }
       }
-    
-      @Override public void flush() throws IOException {
-        delegate.flush();
+      if (handler != null && !decode()) {
+        return;
       }
-    };
-  }
-  
-  /**
-   * Returns an {@link InputStream} for the socket, but unlike {@link Socket#getInputStream()}
-   * when you call {@link InputStream#close() close} it only closes the input end of the socket
-   * instead of the entire socket.
-   */
-  private static InputStream getInputStream(final Socket socket) throws IOException {
-    final InputStream delegate = socket.getInputStream();
-    return new InputStream() {
-      @Override public void close() throws IOException {
-        synchronized (socket) {
-          socket.shutdownInput();
-          if (socket.isOutputShutdown()) {
-            socket.close();
+      buffer.compact();
+      if (read == -1) {
+        endOfStream = true;
+        key.interestOps(0);
+        if (encoding == null) {
+          // the worker gave up before it announced itself
+          close();
+        } else if (handler != null && !paused) {
+          finish();
+        }
+      }
+    }
+
+    /**
+     * Hands everything in the buffer to the handler and then reads on, or lets the handler know
+     * that the other end closed its output, unless the handler paused reading.
+     */
+    private void drain() {
+      buffer.flip();
+      try {
+        if (!decode()) {
+          return;
+        }
+        buffer.compact();
+        if (paused) {
+          return;
+        }
+        if (endOfStream) {
+          finish();
+        } else {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      } catch (RuntimeException e) {
+        handlerThrew(e);
+      }
+    }
+
+    /** Hands the last line to the handler, if there is one, and lets it know that it's over. */
+    private void finish() {
+      if (encoding == MessageEncoding.JSON && buffer.position() > 0) {
+        // like LineReader, hand over the last line even if it isn't terminated
+        buffer.flip();
+        handler.line(UTF_8.decode(buffer).toString());
+        buffer.clear();
+      }
+      shutdownInput();
+      finished = true;
+      handler.closed();
+    }
+
+    /**
+     * Reads the {@link StartupAnnounceMessage}, if it's been sent completely, and stops reading
+     * until there is a {@link Handler}.
+     */
+    private void readAnnouncement() {
+      int end = indexOfNewline();
+      if (end == -1) {
+        return;
+      }
+      String line = readString(end);
+      buffer.get();  // the newline
+      key.interestOps(0);
+      service.announced(this, line);
+    }
+
+    /**
+     * Hands everything that has been read completely to the handler, leaving the rest in the
+     * buffer, or stops once the handler pauses reading.  Returns false if the connection was
+     * closed.
+     */
+    private boolean decode() {
+      if (encoding == MessageEncoding.BINARY) {
+        // a frame is its length, its type and its payload
+        while (!paused && buffer.remaining() >= 5) {
+          int length = buffer.getInt(buffer.position());
+          if (length < 0 || length > BinaryMessageCodec.MAX_FRAME_LENGTH) {
+            // the buffer would grow without bound waiting for it
+            fail(new IOException(String.format(
+                "Received a frame of length %s, but frames may be at most %s bytes long",
+                length, BinaryMessageCodec.MAX_FRAME_LENGTH)));
+            return false;
+          }
+          if (buffer.remaining() < 5 + length) {
+            break;
+          }
+          byte[] frameBytes = new byte[5 + length];
+          buffer.get(frameBytes);
+          Frame frame;
+          try {
+            frame = BinaryMessageCodec.readFrame(
+                new DataInputStream(new ByteArrayInputStream(frameBytes)));
+          } catch (IOException e) {
+            fail(e);
+            return false;
           }
+          if (frame == null) {
+            // a frame of a type that we don't know
+          } else if (frame.message() != null) {
+            handler.message(frame.message());
+          } else {
+            handler.line(frame.line());
+          }
+        }
+      } else {
+        int end;
+        while (!paused && (end = indexOfNewline()) != -1) {
+          String line = readString(end > buffer.position() && buffer.get(end - 1) == '\r'
+              ? end - 1 : end);
+          buffer.position(end + 1);
+          handler.line(line);
         }
       }
-      
-      // Boring delegates from here on down
-      @Override public int read() throws IOException {
-        return delegate.read();
+      return true;
+    }
+
+    private int indexOfNewline() {
+      for (int i = buffer.position(); i < buffer.limit(); i++) {
+        if (buffer.get(i) == '\n') {
+          return i;
+        }
       }
-      
-      @Override public int read(byte[] b) throws IOException {
-        return delegate.read(b);
+      return -1;
+    }
+
+    /** Reads a UTF-8 string from the position up to {@code end}. */
+    private String readString(int end) {
+      byte[] bytes = new byte[end - buffer.position()];
+      buffer.get(bytes);
+      return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Called when handling what was read threw an exception.  A handler that misbehaves only loses
+     * its own connection, and hears why.
+     */
+    private void handlerThrew(RuntimeException e) {
+      logger.log(WARNING, "Closing a connection that couldn't be read", e);
+      fail(new IOException("Could not handle what the connection read", e));
+    }
+
+    /** Closes the connection, letting the handler know if there is one. */
+    private void fail(IOException e) {
+      close();
+      if (handler != null && !finished) {
+        finished = true;
+        handler.failed(e);
       }
-      
-      @Override public int read(byte[] b, int off, int len) throws IOException {
-        return delegate.read(b, off, len);
+    }
+
+    private void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // best effort...
       }
-      
-      @Override public long skip(long n) throws IOException {
-        return delegate.skip(n);
+    }
+
+    private synchronized void shutdownInput() {
+      try {
+        channel.socket().shutdownInput();
+        if (channel.socket().isOutputShutdown()) {
+          channel.close();
+        }
+      } catch (IOException e) {
+        close();
       }
-      
-      @Override public int available() throws IOException {
-        return delegate.available();
+    }
+
+    private synchronized void shutdownOutput() throws IOException {
+      channel.socket().shutdownOutput();
+      if (channel.socket().isInputShutdown()) {
+        channel.close();
       }
-      
-      @Override public void mark(int readlimit) {
-        delegate.mark(readlimit);
+    }
+
+    /**
+     * An {@link OutputStream} for the non-blocking channel that blocks until everything has been
+     * written, and that only closes the output end of the socket when it is closed.
+     */
+    private final class ChannelOutputStream extends OutputStream {
+      /** Waits for the channel to become writable.  Only needed if its send buffer fills up. */
+      @GuardedBy("this")
+      private Selector writeSelector;
+
+      @Override public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
       }
-      
-      @Override public void reset() throws IOException {
-        delegate.reset();
+
+      @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(b, off, len);
+        while (bytes.hasRemaining()) {
+          if (channel.write(bytes) == 0) {
+            if (writeSelector == null) {
+              writeSelector = Selector.open();
+              channel.register(writeSelector, SelectionKey.OP_WRITE);
+            }
+            writeSelector.select();
+            writeSelector.selectedKeys().clear();
+          }
+        }
       }
-      
-      @Override public boolean markSupported() {
-        return delegate.markSupported();
+
+      @Override public synchronized void close() throws IOException {
+        if (writeSelector != null) {
+          writeSelector.close();
+        }
+        shutdownOutput();
       }
-    };
+    }
   }
 }
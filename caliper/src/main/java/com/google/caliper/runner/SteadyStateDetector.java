@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.EvictingQueue;
+import com.google.common.collect.Iterables;
+
+/**
+ * Decides whether a benchmark has warmed up from the runtimes per rep of its latest warmup
+ * measurements.  It has once they are stationary: the last {@code window} of them are split into
+ * an older and a newer half, and the means of the two halves differ by no more than
+ * {@code tolerance} of their mean.  While the compiler is still at work, the newer half is faster;
+ * when a benchmark is merely noisy, the halves differ by less and less as the window grows.
+ */
+final class SteadyStateDetector {
+  private final int window;
+  private final double tolerance;
+  private final EvictingQueue<Double> latest;
+
+  SteadyStateDetector(int window, double tolerance) {
+    checkArgument(window >= 2, "the window (%s) must hold at least 2 measurements", window);
+    checkArgument(tolerance >= 0, "the tolerance (%s) must not be negative", tolerance);
+    this.window = window;
+    this.tolerance = tolerance;
+    this.latest = EvictingQueue.create(window);
+  }
+
+  /** Adds the runtime per rep of the latest warmup measurement. */
+  void add(double nanosPerRep) {
+    latest.add(nanosPerRep);
+  }
+
+  /** Returns whether the window is full and the runtimes in it are stationary. */
+  boolean isSteady() {
+    if (latest.size() < window) {
+      return false;
+    }
+    // the middle runtime of an odd window is in neither half
+    int half = window / 2;
+    double older = mean(Iterables.limit(latest, half));
+    double newer = mean(Iterables.skip(latest, window - half));
+    return Math.abs(newer - older) <= tolerance * (older + newer) / 2;
+  }
+
+  private static double mean(Iterable<Double> values) {
+    double sum = 0;
+    int count = 0;
+    for (double value : values) {
+      sum += value;
+      count++;
+    }
+    return sum / count;
+  }
+}
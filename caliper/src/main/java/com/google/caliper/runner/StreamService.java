@@ -17,6 +17,8 @@ package com.google.caliper.runner;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
@@ -24,25 +26,36 @@ import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.Charset;
 import java.text.ParseException;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
+import com.google.caliper.bridge.BinaryMessageCodec;
 import com.google.caliper.bridge.CaliperControlLogMessage;
+import com.google.caliper.bridge.GenericLogMessage;
 import com.google.caliper.bridge.LogMessage;
+import com.google.caliper.bridge.MessageEncoding;
+import com.google.caliper.bridge.SampleBuffer;
+import com.google.caliper.bridge.ShouldContinueMessage;
 import com.google.caliper.options.CaliperOptions;
+import com.google.caliper.runner.Instrument.SampleCollectingVisitor;
 import com.google.caliper.runner.ServerSocketService.OpenedSocket;
 import com.google.caliper.runner.StreamService.StreamItem.Kind;
 import com.google.caliper.util.Parser;
 import com.google.caliper.util.Stdout;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
-import com.google.common.collect.Queues;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Closeables;
 import com.google.common.io.LineReader;
 import com.google.common.util.concurrent.AbstractService;
@@ -51,6 +64,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Service; // for javadoc
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
 import com.google.inject.Inject;
 // for javadoc
 
@@ -79,16 +93,31 @@ import com.google.inject.Inject;
   /** How long to wait for a process that should be exiting to actually exit. */
   private static final int SHUTDOWN_WAIT_MILLIS = 10;
 
+  /**
+   * The number of items that may be waiting to be read before the threads reading the worker's
+   * output have to wait.  This leaves room for the whole output of {@code -XX:+PrintFlagsFinal}.
+   */
+  private static final int OUTPUT_QUEUE_CAPACITY = 1024;
+
+  static final String MAX_QUEUE_DEPTH_PROPERTY = "worker.output.maxQueueDepth";
+  static final String COALESCED_LINES_PROPERTY = "worker.output.coalescedLines";
+  static final String SAMPLES_READ_PROPERTY = "worker.samples.read";
+  static final String SAMPLES_DROPPED_PROPERTY = "worker.samples.dropped";
+
+  /** How many samples are read from the worker's buffer at first. */
+  private static final int SAMPLE_BATCH_SIZE = 4096;
+
   private static final Logger logger = Logger.getLogger(StreamService.class.getName());
   private static final StreamItem TIMEOUT_ITEM = new StreamItem(Kind.TIMEOUT, null);
   private static final StreamItem EOF_ITEM = new StreamItem(Kind.EOF, null);
 
   private final ListeningExecutorService streamExecutor = MoreExecutors.listeningDecorator(
       Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).build()));
-  private final BlockingQueue<StreamItem> outputQueue = Queues.newLinkedBlockingQueue();
+  private final OutputQueue outputQueue = new OutputQueue(OUTPUT_QUEUE_CAPACITY);
   private final WorkerProcess worker;
   private volatile Process process;
   private final Parser<LogMessage> logMessageParser;
+  private final Gson gson;
   private final CaliperOptions options;
   private final PrintWriter stdout;
   private final int trialNumber;
@@ -108,15 +137,25 @@ import com.google.inject.Inject;
    */
   private final AtomicInteger runningReadStreams = new AtomicInteger();
   private Writer socketWriter;
+  /** The socket's output if the worker uses {@link MessageEncoding#BINARY}. */
+  private DataOutputStream socketOutput;
+  /**
+   * The samples read from the worker's {@link SampleBuffer}, if it has one, that aren't known to
+   * belong to a measurement yet.  The first {@link #pendingSamples} are used.
+   */
+  @Nullable private long[] samples;
+  private int pendingSamples;
   
   @Inject StreamService(WorkerProcess worker,
       @TrialNumber int trialNumber, 
       Parser<LogMessage> logMessageParser, 
+      Gson gson,
       CaliperOptions options, 
       @Stdout PrintWriter stdout) {
     this.worker = worker;
     this.trialNumber = trialNumber;
     this.logMessageParser = logMessageParser;
+    this.gson = gson;
     this.options = options;
     this.stdout = stdout;
   }
@@ -144,6 +183,7 @@ import com.google.inject.Inject;
       void cleanup() {
         streamExecutor.shutdown();
         process.destroy();
+        worker.deleteSampleBuffer();
         try {
           streamExecutor.awaitTermination(10, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
@@ -173,13 +213,19 @@ import com.google.inject.Inject;
             try {
               OpenedSocket openedSocket = worker.socketFuture().get();
               logger.fine("successfully opened the pipe from the worker");
-              socketWriter = openedSocket.writer();
               runningReadStreams.addAndGet(1);
               openStreams.addAndGet(1);
-              streamExecutor.submit(threadRenaming("worker-socket",
-                  new StreamReader(openedSocket.reader())));
+              if (openedSocket.encoding() == MessageEncoding.BINARY) {
+                socketOutput = openedSocket.dataOutput();
+              } else {
+                socketWriter = openedSocket.writer();
+              }
+              // the socket is read by the ServerSocketService, along with every other one
+              openedSocket.startReading(new SocketHandler(openedSocket));
             } catch (ExecutionException e) {
-              notifyFailed(e.getCause());
+              if (state() != State.TERMINATED) {
+                notifyFailed(e.getCause());
+              }
             } catch (InterruptedException e) {
               throw new AssertionError("impossible, future is already done.");
             }
@@ -212,7 +258,12 @@ import com.google.inject.Inject;
   */
   void writeLine(String line) throws IOException {
     checkState(isRunning(), "Cannot read items from a %s StreamService", state());
-    checkState(socketWriter != null, "Attempted to write to the socket before it was opened.");
+    checkState(socketWriter != null || socketOutput != null,
+        "Attempted to write to the socket before it was opened.");
+    if (socketOutput != null) {
+      writeFrame(line, null);
+      return;
+    }
     try {
       socketWriter.write(line);
       socketWriter.write('\n');
@@ -226,12 +277,43 @@ import com.google.inject.Inject;
     }
   }
   
+  /**
+   * Tells the worker whether to keep measuring, in the encoding it announced.  The same
+   * restrictions as for {@link #writeLine(String)} apply.
+   */
+  void writeShouldContinue(ShouldContinueMessage message) throws IOException {
+    if (socketOutput == null) {
+      writeLine(gson.toJson(message));
+      return;
+    }
+    checkState(isRunning(), "Cannot read items from a %s StreamService", state());
+    writeFrame(null, message);
+  }
+
+  private void writeFrame(@Nullable String line, @Nullable ShouldContinueMessage message)
+      throws IOException {
+    try {
+      if (message == null) {
+        BinaryMessageCodec.writeLine(socketOutput, line);
+      } else {
+        BinaryMessageCodec.write(socketOutput, message);
+      }
+      // as for writeLine, the protocol is lockstep
+      socketOutput.flush();
+    } catch (IOException e) {
+      Closeables.close(socketOutput, true);
+      notifyFailed(e);
+      throw e;
+    }
+  }
+  
   /** Closes the socket writer. */
   void closeWriter() throws IOException {
     checkState(isRunning(), "Cannot read items from a %s StreamService", state());
-    checkState(socketWriter != null, "Attempted to close the socket before it was opened.");
+    Closeable output = (socketOutput != null) ? socketOutput : socketWriter;
+    checkState(output != null, "Attempted to close the socket before it was opened.");
     try {
-      socketWriter.close();
+      output.close();
     } catch (IOException e) {
       notifyFailed(e);
       throw e;
@@ -290,6 +372,85 @@ import com.google.inject.Inject;
     }
   }
 
+  /**
+   * Returns how busy the queue of the worker's output got: its maximum depth, and the number of
+   * lines that were coalesced.
+   */
+  ImmutableMap<String, String> queueProperties() {
+    return outputQueue.properties();
+  }
+
+  /** Returns true if the worker writes samples to a {@link SampleBuffer}. */
+  boolean hasSampleBuffer() {
+    return worker.sampleBuffer() != null;
+  }
+
+  /**
+   * Reads the samples that the worker has written to its {@link SampleBuffer} so that it doesn't
+   * run out of room, and keeps them until {@link #takeSamples} says which measurement they belong
+   * to.  Does nothing if the worker doesn't have a buffer.
+   *
+   * @param keep whether to keep the samples, or to discard them and any that were kept before
+   */
+  void readSamples(boolean keep) {
+    SampleBuffer buffer = worker.sampleBuffer();
+    if (buffer == null) {
+      return;
+    }
+    if (!keep) {
+      pendingSamples = 0;
+    }
+    if (samples == null) {
+      samples = new long[Math.min(buffer.capacity(), SAMPLE_BATCH_SIZE)];
+    }
+    while (true) {
+      if (pendingSamples == samples.length) {
+        // the worker is measuring ahead; there are at most a few measurements' samples
+        samples = Arrays.copyOf(samples, samples.length * 2);
+      }
+      int count = buffer.drainTo(samples, pendingSamples);
+      if (count == 0) {
+        return;
+      }
+      if (keep) {
+        pendingSamples += count;
+      }
+    }
+  }
+
+  /**
+   * Passes the samples that the worker wrote to its {@link SampleBuffer} before it had written
+   * {@code samplesWritten} of them, and that haven't been passed on yet, to {@code collector}, or
+   * discards them if it is null.  The samples after those are kept for the next measurement.  Does
+   * nothing if the worker doesn't have a buffer.
+   */
+  void takeSamples(long samplesWritten, @Nullable SampleCollectingVisitor collector) {
+    SampleBuffer buffer = worker.sampleBuffer();
+    if (buffer == null) {
+      return;
+    }
+    readSamples(true);
+    // the first pending sample is the one after those that were taken before
+    long firstPending = buffer.samplesRead() - pendingSamples;
+    int count = (int) Math.max(0, Math.min(samplesWritten - firstPending, pendingSamples));
+    if (collector != null && count > 0) {
+      collector.collectSamples(samples, count);
+    }
+    System.arraycopy(samples, count, samples, 0, pendingSamples - count);
+    pendingSamples -= count;
+  }
+
+  /** Returns how many samples were read from the worker's buffer, if it has one. */
+  ImmutableMap<String, String> sampleProperties() {
+    SampleBuffer buffer = worker.sampleBuffer();
+    if (buffer == null) {
+      return ImmutableMap.of();
+    }
+    return ImmutableMap.of(
+        SAMPLES_READ_PROPERTY, Long.toString(buffer.samplesRead()),
+        SAMPLES_DROPPED_PROPERTY, Long.toString(buffer.samplesDropped()));
+  }
+
   /** An item read from one of the streams. */
   static class StreamItem {
     enum Kind {
@@ -303,14 +464,21 @@ import com.google.inject.Inject;
     
     @Nullable private final LogMessage logMessage;
     private final Kind kind;
+    /** The number of lines that this item stands for, since generic lines are coalesced. */
+    private final int lines;
     
-    private StreamItem(LogMessage line) {
-      this(Kind.DATA, checkNotNull(line));
+    @VisibleForTesting StreamItem(LogMessage line) {
+      this(Kind.DATA, checkNotNull(line), 1);
     }
     
     private StreamItem(Kind state, @Nullable LogMessage logMessage) {
+      this(state, logMessage, 1);
+    }
+
+    private StreamItem(Kind state, @Nullable LogMessage logMessage, int lines) {
       this.logMessage = logMessage;
       this.kind = state;
+      this.lines = lines;
     }
     
     /** Returns the content.  This is only valid if {@link #kind()} return {@link Kind#DATA}. */
@@ -322,17 +490,158 @@ import com.google.inject.Inject;
     Kind kind() {
       return kind;
     }
+
+    boolean isGeneric() {
+      return logMessage instanceof GenericLogMessage;
+    }
     
     @Override public String toString() {
       com.google.common.base.MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(StreamItem.class);
       if (kind == Kind.DATA) {
         helper.addValue(logMessage);
+        if (lines > 1) {
+          helper.add("lines", lines);
+        }
       } else {
         helper.addValue(kind);
       }
       return helper.toString();
     }
   }
+
+  /**
+   * The bounded queue of the items read from the worker's streams, so that a chatty benchmark
+   * can't make the runner, which shares the host with the worker, use ever more memory.
+   *
+   * <p>Consecutive {@linkplain GenericLogMessage generic} lines are coalesced into a single item,
+   * since nothing tells them apart.  Other items need room in the queue: the threads reading the
+   * process's stdout and stderr {@linkplain #put wait} for it, which in turn stops the worker once
+   * the pipe is full.  The socket is read on the {@link ServerSocketService}'s thread, which must
+   * not wait, so items from it are {@linkplain #offer offered} instead: they are added regardless,
+   * but once the queue is full the socket isn't read until there is room again, which stops the
+   * worker once the socket's buffers are full.  Nothing is ever dropped.
+   */
+  static final class OutputQueue {
+    private final int capacity;
+    private final Deque<StreamItem> items = new ArrayDeque<StreamItem>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int maxDepth;
+    private long coalescedLines;
+    /** Run once there is room in the queue again, if an item was offered while it was full. */
+    @Nullable private Runnable whenNotFull;
+
+    OutputQueue(int capacity) {
+      this.capacity = capacity;
+    }
+
+    /** Adds an item, waiting for room in the queue if necessary. */
+    void put(StreamItem item) throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+        if (coalesce(item)) {
+          return;
+        }
+        while (items.size() >= capacity) {
+          notFull.await();
+        }
+        enqueue(item);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Adds an item without waiting, even if the queue is full. */
+    void add(StreamItem item) {
+      lock.lock();
+      try {
+        if (!coalesce(item)) {
+          enqueue(item);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Adds an item without waiting, even if the queue is full.  Returns false if the queue is full
+     * now, in which case {@code whenNotFull} is run once an item has been taken from it to make
+     * room, on the thread that took it.
+     */
+    boolean offer(StreamItem item, Runnable whenNotFull) {
+      checkNotNull(whenNotFull);
+      lock.lock();
+      try {
+        if (!coalesce(item)) {
+          enqueue(item);
+        }
+        if (items.size() < capacity) {
+          return true;
+        }
+        this.whenNotFull = whenNotFull;
+        return false;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Removes the next item, or returns null if there is none before the timeout. */
+    @Nullable StreamItem poll(long timeout, TimeUnit unit) throws InterruptedException {
+      long remainingNanos = unit.toNanos(timeout);
+      StreamItem item;
+      Runnable madeRoom = null;
+      lock.lockInterruptibly();
+      try {
+        while (items.isEmpty()) {
+          if (remainingNanos <= 0) {
+            return null;
+          }
+          remainingNanos = notEmpty.awaitNanos(remainingNanos);
+        }
+        item = items.removeFirst();
+        if (items.size() < capacity) {
+          notFull.signal();
+          madeRoom = whenNotFull;
+          whenNotFull = null;
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (madeRoom != null) {
+        madeRoom.run();
+      }
+      return item;
+    }
+
+    ImmutableMap<String, String> properties() {
+      lock.lock();
+      try {
+        return ImmutableMap.of(
+            MAX_QUEUE_DEPTH_PROPERTY, Integer.toString(maxDepth),
+            COALESCED_LINES_PROPERTY, Long.toString(coalescedLines));
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private boolean coalesce(StreamItem item) {
+      StreamItem last = items.peekLast();
+      if (!item.isGeneric() || last == null || !last.isGeneric()) {
+        return false;
+      }
+      items.removeLast();
+      items.addLast(new StreamItem(Kind.DATA, last.logMessage, last.lines + item.lines));
+      coalescedLines += item.lines;
+      return true;
+    }
+
+    private void enqueue(StreamItem item) {
+      items.addLast(item);
+      maxDepth = Math.max(maxDepth, items.size());
+      notEmpty.signal();
+    }
+  }
   
   /** Returns a callable that renames the the thread that the given callable runs in. */
   private static <T> Callable<T> threadRenaming(final String name, final Callable<T> callable) {
@@ -353,8 +662,8 @@ import com.google.inject.Inject;
   }
 
   /**
-   * A background task that reads lines of text from a {@link Reader} and puts them onto a 
-   * {@link BlockingQueue}.
+   * A background task that reads lines of text from a {@link Reader} and puts them onto the
+   * {@link OutputQueue}, waiting for room if necessary.
    */
   private final class StreamReader implements Callable<Void> {
     final Reader reader;
@@ -369,11 +678,7 @@ import com.google.inject.Inject;
       try {
         String line;
         while ((line = lineReader.readLine()) != null) {
-          LogMessage logMessage = logMessageParser.parse(line);
-          if (options.verbose() && !(logMessage instanceof CaliperControlLogMessage)) {
-            stdout.printf("[trial-%d] %s%n", trialNumber, line);
-          }
-          outputQueue.put(new StreamItem(logMessage));
+          outputQueue.put(new StreamItem(parseLine(line)));
         }
         threw = false;
       } catch (IOException e) {
@@ -385,4 +690,59 @@ import com.google.inject.Inject;
       return null;
     }
   }
+
+  /**
+   * Puts what the {@link ServerSocketService} reads from the socket onto the queue, and pauses
+   * reading while the queue is full.
+   */
+  private final class SocketHandler implements OpenedSocket.Handler {
+    final OpenedSocket socket;
+    final Runnable resumeReading = new Runnable() {
+      @Override public void run() {
+        socket.resumeReading();
+      }
+    };
+
+    SocketHandler(OpenedSocket socket) {
+      this.socket = socket;
+    }
+
+    @Override public void line(String line) {
+      try {
+        offer(new StreamItem(parseLine(line)));
+      } catch (ParseException e) {
+        notifyFailed(e);
+      }
+    }
+
+    @Override public void message(CaliperControlLogMessage message) {
+      offer(new StreamItem(message));
+    }
+
+    private void offer(StreamItem item) {
+      if (!outputQueue.offer(item, resumeReading)) {
+        socket.pauseReading();
+      }
+    }
+
+    @Override public void closed() {
+      closeReadStream();
+    }
+
+    @Override public void failed(IOException e) {
+      if (state() != State.TERMINATED) {
+        notifyFailed(e);
+      }
+      closeReadStream();
+    }
+  }
+
+  private LogMessage parseLine(String line) throws ParseException {
+    LogMessage logMessage = logMessageParser.parse(line);
+    // the output of e.g. -XX:+PrintCompilation is echoed even though it is parsed into messages
+    if (options.verbose() && !CaliperControlLogMessage.isControlLine(line)) {
+      stdout.printf("[trial-%d] %s%n", trialNumber, line);
+    }
+    return logMessage;
+  }
 }
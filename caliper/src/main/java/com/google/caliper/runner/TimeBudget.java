@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.caliper.options.CaliperOptions;
+import com.google.caliper.util.ShortDuration;
+import com.google.common.base.Optional;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Doubles;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A limit on the length of a whole run (see {@link CaliperOptions#timeBudget()}) that decides
+ * which trials to run within it.
+ *
+ * <p>The cost of a trial of an experiment is estimated from the trials of it that already ran or,
+ * before the first of them, from those of the other experiments with the same instrument (or of
+ * any experiment).  The experiment's dry run bounds the estimate from below, which matters for
+ * benchmarks with slow repetitions.  Until any trial has run, a single trial per worker slot is
+ * run to calibrate the estimates.
+ *
+ * <p>Trials are then run in rounds.  A round has a trial of every experiment whose median is no
+ * more precise than the median precision over all experiments that may still run, so that the
+ * precision of all of them evens out, and starts with the least precise ones.  Each trial is laid
+ * out on the worker slot that becomes free first, and trials that aren't expected to finish there
+ * before the budget runs out are left out, so the run ends with the trials that completed in time
+ * once no more of them fit.
+ */
+final class TimeBudget {
+  private final long budgetNanos;
+  private final int workerSlots;
+  private final Stopwatch stopwatch;
+
+  @GuardedBy("this")
+  private final Map<Experiment, Long> dryRunNanos = Maps.newHashMap();
+
+  @GuardedBy("this")
+  private final ListMultimap<Experiment, Long> trialNanos = ArrayListMultimap.create();
+
+  private TimeBudget(long budgetNanos, int workerSlots, Ticker ticker) {
+    this.budgetNanos = budgetNanos;
+    this.workerSlots = workerSlots;
+    this.stopwatch = Stopwatch.createUnstarted(ticker);
+  }
+
+  /** A run without a time budget; every trial is run. */
+  static TimeBudget unlimited() {
+    return new TimeBudget(Long.MAX_VALUE, 1, Ticker.systemTicker());
+  }
+
+  /** A run that must finish within {@code budget}, running up to {@code workerSlots} trials. */
+  static TimeBudget of(ShortDuration budget, int workerSlots, Ticker ticker) {
+    checkArgument(budget.compareTo(ShortDuration.zero()) > 0, "budget must be positive");
+    checkArgument(workerSlots > 0);
+    return new TimeBudget(budget.to(NANOSECONDS), workerSlots, ticker);
+  }
+
+  boolean isLimited() {
+    return budgetNanos != Long.MAX_VALUE;
+  }
+
+  ShortDuration budget() {
+    checkState(isLimited());
+    return ShortDuration.of(budgetNanos, NANOSECONDS);
+  }
+
+  /** Starts spending the budget. */
+  synchronized void start() {
+    stopwatch.start();
+  }
+
+  /** Records how long the dry run of the experiment took. */
+  synchronized void recordDryRun(Experiment experiment, long nanos) {
+    dryRunNanos.put(experiment, nanos);
+  }
+
+  /** Records how long a trial of the experiment took, whether or not it succeeded. */
+  synchronized void recordTrial(Experiment experiment, long nanos) {
+    trialNanos.put(experiment, nanos);
+  }
+
+  /** Returns the part of the budget that hasn't been spent yet. */
+  synchronized long remainingNanos() {
+    return Math.max(0, budgetNanos - stopwatch.elapsed(NANOSECONDS));
+  }
+
+  /**
+   * Returns the experiments, among {@code candidates}, to run the next round of trials of, or an
+   * empty list if no more trials fit in the budget.
+   */
+  synchronized ImmutableList<Experiment> nextRound(List<Experiment> candidates,
+      TrialCountPolicy trialCountPolicy) {
+    long remaining = remainingNanos();
+    if (candidates.isEmpty() || remaining == 0) {
+      return ImmutableList.of();
+    }
+    List<Experiment> prioritized = prioritize(candidates, trialCountPolicy);
+    if (trialNanos.isEmpty()) {
+      return ImmutableList.copyOf(
+          prioritized.subList(0, Math.min(workerSlots, prioritized.size())));
+    }
+    ImmutableList.Builder<Experiment> round = ImmutableList.builder();
+    // each trial runs on the slot that becomes free first, and must end there before the budget
+    // does
+    PriorityQueue<Long> slotEndNanos = new PriorityQueue<Long>();
+    for (int i = 0; i < workerSlots; i++) {
+      slotEndNanos.add(0L);
+    }
+    for (Experiment experiment : prioritized) {
+      long endNanos = slotEndNanos.peek() + estimatedTrialNanos(experiment);
+      if (endNanos <= remaining) {
+        round.add(experiment);
+        slotEndNanos.poll();
+        slotEndNanos.add(endNanos);
+      }
+    }
+    return round.build();
+  }
+
+  /**
+   * Returns the experiments that are no more precise than the median precision, least precise (or
+   * with fewest trials) first.
+   */
+  private static List<Experiment> prioritize(List<Experiment> candidates,
+      final TrialCountPolicy trialCountPolicy) {
+    final Map<Experiment, Double> widths = Maps.newHashMap();
+    for (Experiment experiment : candidates) {
+      // experiments without enough trials to tell are the least precise
+      widths.put(experiment,
+          trialCountPolicy.relativeWidth(experiment).or(Double.POSITIVE_INFINITY));
+    }
+    List<Double> sortedWidths = Ordering.natural().sortedCopy(widths.values());
+    double medianWidth = sortedWidths.get(sortedWidths.size() / 2);
+    List<Experiment> prioritized = Lists.newArrayList();
+    for (Experiment experiment : candidates) {
+      if (widths.get(experiment) >= medianWidth) {
+        prioritized.add(experiment);
+      }
+    }
+    // stable, so that ties keep the order of the candidates
+    Collections.sort(prioritized, new Comparator<Experiment>() {
+      @Override public int compare(Experiment a, Experiment b) {
+        int byWidth = Doubles.compare(widths.get(b), widths.get(a));
+        return byWidth != 0
+            ? byWidth
+            : trialCountPolicy.trialsRun(a) - trialCountPolicy.trialsRun(b);
+      }
+    });
+    return prioritized;
+  }
+
+  /** Returns the expected length of a trial of the experiment. */
+  synchronized long estimatedTrialNanos(Experiment experiment) {
+    checkState(!trialNanos.isEmpty(), "no trial has run yet");
+    Optional<Long> estimate = mean(trialNanos.get(experiment));
+    if (!estimate.isPresent()) {
+      List<Long> sameInstrument = Lists.newArrayList();
+      for (Map.Entry<Experiment, Long> entry : trialNanos.entries()) {
+        if (entry.getKey().instrumentation().instrument()
+            .equals(experiment.instrumentation().instrument())) {
+          sameInstrument.add(entry.getValue());
+        }
+      }
+      estimate = mean(sameInstrument).or(mean(trialNanos.values()));
+    }
+    Long dryRun = dryRunNanos.get(experiment);
+    return Math.max(estimate.get(), dryRun == null ? 0 : dryRun);
+  }
+
+  private static Optional<Long> mean(Iterable<Long> values) {
+    long sum = 0;
+    int count = 0;
+    for (long value : values) {
+      sum += value;
+      count++;
+    }
+    return count == 0 ? Optional.<Long>absent() : Optional.of(sum / count);
+  }
+}
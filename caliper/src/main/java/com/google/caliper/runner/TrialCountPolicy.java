@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Trial;
+import com.google.caliper.worker.RuntimeWorker;
+import com.google.caliper.worker.ThreadedRuntimeWorker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Doubles;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.BinomialDistributionImpl;
+import org.apache.commons.math.stat.descriptive.rank.Percentile;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Decides how many trials to run for each experiment.  Either every experiment is run for a fixed
+ * number of trials, or trials of an experiment are run until the confidence interval of its median
+ * is narrower than a target fraction of the median (or a maximum number of trials is reached).
+ *
+ * <p>The interval is computed over the medians of the individual trials using order statistics, so
+ * it makes no assumption about the distribution of the measurements.  If a trial produces several
+ * kinds of measurement (e.g. allocated bytes and objects) all of them have to converge, except for
+ * those derived from others, such as the runtime corrected for the overhead of the harness.
+ */
+final class TrialCountPolicy {
+  /** The confidence level of the interval around the median of each experiment. */
+  static final double CONFIDENCE_LEVEL = 0.95;
+
+  /** The trial property recording why no more trials were run for its experiment. */
+  static final String STOP_REASON_PROPERTY = "trials.stopReason";
+
+  /**
+   * The trial property recording the width of the confidence interval of the median, relative to
+   * the median, once the last trial of an experiment had been run.
+   */
+  static final String CI_WIDTH_PROPERTY = "trials.medianCiWidth";
+
+  enum StopReason {
+    /** The confidence interval of the median became narrower than the target. */
+    CONVERGED,
+    /** The maximum number of trials for the experiment has been run. */
+    BUDGET_EXHAUSTED,
+  }
+
+  private final int maxTrials;
+  private final double targetWidth;
+
+  @GuardedBy("this")
+  private final Map<Experiment, ExperimentState> states = Maps.newHashMap();
+
+  private TrialCountPolicy(int maxTrials, double targetWidth) {
+    checkArgument(maxTrials > 0);
+    this.maxTrials = maxTrials;
+    this.targetWidth = targetWidth;
+  }
+
+  /** Runs exactly {@code trials} trials of every experiment. */
+  static TrialCountPolicy fixed(int trials) {
+    return new TrialCountPolicy(trials, 0);
+  }
+
+  /**
+   * Runs trials of every experiment until the confidence interval of its median is narrower than
+   * {@code targetWidth} times the median, but no more than {@code maxTrials} of them.
+   */
+  static TrialCountPolicy adaptive(double targetWidth, int maxTrials) {
+    checkArgument(targetWidth > 0, "target width must be positive: %s", targetWidth);
+    checkArgument(maxTrials >= minimumTrials(), "at least %s trials are required to compute a"
+        + " %s%% confidence interval", minimumTrials(), CONFIDENCE_LEVEL * 100);
+    return new TrialCountPolicy(maxTrials, targetWidth);
+  }
+
+  /**
+   * Returns the number of trials required before the confidence interval of the median can be
+   * bounded by the observed values.
+   */
+  static int minimumTrials() {
+    // the interval spanning all n values covers the median with probability 1 - 2 * 0.5^n
+    int n = 1;
+    while (2 * Math.pow(0.5, n) > 1 - CONFIDENCE_LEVEL) {
+      n++;
+    }
+    return n;
+  }
+
+  boolean isAdaptive() {
+    return targetWidth > 0;
+  }
+
+  /** The number of trials of each experiment if the policy is fixed, or else the maximum. */
+  int maxTrials() {
+    return maxTrials;
+  }
+
+  /**
+   * Records a trial of the given experiment that completed successfully.  Returns the trial to
+   * report, which has its {@linkplain #STOP_REASON_PROPERTY stop reason} added if it is the last
+   * trial to be run for the experiment by an adaptive policy.
+   */
+  synchronized Trial recordTrial(Experiment experiment, Trial trial) {
+    ExperimentState state = stateFor(experiment);
+    state.trialsRun++;
+    for (Entry<String, Collection<Measurement>> entry
+        : Measurement.indexByDescription(trial.measurements()).asMap().entrySet()) {
+      if (entry.getKey().equals(RuntimeWorker.OVERHEAD_DESCRIPTION)
+          || entry.getKey().equals(RuntimeWorker.CORRECTED_DESCRIPTION)) {
+        // both are derived from the runtime, which is what has to converge; the corrected runtime
+        // of a benchmark that is about as fast as the harness is close to 0, and its interval may
+        // never become narrow relative to that
+        continue;
+      }
+      if (entry.getKey().startsWith(ThreadedRuntimeWorker.THREAD_THROUGHPUT_DESCRIPTION_PREFIX)) {
+        // how the threads share the work varies more than how much of it they do together
+        continue;
+      }
+      state.trialMedians.put(entry.getKey(), median(entry.getValue()));
+    }
+    Optional<StopReason> stopReason = updateStopReason(state);
+    if (!isAdaptive() || !stopReason.isPresent()) {
+      return trial;
+    }
+    Trial.Builder builder = new Trial.Builder(trial.id())
+        .run(trial.run())
+        .instrumentSpec(trial.instrumentSpec())
+        .scenario(trial.scenario())
+        .addAllMeasurements(trial.measurements())
+        .addAllWarmupMeasurements(trial.warmupMeasurements())
+        .addAllLatencies(trial.latencies())
+        .addAllProperties(trial.properties())
+        .addProperty(STOP_REASON_PROPERTY, stopReason.get().name());
+    if (state.relativeWidth.isPresent()) {
+      builder.addProperty(CI_WIDTH_PROPERTY, Double.toString(state.relativeWidth.get()));
+    }
+    return builder.build();
+  }
+
+  /** Records a trial of the given experiment that failed.  It still counts against the budget. */
+  synchronized void recordFailure(Experiment experiment) {
+    ExperimentState state = stateFor(experiment);
+    state.trialsRun++;
+    updateStopReason(state);
+  }
+
+  /** Returns the reason that no more trials should be run for the experiment, if any. */
+  synchronized Optional<StopReason> stopReason(Experiment experiment) {
+    return stateFor(experiment).stopReason;
+  }
+
+  /**
+   * Returns the current width of the confidence interval of the experiment's median as a fraction
+   * of the median, if enough trials have completed to compute it.
+   */
+  synchronized Optional<Double> relativeWidth(Experiment experiment) {
+    return stateFor(experiment).relativeWidth;
+  }
+
+  /** Returns the number of trials, successful or not, that have been run for the experiment. */
+  synchronized int trialsRun(Experiment experiment) {
+    return stateFor(experiment).trialsRun;
+  }
+
+  @GuardedBy("this")
+  private ExperimentState stateFor(Experiment experiment) {
+    ExperimentState state = states.get(experiment);
+    if (state == null) {
+      state = new ExperimentState();
+      states.put(experiment, state);
+    }
+    return state;
+  }
+
+  @GuardedBy("this")
+  private Optional<StopReason> updateStopReason(ExperimentState state) {
+    checkState(!state.stopReason.isPresent() || !isAdaptive(),
+        "ran a trial after deciding to stop");
+    // a time budget relies on the width even if the policy doesn't
+    state.relativeWidth = maxRelativeWidth(state.trialMedians);
+    if (isAdaptive()
+        && state.relativeWidth.isPresent() && state.relativeWidth.get() <= targetWidth) {
+      state.stopReason = Optional.of(StopReason.CONVERGED);
+      return state.stopReason;
+    }
+    if (state.trialsRun >= maxTrials) {
+      state.stopReason = Optional.of(StopReason.BUDGET_EXHAUSTED);
+    }
+    return state.stopReason;
+  }
+
+  private static Optional<Double> maxRelativeWidth(ListMultimap<String, Double> trialMedians) {
+    if (trialMedians.isEmpty()) {
+      return Optional.absent();
+    }
+    double maxWidth = 0;
+    for (Collection<Double> medians : trialMedians.asMap().values()) {
+      Optional<Double> width = relativeWidth(Doubles.toArray(medians));
+      if (!width.isPresent()) {
+        return Optional.absent();
+      }
+      maxWidth = Math.max(maxWidth, width.get());
+    }
+    return Optional.of(maxWidth);
+  }
+
+  /**
+   * Returns the width of the {@link #CONFIDENCE_LEVEL} confidence interval of the median of the
+   * population that {@code values} were sampled from, relative to their median.
+   */
+  @VisibleForTesting static Optional<Double> relativeWidth(double[] values) {
+    int n = values.length;
+    if (n < minimumTrials()) {
+      return Optional.absent();
+    }
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    // the interval [x(k), x(n + 1 - k)] covers the median unless at least n + 1 - k of the values
+    // fall on the same side of it, so find the largest k for which that is unlikely enough
+    BinomialDistributionImpl binomial = new BinomialDistributionImpl(n, 0.5);
+    int k = 1;
+    try {
+      while (k < n / 2 && binomial.cumulativeProbability(k) <= (1 - CONFIDENCE_LEVEL) / 2) {
+        k++;
+      }
+    } catch (MathException e) {
+      throw new AssertionError(e);
+    }
+    double lower = sorted[k - 1];
+    double upper = sorted[n - k];
+    double median = new Percentile().evaluate(sorted, 50);
+    if (upper == lower) {
+      return Optional.of(0.0);
+    }
+    return Optional.of(median == 0 ? Double.POSITIVE_INFINITY : (upper - lower) / Math.abs(median));
+  }
+
+  private static double median(Collection<Measurement> measurements) {
+    double[] weightedValues = new double[measurements.size()];
+    int i = 0;
+    for (Measurement measurement : measurements) {
+      weightedValues[i] = measurement.value().magnitude() / measurement.weight();
+      i++;
+    }
+    return new Percentile().evaluate(weightedValues, 50);
+  }
+
+  private static final class ExperimentState {
+    int trialsRun;
+    final ListMultimap<String, Double> trialMedians = ArrayListMultimap.create();
+    Optional<Double> relativeWidth = Optional.absent();
+    Optional<StopReason> stopReason = Optional.absent();
+  }
+}
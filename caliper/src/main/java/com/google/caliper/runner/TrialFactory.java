@@ -21,5 +21,6 @@ import com.google.caliper.runner.Instrument.MeasurementCollectingVisitor;
 /** A factory for producing {@link Trial Trials} based on data collected from visitors. */
 interface TrialFactory {
   /** Returns a new {@link Trial}. */
-  Trial newTrial(VmDataCollectingVisitor vmData, MeasurementCollectingVisitor measurementData);
+  Trial newTrial(VmDataCollectingVisitor vmData, MeasurementCollectingVisitor measurementData,
+      WorkerStartupTimer startupTimer);
 }
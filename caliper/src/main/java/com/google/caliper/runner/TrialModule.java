@@ -25,6 +25,7 @@ import com.google.caliper.model.Scenario;
 import com.google.caliper.model.Trial;
 import com.google.caliper.runner.Instrument.MeasurementCollectingVisitor;
 import com.google.caliper.runner.ServerSocketService.OpenedSocket;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
@@ -42,12 +43,23 @@ final class TrialModule extends AbstractModule {
 
   @TrialScoped
   @Provides
-  BenchmarkSpec provideBenchmarkSpec(Experiment experiment) {
-    return new BenchmarkSpec.Builder()
+  BenchmarkSpec provideBenchmarkSpec(Experiment experiment,
+      @BenchmarkThreads ImmutableSortedSet<Integer> threadCounts) {
+    return benchmarkSpec(experiment, threadCounts);
+  }
+
+  /** Returns the spec of the benchmark that a trial of {@code experiment} runs. */
+  static BenchmarkSpec benchmarkSpec(Experiment experiment,
+      ImmutableSortedSet<Integer> threadCounts) {
+    BenchmarkSpec.Builder builder = new BenchmarkSpec.Builder()
         .className(experiment.instrumentation().benchmarkMethod().getDeclaringClass().getName())
         .methodName(experiment.instrumentation().benchmarkMethod().getName())
-        .addAllParameters(experiment.userParameters())
-        .build();
+        .addAllParameters(experiment.userParameters());
+    if (!threadCounts.equals(ImmutableSortedSet.of(1))) {
+      // so that the scenarios on different numbers of threads can be told apart
+      builder.addParameter(Experiment.THREADS_PARAMETER, Integer.toString(experiment.threads()));
+    }
+    return builder.build();
   }
 
   @Provides
@@ -67,20 +79,41 @@ final class TrialModule extends AbstractModule {
       final Run run,
       final Host host,
       final Experiment experiment,
-      final BenchmarkSpec benchmarkSpec) {
+      final BenchmarkSpec benchmarkSpec,
+      final WorkerSlot workerSlot,
+      final TrialOrder trialOrder,
+      final WorkerProcess workerProcess,
+      final StreamService streamService) {
     return new TrialFactory() {
       @Override public Trial newTrial(VmDataCollectingVisitor dataCollectingVisitor,
-          MeasurementCollectingVisitor measurementCollectingVisitor) {
+          MeasurementCollectingVisitor measurementCollectingVisitor,
+          WorkerStartupTimer startupTimer) {
         checkState(measurementCollectingVisitor.isDoneCollecting());
-        return new Trial.Builder(trialId)
+        Trial.Builder trialBuilder = new Trial.Builder(trialId)
             .run(run)
             .instrumentSpec(experiment.instrumentation().instrument().getSpec())
             .scenario(new Scenario.Builder()
-                .host(host)
+                .host(workerSlot.agent().isPresent() ? workerSlot.agent().get().host() : host)
                 .vmSpec(dataCollectingVisitor.vmSpec())
                 .benchmarkSpec(benchmarkSpec))
             .addAllMeasurements(measurementCollectingVisitor.getMeasurements())
-            .build();
+            .addAllWarmupMeasurements(measurementCollectingVisitor.getWarmupMeasurements())
+            .addAllLatencies(measurementCollectingVisitor.getLatencies())
+            .addProperty("worker.slot", Integer.toString(workerSlot.index()))
+            .addAllProperties(trialOrder.properties())
+            .addAllProperties(startupTimer.properties())
+            .addAllProperties(streamService.queueProperties())
+            .addAllProperties(streamService.sampleProperties())
+            .addAllProperties(measurementCollectingVisitor.properties())
+            .addProperty("worker.classDataArchive",
+                Boolean.toString(workerProcess.usesClassDataArchive()));
+        if (workerSlot.agent().isPresent()) {
+          trialBuilder.addProperty("worker.agent", workerSlot.agent().get().address().toString());
+        }
+        if (!workerSlot.cpus().isEmpty()) {
+          trialBuilder.addProperty("worker.cpus", workerSlot.cpuList());
+        }
+        return trialBuilder.build();
       }
     };
   }
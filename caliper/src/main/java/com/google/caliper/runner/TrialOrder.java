@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Predicates.in;
+import static com.google.common.base.Predicates.not;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Decides the order in which the experiments of each round of trials are run.  Running the
+ * experiments in a different random order in every round keeps slow drift in the performance of
+ * the host (e.g. thermal throttling) from always biasing the same experiments.
+ *
+ * <p>The random orders are derived from a seed that is recorded with every trial so that a run can
+ * be repeated in the same order.
+ */
+final class TrialOrder {
+  /** The trial property recording the {@link Strategy} used to order the trials of a run. */
+  static final String STRATEGY_PROPERTY = "trials.order";
+
+  /** The trial property recording the seed used to order the trials of a run. */
+  static final String SEED_PROPERTY = "trials.seed";
+
+  /** The trial property recording the parameters that may differ within a block. */
+  static final String BLOCK_PARAMETERS_PROPERTY = "trials.blockParams";
+
+  enum Strategy {
+    /** Every round runs the experiments in the order in which they were selected. */
+    SEQUENTIAL,
+    /** Every round runs the experiments in a new random order. */
+    SHUFFLED,
+    /**
+     * Experiments that only differ in their benchmark method, their instrument or the values of the
+     * block parameters (i.e. the variants that are usually compared with each other, whether they
+     * are written as methods or as {@code @Param} values) are run back to back as a block.  Both
+     * the order of the blocks and the order within each block are random.
+     */
+    BLOCKED,
+  }
+
+  private final Strategy strategy;
+  private final long seed;
+  private final ImmutableSet<String> blockParameters;
+
+  @GuardedBy("this")
+  private final Random random;
+
+  TrialOrder(Strategy strategy, long seed) {
+    this(strategy, seed, ImmutableSet.<String>of());
+  }
+
+  /**
+   * @param blockParameters the user parameters whose values may differ between the experiments
+   *     of a block; only used by {@link Strategy#BLOCKED}
+   */
+  TrialOrder(Strategy strategy, long seed, ImmutableSet<String> blockParameters) {
+    this.strategy = checkNotNull(strategy);
+    this.seed = seed;
+    this.blockParameters = checkNotNull(blockParameters);
+    this.random = new Random(seed);
+  }
+
+  Strategy strategy() {
+    return strategy;
+  }
+
+  long seed() {
+    return seed;
+  }
+
+  /**
+   * Returns the order in which to run the given round of experiments.  Each call continues the
+   * random sequence of the previous one, so the rounds of a run are only reproducible if they are
+   * arranged in the same order.
+   */
+  synchronized ImmutableList<Experiment> arrange(List<Experiment> round) {
+    switch (strategy) {
+      case SEQUENTIAL:
+        return ImmutableList.copyOf(round);
+      case SHUFFLED:
+        List<Experiment> shuffled = Lists.newArrayList(round);
+        Collections.shuffle(shuffled, random);
+        return ImmutableList.copyOf(shuffled);
+      case BLOCKED:
+        ListMultimap<BlockKey, Experiment> blocks = LinkedListMultimap.create();
+        for (Experiment experiment : round) {
+          blocks.put(new BlockKey(experiment, blockParameters), experiment);
+        }
+        List<BlockKey> blockOrder = Lists.newArrayList(blocks.keySet());
+        Collections.shuffle(blockOrder, random);
+        ImmutableList.Builder<Experiment> arranged = ImmutableList.builder();
+        for (BlockKey key : blockOrder) {
+          List<Experiment> block = Lists.newArrayList(blocks.get(key));
+          Collections.shuffle(block, random);
+          arranged.addAll(block);
+        }
+        return arranged.build();
+      default:
+        throw new AssertionError(strategy);
+    }
+  }
+
+  /** The properties recording this order that are added to every trial. */
+  ImmutableMap<String, String> properties() {
+    if (strategy == Strategy.SEQUENTIAL) {
+      // nothing is random
+      return ImmutableMap.of();
+    }
+    ImmutableMap.Builder<String, String> properties = ImmutableMap.<String, String>builder()
+        .put(STRATEGY_PROPERTY, Ascii.toLowerCase(strategy.name()))
+        .put(SEED_PROPERTY, Long.toString(seed));
+    if (strategy == Strategy.BLOCKED && !blockParameters.isEmpty()) {
+      properties.put(BLOCK_PARAMETERS_PROPERTY, Joiner.on(',').join(blockParameters));
+    }
+    return properties.build();
+  }
+
+  @Override public String toString() {
+    if (strategy == Strategy.SEQUENTIAL) {
+      return Ascii.toLowerCase(strategy.name());
+    }
+    if (strategy == Strategy.BLOCKED && !blockParameters.isEmpty()) {
+      return String.format("%s (seed: %d, block params: %s)", Ascii.toLowerCase(strategy.name()),
+          seed, Joiner.on(',').join(blockParameters));
+    }
+    return String.format("%s (seed: %d)", Ascii.toLowerCase(strategy.name()), seed);
+  }
+
+  /**
+   * Identifies the block of an experiment: its VM, thread count and user parameters, except for
+   * the block parameters.
+   */
+  private static final class BlockKey {
+    final VirtualMachine vm;
+    final ImmutableMap<String, String> userParameters;
+    final int threads;
+
+    BlockKey(Experiment experiment, ImmutableSet<String> blockParameters) {
+      this.vm = experiment.vm();
+      this.userParameters = ImmutableMap.copyOf(
+          Maps.filterKeys(experiment.userParameters(), not(in(blockParameters))));
+      this.threads = experiment.threads();
+    }
+
+    @Override public boolean equals(Object obj) {
+      if (obj instanceof BlockKey) {
+        BlockKey that = (BlockKey) obj;
+        return this.vm.equals(that.vm)
+            && this.userParameters.equals(that.userParameters)
+            && this.threads == that.threads;
+      }
+      return false;
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode(vm, userParameters, threads);
+    }
+  }
+}
@@ -23,11 +23,11 @@ import com.google.caliper.bridge.StopMeasurementLogMessage;
 import com.google.caliper.model.Trial;
 import com.google.caliper.options.CaliperOptions;
 import com.google.caliper.runner.Instrument.MeasurementCollectingVisitor;
+import com.google.caliper.runner.Instrument.SampleCollectingVisitor;
 import com.google.caliper.runner.StreamService.StreamItem;
 import com.google.caliper.util.ShortDuration;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.Service.State;
-import com.google.gson.Gson;
 import com.google.inject.Inject;
 
 import org.joda.time.Duration;
@@ -36,6 +36,8 @@ import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * The main data gather control loop for a Trial.
  *
@@ -48,50 +50,90 @@ import java.util.logging.Logger;
   /** The time that the worker has to clean up after an experiment. */
   private static final Duration WORKER_CLEANUP_DURATION = Duration.standardSeconds(2);
 
+  /**
+   * The credits that our answer to the worker's first measurement grants.  Each later answer only
+   * replaces the credit of the measurement that it answers, so the worker may take up to this many
+   * measurements beyond the last one that we've answered: with 2, one may be on its way to us
+   * while the worker takes the next.  1 would make it wait for our answer after every measurement.
+   * The more there are, the more measurements the worker may take after we have all that we need.
+   */
+  private static final int MEASUREMENT_WINDOW = 2;
+
+  /**
+   * How often the worker's sample buffer is read while we wait for its messages, if it has one.
+   * The worker drops the samples that it takes while its buffer is full.
+   */
+  private static final long SAMPLE_DRAIN_INTERVAL_NANOS = MILLISECONDS.toNanos(10);
+
   private final CaliperOptions options;
   private final StreamService streamService;
-  private final Gson gson;
   private final TrialFactory trialFactory;
+  private final WorkerPipeline workerPipeline;
 
   // TODO(lukes): The VmDataCollectingVisitor should be able to tell us when it has collected all
   // its data.
   private final VmDataCollectingVisitor dataCollectingVisitor = new VmDataCollectingVisitor();
+  private final WorkerStartupTimer startupTimer = new WorkerStartupTimer();
   private final Stopwatch trialStopwatch = Stopwatch.createUnstarted();
   private final MeasurementCollectingVisitor measurementCollectingVisitor;
+  @Nullable private final SampleCollectingVisitor sampleCollectingVisitor;
 
   @Inject TrialRunLoop(
       MeasurementCollectingVisitor measurementCollectingVisitor,
       CaliperOptions options,
       TrialFactory trialFactory,
-      Gson gson,
-      StreamService streamService) {
+      StreamService streamService,
+      WorkerPipeline workerPipeline) {
     this.options = options;
     this.trialFactory = trialFactory;
-    this.gson = gson;
     this.streamService = streamService;
+    this.workerPipeline = workerPipeline;
     this.measurementCollectingVisitor = measurementCollectingVisitor; 
+    // without a buffer there are no samples to wait for
+    this.sampleCollectingVisitor = streamService.hasSampleBuffer()
+            && measurementCollectingVisitor instanceof SampleCollectingVisitor
+        ? (SampleCollectingVisitor) measurementCollectingVisitor
+        : null;
   }
 
   @Override public Trial call() throws TrialFailureException, IOException {
     if (streamService.state() != State.NEW) {
       throw new IllegalStateException("You can only invoke the run loop once");
     }
+    startupTimer.start();
     streamService.startAsync().awaitRunning();
+    startupTimer.launched();
     try {
       long timeLimitNanos = getTrialTimeLimitTrialNanos();
       boolean doneCollecting = false;
+      boolean grantedWindow = false;
+      boolean stopSent = false;
       boolean done = false;
       while (!done) {
-        StreamItem item = streamService.readItem(
+        StreamItem item = readItem(
             timeLimitNanos - trialStopwatch.elapsed(NANOSECONDS), 
-            NANOSECONDS);
+            doneCollecting);
         switch (item.kind()) {
           case DATA:
             LogMessage logMessage = item.content();
-            logMessage.accept(measurementCollectingVisitor);
+            if (sampleCollectingVisitor != null
+                && logMessage instanceof StopMeasurementLogMessage) {
+              // the worker may have written samples of later measurements already
+              streamService.takeSamples(
+                  ((StopMeasurementLogMessage) logMessage).samplesWritten(),
+                  doneCollecting ? null : sampleCollectingVisitor);
+            }
+            if (!doneCollecting) {
+              // the worker may still be taking measurements that it had credits for, but we don't
+              // need them
+              logMessage.accept(measurementCollectingVisitor);
+            }
             logMessage.accept(dataCollectingVisitor);
+            logMessage.accept(startupTimer);
+            boolean justDoneCollecting = false;
             if (!doneCollecting && measurementCollectingVisitor.isDoneCollecting()) {
               doneCollecting = true;
+              justDoneCollecting = true;
               // We have received all the measurements we need and are about to tell the worker to
               // shut down.  At this point the worker should shutdown soon, but we don't want to 
               // wait too long, so decrease the time limit so that we wait no more than 
@@ -102,19 +144,28 @@ import java.util.logging.Logger;
               timeLimitNanos = trialStopwatch.elapsed(NANOSECONDS) + cleanupTimeNanos;
             }
             // If it is a stop measurement message we need to tell the worker to either stop or keep
-            // going with a WorkerContinueMessage.  This needs to be done after the 
+            // going with a ShouldContinueMessage.  This needs to be done after the 
             // measurementCollecting visitor sees the message so that isDoneCollection will be up to
-            // date.
+            // date.  The worker only waits for this after its first measurement; after that it has
+            // enough credits to keep measuring while the answer is on its way.
             if (logMessage instanceof StopMeasurementLogMessage) {
-              // TODO(lukes): this is a blocking write, perhaps we should perform it in a non 
-              // blocking manner to keep this thread only blocking in one place.  This would 
-              // complicate error handling, but may increase performance since it would free this
-              // thread up to handle other messages
-              streamService.writeLine(gson.toJson(new ShouldContinueMessage(!doneCollecting)));
               if (doneCollecting) {
-                streamService.closeWriter();
+                if (!stopSent) {
+                  streamService.writeShouldContinue(new ShouldContinueMessage(false));
+                  streamService.closeWriter();
+                  stopSent = true;
+                }
+              } else {
+                // replace the credit that the worker used for this measurement
+                streamService.writeShouldContinue(
+                    new ShouldContinueMessage(true, grantedWindow ? 1 : MEASUREMENT_WINDOW));
+                grantedWindow = true;
               }
             }
+            if (justDoneCollecting) {
+              // the worker is shutting down, so the next one can start up in the meantime
+              workerPipeline.currentTrialDoneCollecting();
+            }
             break;
           case EOF:
             // We consider EOF to be synonymous with worker shutdown
@@ -140,7 +191,8 @@ import java.util.logging.Logger;
             throw new AssertionError("Impossible item: " + item);
         }
       }
-      return trialFactory.newTrial(dataCollectingVisitor, measurementCollectingVisitor);
+      return trialFactory.newTrial(dataCollectingVisitor, measurementCollectingVisitor,
+          startupTimer);
     } catch (InterruptedException e) {
       throw new AssertionError();
     } finally {
@@ -149,6 +201,29 @@ import java.util.logging.Logger;
     }
   }
 
+  /**
+   * Reads the next item from the worker.  If it writes samples, its buffer is read at least every
+   * {@link #SAMPLE_DRAIN_INTERVAL_NANOS} while we wait, so that it doesn't run out of room.  The
+   * samples are only passed on once the message that stops their measurement is seen.
+   */
+  private StreamItem readItem(long timeoutNanos, boolean doneCollecting)
+      throws InterruptedException {
+    if (sampleCollectingVisitor == null) {
+      return streamService.readItem(timeoutNanos, NANOSECONDS);
+    }
+    long remainingNanos = timeoutNanos;
+    while (true) {
+      long waitNanos = Math.min(remainingNanos, SAMPLE_DRAIN_INTERVAL_NANOS);
+      StreamItem item = streamService.readItem(waitNanos, NANOSECONDS);
+      // the worker may still be taking samples that we don't need, but it mustn't run out of room
+      streamService.readSamples(!doneCollecting);
+      if (item.kind() != StreamItem.Kind.TIMEOUT || waitNanos == remainingNanos) {
+        return item;
+      }
+      remainingNanos -= waitNanos;
+    }
+  }
+
   private long getTrialTimeLimitTrialNanos() {
     ShortDuration timeLimit = options.timeLimit();
     if (ShortDuration.zero().equals(timeLimit)) {
@@ -58,11 +58,19 @@ class TrialScopes {
     private final Cache<Key<?>, Object> contextMap = CacheBuilder.newBuilder()
         .concurrencyLevel(1)  // We shouldn't have more than one writer
         .build();
+    private final int trialNumber;
 
-    private TrialContext(UUID trialId, int trialNumber, Experiment experiment) {
+    private TrialContext(UUID trialId, int trialNumber, Experiment experiment,
+        WorkerSlot workerSlot) {
+      this.trialNumber = trialNumber;
       contextMap.put(Key.get(UUID.class, TrialId.class), trialId);
       contextMap.put(Key.get(Integer.class, TrialNumber.class), trialNumber);
       contextMap.put(Key.get(Experiment.class), experiment);
+      contextMap.put(Key.get(WorkerSlot.class), workerSlot);
+    }
+
+    int trialNumber() {
+      return trialNumber;
     }
 
     <T> T call(final Callable<T> callable) throws Exception {
@@ -83,8 +91,9 @@ class TrialScopes {
   /**
    * Makes a new TrialContext that can be used to invoke
    */
-  static TrialContext makeContext(UUID trialId, int trialNumber, Experiment experiment) {
-    return new TrialContext(trialId, trialNumber, experiment);
+  static TrialContext makeContext(UUID trialId, int trialNumber, Experiment experiment,
+      WorkerSlot workerSlot) {
+    return new TrialContext(trialId, trialNumber, experiment, workerSlot);
   }
 
   private static final Scope SCOPE = new Scope() {
@@ -120,6 +129,7 @@ class TrialScopes {
       bindSeedKey(Key.get(UUID.class, TrialId.class));
       bindSeedKey(Key.get(Integer.class, TrialNumber.class));
       bindSeedKey(Key.get(Experiment.class));
+      bindSeedKey(Key.get(WorkerSlot.class));
     }
 
     private <T> void bindSeedKey(final Key<T> key) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.caliper.api.ResultProcessor;
+import com.google.caliper.config.CaliperConfig;
+import com.google.caliper.config.InvalidConfigurationException;
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Trial;
+import com.google.caliper.model.WarmupMeasurement;
+import com.google.caliper.util.ShortDuration;
+import com.google.caliper.util.Stdout;
+import com.google.caliper.worker.RuntimeWorker;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
+import com.google.inject.Inject;
+
+import org.apache.commons.math.stat.descriptive.rank.Percentile;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Reports how quickly each trial whose warmup measurements were kept reached its steady state,
+ * i.e. the median runtime per rep of its measurements, along with its benchmark method and
+ * parameters:
+ * <ul>
+ *   <li>the time to steady state: the time from the start of the warmup after which the runtime
+ *       per rep of every warmup measurement was within the {@code tolerance} option of the steady
+ *       state
+ *   <li>how many times the steady state the first warmup measurement cost per rep; for a
+ *       macrobenchmark, that is the cost of its first call
+ * </ul>
+ */
+final class WarmupResultProcessor implements ResultProcessor {
+  private static final String TOLERANCE_OPTION = "tolerance";
+  private static final double DEFAULT_TOLERANCE = 0.1;
+
+  private final PrintWriter stdout;
+  private final double tolerance;
+
+  @Inject WarmupResultProcessor(@Stdout PrintWriter stdout, CaliperConfig config)
+      throws InvalidConfigurationException {
+    this.stdout = stdout;
+    String tolerance = config.getResultProcessorConfig(WarmupResultProcessor.class).options()
+        .get(TOLERANCE_OPTION);
+    try {
+      this.tolerance = (tolerance == null) ? DEFAULT_TOLERANCE : Double.parseDouble(tolerance);
+    } catch (NumberFormatException e) {
+      throw new InvalidConfigurationException(
+          String.format("The %s option is not a number: %s", TOLERANCE_OPTION, tolerance));
+    }
+  }
+
+  @Override public void processTrial(Trial trial) {
+    List<WarmupMeasurement> warmup = Lists.newArrayList();
+    for (WarmupMeasurement warmupMeasurement : trial.warmupMeasurements()) {
+      if (isRuntime(warmupMeasurement.measurement())) {
+        warmup.add(warmupMeasurement);
+      }
+    }
+    List<Double> runtimes = Lists.newArrayList();
+    for (Measurement measurement : trial.measurements()) {
+      if (isRuntime(measurement)) {
+        runtimes.add(nanosPerRep(measurement));
+      }
+    }
+    if (warmup.isEmpty() || runtimes.isEmpty()) {
+      return;
+    }
+
+    double steadyState = new Percentile().evaluate(Doubles.toArray(runtimes), 50);
+    long timeToSteadyState = 0;
+    for (WarmupMeasurement warmupMeasurement : warmup) {
+      double nanosPerRep = nanosPerRep(warmupMeasurement.measurement());
+      if (Math.abs(nanosPerRep - steadyState) > tolerance * steadyState) {
+        timeToSteadyState = warmupMeasurement.elapsedNanos();
+      }
+    }
+    double firstToSteadyState = nanosPerRep(warmup.get(0).measurement()) / steadyState;
+    WarmupMeasurement last = Iterables.getLast(warmup);
+    if (timeToSteadyState == last.elapsedNanos()) {
+      stdout.printf("  warmup of %s: not within %.0f%% of the steady state after %s; "
+          + "first measurement %.2fx the steady state%n",
+          describe(trial.scenario().benchmarkSpec()), tolerance * 100,
+          ShortDuration.of(last.elapsedNanos(), NANOSECONDS), firstToSteadyState);
+    } else {
+      stdout.printf("  warmup of %s: within %.0f%% of the steady state after %s; "
+          + "first measurement %.2fx the steady state%n",
+          describe(trial.scenario().benchmarkSpec()), tolerance * 100,
+          ShortDuration.of(timeToSteadyState, NANOSECONDS), firstToSteadyState);
+    }
+  }
+
+  /** Returns the benchmark method of a trial, followed by its parameters if it has any. */
+  private static String describe(BenchmarkSpec benchmarkSpec) {
+    String method = benchmarkSpec.className() + "." + benchmarkSpec.methodName();
+    return benchmarkSpec.parameters().isEmpty()
+        ? method
+        : method + " " + benchmarkSpec.parameters();
+  }
+
+  private static boolean isRuntime(Measurement measurement) {
+    return RuntimeWorker.RUNTIME_DESCRIPTION.equals(measurement.description());
+  }
+
+  private static double nanosPerRep(Measurement measurement) {
+    return measurement.value().magnitude() / measurement.weight();
+  }
+
+  @Override public void close() {
+    stdout.flush();
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.inject.Stage.PRODUCTION;
+
+import com.google.caliper.bridge.WorkerSpec;
+import com.google.caliper.config.CaliperConfig;
+import com.google.caliper.config.CaliperConfigLoader;
+import com.google.caliper.config.InvalidConfigurationException;
+import com.google.caliper.config.VmConfig;
+import com.google.caliper.json.GsonModule;
+import com.google.caliper.model.Host;
+import com.google.caliper.options.CaliperOptions;
+import com.google.caliper.worker.WorkerMain;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Closeables;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.inject.Guice;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * An agent that starts workers on its own host on behalf of a runner on another one (see
+ * {@link CaliperOptions#agents()}).
+ *
+ * <p>The agent must be started with Caliper and the benchmarks on its class path, and every VM
+ * that the runner uses must be configured on the agent's host under the same name (see
+ * {@link CaliperConfig#getVmConfig}).  The agent builds the worker command itself, the way the
+ * runner would, from its own configuration of the VM and its own class path.  The workers connect
+ * back to the runner directly and speak the usual protocol with it.  For each worker the runner
+ * opens a connection to the agent and the following UTF-8 lines are exchanged:
+ *
+ * <ol>
+ *   <li>The agent sends its {@link Host} as json.
+ *   <li>The runner sends an {@link AgentRequest} as json: the name of the VM, the VM options of
+ *       the trial and the {@link WorkerSpec}.  It may instead close the connection if it only
+ *       wanted to know the host.
+ *   <li>The agent starts the worker, with the address of the runner (as seen from the agent) in its
+ *       {@link WorkerSpec}, and sends each line of the worker's output, prefixed with
+ *       {@link #STDOUT_PREFIX} or {@link #STDERR_PREFIX}.
+ *   <li>Once the worker has exited the agent sends {@link #EXIT_PREFIX} and its exit value and
+ *       closes the connection.
+ * </ol>
+ *
+ * <p>If the runner closes the connection early the worker is destroyed.  The agent only runs the
+ * java executables of the VMs it is configured with.  Of the VM options that the runner asks
+ * for it only passes on those that its own configuration of the VM or an instrument has, a fixed
+ * set of options that size the heap and tune the garbage collector and the compiler, and Java
+ * agents from its own class path; a benchmark that needs any other option must have the VM
+ * configured with it on the agent's host.  Still, a runner can make a worker use as much of the
+ * host as it likes, so the agent listens on the loopback interface unless it is told otherwise and
+ * must only be reachable by trusted runners.
+ */
+public final class WorkerAgent {
+  private static final Logger logger = Logger.getLogger(WorkerAgent.class.getName());
+
+  static final String STDOUT_PREFIX = "out ";
+  static final String STDERR_PREFIX = "err ";
+  static final String EXIT_PREFIX = "exit ";
+
+  /** Names that can't reach outside of the configured base directory of the VMs. */
+  private static final Pattern VM_NAME_PATTERN = Pattern.compile("\\w[\\w.-]*");
+
+  private static final String JAVA_AGENT_OPTION = "-javaagent:";
+  private static final String APPEND_TO_BOOT_CLASS_PATH_OPTION = "-Xbootclasspath/a:";
+
+  /** Flags of the garbage collectors and the compilers that a runner may turn on or off. */
+  private static final ImmutableList<String> BOOLEAN_FLAGS = ImmutableList.of(
+      "UseSerialGC", "UseParallelGC", "UseParallelOldGC", "UseConcMarkSweepGC", "UseG1GC",
+      "UseZGC", "UseShenandoahGC", "DisableExplicitGC", "ExplicitGCInvokesConcurrent",
+      "AlwaysPreTouch", "UseTLAB", "UseNUMA", "UseLargePages", "UseCompressedOops",
+      "UseCompressedClassPointers", "UseBiasedLocking", "TieredCompilation",
+      "BackgroundCompilation", "Inline", "DoEscapeAnalysis", "EliminateAllocations",
+      "UseSuperWord", "UseLoopPredicate", "UseCountedLoopSafepoints", "PrintCompilation",
+      "PrintInlining", "PrintGC", "PrintGCDetails", "UnlockDiagnosticVMOptions",
+      "UnlockExperimentalVMOptions");
+
+  /** Sizes and thresholds of the heap, the garbage collectors and the compilers. */
+  private static final ImmutableList<String> SIZE_FLAGS = ImmutableList.of(
+      "NewSize", "MaxNewSize", "NewRatio", "SurvivorRatio", "MaxTenuringThreshold",
+      "PermSize", "MaxPermSize", "MetaspaceSize", "MaxMetaspaceSize", "ThreadStackSize",
+      "TLABSize", "ObjectAlignmentInBytes", "ParallelGCThreads", "ConcGCThreads",
+      "MaxGCPauseMillis", "G1HeapRegionSize", "CICompilerCount", "TieredStopAtLevel",
+      "CompileThreshold", "ReservedCodeCacheSize", "MaxInlineSize", "FreqInlineSize",
+      "InlineSmallCode", "MaxInlineLevel", "LoopUnrollLimit", "AutoBoxCacheMax");
+
+  /**
+   * The options that a runner may give a worker on top of those that the agent's own
+   * configuration of the VM has: they size the heap and tune the garbage collector and the
+   * compiler, and none of them names a file, a command or code to load.
+   */
+  private static final Pattern MEASUREMENT_OPTION_PATTERN = Pattern.compile(
+      "-X(?:ms|mx|mn|ss)\\d+[kKmMgG]?"
+      + "|-X(?:int|batch|comp|mixed|noclassgc)"
+      + "|-verbose:(?:gc|class)"
+      + "|-XX:[+-](?:" + Joiner.on('|').join(BOOLEAN_FLAGS) + ")"
+      + "|-XX:(?:" + Joiner.on('|').join(SIZE_FLAGS) + ")=\\d+[kKmMgG]?");
+
+  private final ServerSocket serverSocket;
+  private final Gson gson;
+  private final Host host;
+  private final CaliperConfig config;
+  private final String classPath;
+  private final ImmutableSet<String> classPathEntries;
+
+  WorkerAgent(ServerSocket serverSocket, Gson gson, Host host, CaliperConfig config) {
+    this.serverSocket = serverSocket;
+    this.gson = gson;
+    this.host = host;
+    this.config = config;
+    this.classPath = WorkerProcess.getClassPath();
+    this.classPathEntries = ImmutableSet.copyOf(
+        Splitter.on(File.pathSeparatorChar).omitEmptyStrings().split(classPath));
+  }
+
+  public static void main(String[] args) throws IOException, InvalidConfigurationException {
+    if (args.length < 1 || args.length > 3) {
+      System.err.println(
+          "Usage: WorkerAgent <port> [<address to listen on> [<caliper config file>]]");
+      System.exit(1);
+    }
+    InetAddress address = InetAddress.getByName(args.length > 1 ? args[1] : "127.0.0.1");
+    File configFile = (args.length > 2)
+        ? new File(args[2])
+        : new File(new File(System.getProperty("user.home"), ".caliper"), "config.properties");
+    CaliperConfig config = new CaliperConfigLoader(configFile, ImmutableMap.<String, String>of())
+        .loadOrCreate();
+    ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]), 0, address);
+    Gson gson = Guice.createInjector(PRODUCTION, new GsonModule()).getInstance(Gson.class);
+    WorkerAgent agent =
+        new WorkerAgent(serverSocket, gson, new EnvironmentGetter().getHost(), config);
+    System.out.println("Caliper worker agent listening on " + serverSocket.getLocalSocketAddress());
+    agent.serve();
+  }
+
+  /** Serves runners, each connection in its own thread, until the server socket is closed. */
+  void serve() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          logger.log(Level.WARNING, "Could not accept a connection", e);
+        }
+        continue;
+      }
+      Thread thread = new Thread("agent-connection-" + socket.getRemoteSocketAddress()) {
+        @Override public void run() {
+          try {
+            handle(socket);
+          } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to run a worker for "
+                + socket.getRemoteSocketAddress(), e);
+          } finally {
+            try {
+              socket.close();
+            } catch (IOException e) {
+              logger.log(Level.FINE, "Could not close the connection", e);
+            }
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void handle(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    final BufferedReader reader =
+        new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+    final Writer writer = new OutputStreamWriter(socket.getOutputStream(), UTF_8);
+    writer.write(gson.toJson(host));
+    writer.write('\n');
+    writer.flush();
+    String request = reader.readLine();
+    if (request == null) {
+      return;
+    }
+    List<String> command = workerCommand(request, socket.getInetAddress());
+    logger.fine(String.format("Starting a worker for %s: %s", socket.getRemoteSocketAddress(),
+        command));
+    final Process worker = new ProcessBuilder(command).start();
+    Thread watcher = new Thread("agent-runner-watcher") {
+      @Override public void run() {
+        try {
+          while (reader.readLine() != null) {}
+        } catch (IOException e) {
+          // the runner is gone either way
+        }
+        worker.destroy();
+      }
+    };
+    watcher.setDaemon(true);
+    watcher.start();
+    Thread stdout = relay(worker.getInputStream(), STDOUT_PREFIX, writer);
+    Thread stderr = relay(worker.getErrorStream(), STDERR_PREFIX, writer);
+    try {
+      stdout.join();
+      stderr.join();
+      int exitValue = worker.waitFor();
+      synchronized (writer) {
+        writer.write(EXIT_PREFIX + exitValue + '\n');
+        writer.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      worker.destroy();
+    }
+  }
+
+  /**
+   * Returns the command that starts the worker that the runner asked for, pointed at the address
+   * that the runner connected from.
+   */
+  @VisibleForTesting ImmutableList<String> workerCommand(String json, InetAddress runnerAddress)
+      throws IOException {
+    AgentRequest request;
+    try {
+      request = gson.fromJson(json, AgentRequest.class);
+    } catch (JsonParseException e) {
+      throw new IOException("Malformed worker request: " + json, e);
+    }
+    if (request == null || request.vmName == null || request.vmOptions == null
+        || request.workerSpec == null) {
+      throw new IOException("Incomplete worker request: " + json);
+    }
+    File javaExecutable;
+    VmConfig vmConfig = vmConfig(request.vmName);
+    try {
+      javaExecutable = vmConfig.javaExecutable();
+    } catch (IllegalStateException e) {
+      throw new IOException("No java executable for VM " + request.vmName, e);
+    }
+    for (String option : request.vmOptions) {
+      checkVmOption(option, vmConfig);
+    }
+    WorkerSpec spec = request.workerSpec;
+    WorkerSpec remoteSpec = new WorkerSpec(
+        spec.trialId,
+        spec.workerClassName,
+        spec.workerOptions,
+        spec.benchmarkSpec,
+        spec.methodParameterClassNames,
+        runnerAddress.getHostAddress(),
+        spec.port,
+        spec.encoding,
+        // the runner's file can't be mapped on this host
+        null);
+    // the same command as WorkerProcess builds, with this host's VM and class path
+    return ImmutableList.<String>builder()
+        .add(javaExecutable.getAbsolutePath())
+        .addAll(vmConfig.options())
+        .addAll(request.vmOptions)
+        .add("-cp", classPath)
+        .add("-XX:+PrintFlagsFinal")
+        .add(WorkerMain.class.getName())
+        .add(gson.toJson(remoteSpec))
+        .build();
+  }
+
+  /** Returns the configuration of the VM named {@code vmName} on this host. */
+  private VmConfig vmConfig(String vmName) throws IOException {
+    if (!VM_NAME_PATTERN.matcher(vmName).matches()) {
+      throw new IOException("Not a VM name: " + vmName);
+    }
+    try {
+      // the runner's name for the VM that it runs on (see RunnerModule)
+      return vmName.equals("default") ? config.getDefaultVmConfig() : config.getVmConfig(vmName);
+    } catch (InvalidConfigurationException e) {
+      throw new IOException("VM " + vmName + " is not configured on this host", e);
+    }
+  }
+
+  /**
+   * Accepts {@code option} if the agent's own configuration of the VM or an instrument has it, if
+   * it is one of the {@linkplain #MEASUREMENT_OPTION_PATTERN measurement options} or if it adds a
+   * Java agent from the agent's class path.
+   */
+  private void checkVmOption(String option, VmConfig vmConfig) throws IOException {
+    if (vmConfig.options().contains(option) || Instrument.JVM_ARGS.contains(option)
+        || MEASUREMENT_OPTION_PATTERN.matcher(option).matches()) {
+      return;
+    }
+    String jar = null;
+    if (option.startsWith(JAVA_AGENT_OPTION)) {
+      jar = Splitter.on('=').limit(2)
+          .split(option.substring(JAVA_AGENT_OPTION.length())).iterator().next();
+    } else if (option.startsWith(APPEND_TO_BOOT_CLASS_PATH_OPTION)) {
+      jar = option.substring(APPEND_TO_BOOT_CLASS_PATH_OPTION.length());
+    }
+    if (jar == null) {
+      throw new IOException(String.format("The agent doesn't give its workers %s; configure the "
+          + "VM with it on the agent's host instead", option));
+    }
+    if (!classPathEntries.contains(jar)) {
+      throw new IOException(String.format(
+          "%s is not on the class path of the agent; it can't be given to a worker", jar));
+    }
+  }
+
+  /** Starts a thread that sends each line of {@code stream} to the runner after the prefix. */
+  private static Thread relay(InputStream stream, final String prefix, final Writer writer) {
+    // use the default charset because worker streams will use the default for output
+    final BufferedReader reader =
+        new BufferedReader(new InputStreamReader(stream, Charset.defaultCharset()));
+    Thread thread = new Thread("agent-relay-" + prefix.trim()) {
+      @Override public void run() {
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            synchronized (writer) {
+              writer.write(prefix + line + '\n');
+              writer.flush();
+            }
+          }
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Stopped relaying worker output", e);
+        } finally {
+          Closeables.closeQuietly(reader);
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+}
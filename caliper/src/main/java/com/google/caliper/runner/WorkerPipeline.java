@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import com.google.caliper.options.CaliperOptions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Hides the startup latency of worker JVMs by starting the worker of the next trial while the
+ * current trial winds down (see {@link CaliperOptions#prestartWorkers()}).
+ *
+ * <p>The next worker is started once the current trial has collected all of its measurements and
+ * waits, connected to the runner, until it is released.  It is only released once the previous
+ * worker has exited, so the measurements of two trials never overlap.  Trials are only pipelined
+ * if they are run one at a time in fresh workers; pooled workers don't need to be started and
+ * parallel trials already overlap.  Workers run by agents are never pipelined.
+ */
+@Singleton final class WorkerPipeline {
+  private static final Logger logger = Logger.getLogger(WorkerPipeline.class.getName());
+
+  private final boolean enabled;
+
+  /** Starts the worker of the trial after the current one, if there is one. */
+  @GuardedBy("this")
+  @Nullable private Runnable nextWorkerStarter;
+
+  /** The worker that was most recently released. */
+  @GuardedBy("this")
+  @Nullable private Process lastWorker;
+
+  @Inject WorkerPipeline(CaliperOptions options) {
+    this.enabled = options.prestartWorkers()
+        && options.parallelism() == 1
+        && options.workerReuse() == 1
+        && options.agents().isEmpty();
+  }
+
+  /** Returns true if workers wait to be released and may be started ahead of their trial. */
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sets the task that starts the worker of the trial after the one that is about to run, or
+   * {@code null} if it is the last trial.
+   */
+  synchronized void setNextWorkerStarter(@Nullable Runnable starter) {
+    this.nextWorkerStarter = starter;
+  }
+
+  /**
+   * Called once the current trial has all of its measurements and is only waiting for its worker to
+   * exit.  Starts the worker of the next trial in the background.
+   */
+  void currentTrialDoneCollecting() {
+    final Runnable starter;
+    synchronized (this) {
+      starter = nextWorkerStarter;
+      nextWorkerStarter = null;
+    }
+    if (starter == null) {
+      return;
+    }
+    Thread thread = new Thread("worker-prestarter") {
+      @Override public void run() {
+        try {
+          starter.run();
+        } catch (RuntimeException e) {
+          // the worker will just be started when its trial runs
+          logger.log(Level.WARNING, "Could not start the worker of the next trial early", e);
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Waits for the previously released worker to exit and then records {@code worker} as the one
+   * that is about to be released.
+   */
+  void awaitTurn(Process worker) throws InterruptedException {
+    Process previous;
+    synchronized (this) {
+      previous = lastWorker;
+      lastWorker = worker;
+    }
+    if (previous != null) {
+      previous.waitFor();
+    }
+  }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.caliper.options.CaliperOptions;
+import com.google.caliper.runner.ServerSocketService.OpenedSocket;
+import com.google.caliper.worker.PooledWorkerMain;
+import com.google.caliper.worker.WorkerMain;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A pool of long-lived worker JVMs that each run several trials, one after another (see
+ * {@link PooledWorkerMain}).
+ *
+ * <p>Workers are keyed by the JVM command line that would have been used to start a fresh worker
+ * for the trial, so a trial only ever runs in a JVM that was started with exactly the same VM,
+ * options and CPU affinity.  Each worker is retired once it has run
+ * {@link CaliperOptions#workerReuse()} trials.
+ *
+ * <p>The worker prints a line on both of its output streams once a trial is complete, so that the
+ * runner knows that it has seen all of the output of the trial.  The line ends with a nonce that
+ * the runner sends along with the trial, so that no output of the benchmark can be mistaken for it.
+ */
+@Singleton final class WorkerPool extends AbstractIdleService {
+  private static final Logger logger = Logger.getLogger(WorkerPool.class.getName());
+
+  /** The size of the buffer between a pooled worker's output and the trial that is reading it. */
+  private static final int PIPE_SIZE = 64 * 1024;
+
+  private final int trialsPerWorker;
+  private final ServerSocketService serverSocketService;
+  private final ShutdownHookRegistrar shutdownHookRegistrar;
+
+  @GuardedBy("this")
+  private final ListMultimap<ImmutableList<String>, PooledWorker> idleWorkers =
+      ArrayListMultimap.create();
+
+  @GuardedBy("this")
+  private final Set<PooledWorker> liveWorkers = Sets.newHashSet();
+
+  @Inject WorkerPool(CaliperOptions options,
+      ServerSocketService serverSocketService,
+      ShutdownHookRegistrar shutdownHookRegistrar) {
+    // agents always start a fresh worker
+    this(options.agents().isEmpty() ? options.workerReuse() : 1, serverSocketService,
+        shutdownHookRegistrar);
+  }
+
+  @VisibleForTesting WorkerPool(int trialsPerWorker,
+      ServerSocketService serverSocketService,
+      ShutdownHookRegistrar shutdownHookRegistrar) {
+    this.trialsPerWorker = trialsPerWorker;
+    this.serverSocketService = serverSocketService;
+    this.shutdownHookRegistrar = shutdownHookRegistrar;
+  }
+
+  /** Returns true if workers should be reused rather than started for each trial. */
+  boolean isEnabled() {
+    return trialsPerWorker > 1;
+  }
+
+  /**
+   * Runs the trial that would otherwise have been run by starting a process with the given worker
+   * command in a pooled worker.  The returned process represents just that trial: its output is
+   * the output of the worker while the trial runs and it exits once the trial is complete.
+   *
+   * <p>The command must end with the main class, normally {@link WorkerMain}, and its only
+   * argument.  Pooled workers only run trials with the main class that they were started for.
+   */
+  Process runTrial(List<String> workerCommand) throws IOException {
+    checkState(isRunning(), "Cannot run trials in a %s pool", state());
+    int size = workerCommand.size();
+    checkArgument(size > 2, "Not a worker command: %s", workerCommand);
+    // the JVM's command line up to and including the main class
+    ImmutableList<String> jvmCommand = ImmutableList.copyOf(workerCommand.subList(0, size - 1));
+    PooledWorker worker;
+    synchronized (this) {
+      List<PooledWorker> candidates = idleWorkers.get(jvmCommand);
+      worker = candidates.isEmpty() ? null : candidates.remove(candidates.size() - 1);
+    }
+    if (worker == null) {
+      worker = startWorker(jvmCommand);
+    }
+    return worker.runTrial(Iterables.getLast(workerCommand));
+  }
+
+  private PooledWorker startWorker(ImmutableList<String> jvmCommand) throws IOException {
+    UUID workerId = UUID.randomUUID();
+    ListenableFuture<OpenedSocket> control = serverSocketService.getConnection(workerId);
+    List<String> command = Lists.newArrayList(jvmCommand.subList(0, jvmCommand.size() - 1));
+    command.add(PooledWorkerMain.class.getName());
+    command.add(Integer.toString(serverSocketService.getPort()));
+    command.add(workerId.toString());
+    command.add(Iterables.getLast(jvmCommand));
+    logger.fine(String.format("Starting pooled worker %s: %s", workerId,
+        Joiner.on(' ').join(command)));
+    Process process = new ProcessBuilder(command).redirectErrorStream(false).start();
+    PooledWorker worker = new PooledWorker(jvmCommand, workerId, process, control);
+    synchronized (this) {
+      liveWorkers.add(worker);
+    }
+    worker.start();
+    return worker;
+  }
+
+  /** Called by a worker that has successfully finished a trial. */
+  private void release(PooledWorker worker) {
+    synchronized (this) {
+      if (isRunning() && worker.trialsRun < trialsPerWorker) {
+        idleWorkers.put(worker.jvmCommand, worker);
+        return;
+      }
+    }
+    worker.retire();
+  }
+
+  /** Called by a worker whose process has exited. */
+  private synchronized void remove(PooledWorker worker) {
+    liveWorkers.remove(worker);
+    idleWorkers.remove(worker.jvmCommand, worker);
+  }
+
+  /** Returns the number of worker JVMs that haven't exited yet. */
+  @VisibleForTesting synchronized int liveWorkers() {
+    return liveWorkers.size();
+  }
+
+  @Override protected void startUp() {}
+
+  @Override protected void shutDown() {
+    ImmutableList<PooledWorker> workers;
+    synchronized (this) {
+      workers = ImmutableList.copyOf(liveWorkers);
+      idleWorkers.clear();
+    }
+    for (PooledWorker worker : workers) {
+      worker.retire();
+    }
+  }
+
+  /** Which of the output streams of a worker a line was read from. */
+  private enum OutputStreamType { STDOUT, STDERR }
+
+  /**
+   * A single worker JVM.  The output of the JVM is pumped into the {@link TrialProcess} that it is
+   * currently running, if any.
+   */
+  private final class PooledWorker {
+    final ImmutableList<String> jvmCommand;
+    final UUID workerId;
+    final Process process;
+    final ListenableFuture<OpenedSocket> control;
+    final Thread shutdownHook;
+
+    /**
+     * Everything that the JVM printed to stdout before {@link PooledWorkerMain} started (e.g. the
+     * output of {@code -XX:+PrintFlagsFinal}).  This is replayed to every trial since the runner
+     * expects to see it for each worker.
+     */
+    @GuardedBy("this") final StringBuilder startupOutput = new StringBuilder();
+    @GuardedBy("this") boolean started;
+    @GuardedBy("this") TrialProcess currentTrial;
+    @GuardedBy("this") int openOutputStreams = 2;
+    /** Only modified while the worker is running a trial, so it is never read concurrently. */
+    int trialsRun;
+
+    PooledWorker(ImmutableList<String> jvmCommand, UUID workerId, final Process process,
+        ListenableFuture<OpenedSocket> control) {
+      this.jvmCommand = jvmCommand;
+      this.workerId = workerId;
+      this.process = process;
+      this.control = control;
+      this.shutdownHook = new Thread("pooled-worker-shutdown-hook-" + workerId) {
+        @Override public void run() {
+          process.destroy();
+        }
+      };
+    }
+
+    void start() {
+      shutdownHookRegistrar.addShutdownHook(shutdownHook);
+      startPump(OutputStreamType.STDOUT, process.getInputStream());
+      startPump(OutputStreamType.STDERR, process.getErrorStream());
+    }
+
+    private void startPump(final OutputStreamType type, InputStream stream) {
+      // use the default charset because worker streams will use the default for output
+      final BufferedReader reader =
+          new BufferedReader(new InputStreamReader(stream, Charset.defaultCharset()));
+      Thread pump = new Thread("pooled-worker-" + type.name().toLowerCase() + "-" + workerId) {
+        @Override public void run() {
+          try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              onLine(type, line);
+            }
+          } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to read from pooled worker " + workerId, e);
+          } finally {
+            onEndOfStream(type);
+          }
+        }
+      };
+      pump.setDaemon(true);
+      pump.start();
+    }
+
+    Process runTrial(final String workerSpec) {
+      final TrialProcess trial;
+      boolean exited;
+      synchronized (this) {
+        checkState(currentTrial == null, "Worker %s is already running a trial", workerId);
+        trial = new TrialProcess(started ? startupOutput.toString() : "",
+            UUID.randomUUID().toString());
+        exited = openOutputStreams == 0;
+        if (!exited) {
+          currentTrial = trial;
+        }
+      }
+      if (exited) {
+        // the worker died while it was idle, so just report that to the trial
+        trial.finish(exitValueAfterDeath());
+        return trial;
+      }
+      control.addListener(new Runnable() {
+        @Override public void run() {
+          try {
+            Writer writer = control.get().writer();
+            writer.write(trial.nonce);
+            writer.write(' ');
+            writer.write(workerSpec);
+            writer.write('\n');
+            writer.flush();
+          } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not send a trial to pooled worker " + workerId, e);
+            process.destroy();
+          } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Pooled worker " + workerId + " never connected",
+                e.getCause());
+            process.destroy();
+          } catch (InterruptedException e) {
+            throw new AssertionError("impossible, future is already done.");
+          }
+        }
+      }, MoreExecutors.directExecutor());
+      return trial;
+    }
+
+    private void onLine(OutputStreamType type, String line) {
+      TrialProcess trial;
+      synchronized (this) {
+        if (type == OutputStreamType.STDOUT && !started) {
+          if (line.equals(PooledWorkerMain.STARTED_LINE)) {
+            started = true;
+            return;
+          }
+          startupOutput.append(line).append('\n');
+        }
+        trial = currentTrial;
+      }
+      if (trial == null) {
+        // output between trials (e.g. from the JIT compiler) belongs to no trial
+        return;
+      }
+      if (line.equals(trial.completeLine)) {
+        if (trial.closeStream(type)) {
+          synchronized (this) {
+            currentTrial = null;
+            trialsRun++;
+          }
+          // release first so that the worker is available to whoever waits for the trial
+          release(this);
+          trial.finish(0);
+        }
+      } else {
+        trial.write(type, line);
+      }
+    }
+
+    private void onEndOfStream(OutputStreamType type) {
+      TrialProcess trial;
+      synchronized (this) {
+        openOutputStreams--;
+        if (openOutputStreams > 0) {
+          return;
+        }
+        trial = currentTrial;
+        currentTrial = null;
+      }
+      // all output has been read, so the process is exiting
+      int exitValue = exitValueAfterDeath();
+      shutdownHookRegistrar.removeShutdownHook(shutdownHook);
+      remove(this);
+      if (control.isDone()) {
+        try {
+          Closeables.close(control.get().writer(), true);
+        } catch (Exception e) {
+          // it was never opened
+        }
+      }
+      if (trial != null) {
+        trial.finish(exitValue);
+      }
+      logger.fine(String.format("Pooled worker %s exited with %d after %d trials", workerId,
+          exitValue, trialsRun));
+    }
+
+    private int exitValueAfterDeath() {
+      try {
+        return process.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+    }
+
+    /** Asks the worker to exit once it has finished its current trial (if any). */
+    void retire() {
+      if (control.isDone()) {
+        try {
+          // the worker exits when there are no more specs to read
+          control.get().writer().close();
+          return;
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Failed to retire pooled worker " + workerId, e);
+        } catch (ExecutionException e) {
+          // it never connected
+        } catch (InterruptedException e) {
+          throw new AssertionError("impossible, future is already done.");
+        }
+      }
+      process.destroy();
+    }
+
+    /**
+     * A {@link Process} that represents a single trial run by a pooled worker.  It exits when the
+     * worker has finished the trial and destroying it only kills the worker if the trial is still
+     * running.
+     */
+    private final class TrialProcess extends Process {
+      final PipedOutputStream stdoutSink = new PipedOutputStream();
+      final PipedOutputStream stderrSink = new PipedOutputStream();
+      final InputStream stdout;
+      final InputStream stderr;
+      final CountDownLatch done = new CountDownLatch(1);
+      /** Sent to the worker along with the trial. */
+      final String nonce;
+      /** Printed by the worker on both output streams once the trial is complete. */
+      final String completeLine;
+      @GuardedBy("this") final Set<OutputStreamType> openStreams =
+          EnumSet.allOf(OutputStreamType.class);
+      volatile int exitValue;
+
+      TrialProcess(String replayedOutput, String nonce) {
+        this.nonce = nonce;
+        this.completeLine = PooledWorkerMain.trialCompleteLine(nonce);
+        try {
+          this.stdout = new SequenceInputStream(
+              new ByteArrayInputStream(replayedOutput.getBytes(Charset.defaultCharset())),
+              new PipedInputStream(stdoutSink, PIPE_SIZE));
+          this.stderr = new PipedInputStream(stderrSink, PIPE_SIZE);
+        } catch (IOException e) {
+          throw new AssertionError("unconnected pipes cannot fail to connect");
+        }
+      }
+
+      void write(OutputStreamType type, String line) {
+        try {
+          OutputStream sink = (type == OutputStreamType.STDOUT) ? stdoutSink : stderrSink;
+          sink.write((line + '\n').getBytes(Charset.defaultCharset()));
+          // wakes the reader immediately rather than when it next polls the pipe, which would
+          // reorder the output relative to the messages on the socket
+          sink.flush();
+        } catch (IOException e) {
+          // nobody is reading the output of this trial anymore
+          logger.log(Level.FINEST, "Dropped output from pooled worker " + workerId, e);
+        }
+      }
+
+      /** Closes one output stream of this trial and returns true if it was the last one open. */
+      synchronized boolean closeStream(OutputStreamType type) {
+        if (!openStreams.remove(type)) {
+          return false;
+        }
+        closeQuietly(type == OutputStreamType.STDOUT ? stdoutSink : stderrSink);
+        return openStreams.isEmpty();
+      }
+
+      void finish(int exitValue) {
+        synchronized (this) {
+          closeQuietly(stdoutSink);
+          closeQuietly(stderrSink);
+          openStreams.clear();
+        }
+        this.exitValue = exitValue;
+        done.countDown();
+      }
+
+      private void closeQuietly(OutputStream stream) {
+        try {
+          Closeables.close(stream, true);
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      @Override public OutputStream getOutputStream() {
+        // trials are sent to the worker over its control connection
+        return ByteStreams.nullOutputStream();
+      }
+
+      @Override public InputStream getInputStream() {
+        return stdout;
+      }
+
+      @Override public InputStream getErrorStream() {
+        return stderr;
+      }
+
+      @Override public int waitFor() throws InterruptedException {
+        done.await();
+        return exitValue;
+      }
+
+      @Override public int exitValue() {
+        if (done.getCount() > 0) {
+          throw new IllegalThreadStateException("trial has not completed");
+        }
+        return exitValue;
+      }
+
+      @Override public void destroy() {
+        if (done.getCount() > 0) {
+          process.destroy();
+        }
+      }
+    }
+  }
+}
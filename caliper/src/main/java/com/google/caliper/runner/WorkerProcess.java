@@ -16,30 +16,42 @@
 
 package com.google.caliper.runner;
 
+import static com.google.common.base.Preconditions.checkState;
 import static java.lang.Thread.currentThread;
 
+import com.google.caliper.bridge.MessageEncoding;
+import com.google.caliper.bridge.SampleBuffer;
 import com.google.caliper.bridge.WorkerSpec;
 import com.google.caliper.model.BenchmarkSpec;
 import com.google.caliper.runner.Instrument.Instrumentation;
 import com.google.caliper.runner.ServerSocketService.OpenedSocket;
+import com.google.caliper.worker.Worker;
 import com.google.caliper.worker.WorkerMain;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
@@ -50,29 +62,56 @@ import javax.annotation.concurrent.GuardedBy;
  * about its behavior, including but not limited to:
  *
  * <ul>
- *   <li>The worker will connect back to us over a socket connection and send us UTF-8 json
- *       messages in a line oriented protocol.
+ *   <li>The worker will connect back to us over a socket connection, announce itself with a
+ *       UTF-8 json line and then send us messages in the {@link MessageEncoding} that it was asked
+ *       to use.
  *   <li>TODO(lukes,gak): This is probably as good a place as any to specify the entire protocol.
  * </ul>
  */
 @TrialScoped final class WorkerProcess {
   private static final Logger logger = Logger.getLogger(WorkerProcess.class.getName());
 
+  /** The amount of output that a worker that was started ahead of its trial can write. */
+  private static final int PRESTART_BUFFER_SIZE = 1024 * 1024;
+
   @GuardedBy("this")
   private Process worker;
   private final ProcessBuilder workerBuilder;
   private final ShutdownHookRegistrar shutdownHookRegistrar;
   private final ListenableFuture<OpenedSocket> openedSocket;
   private final UUID trialId;
+  @Nullable private final WorkerPool workerPool;
+  @Nullable private final WorkerPipeline workerPipeline;
+  @Nullable private final RemoteAgent agent;
+  @Nullable private final AgentRequest agentRequest;
+  @Nullable private final File sampleBufferFile;
+  @Nullable private final SampleBuffer sampleBuffer;
+
+  @GuardedBy("this")
+  private boolean released;
 
   @VisibleForTesting WorkerProcess(ProcessBuilder workerBuilder,
       UUID trialId,
       ListenableFuture<OpenedSocket> openedSocket,
       ShutdownHookRegistrar shutdownHookRegistrar) {
+    this(workerBuilder, trialId, openedSocket, shutdownHookRegistrar, null);
+  }
+
+  @VisibleForTesting WorkerProcess(ProcessBuilder workerBuilder,
+      UUID trialId,
+      ListenableFuture<OpenedSocket> openedSocket,
+      ShutdownHookRegistrar shutdownHookRegistrar,
+      @Nullable WorkerPipeline workerPipeline) {
     this.trialId = trialId;
     this.workerBuilder = workerBuilder;
     this.openedSocket = openedSocket;
     this.shutdownHookRegistrar = shutdownHookRegistrar;
+    this.workerPool = null;
+    this.workerPipeline = workerPipeline;
+    this.agent = null;
+    this.agentRequest = null;
+    this.sampleBufferFile = null;
+    this.sampleBuffer = null;
   }
 
   @Inject WorkerProcess(@TrialId UUID trialId,
@@ -81,65 +120,213 @@ import javax.annotation.concurrent.GuardedBy;
       BenchmarkSpec benchmarkSpec,
       @LocalPort int localPort,
       Gson gson,
+      MessageEncoding encoding,
       BenchmarkClass benchmarkClass,
-      ShutdownHookRegistrar shutdownHookRegistrar) {
+      WorkerSlot workerSlot,
+      ShutdownHookRegistrar shutdownHookRegistrar,
+      WorkerPool workerPool,
+      WorkerPipeline workerPipeline,
+      ClassDataArchives classDataArchives) throws IOException {
     this.trialId = trialId;
+    this.agent = workerSlot.agent().orNull();
+    int sampleBufferCapacity = experiment.instrumentation().sampleBufferCapacity();
+    // the threaded worker doesn't sample, since its threads would all write to the buffer
+    if (sampleBufferCapacity > 0 && agent == null
+        && !runsThreaded(experiment.instrumentation(), benchmarkSpec)) {
+      this.sampleBufferFile = File.createTempFile("caliper-samples-", ".buf");
+      this.sampleBuffer = SampleBuffer.create(sampleBufferFile, sampleBufferCapacity);
+    } else {
+      this.sampleBufferFile = null;
+      this.sampleBuffer = null;
+    }
+    // an archive on this host is of no use to a worker on the agent's host
     this.workerBuilder = buildProcess(trialId, experiment, benchmarkSpec, localPort, gson,
-        benchmarkClass);
+        encoding, benchmarkClass, workerSlot, workerPipeline.isEnabled(),
+        agent == null ? classDataArchives : null, sampleBufferFile);
+    // the agent builds the command itself, from its own configuration of the VM
+    this.agentRequest = (agent == null)
+        ? null
+        : new AgentRequest(experiment.vm().name, trialVmOptions(experiment, benchmarkClass),
+            workerSpec(trialId, experiment, benchmarkSpec, localPort, encoding, null));
     this.openedSocket = openedSocket;
     this.shutdownHookRegistrar = shutdownHookRegistrar;
+    this.workerPool = workerPool;
+    this.workerPipeline = workerPipeline;
   }
 
   ListenableFuture<OpenedSocket> socketFuture() {
     return openedSocket;
   }
 
+  /**
+   * Returns the buffer that the worker writes its samples to, or null if it doesn't have one,
+   * either because it only reports measurements or because it runs on an agent's host.
+   */
+  @Nullable SampleBuffer sampleBuffer() {
+    return sampleBuffer;
+  }
+
+  /** Deletes the file of the sample buffer, once the worker is done with it. */
+  void deleteSampleBuffer() {
+    if (sampleBufferFile != null && !sampleBufferFile.delete()) {
+      logger.fine("Could not delete the sample buffer " + sampleBufferFile);
+    }
+  }
+
+  /** Returns true if the worker maps its classes from a {@linkplain ClassDataArchives archive}. */
+  boolean usesClassDataArchive() {
+    for (String arg : workerBuilder.command()) {
+      if (arg.startsWith(ClassDataArchives.ARCHIVE_OPTION)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Starts the worker ahead of its trial.  It connects to the runner and then waits until
+   * {@link #startWorker} releases it.
+   */
+  synchronized void prestart() throws IOException {
+    checkState(awaitsRelease(), "Workers are not pipelined");
+    if (worker == null) {
+      logger.fine(String.format("Starting the worker of trial %s ahead of the trial", trialId));
+      worker = launch(true);
+    }
+  }
+
   /**
    * Returns a {@link Process} representing this worker.  The process will be started if it hasn't
-   * already.
+   * already.  If workers are being reused the process only represents this trial as run by one of
+   * the pooled workers.  If the worker runs on an agent's host the process relays its output.
    */
   synchronized Process startWorker() throws IOException {
-    if (worker == null) {
-      final Process delegate = workerBuilder.start();
-      final Thread shutdownHook = new Thread("worker-shutdown-hook-" + trialId) {
-        @Override public void run() {
-          delegate.destroy();
-        }
-      };
-      shutdownHookRegistrar.addShutdownHook(shutdownHook);
-      worker = new Process() {
-        @Override public OutputStream getOutputStream() {
-          return delegate.getOutputStream();
-        }
+    if (worker == null && agent != null) {
+      worker = agent.startWorker(agentRequest);
+    } else if (worker == null && workerPool != null && workerPool.isEnabled()) {
+      worker = workerPool.runTrial(workerBuilder.command());
+    } else if (worker == null) {
+      worker = launch(false);
+    }
+    if (awaitsRelease() && !released) {
+      release();
+    }
+    return worker;
+  }
 
-        @Override public InputStream getInputStream() {
-          return delegate.getInputStream();
-        }
+  private boolean awaitsRelease() {
+    return workerPipeline != null && workerPipeline.isEnabled();
+  }
 
-        @Override public InputStream getErrorStream() {
-          return delegate.getErrorStream();
-        }
+  /** Lets a worker that is waiting to be released run its trial once the previous one exited. */
+  @GuardedBy("this")
+  private void release() throws IOException {
+    released = true;
+    try {
+      workerPipeline.awaitTurn(worker);
+      logger.fine(String.format("Releasing the worker of trial %s", trialId));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for the previous worker to exit");
+    }
+    OutputStream stdin = worker.getOutputStream();
+    try {
+      stdin.write('\n');
+      stdin.flush();
+      stdin.close();
+    } catch (IOException e) {
+      // the worker has already died; the trial will fail when its output ends
+      logger.log(Level.FINE, "Could not release worker " + trialId, e);
+    }
+  }
 
-        @Override public int waitFor() throws InterruptedException {
-          int waitFor = delegate.waitFor();
-          shutdownHookRegistrar.removeShutdownHook(shutdownHook);
-          return waitFor;
-        }
+  /**
+   * Starts the worker process.  If it was started ahead of its trial its output is read into a
+   * buffer right away, since it may block writing it (e.g. {@code -XX:+PrintFlagsFinal}) before
+   * the trial starts reading.
+   */
+  @GuardedBy("this")
+  private Process launch(boolean prestarted) throws IOException {
+    final Process delegate = workerBuilder.start();
+    final Thread shutdownHook = new Thread("worker-shutdown-hook-" + trialId) {
+      @Override public void run() {
+        delegate.destroy();
+      }
+    };
+    shutdownHookRegistrar.addShutdownHook(shutdownHook);
+    final InputStream stdout = prestarted
+        ? buffer(delegate.getInputStream(), "worker-stdout-buffer-" + trialId)
+        : delegate.getInputStream();
+    final InputStream stderr = prestarted
+        ? buffer(delegate.getErrorStream(), "worker-stderr-buffer-" + trialId)
+        : delegate.getErrorStream();
+    return new Process() {
+      @Override public OutputStream getOutputStream() {
+        return delegate.getOutputStream();
+      }
 
-        @Override public int exitValue() {
-          int exitValue = delegate.exitValue();
-          // if it hasn't thrown, the process is done
-          shutdownHookRegistrar.removeShutdownHook(shutdownHook);
-          return exitValue;
-        }
+      @Override public InputStream getInputStream() {
+        return stdout;
+      }
 
-        @Override public void destroy() {
-          delegate.destroy();
-          shutdownHookRegistrar.removeShutdownHook(shutdownHook);
-        }
-      };
+      @Override public InputStream getErrorStream() {
+        return stderr;
+      }
+
+      @Override public int waitFor() throws InterruptedException {
+        int waitFor = delegate.waitFor();
+        shutdownHookRegistrar.removeShutdownHook(shutdownHook);
+        return waitFor;
+      }
+
+      @Override public int exitValue() {
+        int exitValue = delegate.exitValue();
+        // if it hasn't thrown, the process is done
+        shutdownHookRegistrar.removeShutdownHook(shutdownHook);
+        return exitValue;
+      }
+
+      @Override public void destroy() {
+        delegate.destroy();
+        shutdownHookRegistrar.removeShutdownHook(shutdownHook);
+      }
+    };
+  }
+
+  /** Returns a stream that is continuously filled from {@code stream} by a new thread. */
+  private static InputStream buffer(final InputStream stream, String threadName) {
+    final PipedOutputStream sink = new PipedOutputStream();
+    InputStream source;
+    try {
+      source = new PipedInputStream(sink, PRESTART_BUFFER_SIZE);
+    } catch (IOException e) {
+      throw new AssertionError("unconnected pipes cannot fail to connect");
     }
-    return worker;
+    Thread pump = new Thread(threadName) {
+      @Override public void run() {
+        byte[] bytes = new byte[8192];
+        try {
+          int read;
+          while ((read = stream.read(bytes)) != -1) {
+            sink.write(bytes, 0, read);
+            // wakes the reader immediately rather than when it next polls the pipe
+            sink.flush();
+          }
+        } catch (IOException e) {
+          // the worker exited or nobody is reading its output anymore
+          logger.log(Level.FINEST, "Stopped buffering worker output", e);
+        } finally {
+          try {
+            Closeables.close(sink, true);
+          } catch (IOException impossible) {
+            throw new AssertionError(impossible);
+          }
+        }
+      }
+    };
+    pump.setDaemon(true);
+    pump.start();
+    return source;
   }
 
   @VisibleForTesting static ProcessBuilder buildProcess(
@@ -148,37 +335,44 @@ import javax.annotation.concurrent.GuardedBy;
       BenchmarkSpec benchmarkSpec,
       int localPort,
       Gson gson,
-      BenchmarkClass benchmarkClass) {
+      MessageEncoding encoding,
+      BenchmarkClass benchmarkClass,
+      WorkerSlot workerSlot,
+      boolean awaitRelease,
+      @Nullable ClassDataArchives classDataArchives,
+      @Nullable File sampleBufferFile) {
     // TODO(lukes): it would be nice to split this method into a few smaller more targeted methods
-    Instrumentation instrumentation = experiment.instrumentation();
-    Instrument instrument = instrumentation.instrument();
-    ImmutableList.Builder<String> parameterClassNames = ImmutableList.builder();
-    for (Class<?> parameterType : instrumentation.benchmarkMethod.getParameterTypes()) {
-      parameterClassNames.add(parameterType.getName());
-    }
-    WorkerSpec request = new WorkerSpec(
-        trialId,
-        instrumentation.workerClass().getName(),
-        instrumentation.workerOptions(),
-        benchmarkSpec,
-        parameterClassNames.build(),
-        localPort);
+    WorkerSpec request = workerSpec(trialId, experiment, benchmarkSpec, localPort, encoding,
+        sampleBufferFile);
 
     ProcessBuilder processBuilder = new ProcessBuilder().redirectErrorStream(false);
 
     List<String> args = processBuilder.command();
 
-    args.addAll(getJvmArgs(experiment.vm(), benchmarkClass));
+    if (!workerSlot.cpus().isEmpty()) {
+      // confine the worker (and all of its threads) to the CPUs of its slot
+      Collections.addAll(args, "taskset", "-c", workerSlot.cpuList());
+      logger.fine(String.format("Worker slot %d CPUs: %s", workerSlot.index(),
+          workerSlot.cpuList()));
+    }
 
-    Iterable<String> instrumentJvmOptions = instrument.getExtraCommandLineArgs();
-    Iterables.addAll(args, instrumentJvmOptions);
-    logger.fine(String.format("Instrument(%s) Java args: %s", instrument.getClass().getName(),
-        instrumentJvmOptions));
+    // the archive doesn't depend on the CPU affinity
+    ImmutableList<String> jvmArgs = workerJvmArgs(experiment, benchmarkClass);
+    args.addAll(jvmArgs);
 
-    // last to ensure that they're always applied
+    if (classDataArchives != null) {
+      ImmutableList<String> archiveOptions = classDataArchives.jvmOptions(jvmArgs);
+      args.addAll(archiveOptions);
+      logger.fine(String.format("Class data archive Java args: %s", archiveOptions));
+    }
+
+    // last to ensure that it's always applied; garbage collection and compilation are reported by
+    // the worker itself (see VmEventMonitor)
     args.add("-XX:+PrintFlagsFinal");
-    args.add("-XX:+PrintCompilation");
-    args.add("-XX:+PrintGC");
+
+    if (awaitRelease) {
+      args.add("-D" + WorkerMain.AWAIT_RELEASE_PROPERTY + "=true");
+    }
 
     args.add(WorkerMain.class.getName());
     args.add(gson.toJson(request));
@@ -187,6 +381,77 @@ import javax.annotation.concurrent.GuardedBy;
     return processBuilder;
   }
 
+  /** Returns the request that the worker of a trial of {@code experiment} is started with. */
+  static WorkerSpec workerSpec(
+      UUID trialId,
+      Experiment experiment,
+      BenchmarkSpec benchmarkSpec,
+      int localPort,
+      MessageEncoding encoding,
+      @Nullable File sampleBufferFile) {
+    Instrumentation instrumentation = experiment.instrumentation();
+    ImmutableList.Builder<String> parameterClassNames = ImmutableList.builder();
+    for (Class<?> parameterType : instrumentation.benchmarkMethod.getParameterTypes()) {
+      parameterClassNames.add(parameterType.getName());
+    }
+    Class<? extends Worker> workerClass = instrumentation.workerClass();
+    ImmutableMap<String, String> workerOptions = instrumentation.workerOptions();
+    // once a benchmark declares its thread counts, all of its scenarios record the number of
+    // threads (see TrialModule) and run in the threaded worker, even those on a single thread, so
+    // that its scenarios are all measured the same way
+    if (runsThreaded(instrumentation, benchmarkSpec)) {
+      workerClass = instrumentation.threadedWorkerClass();
+      workerOptions = ImmutableMap.<String, String>builder()
+          .putAll(workerOptions)
+          .put("threads", Integer.toString(experiment.threads()))
+          .build();
+    }
+    return new WorkerSpec(
+        trialId,
+        workerClass.getName(),
+        workerOptions,
+        benchmarkSpec,
+        parameterClassNames.build(),
+        "127.0.0.1",
+        localPort,
+        encoding,
+        sampleBufferFile == null ? null : sampleBufferFile.getAbsolutePath());
+  }
+
+  /** Returns true if the trial of {@code benchmarkSpec} runs in the threaded worker. */
+  static boolean runsThreaded(Instrumentation instrumentation, BenchmarkSpec benchmarkSpec) {
+    return instrumentation.threadedWorkerClass() != null
+        && benchmarkSpec.parameters().containsKey(Experiment.THREADS_PARAMETER);
+  }
+
+  /**
+   * Returns the java executable of the worker of a trial of {@code experiment} and all of its
+   * options, up to those that depend on the trial.
+   */
+  static ImmutableList<String> workerJvmArgs(Experiment experiment,
+      BenchmarkClass benchmarkClass) {
+    Instrument instrument = experiment.instrumentation().instrument();
+    Iterable<String> instrumentJvmOptions = instrument.getExtraCommandLineArgs();
+    logger.fine(String.format("Instrument(%s) Java args: %s", instrument.getClass().getName(),
+        instrumentJvmOptions));
+    return ImmutableList.<String>builder()
+        .addAll(getJvmArgs(experiment.vm(), benchmarkClass))
+        .addAll(instrumentJvmOptions)
+        .build();
+  }
+
+  /**
+   * Returns the options that the benchmark and the instrument add to those of the VM of a trial of
+   * {@code experiment}.
+   */
+  static ImmutableList<String> trialVmOptions(Experiment experiment,
+      BenchmarkClass benchmarkClass) {
+    return ImmutableList.<String>builder()
+        .addAll(benchmarkClass.vmOptions())
+        .addAll(experiment.instrumentation().instrument().getExtraCommandLineArgs())
+        .build();
+  }
+
   @VisibleForTesting static List<String> getJvmArgs(VirtualMachine vm,
       BenchmarkClass benchmarkClass) {
     List<String> args = Lists.newArrayList();
@@ -209,7 +474,7 @@ import javax.annotation.concurrent.GuardedBy;
     return args;
   }
 
-  private static String getClassPath() {
+  static String getClassPath() {
     // Use the effective class path in case this is being invoked in an isolated class loader
     String classpath =
         EffectiveClassPath.getClassPathForClassLoader(currentThread().getContextClassLoader());
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One of the concurrent positions that a worker can run in.  When trials are run in parallel each
+ * slot is confined to a disjoint set of CPUs so that concurrently running workers do not compete
+ * for the same cores.  When trials are distributed each slot is a {@link RemoteAgent} that runs
+ * workers on its own host.
+ */
+final class WorkerSlot {
+  /** The number of CPUs given to each slot when the parallelism is derived from the host. */
+  static final int DEFAULT_CPUS_PER_SLOT = 2;
+
+  /** The slot used when trials are run one at a time.  It is not confined to any CPUs. */
+  static final WorkerSlot SERIAL = new WorkerSlot(0, ImmutableList.<Integer>of());
+
+  private static final File PROCESS_STATUS = new File("/proc/self/status");
+  private static final String CPUS_ALLOWED_LIST = "Cpus_allowed_list:";
+
+  private final int index;
+  private final ImmutableList<Integer> cpus;
+  private final Optional<RemoteAgent> agent;
+
+  WorkerSlot(int index, ImmutableList<Integer> cpus) {
+    this(index, cpus, Optional.<RemoteAgent>absent());
+  }
+
+  /** A slot that runs its workers on the host of the given agent. */
+  WorkerSlot(int index, RemoteAgent agent) {
+    this(index, ImmutableList.<Integer>of(), Optional.of(agent));
+  }
+
+  private WorkerSlot(int index, ImmutableList<Integer> cpus, Optional<RemoteAgent> agent) {
+    checkArgument(index >= 0);
+    this.index = index;
+    this.cpus = checkNotNull(cpus);
+    this.agent = agent;
+  }
+
+  int index() {
+    return index;
+  }
+
+  /** The CPUs that this slot is confined to, or an empty list if it may use any CPU. */
+  ImmutableList<Integer> cpus() {
+    return cpus;
+  }
+
+  /** The agent that runs the workers of this slot, or absent if they run on this host. */
+  Optional<RemoteAgent> agent() {
+    return agent;
+  }
+
+  /** Returns the CPUs in the list format understood by {@code taskset -c}. */
+  String cpuList() {
+    return Joiner.on(',').join(cpus);
+  }
+
+  /**
+   * Partitions the {@code availableCpus} into {@code slots} disjoint sets of consecutive entries.
+   * Any CPUs left over by the integer division are left unassigned to be used by the runner.
+   */
+  static ImmutableList<WorkerSlot> partition(int slots, ImmutableList<Integer> availableCpus,
+      boolean confineToCpus) {
+    checkArgument(slots > 0);
+    checkArgument(availableCpus.size() >= slots, "cannot partition %s processors into %s slots",
+        availableCpus.size(), slots);
+    if (slots == 1) {
+      return ImmutableList.of(SERIAL);
+    }
+    int cpusPerSlot = availableCpus.size() / slots;
+    ImmutableList.Builder<WorkerSlot> builder = ImmutableList.builder();
+    for (int i = 0; i < slots; i++) {
+      ImmutableList<Integer> cpus = confineToCpus
+          ? availableCpus.subList(i * cpusPerSlot, (i + 1) * cpusPerSlot)
+          : ImmutableList.<Integer>of();
+      builder.add(new WorkerSlot(i, cpus));
+    }
+    return builder.build();
+  }
+
+  /** Returns the CPUs numbered {@code 0} to {@code count - 1}. */
+  static ImmutableList<Integer> firstCpus(int count) {
+    return ContiguousSet.create(Range.closedOpen(0, count), DiscreteDomain.integers()).asList();
+  }
+
+  /**
+   * Returns the CPUs that this process is allowed to run on, or absent if they can't be read.
+   * Under a cpuset or {@code taskset} they need not start at {@code 0}, e.g. {@code 4-7}.
+   */
+  static Optional<ImmutableList<Integer>> allowedCpus() {
+    try {
+      for (String line : Files.readLines(PROCESS_STATUS, Charsets.UTF_8)) {
+        if (line.startsWith(CPUS_ALLOWED_LIST)) {
+          return Optional.of(parseCpuList(line.substring(CPUS_ALLOWED_LIST.length())));
+        }
+      }
+    } catch (IOException e) {
+      // fall through
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    return Optional.absent();
+  }
+
+  /**
+   * Parses a CPU list in the format of {@code Cpus_allowed_list} and {@code taskset -c}, e.g.
+   * {@code 0-3,8,10-11}.
+   */
+  @VisibleForTesting static ImmutableList<Integer> parseCpuList(String cpuList) {
+    ImmutableList.Builder<Integer> cpus = ImmutableList.builder();
+    for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(cpuList)) {
+      int dash = entry.indexOf('-');
+      if (dash < 0) {
+        cpus.add(Integer.parseInt(entry));
+      } else {
+        cpus.addAll(ContiguousSet.create(
+            Range.closed(Integer.parseInt(entry.substring(0, dash)),
+                Integer.parseInt(entry.substring(dash + 1))),
+            DiscreteDomain.integers()));
+      }
+    }
+    return cpus.build();
+  }
+
+  /**
+   * Returns true if worker processes can be confined to a set of CPUs on this host.  This
+   * requires Linux and the {@code taskset} utility on the {@code PATH}.
+   */
+  static boolean isCpuAffinitySupported(String osName) {
+    if (!"Linux".equals(osName)) {
+      return false;
+    }
+    for (String directory : Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+        .split(Strings.nullToEmpty(System.getenv("PATH")))) {
+      if (new File(directory, "taskset").canExecute()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    } else if (obj instanceof WorkerSlot) {
+      WorkerSlot that = (WorkerSlot) obj;
+      return this.index == that.index
+          && this.cpus.equals(that.cpus)
+          && this.agent.equals(that.agent);
+    } else {
+      return false;
+    }
+  }
+
+  @Override public int hashCode() {
+    return Objects.hashCode(index, cpus, agent);
+  }
+
+  @Override public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("index", index)
+        .add("cpus", cpus)
+        .add("agent", agent.orNull())
+        .toString();
+  }
+}
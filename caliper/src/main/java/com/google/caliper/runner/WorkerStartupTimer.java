@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.caliper.bridge.AbstractLogMessageVisitor;
+import com.google.caliper.bridge.StartMeasurementLogMessage;
+import com.google.caliper.bridge.VmPropertiesLogMessage;
+import com.google.common.base.Optional;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * An {@link AbstractLogMessageVisitor} that times the phases of a worker's startup, so that the
+ * effect of e.g. {@linkplain ClassDataArchives class data archives} is visible in the results.
+ *
+ * <p>The phases are:
+ * <ul>
+ *   <li>{@code launch}: until the worker process is started (this includes waiting for a previous
+ *       worker to exit)
+ *   <li>{@code connect}: until the worker JVM has booted, loaded its classes and connected
+ *   <li>{@code warmup}: until the worker starts its first measurement
+ * </ul>
+ */
+final class WorkerStartupTimer extends AbstractLogMessageVisitor {
+  static final String LAUNCH_PROPERTY = "worker.startup.launchMillis";
+  static final String CONNECT_PROPERTY = "worker.startup.connectMillis";
+  static final String WARMUP_PROPERTY = "worker.startup.warmupMillis";
+
+  private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+  private Optional<Long> launched = Optional.absent();
+  private Optional<Long> connected = Optional.absent();
+  private Optional<Long> warmedUp = Optional.absent();
+
+  /** Called right before the worker is started. */
+  void start() {
+    stopwatch.start();
+  }
+
+  /** Called once the worker process has been started. */
+  void launched() {
+    launched = Optional.of(stopwatch.elapsed(MILLISECONDS));
+  }
+
+  @Override public void visit(VmPropertiesLogMessage logMessage) {
+    // the first message that the worker sends after connecting
+    if (!connected.isPresent()) {
+      connected = Optional.of(stopwatch.elapsed(MILLISECONDS));
+    }
+  }
+
+  @Override public void visit(StartMeasurementLogMessage logMessage) {
+    if (!warmedUp.isPresent()) {
+      warmedUp = Optional.of(stopwatch.elapsed(MILLISECONDS));
+    }
+  }
+
+  /** Returns the duration of each phase that completed, in milliseconds. */
+  ImmutableMap<String, String> properties() {
+    ImmutableMap.Builder<String, String> properties = ImmutableMap.builder();
+    if (launched.isPresent()) {
+      properties.put(LAUNCH_PROPERTY, Long.toString(launched.get()));
+      if (connected.isPresent()) {
+        properties.put(CONNECT_PROPERTY, Long.toString(connected.get() - launched.get()));
+        if (warmedUp.isPresent()) {
+          properties.put(WARMUP_PROPERTY, Long.toString(warmedUp.get() - connected.get()));
+        }
+      }
+    }
+    return properties.build();
+  }
+}
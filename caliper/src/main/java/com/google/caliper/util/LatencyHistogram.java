@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A histogram of latencies, in nanoseconds, with buckets whose width grows with their value, so
+ * that it covers any latency in fixed memory with a relative error of less than 1/64.  Latencies
+ * under 128ns each have their own bucket; above that, each power of 2 is split into 64 buckets.
+ * Recording a latency only increments a count, and never allocates.
+ *
+ * <p>The {@linkplain #bucketValue value} of a bucket is the middle of the range of latencies that
+ * it counts, and the value at a percentile is the value of the bucket that holds it.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int EXACT_VALUES = 2 * SUB_BUCKETS;
+
+  /** The number of buckets; the last one holds {@link Long#MAX_VALUE}. */
+  public static final int BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+
+  /** Counts a latency; negative ones, which a timer shouldn't produce, are counted as 0. */
+  public void record(long nanos) {
+    counts[bucketOf(Math.max(0, nanos))]++;
+    count++;
+  }
+
+  /** Counts {@code count} latencies that are all in the given bucket. */
+  public void record(int bucket, long count) {
+    checkArgument(count >= 0, "count must not be negative: %s", count);
+    counts[bucket] += count;
+    this.count += count;
+  }
+
+  /**
+   * Counts the latencies in a map like the one that {@link #counts()} returns, from this or any
+   * other histogram.
+   */
+  public void recordAll(Map<Long, Long> counts) {
+    for (Entry<Long, Long> entry : counts.entrySet()) {
+      record(bucketOf(entry.getKey()), entry.getValue());
+    }
+  }
+
+  /** Returns the number of latencies that have been recorded. */
+  public long count() {
+    return count;
+  }
+
+  /** Returns the number of latencies that have been recorded in the given bucket. */
+  public long count(int bucket) {
+    return counts[bucket];
+  }
+
+  /**
+   * Returns the number of latencies in each bucket that counted any, by the {@linkplain
+   * #bucketValue value} of the bucket.  This is all there is to the histogram, and usually takes up
+   * no more than a few dozen of its thousands of buckets.
+   */
+  public ImmutableSortedMap<Long, Long> counts() {
+    ImmutableSortedMap.Builder<Long, Long> builder = ImmutableSortedMap.naturalOrder();
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      if (counts[bucket] > 0) {
+        builder.put(bucketValue(bucket), counts[bucket]);
+      }
+    }
+    return builder.build();
+  }
+
+  /** Forgets all of the latencies that have been recorded. */
+  public void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+  }
+
+  /**
+   * Returns the value of the bucket that holds the latency at the given percentile, i.e. the least
+   * latency that at least {@code percentile} percent of the latencies don't exceed.
+   */
+  public long valueAtPercentile(double percentile) {
+    checkArgument(percentile > 0 && percentile <= 100,
+        "percentile must be in (0, 100]: %s", percentile);
+    checkArgument(count > 0, "no latencies have been recorded");
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += counts[bucket];
+      if (seen >= rank) {
+        return bucketValue(bucket);
+      }
+    }
+    throw new AssertionError("the counts add up to " + count);
+  }
+
+  /** Returns the bucket that counts the given latency. */
+  public static int bucketOf(long nanos) {
+    checkArgument(nanos >= 0, "latencies must not be negative: %s", nanos);
+    if (nanos < EXACT_VALUES) {
+      return (int) nanos;
+    }
+    // the latency's top bits are a sub-bucket in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (int) (nanos >>> shift);
+  }
+
+  /** Returns the latency in the middle of those that the given bucket counts. */
+  public static long bucketValue(int bucket) {
+    checkArgument(bucket >= 0 && bucket < BUCKETS, "no such bucket: %s", bucket);
+    if (bucket < EXACT_VALUES) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return (subBucket << shift) + ((1L << shift) >>> 1);
+  }
+}
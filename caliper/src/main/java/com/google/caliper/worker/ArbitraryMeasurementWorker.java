@@ -35,6 +35,7 @@ public final class ArbitraryMeasurementWorker extends Worker {
   private final Options options;
   private final String unit;
   private final String description;
+  private final BenchmarkInvoker invoker;
 
   @Inject ArbitraryMeasurementWorker(
       @Benchmark Object benchmark, 
@@ -45,6 +46,7 @@ public final class ArbitraryMeasurementWorker extends Worker {
     ArbitraryMeasurement annotation = method.getAnnotation(ArbitraryMeasurement.class);
     this.unit = annotation.units();
     this.description = annotation.description();
+    this.invoker = BenchmarkInvoker.create(benchmark, method);
   }
 
   @Override public void preMeasure() throws Exception {
@@ -54,7 +56,7 @@ public final class ArbitraryMeasurementWorker extends Worker {
   }
   
   @Override public Iterable<Measurement> measure() throws Exception {
-    double measured = (Double) benchmarkMethod.invoke(benchmark);
+    double measured = invoker.invoke(0);
     return ImmutableSet.of(new Measurement.Builder()
         .value(Value.create(measured, unit))
         .weight(1)
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DCONST_0;
+import static org.objectweb.asm.Opcodes.DRETURN;
+import static org.objectweb.asm.Opcodes.F2D;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.I2D;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.L2D;
+import static org.objectweb.asm.Opcodes.L2I;
+import static org.objectweb.asm.Opcodes.LLOAD;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import com.google.caliper.api.Blackhole;
+import com.google.common.base.Throwables;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls a benchmark method, or a method that runs next to it such as a
+ * {@link com.google.caliper.api.BeforeRep} method, from within the timed region of a worker.
+ *
+ * <p>{@link Method#invoke} boxes the reps and the result, allocates an array for the arguments and
+ * checks them on every call, all of which is timed along with the benchmark.  Instead, the worker
+ * generates a small subclass for each method that calls it directly.  The subclass is defined in
+ * the package of the class that declares the method through {@code MethodHandles.Lookup}, so that
+ * it can call methods that aren't public.  VMs older than Java 9 don't have that, so there it is
+ * defined in the class loader of that class with {@code ClassLoader.defineClass}, called
+ * reflectively, which puts it in the same package just as well.  Private methods are called with
+ * reflection.  So is any other method whose subclass can't be defined, and a warning says so.
+ *
+ * <p>This class is only public so that the generated subclasses in other packages can extend it.
+ */
+public abstract class BenchmarkInvoker {
+  private static final Logger logger = Logger.getLogger(BenchmarkInvoker.class.getName());
+
+  /** Appended to the name of the class that declares the method, along with a number. */
+  private static final String CLASS_NAME_SUFFIX = "$$CaliperInvoker";
+
+  private static final AtomicInteger generatedClasses = new AtomicInteger();
+
+  /** Passed to methods that take one, after the reps; each invoker has its own. */
+  protected final Blackhole blackhole = new Blackhole();
+
+  protected BenchmarkInvoker() {}
+
+  /**
+   * Returns an invoker that calls {@code method} on {@code target}.  The method must either take no
+   * parameters, or take the reps as an {@code int} or a {@code long}, optionally followed by a
+   * {@link Blackhole}.
+   */
+  static BenchmarkInvoker create(Object target, Method method) {
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    checkArgument(parameterTypes.length == 0 || ((parameterTypes.length == 1
+        || (parameterTypes.length == 2 && parameterTypes[1] == Blackhole.class))
+        && (parameterTypes[0] == int.class || parameterTypes[0] == long.class)),
+        "%s must take no parameters or just the reps and a Blackhole", method);
+    if (canGenerate(method)) {
+      try {
+        return generate(target, method);
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Could not generate an invoker for " + method
+            + "; calling it reflectively, which adds to its measured time", e);
+      } catch (LinkageError e) {
+        logger.log(Level.WARNING, "Could not generate an invoker for " + method
+            + "; calling it reflectively, which adds to its measured time", e);
+      }
+    }
+    return reflective(target, method);
+  }
+
+  /**
+   * Returns an invoker that calls {@code method} on {@code target} with {@link Method#invoke}, like
+   * {@link #create} does for methods that it can't call directly.
+   */
+  static BenchmarkInvoker reflective(Object target, Method method) {
+    return new ReflectiveInvoker(target, method);
+  }
+
+  /**
+   * Calls the method, passing {@code reps} and the {@link Blackhole} if it takes them, and returns
+   * its result if it is a number, or 0.  As with {@link Method#invoke}, whatever the method throws
+   * is wrapped in an {@link InvocationTargetException}.
+   */
+  final double invoke(long reps) throws InvocationTargetException {
+    try {
+      return call(reps);
+    } catch (Throwable t) {
+      throw new InvocationTargetException(t);
+    }
+  }
+
+  /** Calls the method, and lets whatever it throws through. */
+  protected abstract double call(long reps) throws Throwable;
+
+  /** Returns true if this invoker calls the method with {@link Method#invoke}. */
+  boolean isReflective() {
+    return false;
+  }
+
+  private static boolean canGenerate(Method method) {
+    Class<?> declaringClass = method.getDeclaringClass();
+    int modifiers = method.getModifiers();
+    return !Modifier.isPrivate(modifiers)
+        && !Modifier.isStatic(modifiers)
+        && !declaringClass.isInterface()
+        && declaringClass.getClassLoader() != null;
+  }
+
+  private static BenchmarkInvoker generate(Object target, Method method) throws Exception {
+    Class<?> declaringClass = method.getDeclaringClass();
+    String owner = Type.getInternalName(declaringClass);
+    String className = owner + CLASS_NAME_SUFFIX + generatedClasses.incrementAndGet();
+    byte[] bytes = generateClass(className, method);
+    Class<?> invokerClass = LookupDefiner.isAvailable()
+        ? LookupDefiner.define(declaringClass, bytes)
+        : ClassLoaderDefiner.define(declaringClass, className.replace('/', '.'), bytes);
+    return (BenchmarkInvoker) invokerClass.getConstructor(Object.class).newInstance(target);
+  }
+
+  /**
+   * Generates a subclass with a constructor that takes the target and a {@link #call} method that
+   * calls {@code method} on it.
+   */
+  private static byte[] generateClass(String className, Method method) {
+    String superName = Type.getInternalName(BenchmarkInvoker.class);
+    String owner = Type.getInternalName(method.getDeclaringClass());
+    String targetDescriptor = Type.getDescriptor(method.getDeclaringClass());
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    classWriter.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, className, null,
+        superName, null);
+    classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "target", targetDescriptor, null, null)
+        .visitEnd();
+
+    MethodVisitor constructor = classWriter.visitMethod(
+        ACC_PUBLIC, "<init>", "(Ljava/lang/Object;)V", null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(ALOAD, 0);
+    constructor.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+    constructor.visitVarInsn(ALOAD, 0);
+    constructor.visitVarInsn(ALOAD, 1);
+    constructor.visitTypeInsn(CHECKCAST, owner);
+    constructor.visitFieldInsn(PUTFIELD, className, "target", targetDescriptor);
+    constructor.visitInsn(RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+
+    MethodVisitor call = classWriter.visitMethod(
+        ACC_PROTECTED, "call", "(J)D", null, new String[] {"java/lang/Throwable"});
+    call.visitCode();
+    call.visitVarInsn(ALOAD, 0);
+    call.visitFieldInsn(GETFIELD, className, "target", targetDescriptor);
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    if (parameterTypes.length >= 1) {
+      call.visitVarInsn(LLOAD, 1);
+      if (parameterTypes[0] == int.class) {
+        call.visitInsn(L2I);
+      }
+    }
+    if (parameterTypes.length == 2) {
+      call.visitVarInsn(ALOAD, 0);
+      call.visitFieldInsn(GETFIELD, superName, "blackhole", Type.getDescriptor(Blackhole.class));
+    }
+    call.visitMethodInsn(INVOKEVIRTUAL, owner, method.getName(),
+        Type.getMethodDescriptor(method), false);
+    switch (Type.getReturnType(method).getSort()) {
+      case Type.VOID:
+        call.visitInsn(DCONST_0);
+        break;
+      case Type.BYTE:
+      case Type.SHORT:
+      case Type.INT:
+        call.visitInsn(I2D);
+        break;
+      case Type.LONG:
+        call.visitInsn(L2D);
+        break;
+      case Type.FLOAT:
+        call.visitInsn(F2D);
+        break;
+      case Type.DOUBLE:
+        break;
+      default:
+        // booleans, chars and objects aren't numbers
+        call.visitInsn(POP);
+        call.visitInsn(DCONST_0);
+    }
+    call.visitInsn(DRETURN);
+    call.visitMaxs(0, 0);
+    call.visitEnd();
+
+    classWriter.visitEnd();
+    return classWriter.toByteArray();
+  }
+
+  /**
+   * Defines classes in the package of another class with {@code MethodHandles.Lookup.defineClass},
+   * which needs Java 9.  It is looked up reflectively, as Caliper still builds for older VMs.
+   */
+  private static final class LookupDefiner {
+    private static final Method lookup;
+    private static final Method privateLookupIn;
+    private static final Method defineClass;
+
+    static {
+      Method lookupMethod = null;
+      Method privateLookupInMethod = null;
+      Method defineClassMethod = null;
+      try {
+        Class<?> methodHandles = Class.forName("java.lang.invoke.MethodHandles");
+        Class<?> lookupClass = Class.forName("java.lang.invoke.MethodHandles$Lookup");
+        lookupMethod = methodHandles.getMethod("lookup");
+        privateLookupInMethod =
+            methodHandles.getMethod("privateLookupIn", Class.class, lookupClass);
+        defineClassMethod = lookupClass.getMethod("defineClass", byte[].class);
+      } catch (ClassNotFoundException e) {
+        // no method handles, so the class loader is used
+      } catch (NoSuchMethodException e) {
+        // before Java 9, so the class loader is used
+      }
+      lookup = lookupMethod;
+      privateLookupIn = privateLookupInMethod;
+      defineClass = defineClassMethod;
+    }
+
+    static boolean isAvailable() {
+      return defineClass != null;
+    }
+
+    /** Defines the class in {@code bytes}, which must be in the package of {@code hostClass}. */
+    static Class<?> define(Class<?> hostClass, byte[] bytes) throws Exception {
+      try {
+        Object hostLookup = privateLookupIn.invoke(null, hostClass, lookup.invoke(null));
+        return (Class<?>) defineClass.invoke(hostLookup, bytes);
+      } catch (InvocationTargetException e) {
+        Throwables.propagateIfPossible(e.getCause(), Exception.class);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Defines classes in the class loader of another class, and so in its package at run time, with
+   * the protected {@code ClassLoader.defineClass}, on VMs without
+   * {@code MethodHandles.Lookup.defineClass}.  Later VMs don't let it be called reflectively.
+   */
+  private static final class ClassLoaderDefiner {
+    private static final Method defineClass;
+
+    static {
+      try {
+        defineClass = ClassLoader.class.getDeclaredMethod(
+            "defineClass", String.class, byte[].class, int.class, int.class);
+      } catch (NoSuchMethodException e) {
+        throw new AssertionError(e);
+      }
+      defineClass.setAccessible(true);
+    }
+
+    /**
+     * Defines the class in {@code bytes}, which must be named {@code name} and be in the package of
+     * {@code hostClass}.
+     */
+    static Class<?> define(Class<?> hostClass, String name, byte[] bytes) throws Exception {
+      try {
+        return (Class<?>) defineClass.invoke(
+            hostClass.getClassLoader(), name, bytes, 0, bytes.length);
+      } catch (InvocationTargetException e) {
+        Throwables.propagateIfPossible(e.getCause(), Exception.class);
+        throw e;
+      }
+    }
+  }
+
+  /** Calls the method with {@link Method#invoke}, for methods that can't be called directly. */
+  private static final class ReflectiveInvoker extends BenchmarkInvoker {
+    final Object target;
+    final Method method;
+    final int parameterCount;
+    final boolean intReps;
+
+    ReflectiveInvoker(Object target, Method method) {
+      this.target = target;
+      this.method = method;
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      this.parameterCount = parameterTypes.length;
+      this.intReps = parameterCount >= 1 && parameterTypes[0] == int.class;
+    }
+
+    @Override protected double call(long reps) throws Throwable {
+      Object result;
+      try {
+        if (parameterCount == 0) {
+          result = method.invoke(target);
+        } else if (parameterCount == 1) {
+          result = intReps ? method.invoke(target, (int) reps) : method.invoke(target, reps);
+        } else {
+          result = intReps
+              ? method.invoke(target, (int) reps, blackhole)
+              : method.invoke(target, reps, blackhole);
+        }
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      return (result instanceof Number) ? ((Number) result).doubleValue() : 0;
+    }
+
+    @Override boolean isReflective() {
+      return true;
+    }
+  }
+}
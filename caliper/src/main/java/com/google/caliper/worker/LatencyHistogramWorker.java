@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static com.google.caliper.util.Reflection.getAnnotatedMethods;
+
+import com.google.caliper.api.AfterRep;
+import com.google.caliper.api.BeforeRep;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Value;
+import com.google.caliper.runner.Running.Benchmark;
+import com.google.caliper.runner.Running.BenchmarkMethod;
+import com.google.caliper.util.LatencyHistogram;
+import com.google.caliper.util.Util;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * The {@link Worker} for macrobenchmarks in the latency histogram mode of the runtime instrument.
+ * Each measurement calls the benchmark method over and over for the timing interval, times each
+ * invocation on its own and counts it in a {@link LatencyHistogram}, so that the runner can report
+ * the tail latencies.  The {@link BeforeRep} and {@link AfterRep} methods are called around each
+ * invocation, outside of its timing.
+ *
+ * <p>A measurement reports the total time of the invocations as the runtime, and the histogram
+ * goes along with it as its {@linkplain #latencies() latencies}.
+ */
+public final class LatencyHistogramWorker extends Worker {
+  private final Ticker ticker;
+  private final BenchmarkInvoker invoker;
+  private final ImmutableList<BenchmarkInvoker> beforeRepInvokers;
+  private final ImmutableList<BenchmarkInvoker> afterRepInvokers;
+  private final long timingIntervalNanos;
+  private final boolean gcBeforeEach;
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  @Inject LatencyHistogramWorker(@Benchmark Object benchmark, @BenchmarkMethod Method method,
+      Ticker ticker, @WorkerOptions Map<String, String> workerOptions) {
+    super(benchmark, method);
+    this.ticker = ticker;
+    this.invoker = BenchmarkInvoker.create(benchmark, method);
+    this.beforeRepInvokers = MacrobenchmarkWorker.createInvokers(
+        benchmark, getAnnotatedMethods(benchmark.getClass(), BeforeRep.class));
+    this.afterRepInvokers = MacrobenchmarkWorker.createInvokers(
+        benchmark, getAnnotatedMethods(benchmark.getClass(), AfterRep.class));
+    this.timingIntervalNanos = Long.parseLong(workerOptions.get("timingIntervalNanos"));
+    this.gcBeforeEach = Boolean.parseBoolean(workerOptions.get("gcBeforeEach"));
+  }
+
+  @Override public void preMeasure() throws Exception {
+    histogram.reset();
+    if (gcBeforeEach) {
+      Util.forceGc();
+    }
+  }
+
+  @Override public Iterable<Measurement> measure() throws Exception {
+    long totalNanos = 0;
+    long start = ticker.read();
+    long end;
+    do {
+      for (BenchmarkInvoker beforeRepInvoker : beforeRepInvokers) {
+        beforeRepInvoker.invoke(0);
+      }
+      long before = ticker.read();
+      invoker.invoke(0);
+      end = ticker.read();
+      histogram.record(end - before);
+      totalNanos += end - before;
+      for (BenchmarkInvoker afterRepInvoker : afterRepInvokers) {
+        afterRepInvoker.invoke(0);
+      }
+    } while (end - start < timingIntervalNanos);
+
+    return ImmutableList.of(new Measurement.Builder()
+        .description(RuntimeWorker.RUNTIME_DESCRIPTION)
+        .value(Value.create(totalNanos, "ns"))
+        .weight(histogram.count())
+        .build());
+  }
+
+  @Override public ImmutableSortedMap<Long, Long> latencies() {
+    return histogram.counts();
+  }
+}
@@ -28,6 +28,7 @@ import com.google.caliper.runner.Running.BenchmarkMethod;
 import com.google.caliper.util.Util;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 
@@ -39,24 +40,35 @@ import java.util.Map;
  */
 public class MacrobenchmarkWorker extends Worker {
   private final Stopwatch stopwatch;
-  private final ImmutableSet<Method> beforeRepMethods;
-  private final ImmutableSet<Method> afterRepMethods;
+  private final BenchmarkInvoker invoker;
+  private final ImmutableList<BenchmarkInvoker> beforeRepInvokers;
+  private final ImmutableList<BenchmarkInvoker> afterRepInvokers;
   private final boolean gcBeforeEach;
 
   @Inject MacrobenchmarkWorker(@Benchmark Object benchmark, @BenchmarkMethod Method method,
       Ticker ticker, @WorkerOptions Map<String, String> workerOptions) {
     super(benchmark, method);
     this.stopwatch = Stopwatch.createUnstarted(ticker);
-    this.beforeRepMethods =
-        getAnnotatedMethods(benchmark.getClass(), BeforeRep.class);
-    this.afterRepMethods =
-        getAnnotatedMethods(benchmark.getClass(), AfterRep.class);
+    this.invoker = BenchmarkInvoker.create(benchmark, method);
+    this.beforeRepInvokers =
+        createInvokers(benchmark, getAnnotatedMethods(benchmark.getClass(), BeforeRep.class));
+    this.afterRepInvokers =
+        createInvokers(benchmark, getAnnotatedMethods(benchmark.getClass(), AfterRep.class));
     this.gcBeforeEach = Boolean.parseBoolean(workerOptions.get("gcBeforeEach"));
   }
 
+  static ImmutableList<BenchmarkInvoker> createInvokers(Object benchmark,
+      ImmutableSet<Method> methods) {
+    ImmutableList.Builder<BenchmarkInvoker> invokers = ImmutableList.builder();
+    for (Method method : methods) {
+      invokers.add(BenchmarkInvoker.create(benchmark, method));
+    }
+    return invokers.build();
+  }
+
   @Override public void preMeasure() throws Exception {
-    for (Method beforeRepMethod : beforeRepMethods) {
-      beforeRepMethod.invoke(benchmark);
+    for (BenchmarkInvoker beforeRepInvoker : beforeRepInvokers) {
+      beforeRepInvoker.invoke(0);
     }
     if (gcBeforeEach) {
       Util.forceGc();
@@ -65,7 +77,7 @@ public class MacrobenchmarkWorker extends Worker {
 
   @Override public Iterable<Measurement> measure() throws Exception {
     stopwatch.start();
-    benchmarkMethod.invoke(benchmark);
+    invoker.invoke(0);
     long nanos = stopwatch.stop().elapsed(NANOSECONDS);
     stopwatch.reset();
     return ImmutableSet.of(new Measurement.Builder()
@@ -76,8 +88,8 @@ public class MacrobenchmarkWorker extends Worker {
   }
 
   @Override public void postMeasure() throws Exception {
-    for (Method afterRepMethod : afterRepMethods) {
-      afterRepMethod.invoke(benchmark);
+    for (BenchmarkInvoker afterRepInvoker : afterRepInvokers) {
+      afterRepInvoker.invoke(0);
     }
   }
 }
@@ -16,6 +16,7 @@
 
 package com.google.caliper.worker;
 
+import com.google.caliper.api.Blackhole;
 import com.google.caliper.model.Measurement;
 import com.google.caliper.runner.Running.Benchmark;
 import com.google.caliper.runner.Running.BenchmarkMethod;
@@ -36,6 +37,7 @@ public final class MicrobenchmarkAllocationWorker extends Worker {
 
   private final Random random;
   private final AllocationRecorder recorder;
+  private final Blackhole blackhole = new Blackhole();
 
   @Inject MicrobenchmarkAllocationWorker(@Benchmark Object benchmark,
       @BenchmarkMethod Method method, AllocationRecorder recorder, Random random) {
@@ -61,7 +63,9 @@ public final class MicrobenchmarkAllocationWorker extends Worker {
       Object benchmark, Method method, int reps) throws Exception {
     // do the Integer boxing and the creation of the Object[] outside of the record block, so that
     // our internal allocations aren't counted in the benchmark's allocations.
-    Object[] args = {reps};
+    Object[] args = (method.getParameterTypes().length == 1)
+        ? new Object[] {reps}
+        : new Object[] {reps, blackhole};
     recorder.startRecording();
     method.invoke(benchmark, args);
     return recorder.stopRecording(reps);
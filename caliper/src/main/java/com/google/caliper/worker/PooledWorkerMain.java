@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.inject.Stage.PRODUCTION;
+
+import com.google.caliper.bridge.StartupAnnounceMessage;
+import com.google.caliper.json.GsonModule;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import com.google.gson.Gson;
+import com.google.inject.Guice;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.UUID;
+
+/**
+ * The entry point for a worker JVM that the runner keeps alive to run several trials in a row.
+ *
+ * <p>The runner passes its port, an id for this worker and the main class that runs each trial,
+ * normally {@link WorkerMain}, on the command line.  The worker connects back, announces itself
+ * with that id and then reads one trial per line: a nonce, a space and the serialized
+ * {@link com.google.caliper.bridge.WorkerSpec}.  Each spec is passed to the main class in a new
+ * class loader so that no benchmark or harness classes, and therefore no profiles or compiled code,
+ * are shared between trials.  The worker exits once the runner closes the connection.
+ */
+public final class PooledWorkerMain {
+  /** Printed to stdout once the JVM has started so that the runner can capture startup output. */
+  public static final String STARTED_LINE = "Pooled worker started.";
+
+  /**
+   * Printed to both stdout and stderr once a trial has finished, followed by the nonce of the
+   * trial, so that the runner knows that it has seen all of the output of the trial.
+   */
+  private static final String TRIAL_COMPLETE_LINE = "Trial complete: ";
+
+  /**
+   * Classes in these packages are always loaded by the system class loader because they are shared
+   * with java agents (e.g. the allocation instrumenter) that are loaded there.
+   */
+  private static final ImmutableList<String> SHARED_PACKAGES =
+      ImmutableList.of("com.google.monitoring.runtime.instrumentation.");
+
+  private PooledWorkerMain() {}
+
+  /** Returns the line that is printed once the trial with the given nonce has finished. */
+  public static String trialCompleteLine(String nonce) {
+    return TRIAL_COMPLETE_LINE + nonce;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = Integer.parseInt(args[0]);
+    UUID workerId = UUID.fromString(args[1]);
+    String mainClass = args[2];
+    System.out.println(STARTED_LINE);
+    System.out.flush();
+
+    Gson gson = Guice.createInjector(PRODUCTION, new GsonModule()).getInstance(Gson.class);
+    Socket socket = new Socket(InetAddresses.forString("127.0.0.1"), port);
+    // see WorkerModule
+    socket.setTcpNoDelay(true);
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+    Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
+    writer.write(gson.toJson(new StartupAnnounceMessage(workerId)));
+    writer.write('\n');
+    writer.flush();
+
+    ImmutableList<URL> classPath = getClassPath();
+    String trial;
+    while ((trial = reader.readLine()) != null) {
+      int space = trial.indexOf(' ');
+      runInNewClassLoader(classPath, mainClass, trial.substring(space + 1));
+      String completeLine = trialCompleteLine(trial.substring(0, space));
+      System.out.println(completeLine);
+      System.out.flush();
+      System.err.println(completeLine);
+      System.err.flush();
+    }
+    socket.close();
+  }
+
+  private static void runInNewClassLoader(ImmutableList<URL> classPath, String mainClass,
+      String workerSpec) throws Exception {
+    URLClassLoader classLoader = new TrialClassLoader(classPath);
+    Thread currentThread = Thread.currentThread();
+    ClassLoader oldClassLoader = currentThread.getContextClassLoader();
+    currentThread.setContextClassLoader(classLoader);
+    try {
+      Method main = classLoader.loadClass(mainClass).getMethod("main", String[].class);
+      // like the java launcher, don't require the class to be public
+      main.setAccessible(true);
+      main.invoke(null, (Object) new String[] {workerSpec});
+    } catch (InvocationTargetException e) {
+      Throwables.propagateIfPossible(e.getCause(), Exception.class);
+      throw e;
+    } finally {
+      currentThread.setContextClassLoader(oldClassLoader);
+      // URLClassLoader is only closeable as of Java 7
+      if (classLoader instanceof Closeable) {
+        ((Closeable) classLoader).close();
+      }
+    }
+  }
+
+  private static ImmutableList<URL> getClassPath() throws IOException {
+    ImmutableList.Builder<URL> urls = ImmutableList.builder();
+    for (String entry : Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+        .split(System.getProperty("java.class.path"))) {
+      urls.add(new File(entry).toURI().toURL());
+    }
+    return urls.build();
+  }
+
+  /**
+   * Loads everything on the class path itself rather than delegating to the system class loader,
+   * except for the {@linkplain #SHARED_PACKAGES shared packages}.
+   */
+  private static final class TrialClassLoader extends URLClassLoader {
+    TrialClassLoader(ImmutableList<URL> classPath) {
+      super(classPath.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    @Override protected synchronized Class<?> loadClass(String name, boolean resolve)
+        throws ClassNotFoundException {
+      for (String sharedPackage : SHARED_PACKAGES) {
+        if (name.startsWith(sharedPackage)) {
+          return ClassLoader.getSystemClassLoader().loadClass(name);
+        }
+      }
+      return super.loadClass(name, resolve);
+    }
+  }
+}
@@ -18,6 +18,8 @@ package com.google.caliper.worker;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
+import com.google.caliper.api.Blackhole;
+import com.google.caliper.bridge.SampleBuffer;
 import com.google.caliper.model.Measurement;
 import com.google.caliper.model.Value;
 import com.google.caliper.runner.InvalidBenchmarkException;
@@ -26,64 +28,184 @@ import com.google.caliper.runner.Running.BenchmarkMethod;
 import com.google.caliper.util.ShortDuration;
 import com.google.caliper.util.Util;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Ticker;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 
 import java.lang.reflect.Method;
 import java.util.Map;
 import java.util.Random;
 
+import javax.annotation.Nullable;
+
 /**
  * A {@link Worker} base class for micro and pico benchmarks.
  */
 public abstract class RuntimeWorker extends Worker {
   @VisibleForTesting static final int INITIAL_REPS = 100;
 
+  /** The description of the time that the benchmark took, as measured. */
+  public static final String RUNTIME_DESCRIPTION = "runtime";
+
+  /** The description of the part of that time that an {@link EmptyBenchmark} would have taken. */
+  public static final String OVERHEAD_DESCRIPTION = "runtime.overhead";
+
+  /** The description of the time that the benchmark took, less the overhead. */
+  public static final String CORRECTED_DESCRIPTION = "runtime.corrected";
+
+  /** The most reps that the overhead is measured with. */
+  private static final long CALIBRATION_REPS = 1000000;
+
+  /** How often the overhead is measured; the least of the times is used. */
+  private static final int CALIBRATION_ROUNDS = 20;
+
+  /**
+   * How often the overhead of timing a single rep is measured, the first time that reps are
+   * sampled; the least of the times is used.
+   */
+  private static final int SAMPLE_CALIBRATION_ROUNDS = 10000;
+
   protected final Random random;
   protected final Ticker ticker;
   protected final Options options;
+  protected final BenchmarkInvoker invoker;
+  private final BenchmarkInvoker emptyInvoker;
+  /**
+   * The buffer that the latencies of single reps are written to, if they are sampled.  They are
+   * sampled anew before each measurement starts, and belong to that measurement.
+   */
+  @Nullable private final SampleBuffer samples;
+  /** The overhead of timing a single rep, or -1 until reps are first sampled. */
+  private long sampleOverheadNanos = -1;
   private long totalReps;
   private long totalNanos;
   private long nextReps;
+  private double overheadNanosPerRep;
 
   RuntimeWorker(Object benchmark, 
       Method method, Random random, Ticker ticker,
-      Map<String, String> workerOptions) {
+      Map<String, String> workerOptions, Optional<SampleBuffer> sampleBuffer) {
     super(benchmark, method);
     this.random = random;
     // TODO(gak): investigate whether or not we can use Stopwatch
     this.ticker = ticker;
     this.options = new Options(workerOptions);
+    this.invoker = BenchmarkInvoker.create(benchmark, method);
+    this.emptyInvoker = EmptyBenchmark.invoker(method, invoker);
+    // the runner only gives the worker a buffer if it samples, and only if it runs on its host
+    this.samples = (options.samplingInterval > 0) ? sampleBuffer.orNull() : null;
   }
   
   @Override public void bootstrap() throws Exception {
     totalReps = INITIAL_REPS;
-    totalNanos = invokeTimeMethod(INITIAL_REPS);
+    totalNanos = invokeTimeMethod(invoker, INITIAL_REPS);
+    overheadNanosPerRep = calibrateOverhead(emptyInvoker, ticker,
+        calculateTargetReps(totalReps, totalNanos, options.timingIntervalNanos, 0));
+  }
+
+  /**
+   * Returns the overhead of the harness per rep, i.e. reading the timer, calling the benchmark
+   * method and looping, as measured with {@code emptyInvoker}, which calls an
+   * {@link EmptyBenchmark} that takes the same parameters as the benchmark.  It is measured with
+   * the {@code targetReps} that the benchmark is expected to need, if there aren't too many.
+   */
+  static double calibrateOverhead(BenchmarkInvoker emptyInvoker, Ticker ticker, long targetReps)
+      throws Exception {
+    long reps = Math.min(CALIBRATION_REPS, targetReps);
+    long minNanos = Long.MAX_VALUE;
+    for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+      long before = ticker.read();
+      emptyInvoker.invoke(reps);
+      minNanos = Math.min(minNanos, ticker.read() - before);
+    }
+    return (double) minNanos / reps;
   }
 
   @Override public void preMeasure() throws Exception {
     nextReps = calculateTargetReps(totalReps, totalNanos, options.timingIntervalNanos,
         random.nextGaussian());
+    // the first calibration ran before anything was compiled, so it is repeated before every
+    // measurement and the least overhead is kept
+    overheadNanosPerRep =
+        Math.min(overheadNanosPerRep, calibrateOverhead(emptyInvoker, ticker, nextReps));
+    if (samples != null) {
+      // after the previous measurement ended and before this one starts, so that none of it is
+      // timed along with the measurements, nor blamed for a GC or compilation during them
+      sampleSingleReps();
+    }
     if (options.gcBeforeEach) {
       Util.forceGc();
     }
   }
   
   @Override public Iterable<Measurement> measure() throws Exception {
-    long nanos = invokeTimeMethod(nextReps);
-    Measurement measurement = new Measurement.Builder()
-        .description("runtime")
-        .value(Value.create(nanos, "ns"))
-        .weight(nextReps)
-        .build();
+    long nanos = invokeTimeMethod(invoker, nextReps);
+    double overheadNanos = overheadNanosPerRep * nextReps;
     
     totalReps += nextReps;
     totalNanos += nanos;
-    return ImmutableSet.of(measurement);
+    return ImmutableList.of(
+        measurement(RUNTIME_DESCRIPTION, nanos),
+        measurement(OVERHEAD_DESCRIPTION, overheadNanos),
+        measurement(CORRECTED_DESCRIPTION, Math.max(0, nanos - overheadNanos)));
+  }
+
+  /**
+   * Writes the latencies of single reps for the next measurement to the samples, one for every
+   * {@code samplingInterval} of its reps.
+   */
+  private void sampleSingleReps() throws Exception {
+    if (sampleOverheadNanos < 0) {
+      // the overhead of timing a single rep is the least time that the empty benchmark takes; it
+      // is measured by the same code as the samples, and often enough for that code to be compiled
+      sampleOverheadNanos = timeSingleReps(emptyInvoker, SAMPLE_CALIBRATION_ROUNDS, 1, null, 0);
+    }
+    int interval = options.samplingInterval;
+    timeSingleReps(invoker, Math.max(1, nextReps / interval), interval, samples,
+        sampleOverheadNanos);
+  }
+
+  /**
+   * Runs {@code count * interval} more reps, none of which are part of the runtime, and times every
+   * {@code interval}th one on its own.  Unless {@code samples} is null, it writes each time, less
+   * {@code overheadNanos} but at least 0, to them.  The reps in between run in one call, untimed,
+   * so that the benchmark is in about the state that it is in when all of its reps run in one call.
+   *
+   * @return the least time that a single rep took, with the overhead
+   */
+  private long timeSingleReps(BenchmarkInvoker invoker, long count, int interval,
+      @Nullable SampleBuffer samples, long overheadNanos) throws Exception {
+    long minNanos = Long.MAX_VALUE;
+    for (long i = 0; i < count; i++) {
+      if (interval > 1) {
+        invoker.invoke(interval - 1);
+      }
+      long before = ticker.read();
+      invoker.invoke(1);
+      long nanos = ticker.read() - before;
+      minNanos = Math.min(minNanos, nanos);
+      if (samples != null) {
+        // a sample that doesn't fit is counted as dropped, which the trial reports
+        samples.offer(Math.max(0, nanos - overheadNanos));
+      }
+    }
+    return minNanos;
+  }
+
+  @Override public long samplesWritten() {
+    return (samples == null) ? 0 : samples.samplesWritten();
+  }
+
+  private Measurement measurement(String description, double nanos) {
+    return new Measurement.Builder()
+        .description(description)
+        .value(Value.create(nanos, "ns"))
+        .weight(nextReps)
+        .build();
   }
   
-  abstract long invokeTimeMethod(long reps) throws Exception;
+  abstract long invokeTimeMethod(BenchmarkInvoker invoker, long reps) throws Exception;
 
   /**
    * Returns a random number of reps based on a normal distribution around the estimated number of
@@ -102,11 +224,11 @@ public abstract class RuntimeWorker extends Worker {
   public static final class Micro extends RuntimeWorker {
     @Inject Micro(@Benchmark Object benchmark, 
         @BenchmarkMethod Method method, Random random, Ticker ticker,
-        @WorkerOptions Map<String, String> workerOptions) {
-      super(benchmark, method, random, ticker, workerOptions);
+        @WorkerOptions Map<String, String> workerOptions, Optional<SampleBuffer> sampleBuffer) {
+      super(benchmark, method, random, ticker, workerOptions, sampleBuffer);
     }
 
-    @Override long invokeTimeMethod(long reps) throws Exception {
+    @Override long invokeTimeMethod(BenchmarkInvoker invoker, long reps) throws Exception {
       int intReps = (int) reps;
       if (reps != intReps) {
         throw new InvalidBenchmarkException("%s.%s takes an int for reps, "
@@ -117,7 +239,7 @@ public abstract class RuntimeWorker extends Worker {
                     ShortDuration.of(options.timingIntervalNanos, NANOSECONDS));
       }
       long before = ticker.read();
-      benchmarkMethod.invoke(benchmark, intReps);
+      invoker.invoke(intReps);
       return ticker.read() - before;
     }
   }
@@ -128,24 +250,89 @@ public abstract class RuntimeWorker extends Worker {
   public static final class Pico extends RuntimeWorker {
     @Inject Pico(@Benchmark Object benchmark, 
         @BenchmarkMethod Method method, Random random, Ticker ticker,
-        @WorkerOptions Map<String, String> workerOptions) {
-      super(benchmark, method, random, ticker, workerOptions);
+        @WorkerOptions Map<String, String> workerOptions, Optional<SampleBuffer> sampleBuffer) {
+      super(benchmark, method, random, ticker, workerOptions, sampleBuffer);
     }
     
-    @Override long invokeTimeMethod(long reps) throws Exception {
+    @Override long invokeTimeMethod(BenchmarkInvoker invoker, long reps) throws Exception {
       long before = ticker.read();
-      benchmarkMethod.invoke(benchmark, reps);
+      invoker.invoke(reps);
       return ticker.read() - before;
     }
   }
 
+  /**
+   * A benchmark that does nothing but loop, which is the least that a benchmark can do.  The
+   * comparison in the loop is cheap, but it keeps the compiler from removing the loop.  It has a
+   * method for each shape that a benchmark method can have, so that it is called just like the
+   * benchmark.
+   */
+  @VisibleForTesting static final class EmptyBenchmark {
+    int neverARep = -1;
+
+    /**
+     * Returns an invoker of the method that takes the same parameters as {@code method}.  It is
+     * reflective if {@code benchmarkInvoker} is, so that the overhead includes that of reflection
+     * only if the benchmark pays it too.
+     */
+    static BenchmarkInvoker invoker(Method method, BenchmarkInvoker benchmarkInvoker) {
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      String name = (parameterTypes[0] == int.class) ? "intReps" : "longReps";
+      Method emptyMethod;
+      try {
+        emptyMethod = EmptyBenchmark.class.getDeclaredMethod(name, parameterTypes);
+      } catch (NoSuchMethodException e) {
+        throw new AssertionError(e);
+      }
+      return benchmarkInvoker.isReflective()
+          ? BenchmarkInvoker.reflective(new EmptyBenchmark(), emptyMethod)
+          : BenchmarkInvoker.create(new EmptyBenchmark(), emptyMethod);
+    }
+
+    void intReps(int reps) {
+      for (int i = 0; i < reps; i++) {
+        if (i == neverARep) {
+          throw new AssertionError();
+        }
+      }
+    }
+
+    void intReps(int reps, Blackhole blackhole) {
+      for (int i = 0; i < reps; i++) {
+        if (i == neverARep) {
+          blackhole.consume(i);
+        }
+      }
+    }
+
+    void longReps(long reps) {
+      for (long i = 0; i < reps; i++) {
+        if (i == neverARep) {
+          throw new AssertionError();
+        }
+      }
+    }
+
+    void longReps(long reps, Blackhole blackhole) {
+      for (long i = 0; i < reps; i++) {
+        if (i == neverARep) {
+          blackhole.consume(i);
+        }
+      }
+    }
+  }
+
   private static final class Options {
     long timingIntervalNanos;
     boolean gcBeforeEach;
+    /** Every how many reps one is timed on its own, or 0 to time none. */
+    int samplingInterval;
 
     Options(Map<String, String> optionMap) {
       this.timingIntervalNanos = Long.parseLong(optionMap.get("timingIntervalNanos"));
       this.gcBeforeEach = Boolean.parseBoolean(optionMap.get("gcBeforeEach"));
+      String samplingInterval = optionMap.get("samplingInterval");
+      this.samplingInterval = (samplingInterval == null) ? 0 : Integer.parseInt(samplingInterval);
     }
   }
 }
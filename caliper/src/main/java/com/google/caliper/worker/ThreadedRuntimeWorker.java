@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.caliper.api.Blackhole;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Value;
+import com.google.caliper.runner.InvalidBenchmarkException;
+import com.google.caliper.runner.Running.Benchmark;
+import com.google.caliper.runner.Running.BenchmarkMethod;
+import com.google.caliper.util.ShortDuration;
+import com.google.caliper.util.Util;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link Worker} for micro and pico benchmarks that runs the benchmark method on several threads
+ * at once, all of which call the same instance of the benchmark.  For each measurement, it starts
+ * the threads and releases them together from a barrier, and each of them runs the same number of
+ * reps.
+ *
+ * <p>Besides the runtime per rep of all of the threads together, i.e. the time from when the first
+ * thread started timing until the last one stopped divided by the reps of all of them, it reports
+ * the throughput of all of them and of each one, in operations (reps) per second.  Like
+ * {@link RuntimeWorker}, it also reports the overhead of the harness and the runtime less it.  The
+ * threads run their reps at the same time, so the overhead of a measurement is that of the reps of
+ * a single thread.  It doesn't sample the latencies of single reps.
+ */
+public final class ThreadedRuntimeWorker extends Worker {
+  /** The description of the operations per second of all of the threads together. */
+  public static final String THROUGHPUT_DESCRIPTION = "throughput";
+
+  /** The start of the descriptions of the operations per second of each thread. */
+  public static final String THREAD_THROUGHPUT_DESCRIPTION_PREFIX = "throughput.thread";
+
+  private static final double NANOS_PER_SECOND = SECONDS.toNanos(1);
+
+  private final Random random;
+  private final Ticker ticker;
+  /** One for each thread, so that the threads don't share a {@link Blackhole}. */
+  private final ImmutableList<BenchmarkInvoker> invokers;
+  private final BenchmarkInvoker emptyInvoker;
+  private final boolean intReps;
+  private final int threads;
+  private final long timingIntervalNanos;
+  private final boolean gcBeforeEach;
+  /** The reps that each thread has run so far, and the time that all of them took. */
+  private long totalReps;
+  private long totalNanos;
+  private long nextReps;
+  private double overheadNanosPerRep;
+
+  @Inject ThreadedRuntimeWorker(@Benchmark Object benchmark,
+      @BenchmarkMethod Method method, Random random, Ticker ticker,
+      @WorkerOptions Map<String, String> workerOptions) {
+    super(benchmark, method);
+    this.random = random;
+    this.ticker = ticker;
+    this.intReps = method.getParameterTypes()[0] == int.class;
+    this.threads = Integer.parseInt(workerOptions.get("threads"));
+    ImmutableList.Builder<BenchmarkInvoker> invokers = ImmutableList.builder();
+    for (int i = 0; i < threads; i++) {
+      invokers.add(BenchmarkInvoker.create(benchmark, method));
+    }
+    this.invokers = invokers.build();
+    this.emptyInvoker = RuntimeWorker.EmptyBenchmark.invoker(method, this.invokers.get(0));
+    this.timingIntervalNanos = Long.parseLong(workerOptions.get("timingIntervalNanos"));
+    this.gcBeforeEach = Boolean.parseBoolean(workerOptions.get("gcBeforeEach"));
+  }
+
+  @Override public void bootstrap() throws Exception {
+    totalReps = RuntimeWorker.INITIAL_REPS;
+    totalNanos = runThreads(RuntimeWorker.INITIAL_REPS).nanos;
+    overheadNanosPerRep = RuntimeWorker.calibrateOverhead(emptyInvoker, ticker,
+        RuntimeWorker.calculateTargetReps(totalReps, totalNanos, timingIntervalNanos, 0));
+  }
+
+  @Override public void preMeasure() throws Exception {
+    nextReps = RuntimeWorker.calculateTargetReps(totalReps, totalNanos, timingIntervalNanos,
+        random.nextGaussian());
+    if (intReps && nextReps != (int) nextReps) {
+      throw new InvalidBenchmarkException("%s.%s takes an int for reps, "
+          + "but requires a greater number to fill the given timing interval (%s). "
+          + "If this is expected (the benchmarked code is very fast), use a long parameter."
+          + "Otherwise, check your benchmark for errors.",
+              benchmark.getClass(), benchmarkMethod.getName(),
+                  ShortDuration.of(timingIntervalNanos, NANOSECONDS));
+    }
+    // see RuntimeWorker.preMeasure
+    overheadNanosPerRep = Math.min(overheadNanosPerRep,
+        RuntimeWorker.calibrateOverhead(emptyInvoker, ticker, nextReps));
+    if (gcBeforeEach) {
+      Util.forceGc();
+    }
+  }
+
+  @Override public Iterable<Measurement> measure() throws Exception {
+    Round round = runThreads(nextReps);
+    totalReps += nextReps;
+    totalNanos += round.nanos;
+
+    long allReps = nextReps * threads;
+    double overheadNanos = overheadNanosPerRep * nextReps;
+    ImmutableList.Builder<Measurement> measurements = ImmutableList.builder();
+    measurements.add(runtime(RuntimeWorker.RUNTIME_DESCRIPTION, round.nanos, allReps));
+    measurements.add(runtime(RuntimeWorker.OVERHEAD_DESCRIPTION, overheadNanos, allReps));
+    measurements.add(runtime(RuntimeWorker.CORRECTED_DESCRIPTION,
+        Math.max(0, round.nanos - overheadNanos), allReps));
+    measurements.add(throughput(THROUGHPUT_DESCRIPTION, allReps, round.nanos));
+    for (int i = 0; i < threads; i++) {
+      measurements.add(throughput(
+          THREAD_THROUGHPUT_DESCRIPTION_PREFIX + i, nextReps, round.threadNanos[i]));
+    }
+    return measurements.build();
+  }
+
+  private static Measurement runtime(String description, double nanos, long reps) {
+    return new Measurement.Builder()
+        .description(description)
+        .value(Value.create(nanos, "ns"))
+        .weight(reps)
+        .build();
+  }
+
+  private static Measurement throughput(String description, long reps, long nanos) {
+    // a thread that was timed in less than a tick of the timer ran as fast as it could tell
+    double seconds = Math.max(1, nanos) / NANOS_PER_SECOND;
+    return new Measurement.Builder()
+        .description(description)
+        .value(Value.create(reps / seconds, "ops/s"))
+        .weight(1)
+        .build();
+  }
+
+  /**
+   * Runs {@code reps} reps on each of the threads.  The threads are all started before the barrier
+   * releases them, so that none of them runs alone while the others are still starting.
+   */
+  private Round runThreads(final long reps) throws Exception {
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    List<FutureTask<long[]>> tasks = Lists.newArrayListWithCapacity(threads);
+    for (int i = 0; i < threads; i++) {
+      final BenchmarkInvoker invoker = invokers.get(i);
+      FutureTask<long[]> task = new FutureTask<long[]>(new Callable<long[]>() {
+        @Override public long[] call() throws Exception {
+          barrier.await();
+          long start = ticker.read();
+          invoker.invoke(reps);
+          return new long[] {start, ticker.read()};
+        }
+      });
+      Thread thread = new Thread(task, "benchmark-thread-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      tasks.add(task);
+    }
+
+    long firstStart = Long.MAX_VALUE;
+    long lastEnd = Long.MIN_VALUE;
+    long[] threadNanos = new long[threads];
+    for (int i = 0; i < threads; i++) {
+      long[] times;
+      try {
+        times = tasks.get(i).get();
+      } catch (ExecutionException e) {
+        // the others may be waiting for it at the barrier
+        barrier.reset();
+        Throwables.propagateIfPossible(e.getCause(), Exception.class);
+        throw new AssertionError(e.getCause());
+      }
+      firstStart = Math.min(firstStart, times[0]);
+      lastEnd = Math.max(lastEnd, times[1]);
+      threadNanos[i] = times[1] - times[0];
+    }
+    return new Round(lastEnd - firstStart, threadNanos);
+  }
+
+  /** The times that a round of reps took on all of the threads together and on each one. */
+  private static final class Round {
+    final long nanos;
+    final long[] threadNanos;
+
+    Round(long nanos, long[] threadNanos) {
+      this.nanos = nanos;
+      this.threadNanos = threadNanos;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.caliper.bridge.CaliperControlLogMessage;
+import com.google.caliper.bridge.GcLogMessage;
+import com.google.caliper.bridge.HotspotLogMessage;
+import com.google.caliper.util.ShortDuration;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+
+import java.io.Closeable;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.Nullable;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Watches the worker VM for the garbage collection, compilation and class loading that can disturb
+ * a measurement, using the platform management beans rather than the VM's log output.
+ *
+ * <p>The counters of the beans are sampled when a timing window starts and when it ends.  The
+ * garbage collections that completed in between are matched up with the notifications that
+ * HotSpot's collectors send, which say when each collection started and how long it took, to the
+ * millisecond.  VMs without those notifications still report the collections, just without their
+ * start times.
+ *
+ * <p>Compilation is noticed by a change of the total compilation time, which the VM only reports
+ * in whole milliseconds, so a compilation that adds less than a millisecond to it can go
+ * unnoticed; there is no portable count of compiled methods.  Every compilation is seen when the
+ * worker VM runs with {@code -XX:+PrintCompilation}, whose output the runner parses as well.
+ */
+final class VmEventMonitor implements Closeable {
+  /** The type of the notifications that HotSpot's collectors send after each collection. */
+  private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+  /** The {@code gcAction} of a collection of the old generation. */
+  private static final String MAJOR_GC_ACTION = "end of major GC";
+
+  /** How long to wait for the notification of a collection once its count has gone up. */
+  private static final long NOTIFICATION_TIMEOUT_NANOS = MILLISECONDS.toNanos(100);
+
+  private final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+  private final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+  @Nullable private final CompilationMXBean compilation;
+  private final ImmutableList<Collector> collectors;
+
+  private final NotificationListener listener = new NotificationListener() {
+    @Override public void handleNotification(Notification notification, Object handback) {
+      if (GC_NOTIFICATION.equals(notification.getType())) {
+        CompositeData data = (CompositeData) notification.getUserData();
+        long endTime = (Long) ((CompositeData) data.get("gcInfo")).get("endTime");
+        // notifications are only ever sent by one thread
+        uptimeMinusGcTimeMillis = Math.min(uptimeMinusGcTimeMillis, runtime.getUptime() - endTime);
+        ((Collector) handback).notifications.add(data);
+      }
+    }
+  };
+
+  /**
+   * The difference between the uptime of the VM and the clock of the times in the gc info, which
+   * starts a little later.  The notifications are sent shortly after the end of each collection,
+   * so the smallest difference seen so far is the closest to the real one.
+   */
+  private volatile long uptimeMinusGcTimeMillis = Long.MAX_VALUE;
+
+  private long windowStartMillis;
+  private long compilationMillis;
+  private long loadedClasses;
+
+  @Inject VmEventMonitor() {
+    CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+    this.compilation = compilation != null && compilation.isCompilationTimeMonitoringSupported()
+        ? compilation
+        : null;
+    ImmutableList.Builder<Collector> collectors = ImmutableList.builder();
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      Collector collector = new Collector(bean);
+      if (bean instanceof NotificationEmitter) {
+        ((NotificationEmitter) bean).addNotificationListener(listener, null, collector);
+      }
+      collectors.add(collector);
+    }
+    this.collectors = collectors.build();
+    this.compilationMillis = compilationMillis();
+    this.loadedClasses = classLoading.getTotalLoadedClassCount();
+  }
+
+  /**
+   * Called right before timing starts.  Returns the compilation and class loading since the end of
+   * the last timing window, if there was any.
+   */
+  ImmutableList<CaliperControlLogMessage> timingStarting() {
+    ImmutableList.Builder<CaliperControlLogMessage> events = ImmutableList.builder();
+    addHotspotEvent(events);
+    for (Collector collector : collectors) {
+      // collections outside of timing don't matter
+      collector.notifications.clear();
+      collector.sample();
+    }
+    windowStartMillis = runtime.getUptime();
+    return events.build();
+  }
+
+  /**
+   * Called right after timing has ended.  Returns the garbage collections that completed during
+   * the timing window, and the compilation and class loading during it, if there was any.
+   */
+  ImmutableList<CaliperControlLogMessage> timingEnded() {
+    ImmutableList.Builder<CaliperControlLogMessage> events = ImmutableList.builder();
+    for (Collector collector : collectors) {
+      collector.addGcEvents(events);
+    }
+    addHotspotEvent(events);
+    return events.build();
+  }
+
+  @Override public void close() {
+    for (Collector collector : collectors) {
+      if (collector.bean instanceof NotificationEmitter) {
+        try {
+          ((NotificationEmitter) collector.bean).removeNotificationListener(listener);
+        } catch (ListenerNotFoundException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+  }
+
+  private void addHotspotEvent(ImmutableList.Builder<CaliperControlLogMessage> events) {
+    long newCompilationMillis = compilationMillis();
+    long newLoadedClasses = classLoading.getTotalLoadedClassCount();
+    if (newCompilationMillis != compilationMillis || newLoadedClasses != loadedClasses) {
+      events.add(new HotspotLogMessage(
+          newCompilationMillis - compilationMillis, newLoadedClasses - loadedClasses));
+    }
+    compilationMillis = newCompilationMillis;
+    loadedClasses = newLoadedClasses;
+  }
+
+  private long compilationMillis() {
+    return compilation == null ? 0 : compilation.getTotalCompilationTime();
+  }
+
+  private final class Collector {
+    final GarbageCollectorMXBean bean;
+    final BlockingQueue<CompositeData> notifications = new LinkedBlockingQueue<CompositeData>();
+    long count;
+    long timeMillis;
+
+    Collector(GarbageCollectorMXBean bean) {
+      this.bean = bean;
+      sample();
+    }
+
+    void sample() {
+      count = bean.getCollectionCount();
+      timeMillis = bean.getCollectionTime();
+    }
+
+    void addGcEvents(ImmutableList.Builder<CaliperControlLogMessage> events) {
+      long startCount = count;
+      long startTimeMillis = timeMillis;
+      sample();
+      if (startCount < 0 || count <= startCount) {
+        // either nothing happened or the collector doesn't count its collections
+        return;
+      }
+      // the id of a collection is the collector's count once it has completed
+      List<CompositeData> received = awaitNotifications(startCount + 1, count);
+      long unaccountedMillis = timeMillis - startTimeMillis;
+      for (CompositeData notification : received) {
+        CompositeData info = (CompositeData) notification.get("gcInfo");
+        long durationMillis = (Long) info.get("duration");
+        unaccountedMillis -= durationMillis;
+        events.add(new GcLogMessage(
+            MAJOR_GC_ACTION.equals(notification.get("gcAction"))
+                ? GcLogMessage.Type.FULL
+                : GcLogMessage.Type.INCREMENTAL,
+            ShortDuration.of(durationMillis, MILLISECONDS),
+            (Long) info.get("startTime") + uptimeMinusGcTimeMillis - windowStartMillis));
+      }
+      long missing = count - startCount - received.size();
+      for (long i = 0; i < missing; i++) {
+        events.add(new GcLogMessage(GcLogMessage.Type.INCREMENTAL,
+            ShortDuration.of(Math.max(0, unaccountedMillis) / missing, MILLISECONDS), null));
+      }
+    }
+
+    /** Returns the notifications about the collections with ids in the range, as they arrive. */
+    List<CompositeData> awaitNotifications(long firstId, long lastId) {
+      List<CompositeData> received = Lists.newArrayList();
+      if (!(bean instanceof NotificationEmitter)) {
+        return received;
+      }
+      long deadline = System.nanoTime() + NOTIFICATION_TIMEOUT_NANOS;
+      try {
+        while (received.size() < lastId - firstId + 1) {
+          CompositeData notification =
+              notifications.poll(deadline - System.nanoTime(), NANOSECONDS);
+          if (notification == null) {
+            break;
+          }
+          long id = (Long) ((CompositeData) notification.get("gcInfo")).get("id");
+          if (id >= firstId && id <= lastId) {
+            received.add(notification);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return received;
+    }
+  }
+}
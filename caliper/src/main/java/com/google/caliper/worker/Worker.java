@@ -19,6 +19,7 @@ import com.google.caliper.model.Measurement;
 import com.google.caliper.runner.Running.AfterExperimentMethods;
 import com.google.caliper.runner.Running.BeforeExperimentMethods;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.inject.Inject;
 
 import java.lang.reflect.Method;
@@ -62,6 +63,23 @@ public abstract class Worker {
   /** Template method for workers that produce multiple measurements. */
   public abstract Iterable<Measurement> measure() throws Exception;
 
+  /**
+   * Returns the latencies of the single invocations that the last {@link #measure()} timed, as
+   * {@link com.google.caliper.util.LatencyHistogram#counts()} returns them, or an empty map if the
+   * worker doesn't time them one by one.
+   */
+  public ImmutableSortedMap<Long, Long> latencies() {
+    return ImmutableSortedMap.of();
+  }
+
+  /**
+   * Returns the number of samples that the worker has written to its
+   * {@link com.google.caliper.bridge.SampleBuffer} so far, or 0 if it doesn't write any.
+   */
+  public long samplesWritten() {
+    return 0;
+  }
+
   /** Tears down the benchmark object. */
   final void tearDownBenchmark() throws Exception {
     for (Method method : afterExperimentMethods) {
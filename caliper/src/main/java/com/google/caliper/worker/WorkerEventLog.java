@@ -16,8 +16,12 @@
 
 package com.google.caliper.worker;
 
+import static com.google.common.base.Charsets.UTF_8;
+
+import com.google.caliper.bridge.BinaryMessageCodec;
 import com.google.caliper.bridge.CaliperControlLogMessage;
 import com.google.caliper.bridge.FailureLogMessage;
+import com.google.caliper.bridge.MessageEncoding;
 import com.google.caliper.bridge.Renderer;
 import com.google.caliper.bridge.ShouldContinueMessage;
 import com.google.caliper.bridge.StartMeasurementLogMessage;
@@ -26,32 +30,61 @@ import com.google.caliper.bridge.StopMeasurementLogMessage;
 import com.google.caliper.bridge.VmPropertiesLogMessage;
 import com.google.caliper.model.Measurement;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.util.Map;
 import java.util.UUID;
 
+/**
+ * The worker's end of the connection to the runner.  After the {@link StartupAnnounceMessage},
+ * which is always a line of json, messages are sent in the {@link MessageEncoding} that the runner
+ * asked for.
+ */
 public final class WorkerEventLog {
+  private final MessageEncoding encoding;
+  // only one pair of these is used, depending on the encoding
   private final BufferedWriter writer;
   private final BufferedReader reader;
+  private final DataOutputStream out;
+  private final DataInputStream in;
   private final Renderer<CaliperControlLogMessage> controlLogMessageRenderer;
   private final Gson parser;
+  private final VmEventMonitor vmEventMonitor;
 
-  @Inject WorkerEventLog(BufferedWriter writer, BufferedReader reader,
-      Renderer<CaliperControlLogMessage> controlLogMessageRenderer, Gson parser) {
-    this.writer = writer;
-    this.reader = reader;
+  /** The number of measurements that may be taken without waiting for the runner. */
+  private int credits;
+
+  @Inject WorkerEventLog(Socket socket, MessageEncoding encoding,
+      Renderer<CaliperControlLogMessage> controlLogMessageRenderer, Gson parser,
+      VmEventMonitor vmEventMonitor) throws IOException {
+    this.encoding = encoding;
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+    this.reader = new BufferedReader(new InputStreamReader(in, UTF_8));
     this.controlLogMessageRenderer = controlLogMessageRenderer;
     this.parser = parser;
+    this.vmEventMonitor = vmEventMonitor;
   }
 
   public void notifyWorkerStarted(UUID trialId) throws IOException {
-    println(parser.toJson(new StartupAnnounceMessage(trialId)));
-    println(controlLogMessageRenderer.render(new VmPropertiesLogMessage()));
-    writer.flush();
+    // written as bytes so that nothing is left in the writer's buffer in binary mode
+    out.write((parser.toJson(new StartupAnnounceMessage(trialId, encoding)) + '\n')
+        .getBytes(UTF_8));
+    send(new VmPropertiesLogMessage());
+    flush();
   }
 
   public void notifyWarmupPhaseStarting() throws IOException {
@@ -64,47 +97,108 @@ public final class WorkerEventLog {
 
   public void notifyMeasurementStarting() throws IOException {
     println("About to measure.");
-    println(controlLogMessageRenderer.render(new StartMeasurementLogMessage()));
-    writer.flush();
+    sendAll(vmEventMonitor.timingStarting());
+    send(new StartMeasurementLogMessage());
+    flush();
   }
 
   /**
-   * Report the measurement and wait for it to be ack'd by the runner.  Returns true if we should
-   * keep measuring, false otherwise.
+   * Report the measurement.  Returns true if we should keep measuring, false otherwise.  This only
+   * waits for the runner if there are no {@linkplain ShouldContinueMessage credits} left.
    */
   public boolean notifyMeasurementEnding(Measurement measurement) throws IOException {
     return notifyMeasurementEnding(ImmutableList.of(measurement));
   }
 
   /**
-   * Report the measurements and wait for it to be ack'd by the runner.  Returns true if we should
-   * keep measuring, false otherwise.
+   * Report the measurements.  Returns true if we should keep measuring, false otherwise.  This
+   * only waits for the runner if there are no {@linkplain ShouldContinueMessage credits} left.
    */
   public boolean notifyMeasurementEnding(Iterable<Measurement> measurements) throws IOException {
-    println(controlLogMessageRenderer.render(new StopMeasurementLogMessage(measurements)));
+    return notifyMeasurementEnding(measurements, ImmutableMap.<Long, Long>of());
+  }
+
+  /**
+   * Report the measurements, along with the latencies of the single invocations that were timed
+   * with them.  Returns true if we should keep measuring, false otherwise.
+   */
+  public boolean notifyMeasurementEnding(Iterable<Measurement> measurements,
+      Map<Long, Long> latencies) throws IOException {
+    return notifyMeasurementEnding(measurements, latencies, 0);
+  }
+
+  /**
+   * Report the measurements, along with the latencies of the single invocations that were timed
+   * with them and the number of samples written to the sample buffer so far.  Returns true if we
+   * should keep measuring, false otherwise.
+   */
+  public boolean notifyMeasurementEnding(Iterable<Measurement> measurements,
+      Map<Long, Long> latencies, long samplesWritten) throws IOException {
+    // the runner attributes these to the measurement because they come before its end
+    sendAll(vmEventMonitor.timingEnded());
+    send(new StopMeasurementLogMessage(measurements, latencies, samplesWritten));
     for (Measurement measurement : measurements) {
       println(String.format("I got a result! %s: %f%s%n", measurement.description(),
           measurement.value().magnitude() / measurement.weight(), measurement.value().unit()));
     }
-    writer.flush();
+    flush();
     return shouldKeepMeasuring();
   }
 
   public void notifyFailure(Exception e) throws IOException {
-    printlnAndFlush(controlLogMessageRenderer.render(new FailureLogMessage(e)));
+    send(new FailureLogMessage(e));
+    flush();
   }
   
   private boolean shouldKeepMeasuring() throws IOException {
-    return parser.fromJson(reader.readLine(), ShouldContinueMessage.class).shouldContinue();
+    // read whatever the runner has already sent, since it might be telling us to stop
+    while (credits == 0 || runnerHasSentMore()) {
+      ShouldContinueMessage message = encoding == MessageEncoding.BINARY
+          ? BinaryMessageCodec.readShouldContinue(in)
+          : parser.fromJson(reader.readLine(), ShouldContinueMessage.class);
+      if (!message.shouldContinue()) {
+        return false;
+      }
+      credits += message.credits();
+    }
+    credits--;
+    return true;
+  }
+
+  private boolean runnerHasSentMore() throws IOException {
+    return encoding == MessageEncoding.BINARY ? in.available() > 0 : reader.ready();
+  }
+
+  private void sendAll(Iterable<CaliperControlLogMessage> messages) throws IOException {
+    for (CaliperControlLogMessage message : messages) {
+      send(message);
+    }
+  }
+
+  private void send(CaliperControlLogMessage message) throws IOException {
+    if (encoding == MessageEncoding.BINARY) {
+      BinaryMessageCodec.write(out, message, controlLogMessageRenderer);
+    } else {
+      println(controlLogMessageRenderer.render(message));
+    }
   }
   
   private void println(String str) throws IOException {
-    writer.write(str);
-    writer.write('\n');
+    if (encoding == MessageEncoding.BINARY) {
+      BinaryMessageCodec.writeLine(out, str);
+    } else {
+      writer.write(str);
+      writer.write('\n');
+    }
+  }
+
+  private void flush() throws IOException {
+    // flushes the data stream as well
+    writer.flush();
   }
   
   private void printlnAndFlush(String str) throws IOException {
     println(str);
-    writer.flush();
+    flush();
   }
 }
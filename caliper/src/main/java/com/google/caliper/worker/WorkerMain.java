@@ -16,26 +16,51 @@
 
 package com.google.caliper.worker;
 
+import static com.google.inject.Stage.DEVELOPMENT;
 import static com.google.inject.Stage.PRODUCTION;
 
 import com.google.caliper.bridge.BridgeModule;
 import com.google.caliper.bridge.WorkerSpec;
 import com.google.caliper.json.GsonModule;
+import com.google.caliper.model.Measurement;
 import com.google.caliper.runner.BenchmarkClassModule;
 import com.google.caliper.runner.ExperimentModule;
 import com.google.gson.Gson;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
 /**
  * This class is invoked as a subprocess by the Caliper runner parent process; it re-stages
  * the benchmark and hands it off to the instrument's worker.
  */
 public final class WorkerMain {
+  /**
+   * The system property that makes the worker wait after connecting to the runner until it reads a
+   * line from stdin, so that it can be started before the previous trial has finished.  If stdin is
+   * closed instead the worker exits without running the trial.
+   */
+  public static final String AWAIT_RELEASE_PROPERTY = "caliper.worker.awaitRelease";
+
+  /**
+   * The system property that makes the worker exit as soon as it has loaded the classes that it
+   * needs to run the trial, without connecting to the runner.  This is used to find the classes to
+   * put in a class data sharing archive.
+   */
+  public static final String STARTUP_ONLY_PROPERTY = "caliper.worker.startupOnly";
+
   private WorkerMain() {}
 
   public static void main(String[] args) throws Exception {
-    Injector gsonInjector = Guice.createInjector(PRODUCTION, new GsonModule());
+    boolean startupOnly = Boolean.getBoolean(STARTUP_ONLY_PROPERTY);
+    // a startup only worker must not be in PRODUCTION, which would eagerly connect to the runner
+    Injector gsonInjector =
+        Guice.createInjector(startupOnly ? DEVELOPMENT : PRODUCTION, new GsonModule());
     WorkerSpec request =
         gsonInjector.getInstance(Gson.class).fromJson(args[0], WorkerSpec.class);
 
@@ -45,10 +70,19 @@ public final class WorkerMain {
         new BridgeModule(),
         new WorkerModule(request));
 
+    if (startupOnly) {
+      workerInjector.getInstance(Worker.class);
+      return;
+    }
+
     Worker worker = workerInjector.getInstance(Worker.class);
     WorkerEventLog log = workerInjector.getInstance(WorkerEventLog.class);
 
     log.notifyWorkerStarted(request.trialId);
+    if (Boolean.getBoolean(AWAIT_RELEASE_PROPERTY) && !awaitRelease()) {
+      workerInjector.getInstance(Socket.class).close();
+      return;
+    }
     try {
       worker.setUpBenchmark();
       log.notifyWarmupPhaseStarting();
@@ -59,7 +93,9 @@ public final class WorkerMain {
         worker.preMeasure();
         log.notifyMeasurementStarting();
         try {
-          keepMeasuring = log.notifyMeasurementEnding(worker.measure());
+          Iterable<Measurement> measurements = worker.measure();
+          keepMeasuring = log.notifyMeasurementEnding(
+              measurements, worker.latencies(), worker.samplesWritten());
         } finally {
           worker.postMeasure();
         }
@@ -69,6 +105,19 @@ public final class WorkerMain {
     } finally {
       System.out.flush(); // ?
       worker.tearDownBenchmark();
+      // the management beans outlive the trial in a pooled worker
+      workerInjector.getInstance(VmEventMonitor.class).close();
+      // the worker JVM may outlive this trial (see PooledWorkerMain), so don't rely on exiting to
+      // close the connection to the runner
+      workerInjector.getInstance(Socket.class).close();
     }
   }
+
+  /** Returns true if the runner released the worker, or false if it abandoned it. */
+  private static boolean awaitRelease() throws IOException {
+    // use the default charset because that is what the runner writes with
+    BufferedReader stdin =
+        new BufferedReader(new InputStreamReader(System.in, Charset.defaultCharset()));
+    return stdin.readLine() != null;
+  }
 }
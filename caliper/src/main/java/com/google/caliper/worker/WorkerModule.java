@@ -16,27 +16,27 @@
 
 package com.google.caliper.worker;
 
-import static com.google.common.base.Charsets.UTF_8;
-
 import com.google.caliper.Param;
+import com.google.caliper.bridge.MessageEncoding;
+import com.google.caliper.bridge.SampleBuffer;
 import com.google.caliper.bridge.WorkerSpec;
+import com.google.common.base.Optional;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.net.InetAddresses;
 import com.google.inject.AbstractModule;
 import com.google.inject.Key;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.util.Map;
 import java.util.Random;
 
+import javax.annotation.Nullable;
+
 /**
  * Binds classes necessary for the worker. Also manages the injection of {@link Param parameters}
  * from the {@link WorkerSpec} into the benchmark.
@@ -47,8 +47,11 @@ import java.util.Random;
  */
 final class WorkerModule extends AbstractModule {
   private final Class<? extends Worker> workerClass;
+  private final String host;
   private final int port;
   private final ImmutableMap<String, String> workerOptions;
+  private final MessageEncoding encoding;
+  @Nullable private final String sampleBufferPath;
 
   WorkerModule(WorkerSpec workerSpec) {
     try {
@@ -56,14 +59,20 @@ final class WorkerModule extends AbstractModule {
     } catch (ClassNotFoundException e) {
       throw new AssertionError("classes referenced in the runner are always present");
     }
+    this.host = workerSpec.host;
     this.port = workerSpec.port;
     this.workerOptions = workerSpec.workerOptions;
+    // this worker speaks every encoding, so it uses the one that the runner asked for
+    this.encoding = workerSpec.encoding == null ? MessageEncoding.JSON : workerSpec.encoding;
+    this.sampleBufferPath = workerSpec.sampleBufferPath;
   }
 
   @Override protected void configure() {
     bind(Worker.class).to(workerClass);
     bind(Ticker.class).toInstance(Ticker.systemTicker());
     bind(WorkerEventLog.class);
+    bind(VmEventMonitor.class).in(Singleton.class);
+    bind(MessageEncoding.class).toInstance(encoding);
     if (Boolean.valueOf(workerOptions.get("trackAllocations"))) {
       bind(AllocationRecorder.class).to(AllAllocationsRecorder.class);
     } else {
@@ -73,16 +82,8 @@ final class WorkerModule extends AbstractModule {
     bind(new Key<Map<String, String>>(WorkerOptions.class) {}).toInstance(workerOptions);
   }
   
-  @Provides @Singleton BufferedWriter provideSocketWriter(Socket socket) throws IOException {
-    return new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
-  }
-  
-  @Provides @Singleton BufferedReader provideSocketReader(Socket socket) throws IOException {
-    return new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
-  }
-
   @Provides @Singleton Socket provideSocket() throws IOException {
-    final Socket socket = new Socket(InetAddresses.forString("127.0.0.1"), port);
+    final Socket socket = new Socket(InetAddress.getByName(host), port);
     // Setting this to true disables Nagle's algorithm (RFC 896) which seeks to decrease packet
     // overhead by buffering writes while there are packets outstanding (i.e. haven't been ack'd).
     // This interacts poorly with another TCP feature called 'delayed acks' (RFC 1122) if the
@@ -91,17 +92,13 @@ final class WorkerModule extends AbstractModule {
     // though in practise I have only observed 40ms).  So we need to enable the TCP_NO_DELAY option
     // here.
     socket.setTcpNoDelay(true);
-    // close the socket when the worker exits
-    Runtime.getRuntime().addShutdownHook(new Thread() {
-      @Override
-      public void run() {
-        try {
-          socket.close();
-        } catch (IOException e) {
-          // nothing we can do
-        }
-      }
-    });
     return socket;
   }
+
+  /** The buffer to write samples to, if the runner made one for this worker. */
+  @Provides @Singleton Optional<SampleBuffer> provideSampleBuffer() throws IOException {
+    return (sampleBufferPath == null)
+        ? Optional.<SampleBuffer>absent()
+        : Optional.of(SampleBuffer.open(new File(sampleBufferPath)));
+  }
 }
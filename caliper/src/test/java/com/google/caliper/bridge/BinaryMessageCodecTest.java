@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.bridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.caliper.json.GsonModule;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Value;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests the round trip of messages through {@link BinaryMessageCodec}.
+ */
+@RunWith(JUnit4.class)
+public class BinaryMessageCodecTest {
+  @Inject ControlLogMessageRenderer renderer;
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private final DataOutputStream out = new DataOutputStream(bytes);
+
+  @Before public void setUp() {
+    Injector injector = Guice.createInjector(new GsonModule(), new BridgeModule());
+    injector.injectMembers(this);
+  }
+
+  @Test public void controlMessages() throws IOException {
+    StopMeasurementLogMessage stop = new StopMeasurementLogMessage(ImmutableList.of(
+        new Measurement.Builder()
+            .description("runtime")
+            .weight(2.0)
+            .value(Value.create(5.0, "ns"))
+            .build(),
+        new Measurement.Builder()
+            .description("über")
+            .weight(1.0)
+            .value(Value.create(1234.5, "bytes"))
+            .build()),
+        ImmutableMap.of(100L, 7L, 1000004L, 1L),
+        4096);
+    FailureLogMessage failure =
+        new FailureLogMessage(new IllegalArgumentException("my message"));
+    BinaryMessageCodec.write(out, new StartMeasurementLogMessage(), renderer);
+    BinaryMessageCodec.write(out, stop, renderer);
+    BinaryMessageCodec.write(out, failure, renderer);
+
+    DataInputStream in = input();
+    assertEquals(new StartMeasurementLogMessage(), BinaryMessageCodec.readFrame(in).message());
+    assertEquals(stop, BinaryMessageCodec.readFrame(in).message());
+    assertEquals(failure, BinaryMessageCodec.readFrame(in).message());
+    assertNull(BinaryMessageCodec.readFrame(in));
+  }
+
+  @Test public void messagesWithoutNewFields_keepTheirOriginalFrames() throws IOException {
+    BinaryMessageCodec.write(out, new StopMeasurementLogMessage(ImmutableList.of(
+        new Measurement.Builder()
+            .description("runtime")
+            .weight(1.0)
+            .value(Value.create(5.0, "ns"))
+            .build())),
+        renderer);
+    BinaryMessageCodec.write(out, new ShouldContinueMessage(true));
+
+    // what runners and workers that predate latencies, samples and credits expect
+    DataInputStream in = input();
+    assertEquals(4 + (8 + 4 + 2 + 8 + 4 + 7), in.readInt());
+    assertEquals(2, in.readByte());
+    in.skipBytes(37);
+    assertEquals(1, in.readInt());
+    assertEquals(4, in.readByte());
+    assertTrue(in.readBoolean());
+    assertEquals(-1, in.read());
+  }
+
+  @Test public void messagesWithoutBinaryForm_areLines() throws IOException {
+    VmPropertiesLogMessage properties = new VmPropertiesLogMessage();
+    BinaryMessageCodec.write(out, properties, renderer);
+    BinaryMessageCodec.writeLine(out, "some output");
+
+    DataInputStream in = input();
+    BinaryMessageCodec.Frame frame = BinaryMessageCodec.readFrame(in);
+    assertNull(frame.message());
+    assertEquals(renderer.render(properties), frame.line());
+    assertEquals("some output", BinaryMessageCodec.readFrame(in).line());
+  }
+
+  @Test public void unknownFrames_areSkipped() throws IOException {
+    out.writeInt(3);
+    out.writeByte(42);
+    out.write(new byte[] {1, 2, 3});
+    BinaryMessageCodec.writeLine(out, "after");
+
+    DataInputStream in = input();
+    assertEquals("after", BinaryMessageCodec.readFrame(in).line());
+    assertNull(BinaryMessageCodec.readFrame(in));
+  }
+
+  @Test public void shouldContinueMessage() throws IOException {
+    BinaryMessageCodec.write(out, new ShouldContinueMessage(true, 3));
+    BinaryMessageCodec.write(out, new ShouldContinueMessage(false));
+
+    DataInputStream in = input();
+    ShouldContinueMessage grant = BinaryMessageCodec.readShouldContinue(in);
+    assertEquals(new ShouldContinueMessage(true, 3), grant);
+    assertEquals(3, grant.credits());
+    assertEquals(new ShouldContinueMessage(false), BinaryMessageCodec.readShouldContinue(in));
+  }
+
+  private DataInputStream input() {
+    return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+}
@@ -16,12 +16,17 @@
 
 package com.google.caliper.bridge;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.google.caliper.json.GsonModule;
 import com.google.caliper.model.Measurement;
 import com.google.caliper.model.Value;
+import com.google.caliper.util.ShortDuration;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
@@ -50,6 +55,27 @@ public class ControlMessageRoundTripTest {
     assertEquals(message, parser.parse(renderer.render(message)));
   }
 
+  @Test public void gcLogMessage() {
+    GcLogMessage message =
+        new GcLogMessage(GcLogMessage.Type.FULL, ShortDuration.of(12, MILLISECONDS), -3L);
+    assertEquals(message, parser.parse(renderer.render(message)));
+    message = new GcLogMessage(GcLogMessage.Type.INCREMENTAL, ShortDuration.of(1, MILLISECONDS));
+    assertEquals(message, parser.parse(renderer.render(message)));
+  }
+
+  @Test public void controlLines() {
+    assertTrue(CaliperControlLogMessage.isControlLine(
+        renderer.render(new HotspotLogMessage(7, 42))));
+    // the same messages are parsed from the output of the VM, which isn't a control line
+    assertFalse(CaliperControlLogMessage.isControlLine("[GC 987K->384K(62848K), 0.0012320 secs]"));
+    assertFalse(CaliperControlLogMessage.isControlLine("    1       java.lang.String::hashCode"));
+  }
+
+  @Test public void hotspotLogMessage() {
+    HotspotLogMessage message = new HotspotLogMessage(7, 42);
+    assertEquals(message, parser.parse(renderer.render(message)));
+  }
+
   @Test public void startMeasurementLogMessage() {
     StartMeasurementLogMessage message = new StartMeasurementLogMessage();
     assertEquals(message, parser.parse(renderer.render(message)));
@@ -65,6 +91,29 @@ public class ControlMessageRoundTripTest {
     assertEquals(message, parser.parse(renderer.render(message)));
   }
 
+  @Test public void stopMeasurementLogMessage_withLatencies() {
+    StopMeasurementLogMessage message = new StopMeasurementLogMessage(
+        ImmutableList.of(new Measurement.Builder()
+            .description("runtime")
+            .weight(8.0)
+            .value(Value.create(1000800.0, "ns"))
+            .build()),
+        ImmutableMap.of(100L, 7L, 1000004L, 1L));
+    assertEquals(message, parser.parse(renderer.render(message)));
+  }
+
+  @Test public void stopMeasurementLogMessage_withSamplesWritten() {
+    StopMeasurementLogMessage message = new StopMeasurementLogMessage(
+        ImmutableList.of(new Measurement.Builder()
+            .description("runtime")
+            .weight(8.0)
+            .value(Value.create(1000800.0, "ns"))
+            .build()),
+        ImmutableMap.<Long, Long>of(),
+        1L << 33);
+    assertEquals(message, parser.parse(renderer.render(message)));
+  }
+
   @Test public void vmPropertiesLogMessage() {
     VmPropertiesLogMessage message = new VmPropertiesLogMessage();
     assertEquals(message, parser.parse(renderer.render(message)));
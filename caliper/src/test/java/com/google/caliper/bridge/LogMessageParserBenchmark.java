@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.bridge;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.caliper.json.GsonModule;
+import com.google.caliper.util.Parser;
+import com.google.caliper.util.ShortDuration;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+import com.google.inject.Guice;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how quickly {@link LogMessageParser} classifies the worker output that the runner sees
+ * most, compared to the regular expressions it used before.  Each rep parses one line, so the
+ * throughput in lines per second is 10<sup>9</sup> divided by the reported time in nanoseconds.
+ *
+ * <p>Run it with the test classpath, e.g.
+ * {@code CaliperMain com.google.caliper.bridge.LogMessageParserBenchmark -i runtime}.
+ */
+public class LogMessageParserBenchmark {
+  enum Implementation {
+    SCANNER {
+      @Override Parser<LogMessage> create() {
+        return Guice.createInjector(new GsonModule(), new BridgeModule())
+            .getInstance(LogMessageParser.class);
+      }
+    },
+    REGEX {
+      @Override Parser<LogMessage> create() {
+        return new RegexLogMessageParser();
+      }
+    };
+
+    abstract Parser<LogMessage> create();
+  }
+
+  enum Output {
+    COMPILATION("jdk6-compilation.txt", "jdk7-compilation.txt"),
+    FLAGS("jdk6-flags.txt", "jdk7-flags.txt"),
+    GC("jdk6-gc.txt", "jdk7-gc.txt");
+
+    final String[] resources;
+
+    Output(String... resources) {
+      this.resources = resources;
+    }
+  }
+
+  @Param Implementation implementation;
+  @Param Output output;
+
+  private Parser<LogMessage> parser;
+  private String[] lines;
+
+  @BeforeExperiment void setUp() throws IOException {
+    parser = implementation.create();
+    List<String> allLines = Lists.newArrayList();
+    for (String resource : output.resources) {
+      allLines.addAll(Resources.readLines(
+          Resources.getResource(LogMessageParserBenchmark.class, resource), UTF_8));
+    }
+    lines = allLines.toArray(new String[0]);
+  }
+
+  @Benchmark int parse(int reps) throws Exception {
+    int dummy = 0;
+    for (int i = 0, line = 0; i < reps; i++) {
+      dummy += parser.parse(lines[line]).hashCode();
+      if (++line == lines.length) {
+        line = 0;
+      }
+    }
+    return dummy;
+  }
+
+  /** The classification of non-control lines as {@link LogMessageParser} used to do it. */
+  private static final class RegexLogMessageParser implements Parser<LogMessage> {
+    private static final Pattern GC_PATTERN =
+        Pattern.compile(".*\\[(?:(Full) )?GC.*(\\d+\\.\\d+) secs\\]");
+    private static final Pattern JIT_PATTERN =
+        Pattern.compile(".*::.*( \\(((\\d+ bytes)|(static))\\))?");
+    private static final Pattern VM_OPTION_PATTERN =
+        Pattern.compile("\\s*(\\w+)\\s+(\\w+)\\s+:?=\\s+([^\\s]*)\\s+\\{([^}]*)\\}\\s*");
+
+    @Override public LogMessage parse(CharSequence text) {
+      String string = text.toString();
+      Matcher gcMatcher = GC_PATTERN.matcher(string);
+      if (gcMatcher.matches()) {
+        return new GcLogMessage(
+            "Full".equals(gcMatcher.group(1))
+                ? GcLogMessage.Type.FULL
+                : GcLogMessage.Type.INCREMENTAL,
+            ShortDuration.of(BigDecimal.valueOf(Double.parseDouble(gcMatcher.group(2))), SECONDS));
+      }
+      Matcher jitMatcher = JIT_PATTERN.matcher(string);
+      if (jitMatcher.matches()) {
+        return new HotspotLogMessage();
+      }
+      Matcher vmOptionMatcher = VM_OPTION_PATTERN.matcher(string);
+      if (vmOptionMatcher.matches()) {
+        return new VmOptionLogMessage(vmOptionMatcher.group(2), vmOptionMatcher.group(3));
+      }
+      return new GenericLogMessage();
+    }
+  }
+}
@@ -110,4 +110,24 @@ public class LogMessageParserTest {
       assertTrue(parser.parse(line) instanceof VmOptionLogMessage);
     }
   }
+
+  @Test public void vmOptionData() {
+    VmOptionLogMessage message =
+        (VmOptionLogMessage) parser.parse("    uintx MaxHeapSize    := 4169138176    {product}");
+    assertEquals("MaxHeapSize", message.name());
+    assertEquals("4169138176", message.value());
+    message = (VmOptionLogMessage) parser.parse("    ccstr OnError    =    {product}   ");
+    assertEquals("OnError", message.name());
+    assertEquals("", message.value());
+  }
+
+  @Test public void otherOutput() {
+    assertTrue(parser.parse("") instanceof GenericLogMessage);
+    assertTrue(parser.parse("some output") instanceof GenericLogMessage);
+    assertTrue(parser.parse("[GC 987K->384K(62848K), secs]") instanceof GenericLogMessage);
+    assertTrue(parser.parse("[Other 987K->384K(62848K), 0.0012320 secs]")
+        instanceof GenericLogMessage);
+    assertTrue(parser.parse("bool UseSerialGC = true") instanceof GenericLogMessage);
+    assertTrue(parser.parse("bool UseSerialGC = {product}") instanceof GenericLogMessage);
+  }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.bridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests {@link SampleBuffer}, with both sides mapping the same file.
+ */
+@RunWith(JUnit4.class)
+public class SampleBufferTest {
+  private File file;
+
+  @Before public void setUp() throws IOException {
+    file = File.createTempFile("samples", ".buf");
+  }
+
+  @After public void tearDown() {
+    file.delete();
+  }
+
+  @Test public void samplesWrapAround() throws IOException {
+    SampleBuffer reader = SampleBuffer.create(file, 4);
+    SampleBuffer writer = SampleBuffer.open(file);
+    assertEquals(4, writer.capacity());
+    long[] samples = new long[3];
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(writer.offer(round * 10 + i));
+      }
+      assertEquals(3, reader.drainTo(samples));
+      for (int i = 0; i < 3; i++) {
+        assertEquals(round * 10 + i, samples[i]);
+      }
+    }
+    assertEquals(0, reader.drainTo(samples));
+    assertEquals(15, reader.samplesRead());
+  }
+
+  @Test public void samplesAreDroppedWhileFull() throws IOException {
+    SampleBuffer reader = SampleBuffer.create(file, 2);
+    SampleBuffer writer = SampleBuffer.open(file);
+    assertTrue(writer.offer(1));
+    assertTrue(writer.offer(2));
+    assertFalse(writer.offer(3));
+    assertEquals(1, reader.samplesDropped());
+
+    long[] samples = new long[1];
+    assertEquals(1, reader.drainTo(samples));
+    assertEquals(1, samples[0]);
+    assertTrue(writer.offer(4));
+    assertEquals(1, reader.drainTo(samples));
+    assertEquals(2, samples[0]);
+    assertEquals(1, reader.drainTo(samples));
+    assertEquals(4, samples[0]);
+    assertEquals(3, writer.samplesWritten());
+  }
+
+  @Test public void drainToOffset() throws IOException {
+    SampleBuffer reader = SampleBuffer.create(file, 4);
+    SampleBuffer writer = SampleBuffer.open(file);
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(writer.offer(i));
+    }
+    long[] samples = new long[3];
+    samples[0] = 42;
+    assertEquals(2, reader.drainTo(samples, 1));
+    assertEquals(42, samples[0]);
+    assertEquals(1, samples[1]);
+    assertEquals(2, samples[2]);
+    assertEquals(0, reader.drainTo(samples, 3));
+    assertEquals(1, reader.drainTo(samples, 0));
+    assertEquals(3, samples[0]);
+  }
+
+  @Test public void concurrentWriter() throws Exception {
+    final int count = 100000;
+    SampleBuffer reader = SampleBuffer.create(file, 1024);
+    final SampleBuffer writer = SampleBuffer.open(file);
+    Thread thread = new Thread() {
+      @Override public void run() {
+        for (int i = 0; i < count; i++) {
+          while (!writer.offer(i)) {
+            Thread.yield();
+          }
+        }
+      }
+    };
+    thread.start();
+    long[] samples = new long[100];
+    long expected = 0;
+    while (expected < count) {
+      int read = reader.drainTo(samples);
+      for (int i = 0; i < read; i++) {
+        assertEquals(expected++, samples[i]);
+      }
+    }
+    thread.join();
+    assertEquals(count, reader.samplesRead());
+  }
+
+  @Test public void open_notABuffer() throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(1000);
+    } finally {
+      raf.close();
+    }
+    try {
+      SampleBuffer.open(file);
+      fail();
+    } catch (IOException expected) {}
+  }
+}
@@ -14,16 +14,21 @@
 
 package com.google.caliper.options;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.google.caliper.util.DisplayUsageException;
 import com.google.caliper.util.InvalidCommandException;
 import com.google.caliper.util.ShortDuration;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.io.Files;
+import com.google.common.net.HostAndPort;
 
 import junit.framework.TestCase;
 
@@ -33,6 +38,7 @@ import org.junit.runners.JUnit4;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.UUID;
 
 @RunWith(JUnit4.class)
 
@@ -86,6 +92,17 @@ public class ParsedOptionsTest extends TestCase {
         .build();
     assertEquals(expectedInstruments, options.instrumentNames());
     assertEquals(1, options.trialsPerScenario());
+    assertEquals(1, options.parallelism());
+    assertEquals(1, options.dryRunThreads());
+    assertEquals(1, options.workerReuse());
+    assertFalse(options.prestartWorkers());
+    assertTrue(options.agents().isEmpty());
+    assertTrue(options.threadCounts().isEmpty());
+    assertEquals("sequential", options.trialOrder());
+    assertFalse(options.trialOrderSeed().isPresent());
+    assertTrue(options.blockParameters().isEmpty());
+    assertFalse(options.timeBudget().isPresent());
+    assertFalse(options.resumeRunId().isPresent());
     assertTrue(options.userParameters().isEmpty());
     assertFalse(options.verbose());
     assertFalse(options.printConfiguration());
@@ -99,7 +116,18 @@ public class ParsedOptionsTest extends TestCase {
         "--instrument=testInstrument",
         "--directory=/path/to/some/dir",
         "--trials=2",
+        "--parallel=2",
+        "--dry-run-threads=4",
+        "--worker-reuse=5",
+        "--prestart-workers",
+        "--agents=a:1;b:2;a:1",
+        "--threads=4;1;2",
+        "--trial-order=blocked",
+        "--seed=7",
+        "--block-params=x;y",
+        "--resume=8a2b2bb4-6a5a-4e43-9be1-7d8e7b9c0f11",
         "--time-limit=15s",
+        "--time-budget=45m",
         "-Dx=a;b;c",
         "-Dy=b;d",
         "-Csome.property=value",
@@ -119,7 +147,20 @@ public class ParsedOptionsTest extends TestCase {
     assertEquals(ImmutableSet.of("testInstrument"), options.instrumentNames());
     assertEquals(new File("/path/to/some/dir"), options.caliperDirectory());
     assertEquals(2, options.trialsPerScenario());
+    assertEquals(2, options.parallelism());
+    assertEquals(4, options.dryRunThreads());
+    assertEquals(5, options.workerReuse());
+    assertTrue(options.prestartWorkers());
+    assertEquals(ImmutableList.of(HostAndPort.fromParts("a", 1), HostAndPort.fromParts("b", 2),
+        HostAndPort.fromParts("a", 1)), options.agents());
+    assertEquals(ImmutableSortedSet.of(1, 2, 4), options.threadCounts());
+    assertEquals("blocked", options.trialOrder());
+    assertEquals(Optional.of(7L), options.trialOrderSeed());
+    assertEquals(ImmutableSet.of("x", "y"), options.blockParameters());
+    assertEquals(Optional.of(UUID.fromString("8a2b2bb4-6a5a-4e43-9be1-7d8e7b9c0f11")),
+        options.resumeRunId());
     assertEquals(ShortDuration.of(15, SECONDS), options.timeLimit());
+    assertEquals(Optional.of(ShortDuration.of(45, MINUTES)), options.timeBudget());
     assertEquals(ImmutableSetMultimap.of("x", "a", "x", "b", "x", "c", "y", "b", "y", "d"),
         options.userParameters());
     assertEquals(ImmutableMap.of("some.property", "value", "some.other.property", "other-value"),
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests {@link ClassDataArchives} with a fake java executable that records its runs and dumps an
+ * empty archive, or fails to.
+ */
+@RunWith(JUnit4.class)
+public class ClassDataArchivesTest {
+  private static final String FAKE_JAVA = "#!/bin/sh\n"
+      + "echo \"$@\" >> \"$0.runs\"\n"
+      + "for arg in \"$@\"; do\n"
+      + "  case \"$arg\" in\n"
+      + "    -Xshare:dump) dump=true ;;\n"
+      + "    -XX:SharedArchiveFile=*) archive=\"${arg#-XX:SharedArchiveFile=}\" ;;\n"
+      + "  esac\n"
+      + "done\n"
+      + "if [ -n \"$dump\" ]; then\n"
+      + "  %s\n"
+      + "fi\n";
+  private static final String DUMP = "touch \"$archive\"";
+  private static final String FAIL_TO_DUMP = "echo 'Error: cannot dump'; exit 1";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+  private File jar;
+
+  @Before public void setUp() throws IOException {
+    directory = folder.newFolder("cds");
+    jar = folder.newFile("benchmark.jar");
+    jar.setLastModified(System.currentTimeMillis() - 60000);
+  }
+
+  @Test public void noOptionsBeforeTheArchiveIsPrepared() throws Exception {
+    ImmutableList<String> jvmArgs = jvmArgs(fakeJava(DUMP));
+    assertEquals(ImmutableList.of(), new ClassDataArchives(directory, true).jvmOptions(jvmArgs));
+    assertEquals(0, runs(jvmArgs));
+  }
+
+  @Test public void preparedArchiveIsUsed() throws Exception {
+    ImmutableList<String> jvmArgs = jvmArgs(fakeJava(DUMP));
+    ClassDataArchives archives = new ClassDataArchives(directory, true);
+    archives.prepare(jvmArgs, ImmutableList.of("{}"));
+    // recording the classes, dumping them and mapping the archive
+    assertEquals(3, runs(jvmArgs));
+
+    ImmutableList<String> options = archives.jvmOptions(jvmArgs);
+    assertEquals(2, options.size());
+    assertTrue(options.get(0).startsWith(ClassDataArchives.ARCHIVE_OPTION));
+    assertTrue(new File(options.get(0).substring(ClassDataArchives.ARCHIVE_OPTION.length()))
+        .isFile());
+    assertEquals("-Xshare:auto", options.get(1));
+
+    // an up to date archive isn't built again, not even by the next run
+    new ClassDataArchives(directory, true).prepare(jvmArgs, ImmutableList.of("{}"));
+    assertEquals(3, runs(jvmArgs));
+  }
+
+  @Test public void staleArchiveIsNotUsed() throws Exception {
+    ImmutableList<String> jvmArgs = jvmArgs(fakeJava(DUMP));
+    ClassDataArchives archives = new ClassDataArchives(directory, true);
+    archives.prepare(jvmArgs, ImmutableList.of("{}"));
+    jar.setLastModified(System.currentTimeMillis() + 60000);
+    assertEquals(ImmutableList.of(), archives.jvmOptions(jvmArgs));
+
+    archives.prepare(jvmArgs, ImmutableList.of("{}"));
+    assertEquals(6, runs(jvmArgs));
+  }
+
+  @Test public void failedDumpFallsBackAndIsRemembered() throws Exception {
+    ImmutableList<String> jvmArgs = jvmArgs(fakeJava(FAIL_TO_DUMP));
+    ClassDataArchives archives = new ClassDataArchives(directory, true);
+    archives.prepare(jvmArgs, ImmutableList.of("{}"));
+    assertEquals(2, runs(jvmArgs));
+    assertEquals(ImmutableList.of(), archives.jvmOptions(jvmArgs));
+
+    archives.prepare(jvmArgs, ImmutableList.of("{}"));
+    assertEquals(2, runs(jvmArgs));
+  }
+
+  @Test public void disabled() throws Exception {
+    ImmutableList<String> jvmArgs = jvmArgs(fakeJava(DUMP));
+    ClassDataArchives archives = new ClassDataArchives(directory, false);
+    archives.prepare(jvmArgs, ImmutableList.of("{}"));
+    assertEquals(0, runs(jvmArgs));
+    assertEquals(ImmutableList.of(), archives.jvmOptions(jvmArgs));
+  }
+
+  @Test public void key() {
+    String key = ClassDataArchives.key(ImmutableList.of("java", "-cp", "a.jar"));
+    assertEquals(key, ClassDataArchives.key(ImmutableList.of("java", "-cp", "a.jar")));
+    assertNotEquals(key, ClassDataArchives.key(ImmutableList.of("java", "-cp", "b.jar")));
+    // arguments must not run together
+    assertNotEquals(ClassDataArchives.key(ImmutableList.of("ab", "c")),
+        ClassDataArchives.key(ImmutableList.of("a", "bc")));
+  }
+
+  private File fakeJava(String dump) throws IOException {
+    File java = folder.newFile("java");
+    Files.write(String.format(FAKE_JAVA, dump), java, Charsets.UTF_8);
+    assertTrue(java.setExecutable(true));
+    return java;
+  }
+
+  private ImmutableList<String> jvmArgs(File java) {
+    return ImmutableList.of(java.getAbsolutePath(), "-cp", jar.getAbsolutePath());
+  }
+
+  private static int runs(ImmutableList<String> jvmArgs) throws IOException {
+    File runs = new File(jvmArgs.get(0) + ".runs");
+    return runs.exists() ? Files.readLines(runs, Charsets.UTF_8).size() : 0;
+  }
+}
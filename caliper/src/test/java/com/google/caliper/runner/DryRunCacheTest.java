@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.caliper.runner.TrialFixtures.TestBenchmark;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests {@link DryRunCache}.
+ */
+@RunWith(JUnit4.class)
+public class DryRunCacheTest {
+  private File directory;
+
+  @Before public void setUp() {
+    directory = Files.createTempDir();
+  }
+
+  @After public void tearDown() throws IOException {
+    File cacheDirectory = new File(directory, "dry-runs");
+    for (File file : cacheDirectory.listFiles()) {
+      file.delete();
+    }
+    cacheDirectory.delete();
+    directory.delete();
+  }
+
+  @Test public void outcomesSurviveRuns() throws Exception {
+    DryRunCache cache = new DryRunCache(directory, TestBenchmark.class);
+    cache.put(experiment("a"), DryRunCache.Outcome.ran(42, ImmutableList.<String>of()));
+    cache.put(experiment("b"), DryRunCache.Outcome.skipped());
+    cache.save();
+
+    DryRunCache nextRun = new DryRunCache(directory, TestBenchmark.class);
+    assertEquals(42, nextRun.get(experiment("a")).get().nanos());
+    assertFalse(nextRun.get(experiment("a")).get().isSkipped());
+    assertTrue(nextRun.get(experiment("b")).get().isSkipped());
+    assertFalse(nextRun.get(experiment("c")).isPresent());
+  }
+
+  @Test public void warningsSurviveRuns() throws Exception {
+    DryRunCache cache = new DryRunCache(directory, TestBenchmark.class);
+    cache.put(experiment("a"), DryRunCache.Outcome.ran(42,
+        ImmutableList.of("timeNothing doesn't grow with its reps.", "Another warning.")));
+    cache.put(experiment("b"), DryRunCache.Outcome.ran(43, ImmutableList.<String>of()));
+    cache.save();
+
+    DryRunCache nextRun = new DryRunCache(directory, TestBenchmark.class);
+    assertEquals(42, nextRun.get(experiment("a")).get().nanos());
+    assertEquals(ImmutableList.of("timeNothing doesn't grow with its reps.", "Another warning."),
+        nextRun.get(experiment("a")).get().warnings());
+    assertEquals(ImmutableList.of(), nextRun.get(experiment("b")).get().warnings());
+  }
+
+  @Test public void otherBytecodeIsNotCached() throws Exception {
+    DryRunCache cache = new DryRunCache(directory, TestBenchmark.class);
+    cache.put(experiment("a"), DryRunCache.Outcome.ran(42, ImmutableList.<String>of()));
+    cache.save();
+
+    assertFalse(new DryRunCache(directory, OtherBenchmark.class).get(experiment("a")).isPresent());
+  }
+
+  private static Experiment experiment(String parameter) throws Exception {
+    return TrialFixtures.experiment(ImmutableMap.of("x", parameter));
+  }
+
+  public static class OtherBenchmark extends TestBenchmark {}
+}
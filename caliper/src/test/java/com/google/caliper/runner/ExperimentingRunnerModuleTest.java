@@ -23,6 +23,7 @@ import com.google.caliper.Benchmark;
 import com.google.caliper.options.CaliperOptions;
 import com.google.caliper.runner.Instrument.Instrumentation;
 import com.google.caliper.worker.Worker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
 import org.junit.Before;
@@ -115,7 +116,9 @@ public class ExperimentingRunnerModuleTest {
         }
 
         @Override
-        public void dryRun(Object benchmark) throws InvalidBenchmarkException {}
+        public ImmutableList<String> dryRun(Object benchmark) {
+          return ImmutableList.of();
+        }
 
         @Override
         MeasurementCollectingVisitor getMeasurementCollectingVisitor() {
@@ -1,19 +1,23 @@
 package com.google.caliper.runner;
 
+import com.google.caliper.bridge.StartupAnnounceMessage;
 import com.google.caliper.config.CaliperConfig;
 import com.google.caliper.config.InvalidConfigurationException;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -107,9 +111,24 @@ final class FakeWorkers {
     }
   }
   
+  /**
+   * Prints the name of the JVM that it runs in and then its first argument to standard out, unless
+   * the argument is {@code exit <code>}, in which case it exits immediately with that code.
+   */
+  static final class PrintJvmName {
+    public static void main(String[] args) {
+      if (args[0].startsWith("exit ")) {
+        System.exit(Integer.parseInt(args[0].substring("exit ".length())));
+      }
+      System.out.println(ManagementFactory.getRuntimeMXBean().getName());
+      System.out.println(args[0]);
+      System.out.flush();
+    }
+  }
+
   /** 
-   * Connects to a socket on localhost on the port provided as the first argument and echos all 
-   * data.
+   * Connects to a socket on localhost on the port provided as the first argument, announces itself
+   * with the trial id provided as the second argument and echos all data.
    * 
    * <p>Once the connection has been closed it prints the remaining args to stdout
    */
@@ -122,6 +141,8 @@ final class FakeWorkers {
           new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
       OutputStreamWriter writer = 
           new OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8);
+      writer.write(new Gson().toJson(new StartupAnnounceMessage(UUID.fromString(args[1]))));
+      writer.write('\n');
       writer.write("start\n");
       writer.flush();
       String line;
@@ -130,7 +151,7 @@ final class FakeWorkers {
         writer.flush();
       }
       socket.close();
-      for (int i = 1; i < args.length; i++) {
+      for (int i = 2; i < args.length; i++) {
         System.out.println(args[i]);
         System.out.flush();
       }
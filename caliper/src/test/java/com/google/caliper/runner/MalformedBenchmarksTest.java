@@ -55,7 +55,8 @@ public class MalformedBenchmarksTest {
   private static final String STATIC_BENCHMARK =
       "Benchmark methods must not be static: timeIt";
   private static final String WRONG_ARGUMENTS =
-      "Benchmark methods must have no arguments or accept a single int or long parameter: timeIt";
+      "Benchmark methods must have no arguments or accept an int or long parameter, "
+      + "optionally followed by a Blackhole: timeIt";
   private static final String STATIC_PARAM =
       "Parameter field 'oops' must not be static";
   private static final String RESERVED_PARAM =
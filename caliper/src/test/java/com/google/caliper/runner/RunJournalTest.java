@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.caliper.runner.TrialFixtures.experiment;
+import static com.google.caliper.runner.TrialFixtures.runtime;
+import static com.google.caliper.runner.TrialFixtures.trialBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.google.caliper.json.GsonModule;
+import com.google.caliper.model.Run;
+import com.google.caliper.model.Trial;
+import com.google.caliper.model.WarmupMeasurement;
+import com.google.caliper.util.InvalidCommandException;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.inject.Guice;
+
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * Tests {@link RunJournal}.
+ */
+@RunWith(JUnit4.class)
+public class RunJournalTest {
+  private final Gson gson = Guice.createInjector(new GsonModule()).getInstance(Gson.class);
+  private final Run run = new Run.Builder(UUID.randomUUID())
+      .label("journal")
+      .startTime(new Instant(0))
+      .build();
+
+  private File tempDir;
+  private File file;
+  private Experiment experiment;
+
+  @Before public void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    file = RunJournal.journalFile(tempDir, run.id());
+    experiment = experiment(ImmutableMap.<String, String>of());
+  }
+
+  @After public void tearDown() {
+    file.delete();
+    file.getParentFile().delete();
+    tempDir.delete();
+  }
+
+  @Test public void create_doesNotWriteUntilTrialCompletes() {
+    RunJournal.create(file, gson, run);
+    assertFalse(file.exists());
+  }
+
+  @Test public void roundTrip() throws Exception {
+    RunJournal journal = RunJournal.create(file, gson, run);
+    Trial trial = trial();
+    journal.recordTrial(experiment, trial);
+    journal.recordFailure(experiment);
+
+    RunJournal resumed = RunJournal.resume(file, gson);
+    assertEquals(run, resumed.run());
+    assertEquals(2, resumed.entries().size());
+    RunJournal.Entry completed = resumed.entries().get(0);
+    assertEquals(experiment.toString(), completed.experiment());
+    assertEquals(trial, completed.trial().get());
+    RunJournal.Entry failed = resumed.entries().get(1);
+    assertEquals(experiment.toString(), failed.experiment());
+    assertFalse(failed.trial().isPresent());
+  }
+
+  @Test public void resume_ignoresIncompleteLastEntry() throws Exception {
+    RunJournal journal = RunJournal.create(file, gson, run);
+    journal.recordTrial(experiment, trial());
+    Files.append("{\"experiment\":\"trunc", file, Charsets.UTF_8);
+
+    RunJournal resumed = RunJournal.resume(file, gson);
+    assertEquals(1, resumed.entries().size());
+
+    // the next entry must not be glued to the incomplete one
+    resumed.recordFailure(experiment);
+    assertEquals(2, RunJournal.resume(file, gson).entries().size());
+  }
+
+  @Test public void delete_completedRunCannotBeResumed() throws Exception {
+    RunJournal journal = RunJournal.create(file, gson, run);
+    journal.recordTrial(experiment, trial());
+    journal.delete();
+    assertFalse(file.exists());
+
+    journal.recordFailure(experiment);
+    assertFalse(file.exists());
+    try {
+      RunJournal.resume(file, gson);
+      fail();
+    } catch (InvalidCommandException expected) {}
+  }
+
+  @Test public void resume_missingJournal() {
+    try {
+      RunJournal.resume(file, gson);
+      fail();
+    } catch (InvalidCommandException expected) {}
+  }
+
+  @Test public void resume_corruptJournal() throws Exception {
+    Files.createParentDirs(file);
+    Files.write("not a run", file, Charsets.UTF_8);
+    try {
+      RunJournal.resume(file, gson);
+      fail();
+    } catch (InvalidCommandException expected) {}
+  }
+
+  private Trial trial() {
+    return trialBuilder()
+        .run(run)
+        .addWarmupMeasurement(new WarmupMeasurement.Builder()
+            .measurement(runtime(100))
+            .elapsedNanos(1000)
+            .build())
+        .build();
+  }
+}
@@ -18,19 +18,34 @@ package com.google.caliper.runner;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.caliper.Benchmark;
+import com.google.caliper.api.Blackhole;
 import com.google.caliper.api.Macrobenchmark;
+import com.google.caliper.bridge.StartMeasurementLogMessage;
+import com.google.caliper.bridge.StopMeasurementLogMessage;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Value;
+import com.google.caliper.model.WarmupMeasurement;
 import com.google.caliper.runner.Instrument.Instrumentation;
+import com.google.caliper.runner.Instrument.MeasurementCollectingVisitor;
+import com.google.caliper.runner.Instrument.SampleCollectingVisitor;
 import com.google.caliper.util.ShortDuration;
+import com.google.caliper.worker.LatencyHistogramWorker;
 import com.google.caliper.worker.MacrobenchmarkWorker;
 import com.google.caliper.worker.RuntimeWorker;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 
 import org.junit.Before;
 import org.junit.Ignore;
@@ -42,7 +57,10 @@ import org.junit.runners.JUnit4;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.MathContext;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -53,15 +71,19 @@ public class RuntimeInstrumentTest {
   @Rule public CaliperTestWatcher runner = new CaliperTestWatcher();
 
   private RuntimeInstrument instrument;
+  private StringWriter stderr;
 
   @Before public void createInstrument() {
+    this.stderr = new StringWriter();
     this.instrument = new RuntimeInstrument(ShortDuration.of(100, NANOSECONDS),
-        new PrintWriter(new StringWriter()), new PrintWriter(new StringWriter()));
+        new PrintWriter(new StringWriter()), new PrintWriter(stderr, true));
+    instrument.setOptions(ImmutableMap.<String, String>of());
   }
 
   @Test public void isBenchmarkMethod() {
     assertEquals(
-        ImmutableSet.of("macrobenchmark", "microbenchmark", "picobenchmark", "integerParam"),
+        ImmutableSet.of("macrobenchmark", "microbenchmark", "picobenchmark",
+            "blackholeBenchmark", "integerParam"),
         FluentIterable.from(Arrays.asList(RuntimeBenchmark.class.getDeclaredMethods()))
             .filter(new Predicate<Method>() {
               @Override public boolean apply(Method input) {
@@ -84,6 +106,14 @@ public class RuntimeInstrumentTest {
     assertEquals(MacrobenchmarkWorker.class, instrumentation.workerClass());
   }
 
+  @Test public void createInstrumentation_latencyHistogram() throws Exception {
+    instrument.setOptions(ImmutableMap.of("latencyHistogram", "true", "timingInterval", "1ms"));
+    Method benchmarkMethod = RuntimeBenchmark.class.getDeclaredMethod("macrobenchmark");
+    Instrumentation instrumentation = instrument.createInstrumentation(benchmarkMethod);
+    assertEquals(LatencyHistogramWorker.class, instrumentation.workerClass());
+    assertEquals("1000000", instrumentation.workerOptions().get("timingIntervalNanos"));
+  }
+
   @Test public void createInstrumentation_microbenchmark() throws Exception {
     Method benchmarkMethod = RuntimeBenchmark.class.getDeclaredMethod("microbenchmark", int.class);
     Instrumentation instrumentation = instrument.createInstrumentation(benchmarkMethod);
@@ -100,6 +130,137 @@ public class RuntimeInstrumentTest {
     assertEquals(RuntimeWorker.Pico.class, instrumentation.workerClass());
   }
 
+  @Test public void createInstrumentation_blackhole() throws Exception {
+    Method benchmarkMethod =
+        RuntimeBenchmark.class.getDeclaredMethod("blackholeBenchmark", int.class, Blackhole.class);
+    Instrumentation instrumentation = instrument.createInstrumentation(benchmarkMethod);
+    assertEquals(RuntimeWorker.Micro.class, instrumentation.workerClass());
+  }
+
+  @Test public void dryRun_warnsAboutRuntimesThatDoNotScale() throws Exception {
+    Method benchmarkMethod = ScalingBenchmark.class.getDeclaredMethod("ignoresReps", int.class);
+    ImmutableList<String> warnings =
+        instrument.createInstrumentation(benchmarkMethod).dryRun(new ScalingBenchmark());
+    assertTrue(Iterables.getOnlyElement(warnings).contains("doesn't grow with its reps"));
+  }
+
+  @Test public void dryRun_scalingRuntime() throws Exception {
+    Method benchmarkMethod =
+        ScalingBenchmark.class.getDeclaredMethod("consumes", long.class, Blackhole.class);
+    assertEquals(ImmutableList.of(),
+        instrument.createInstrumentation(benchmarkMethod).dryRun(new ScalingBenchmark()));
+  }
+
+  @Test public void warmupEndsOnceTheRuntimeIsSteady() throws Exception {
+    instrument.setOptions(ImmutableMap.<String, String>builder()
+        .put("warmup", "10s")
+        .put("steadyStateWarmup", "true")
+        .put("minWarmup", "1s")
+        .put("steadyStateWindow", "4")
+        .put("steadyStateTolerance", "0.05")
+        .put("measurements", "1")
+        .put("suggestGranularity", "false")
+        .put("recordWarmup", "true")
+        .build());
+    Method benchmarkMethod = RuntimeBenchmark.class.getDeclaredMethod("microbenchmark", int.class);
+    MeasurementCollectingVisitor collector =
+        instrument.createInstrumentation(benchmarkMethod).getMeasurementCollectingVisitor();
+    // 500ms each, with ever fewer reps until the last four
+    for (long reps : new long[] {1000, 4000, 5000, 5000, 5000, 5000}) {
+      assertFalse(collector.isDoneCollecting());
+      collector.visit(new StartMeasurementLogMessage());
+      ((SampleCollectingVisitor) collector).collectSamples(new long[] {100, 100}, 1);
+      collector.visit(new StopMeasurementLogMessage(
+          ImmutableList.of(runtime(500000000, reps)), ImmutableMap.of(100L, reps)));
+    }
+    assertFalse(collector.isDoneCollecting());
+    assertEquals(ImmutableMap.of(
+        "warmup.millis", "3000",
+        "warmup.measurements", "6",
+        "warmup.steadyState", "true",
+        "warmup.curve", "500000,125000,100000,100000,100000,100000"),
+        collector.properties());
+    assertEquals(6, collector.getWarmupMeasurements().size());
+    long elapsedNanos = 0;
+    for (WarmupMeasurement warmupMeasurement : collector.getWarmupMeasurements()) {
+      assertTrue(warmupMeasurement.elapsedNanos() >= elapsedNanos);
+      elapsedNanos = warmupMeasurement.elapsedNanos();
+    }
+
+    collector.visit(new StartMeasurementLogMessage());
+    ((SampleCollectingVisitor) collector).collectSamples(new long[] {90, 120, 0}, 2);
+    collector.visit(new StopMeasurementLogMessage(
+        ImmutableList.of(runtime(500000000, 5000)), ImmutableMap.of(90L, 4000L, 110L, 1000L)));
+    assertTrue(collector.isDoneCollecting());
+    assertEquals(1, collector.getMeasurements().size());
+    // only the latencies of the measurements that are kept, from the message and the samples
+    assertEquals(ImmutableSortedMap.of(90L, 4001L, 110L, 1000L, 120L, 1L),
+        collector.getLatencies());
+  }
+
+  @Test public void warmupTakesTheWholeWarmupByDefault() throws Exception {
+    instrument.setOptions(ImmutableMap.<String, String>builder()
+        .put("warmup", "3s")
+        .put("steadyStateWarmup", "false")
+        .put("minWarmup", "1s")
+        .put("steadyStateWindow", "2")
+        .put("steadyStateTolerance", "0.05")
+        .put("measurements", "1")
+        .put("suggestGranularity", "false")
+        .put("recordWarmup", "false")
+        .build());
+    Method benchmarkMethod = RuntimeBenchmark.class.getDeclaredMethod("microbenchmark", int.class);
+    MeasurementCollectingVisitor collector =
+        instrument.createInstrumentation(benchmarkMethod).getMeasurementCollectingVisitor();
+    // steady from the start, but the warmup only ends after 3s
+    for (int i = 0; i < 7; i++) {
+      assertFalse(collector.isDoneCollecting());
+      collector.visit(new StartMeasurementLogMessage());
+      collector.visit(new StopMeasurementLogMessage(ImmutableList.of(runtime(500000000, 5000))));
+    }
+    assertTrue(collector.isDoneCollecting());
+    assertEquals("6", collector.properties().get("warmup.measurements"));
+    assertEquals("false", collector.properties().get("warmup.steadyState"));
+  }
+
+  @Test public void warmupCurveIsDownsampled() throws Exception {
+    instrument.setOptions(ImmutableMap.<String, String>builder()
+        .put("warmup", "1s")
+        .put("steadyStateWarmup", "false")
+        .put("measurements", "1")
+        .put("suggestGranularity", "false")
+        .put("recordWarmup", "false")
+        .build());
+    Method benchmarkMethod = RuntimeBenchmark.class.getDeclaredMethod("microbenchmark", int.class);
+    MeasurementCollectingVisitor collector =
+        instrument.createInstrumentation(benchmarkMethod).getMeasurementCollectingVisitor();
+    // 1000 warmup measurements of 1ms each, getting faster by 1ns per rep each time
+    for (int i = 0; i < 1000; i++) {
+      collector.visit(new StartMeasurementLogMessage());
+      collector.visit(new StopMeasurementLogMessage(
+          ImmutableList.of(runtime(1000000, 1000000 / (2000 - i)))));
+    }
+    assertEquals("1000", collector.properties().get("warmup.measurements"));
+    List<String> curve =
+        Splitter.on(',').splitToList(collector.properties().get("warmup.curve"));
+    assertEquals(RuntimeInstrument.WARMUP_CURVE_POINTS, curve.size());
+    assertEquals(runtimePerRep(0), curve.get(0));
+    assertEquals(runtimePerRep(999), curve.get(curve.size() - 1));
+  }
+
+  private static String runtimePerRep(int warmupMeasurement) {
+    double nanosPerRep = 1000000.0 / (1000000 / (2000 - warmupMeasurement));
+    return new BigDecimal(nanosPerRep).round(new MathContext(4)).toPlainString();
+  }
+
+  private static Measurement runtime(double nanos, long reps) {
+    return new Measurement.Builder()
+        .description("runtime")
+        .value(Value.create(nanos, "ns"))
+        .weight(reps)
+        .build();
+  }
+
   @Test public void createInstrumentation_badParam() throws Exception {
     Method benchmarkMethod =
         RuntimeBenchmark.class.getDeclaredMethod("integerParam", Integer.class);
@@ -140,6 +301,7 @@ public class RuntimeInstrumentTest {
     @Benchmark void macrobenchmark() {}
     @Benchmark void microbenchmark(int reps) {}
     @Benchmark void picobenchmark(long reps) {}
+    @Benchmark void blackholeBenchmark(int reps, Blackhole blackhole) {}
 
     @Benchmark void integerParam(Integer oops) {}
 
@@ -148,6 +310,16 @@ public class RuntimeInstrumentTest {
     void notAPicobenchmark(long reps) {}
   }
 
+  static final class ScalingBenchmark {
+    @Benchmark void ignoresReps(int reps) {}
+
+    @Benchmark void consumes(long reps, Blackhole blackhole) {
+      for (long i = 0; i < reps; i++) {
+        blackhole.consume(Long.toString(i));
+      }
+    }
+  }
+
   private double relativeDifference(double a, double b) {
     return Math.abs(a - b) / ((a + b) / 2.0);
   }
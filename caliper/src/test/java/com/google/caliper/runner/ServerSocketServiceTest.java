@@ -14,11 +14,17 @@
 
 package com.google.caliper.runner;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.caliper.bridge.BinaryMessageCodec;
+import com.google.caliper.bridge.CaliperControlLogMessage;
+import com.google.caliper.bridge.MessageEncoding;
+import com.google.caliper.bridge.StartMeasurementLogMessage;
 import com.google.caliper.bridge.StartupAnnounceMessage;
 import com.google.caliper.runner.ServerSocketService.OpenedSocket;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -30,12 +36,21 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for {@link ServerSocketService}.
@@ -61,14 +76,14 @@ public class ServerSocketServiceTest {
     UUID id = UUID.randomUUID();
     ListenableFuture<OpenedSocket> pendingServerConnection = service.getConnection(id);
     assertFalse(pendingServerConnection.isDone());
-    OpenedSocket clientSocket = openConnectionAndIdentify(id);
+    Socket clientSocket = openConnectionAndIdentify(id);
     // Assert that the ends are hooked up to each other
     assertEndsConnected(clientSocket, pendingServerConnection.get());
   }
 
   @Test public void getConnectionIdTwice_acceptComesFirst() throws Exception {
     UUID id = UUID.randomUUID();
-    OpenedSocket clientSocket = openConnectionAndIdentify(id);
+    Socket clientSocket = openConnectionAndIdentify(id);
 
     ListenableFuture<OpenedSocket> pendingServerConnection = service.getConnection(id);
     // wait for the service to fully initialize the connection
@@ -101,30 +116,180 @@ public class ServerSocketServiceTest {
     } catch (IllegalStateException expected) {}
   }
 
-  private OpenedSocket openClientConnection() throws IOException {
-    return OpenedSocket.fromSocket(new Socket(InetAddress.getLocalHost(), port));
+  @Test public void readsWhatWasSentBeforeReadingStarted() throws Exception {
+    UUID id = UUID.randomUUID();
+    Socket clientSocket = new Socket(InetAddress.getLocalHost(), port);
+    Writer writer = new OutputStreamWriter(clientSocket.getOutputStream(), UTF_8);
+    writer.write(gson.toJson(new StartupAnnounceMessage(id)) + "\nfirst\nlast");
+    writer.close();
+
+    QueueingHandler handler = new QueueingHandler();
+    service.getConnection(id).get().startReading(handler);
+    assertEquals("first", handler.take());
+    assertEquals("last", handler.take());
+    assertEquals(QueueingHandler.CLOSED, handler.take());
+  }
+
+  @Test public void readsBinaryFrames() throws Exception {
+    UUID id = UUID.randomUUID();
+    Socket clientSocket = new Socket(InetAddress.getLocalHost(), port);
+    OutputStream out = clientSocket.getOutputStream();
+    out.write((gson.toJson(new StartupAnnounceMessage(id, MessageEncoding.BINARY)) + "\n")
+        .getBytes(UTF_8));
+    out.flush();
+    OpenedSocket serverSocket = service.getConnection(id).get();
+    assertEquals(MessageEncoding.BINARY, serverSocket.encoding());
+    QueueingHandler handler = new QueueingHandler();
+    serverSocket.startReading(handler);
+
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    DataOutputStream framesOut = new DataOutputStream(frames);
+    BinaryMessageCodec.write(framesOut, new StartMeasurementLogMessage(), null);
+    BinaryMessageCodec.writeLine(framesOut, "some output");
+    byte[] bytes = frames.toByteArray();
+    // the frames arrive in pieces
+    out.write(bytes, 0, 3);
+    out.flush();
+    Thread.sleep(10);
+    out.write(bytes, 3, bytes.length - 3);
+    out.close();
+
+    assertEquals(new StartMeasurementLogMessage(), handler.take());
+    assertEquals("some output", handler.take());
+    assertEquals(QueueingHandler.CLOSED, handler.take());
+  }
+
+  @Test public void frameThatIsTooLongFails() throws Exception {
+    for (int length : new int[] {-1, BinaryMessageCodec.MAX_FRAME_LENGTH + 1}) {
+      UUID id = UUID.randomUUID();
+      Socket clientSocket = new Socket(InetAddress.getLocalHost(), port);
+      DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+      out.write((gson.toJson(new StartupAnnounceMessage(id, MessageEncoding.BINARY)) + "\n")
+          .getBytes(UTF_8));
+      out.flush();
+      QueueingHandler handler = new QueueingHandler();
+      service.getConnection(id).get().startReading(handler);
+      BinaryMessageCodec.writeLine(out, "some output");
+      out.writeInt(length);
+      out.writeByte(0);
+      out.flush();
+
+      assertEquals("some output", handler.take());
+      IOException failure = (IOException) handler.take();
+      assertTrue(failure.getMessage(), failure.getMessage().contains("at most"));
+      // nothing else is handed to the handler
+      assertEquals(null, handler.items.poll(100, TimeUnit.MILLISECONDS));
+      clientSocket.close();
+    }
+  }
+
+  @Test public void handlerThatThrowsFails() throws Exception {
+    UUID id = UUID.randomUUID();
+    Socket clientSocket = new Socket(InetAddress.getLocalHost(), port);
+    Writer writer = new OutputStreamWriter(clientSocket.getOutputStream(), UTF_8);
+    writer.write(gson.toJson(new StartupAnnounceMessage(id)) + "\nbad\nignored\n");
+    writer.flush();
+
+    final RuntimeException thrown = new IllegalStateException("bad line");
+    QueueingHandler handler = new QueueingHandler() {
+      @Override public void line(String line) {
+        if (line.equals("bad")) {
+          throw thrown;
+        }
+        super.line(line);
+      }
+    };
+    service.getConnection(id).get().startReading(handler);
+    IOException failure = (IOException) handler.take();
+    assertEquals(thrown, failure.getCause());
+    // nothing else is handed to the handler
+    assertEquals(null, handler.items.poll(100, TimeUnit.MILLISECONDS));
+    writer.close();
+  }
+
+  @Test public void pausedReadingResumesWhereItLeftOff() throws Exception {
+    UUID id = UUID.randomUUID();
+    Socket clientSocket = new Socket(InetAddress.getLocalHost(), port);
+    Writer writer = new OutputStreamWriter(clientSocket.getOutputStream(), UTF_8);
+    writer.write(gson.toJson(new StartupAnnounceMessage(id)) + "\nfirst\nsecond\n");
+    writer.flush();
+
+    final OpenedSocket serverSocket = service.getConnection(id).get();
+    QueueingHandler handler = new QueueingHandler() {
+      @Override public void line(String line) {
+        super.line(line);
+        serverSocket.pauseReading();
+      }
+    };
+    serverSocket.startReading(handler);
+    assertEquals("first", handler.take());
+    writer.write("last");
+    writer.close();
+    // nothing else is handed to the handler until reading resumes
+    assertEquals(null, handler.items.poll(100, TimeUnit.MILLISECONDS));
+
+    serverSocket.resumeReading();
+    assertEquals("second", handler.take());
+    serverSocket.resumeReading();
+    assertEquals("last", handler.take());
+    serverSocket.resumeReading();
+    assertEquals(QueueingHandler.CLOSED, handler.take());
   }
 
   /**
    * Opens a connection to the service and identifies itself using the id.
    */
-  private OpenedSocket openConnectionAndIdentify(UUID id) throws IOException {
-    OpenedSocket clientSocket = openClientConnection();
-    Writer writer = clientSocket.writer();
+  private Socket openConnectionAndIdentify(UUID id) throws IOException {
+    Socket clientSocket = new Socket(InetAddress.getLocalHost(), port);
+    Writer writer = new OutputStreamWriter(clientSocket.getOutputStream(), UTF_8);
     writer.write(gson.toJson(new StartupAnnounceMessage(id)));
     writer.write('\n');
     writer.flush();
     return clientSocket;
   }
 
-  private void assertEndsConnected(OpenedSocket clientSocket, OpenedSocket serverSocket)
-      throws IOException {
+  private void assertEndsConnected(Socket clientSocket, OpenedSocket serverSocket)
+      throws Exception {
     serverSocket.writer().write("hello client!\n");
     serverSocket.writer().flush();  // necessary to prevent deadlock
-    assertEquals("hello client!", clientSocket.reader().readLine());
+    BufferedReader clientReader =
+        new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), UTF_8));
+    assertEquals("hello client!", clientReader.readLine());
 
-    clientSocket.writer().write("hello server!\n");
-    clientSocket.writer().flush();  // ditto
-    assertEquals("hello server!", serverSocket.reader().readLine());
+    Writer clientWriter = new OutputStreamWriter(clientSocket.getOutputStream(), UTF_8);
+    clientWriter.write("hello server!\n");
+    clientWriter.flush();  // ditto
+    QueueingHandler handler = new QueueingHandler();
+    serverSocket.startReading(handler);
+    assertEquals("hello server!", handler.take());
+  }
+
+  /** Puts everything that is read onto a queue. */
+  private static class QueueingHandler implements OpenedSocket.Handler {
+    static final Object CLOSED = new Object();
+
+    final BlockingQueue<Object> items = new LinkedBlockingQueue<Object>();
+
+    Object take() throws InterruptedException {
+      Object item = items.poll(10, TimeUnit.SECONDS);
+      assertNotNull("Timed out while reading from the socket", item);
+      return item;
+    }
+
+    @Override public void line(String line) {
+      items.add(line);
+    }
+
+    @Override public void message(CaliperControlLogMessage message) {
+      items.add(message);
+    }
+
+    @Override public void closed() {
+      items.add(CLOSED);
+    }
+
+    @Override public void failed(IOException e) {
+      items.add(e);
+    }
   }
 }
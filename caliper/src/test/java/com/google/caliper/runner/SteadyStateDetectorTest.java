@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link SteadyStateDetector}.
+ */
+@RunWith(JUnit4.class)
+public class SteadyStateDetectorTest {
+  @Test public void steadyOnceTheWindowIsFull() {
+    SteadyStateDetector detector = new SteadyStateDetector(4, 0.05);
+    for (int i = 0; i < 3; i++) {
+      detector.add(10);
+      assertFalse(detector.isSteady());
+    }
+    detector.add(10);
+    assertTrue(detector.isSteady());
+  }
+
+  @Test public void notSteadyWhileGettingFaster() {
+    SteadyStateDetector detector = new SteadyStateDetector(4, 0.05);
+    for (double nanosPerRep : new double[] {100, 50, 20, 12, 11, 10.5}) {
+      detector.add(nanosPerRep);
+      assertFalse(detector.isSteady());
+    }
+    // the older half of the window is {11, 10.5}
+    detector.add(10.2);
+    detector.add(10.3);
+    assertTrue(detector.isSteady());
+  }
+
+  @Test public void noiseWithinTheTolerance() {
+    SteadyStateDetector detector = new SteadyStateDetector(5, 0.05);
+    for (double nanosPerRep : new double[] {10, 10.2, 1000, 10.1, 10.3}) {
+      detector.add(nanosPerRep);
+    }
+    // the outlier is in the middle of the window, which is in neither half
+    assertTrue(detector.isSteady());
+    detector.add(10);
+    assertFalse(detector.isSteady());
+  }
+}
@@ -16,23 +16,27 @@ package com.google.caliper.runner;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.caliper.bridge.BridgeModule;
 import com.google.caliper.bridge.LogMessage;
 import com.google.caliper.bridge.LogMessageVisitor;
+import com.google.caliper.json.GsonModule;
 import com.google.caliper.options.CaliperOptions;
-import com.google.caliper.runner.ServerSocketService.OpenedSocket;
 import com.google.caliper.runner.StreamService.StreamItem;
 import com.google.caliper.runner.StreamService.StreamItem.Kind;
 import com.google.caliper.util.Parser;
 import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Service.Listener;
 import com.google.common.util.concurrent.Service.State;
+import com.google.gson.Gson;
+import com.google.inject.Guice;
+import com.google.inject.Key;
 
 import org.junit.After;
 import org.junit.Before;
@@ -46,14 +50,12 @@ import org.mockito.MockitoAnnotations;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.ServerSocket;
-import java.net.SocketException;
 import java.text.ParseException;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for {@link StreamService}.
@@ -62,7 +64,8 @@ import java.util.concurrent.TimeUnit;
 
 public class StreamServiceTest {
 
-  private ServerSocket serverSocket;
+  private final ServerSocketService serverSocketService = new ServerSocketService(new Gson());
+  private final UUID trialId = UUID.randomUUID();
   @Mock CaliperOptions options;
   private final StringWriter writer = new StringWriter();
   private final PrintWriter stdout = new PrintWriter(writer, true);
@@ -76,6 +79,9 @@ public class StreamServiceTest {
       };
     }
   };
+  private final Parser<LogMessage> logMessageParser =
+      Guice.createInjector(new GsonModule(), new BridgeModule())
+          .getInstance(new Key<Parser<LogMessage>>() {});
   private StreamService service;
   private final CountDownLatch terminalLatch = new CountDownLatch(1);
   private static final int TRIAL_NUMBER = 3;
@@ -83,11 +89,11 @@ public class StreamServiceTest {
   @Before public void setUp() throws IOException {
     MockitoAnnotations.initMocks(this);
     Mockito.when(options.verbose()).thenReturn(true);
-    serverSocket = new ServerSocket(0);
+    serverSocketService.startAsync().awaitRunning();
   }
 
   @After public void closeSocket() throws IOException {
-    serverSocket.close();
+    serverSocketService.stopAsync().awaitTerminated();
   }
 
   @After public void stopService() {
@@ -132,9 +138,10 @@ public class StreamServiceTest {
   }
 
   @Test public void testSocketInputOutput() throws Exception {
-    int localport = serverSocket.getLocalPort();
+    int localport = serverSocketService.getPort();
     // read from the socket and echo it back
-    makeService(FakeWorkers.SocketEchoClient.class, Integer.toString(localport));
+    makeService(FakeWorkers.SocketEchoClient.class, Integer.toString(localport),
+        trialId.toString());
 
     service.startAsync().awaitRunning();
     assertEquals("start", readItem().content().toString());
@@ -148,9 +155,10 @@ public class StreamServiceTest {
   }
 
   @Test public void testSocketClosesBeforeProcess() throws Exception {
-    int localport = serverSocket.getLocalPort();
+    int localport = serverSocketService.getPort();
     // read from the socket and echo it back
-    makeService(FakeWorkers.SocketEchoClient.class, Integer.toString(localport), "foo");
+    makeService(FakeWorkers.SocketEchoClient.class, Integer.toString(localport),
+        trialId.toString(), "foo");
     service.startAsync().awaitRunning();
     assertEquals("start", readItem().content().toString());
     service.writeLine("hello socket world");
@@ -166,13 +174,68 @@ public class StreamServiceTest {
   }
 
   @Test public void failsToAcceptConnection() throws Exception {
-    serverSocket.close();  // This will force serverSocket.accept to throw a SocketException
     makeService(FakeWorkers.Sleeper.class, Long.toString(TimeUnit.MINUTES.toMillis(10)));
+    // This will fail the pending connection
+    serverSocketService.stopAsync().awaitTerminated();
     try {
       service.startAsync().awaitRunning();
       fail();
     } catch (IllegalStateException ignored) {}
-    assertEquals(SocketException.class, service.failureCause().getClass());
+    assertEquals("The socket has been closed", service.failureCause().getMessage());
+  }
+
+  @Test public void outputQueue_coalescesGenericLines() throws Exception {
+    StreamService.OutputQueue queue = new StreamService.OutputQueue(10);
+    queue.add(new StreamItem(parser.parse("interesting")));
+    queue.add(new StreamItem(logMessageParser.parse("generic 1")));
+    queue.put(new StreamItem(logMessageParser.parse("generic 2")));
+    queue.add(new StreamItem(logMessageParser.parse("generic 3")));
+
+    assertEquals("interesting", queue.poll(0, TimeUnit.SECONDS).content().toString());
+    assertTrue(queue.poll(0, TimeUnit.SECONDS).isGeneric());
+    assertNull(queue.poll(0, TimeUnit.SECONDS));
+    assertEquals("2", queue.properties().get(StreamService.MAX_QUEUE_DEPTH_PROPERTY));
+    assertEquals("2", queue.properties().get(StreamService.COALESCED_LINES_PROPERTY));
+  }
+
+  @Test public void outputQueue_offerKeepsEverythingAndSaysWhenThereIsRoom() throws Exception {
+    StreamService.OutputQueue queue = new StreamService.OutputQueue(1);
+    final AtomicInteger madeRoom = new AtomicInteger();
+    Runnable whenNotFull = new Runnable() {
+      @Override public void run() {
+        madeRoom.incrementAndGet();
+      }
+    };
+    assertFalse(queue.offer(new StreamItem(parser.parse("first")), whenNotFull));
+    assertFalse(queue.offer(new StreamItem(logMessageParser.parse("generic")), whenNotFull));
+
+    assertEquals("first", queue.poll(0, TimeUnit.SECONDS).content().toString());
+    assertEquals(0, madeRoom.get());
+    assertTrue(queue.poll(0, TimeUnit.SECONDS).isGeneric());
+    assertEquals(1, madeRoom.get());
+    assertFalse(queue.offer(new StreamItem(parser.parse("second")), whenNotFull));
+    assertEquals("2", queue.properties().get(StreamService.MAX_QUEUE_DEPTH_PROPERTY));
+  }
+
+  @Test public void outputQueue_putWaitsForRoom() throws Exception {
+    final StreamService.OutputQueue queue = new StreamService.OutputQueue(1);
+    queue.put(new StreamItem(parser.parse("first")));
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          queue.put(new StreamItem(parser.parse("second")));
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join(100);
+    assertTrue(thread.isAlive());
+
+    assertEquals("first", queue.poll(0, TimeUnit.SECONDS).content().toString());
+    assertEquals("second", queue.poll(10, TimeUnit.SECONDS).content().toString());
+    thread.join();
   }
 
   /** Reads an item, asserting that there was no timeout. */
@@ -203,10 +266,10 @@ public class StreamServiceTest {
     checkState(service == null, "You can only make one StreamService per test");
     service = new StreamService(
         new WorkerProcess(FakeWorkers.createProcessBuilder(main, args),
-            UUID.randomUUID(),
-            getSocketFuture(),
+            trialId,
+            serverSocketService.getConnection(trialId),
             new RuntimeShutdownHookRegistrar()),
-        TRIAL_NUMBER, parser, options, stdout);
+        TRIAL_NUMBER, parser, new Gson(), options, stdout);
     service.addListener(new Listener() {
       @Override public void starting() {}
       @Override public void running() {}
@@ -219,20 +282,4 @@ public class StreamServiceTest {
       }
     }, MoreExecutors.sameThreadExecutor());
   }
-
-  private ListenableFuture<OpenedSocket> getSocketFuture() {
-    ListenableFutureTask<OpenedSocket> openSocketTask = ListenableFutureTask.create(
-        new Callable<OpenedSocket>() {
-          @Override
-          public OpenedSocket call() throws Exception {
-            return OpenedSocket.fromSocket(serverSocket.accept());
-          }
-        });
-    // N.B. this thread will block on serverSocket.accept until a connection is accepted or the
-    // socket is closed, so no matter what this thread will die with the test.
-    Thread opener = new Thread(openSocketTask, "SocketOpener");
-    opener.setDaemon(true);
-    opener.start();
-    return openSocketTask;
-  }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.caliper.runner.TrialFixtures.runtime;
+import static com.google.caliper.runner.TrialFixtures.trialBuilder;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.caliper.model.Trial;
+import com.google.caliper.util.ShortDuration;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link TimeBudget}.
+ */
+@RunWith(JUnit4.class)
+public class TimeBudgetTest {
+  private final FakeTicker ticker = new FakeTicker();
+  private final TrialCountPolicy policy = TrialCountPolicy.fixed(20);
+  private final TimeBudget budget = TimeBudget.of(ShortDuration.of(10, SECONDS), 1, ticker);
+  private Experiment a;
+  private Experiment b;
+  private ImmutableList<Experiment> both;
+
+  @Before public void setUp() throws Exception {
+    a = experiment("a");
+    b = experiment("b");
+    both = ImmutableList.of(a, b);
+    budget.start();
+  }
+
+  @Test public void unlimited() {
+    assertFalse(TimeBudget.unlimited().isLimited());
+    assertTrue(budget.isLimited());
+  }
+
+  @Test public void calibratesWithOneTrial() {
+    assertEquals(ImmutableList.of(a), budget.nextRound(both, policy));
+  }
+
+  @Test public void estimatesFromOtherExperiments() {
+    budget.recordTrial(a, SECONDS.toNanos(4));
+    assertEquals(SECONDS.toNanos(4), budget.estimatedTrialNanos(b));
+    assertEquals(both, budget.nextRound(both, policy));
+  }
+
+  @Test public void dryRunBoundsEstimate() {
+    budget.recordTrial(a, SECONDS.toNanos(4));
+    budget.recordDryRun(b, SECONDS.toNanos(11));
+    assertEquals(SECONDS.toNanos(11), budget.estimatedTrialNanos(b));
+    assertEquals(ImmutableList.of(a), budget.nextRound(both, policy));
+  }
+
+  @Test public void leavesOutTrialsThatDontFit() {
+    budget.recordTrial(a, SECONDS.toNanos(6));
+    budget.recordTrial(b, SECONDS.toNanos(2));
+    ticker.advance(SECONDS.toNanos(5));
+    assertEquals(ImmutableList.of(b), budget.nextRound(both, policy));
+    ticker.advance(SECONDS.toNanos(5));
+    assertEquals(0, budget.remainingNanos());
+    assertEquals(ImmutableList.of(), budget.nextRound(both, policy));
+  }
+
+  @Test public void leavesOutTrialsLongerThanTheRemainingTimeOnAnySlot() {
+    TimeBudget parallel = TimeBudget.of(ShortDuration.of(10, SECONDS), 4, ticker);
+    parallel.start();
+    parallel.recordTrial(a, SECONDS.toNanos(12));
+    parallel.recordTrial(b, SECONDS.toNanos(3));
+    // 4 slots have 40s between them, but a's trial would still run past the budget on its own
+    assertEquals(ImmutableList.of(b), parallel.nextRound(both, policy));
+    ticker.advance(SECONDS.toNanos(8));
+    assertEquals(ImmutableList.of(), parallel.nextRound(both, policy));
+  }
+
+  @Test public void leavesOutTrialsThatWouldEndAfterTheBudgetOnTheirSlot() throws Exception {
+    TimeBudget parallel = TimeBudget.of(ShortDuration.of(10, SECONDS), 2, ticker);
+    parallel.start();
+    Experiment c = experiment("c");
+    parallel.recordTrial(a, SECONDS.toNanos(6));
+    parallel.recordTrial(b, SECONDS.toNanos(6));
+    parallel.recordTrial(c, SECONDS.toNanos(6));
+    // 2 slots have 20s between them, but the third trial would start at 6s and end at 12s
+    assertEquals(ImmutableList.of(a, b),
+        parallel.nextRound(ImmutableList.of(a, b, c), policy));
+  }
+
+  @Test public void favorsLeastPreciseExperiments() throws Exception {
+    for (int i = 0; i < TrialCountPolicy.minimumTrials(); i++) {
+      policy.recordTrial(a, trial(100 + i % 2));
+      policy.recordTrial(b, trial(100 + 10 * i));
+      budget.recordTrial(a, 1);
+      budget.recordTrial(b, 1);
+    }
+    assertEquals(ImmutableList.of(b), budget.nextRound(both, policy));
+    // until then, experiments with too few trials to tell go first
+    Experiment c = experiment("c");
+    assertEquals(ImmutableList.of(c, b), budget.nextRound(ImmutableList.of(a, b, c), policy));
+  }
+
+  private static Experiment experiment(String parameter) throws Exception {
+    return TrialFixtures.experiment(ImmutableMap.of("x", parameter));
+  }
+
+  private static Trial trial(double nanos) {
+    return trialBuilder().addMeasurement(runtime(nanos)).build();
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advance(long nanos) {
+      this.nanos += nanos;
+    }
+
+    @Override public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.caliper.runner.TrialCountPolicy.STOP_REASON_PROPERTY;
+import static com.google.caliper.runner.TrialFixtures.experiment;
+import static com.google.caliper.runner.TrialFixtures.measurement;
+import static com.google.caliper.runner.TrialFixtures.runtime;
+import static com.google.caliper.runner.TrialFixtures.trialBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.google.caliper.model.Trial;
+import com.google.caliper.runner.TrialCountPolicy.StopReason;
+import com.google.caliper.worker.RuntimeWorker;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link TrialCountPolicy}.
+ */
+@RunWith(JUnit4.class)
+public class TrialCountPolicyTest {
+  private Experiment experiment;
+
+  @Before public void setUp() throws Exception {
+    experiment = experiment(ImmutableMap.<String, String>of());
+  }
+
+  @Test public void minimumTrials() {
+    // 2 * 0.5^5 > 0.05 >= 2 * 0.5^6
+    assertEquals(6, TrialCountPolicy.minimumTrials());
+  }
+
+  @Test public void relativeWidth_tooFewValues() {
+    assertEquals(Optional.absent(), TrialCountPolicy.relativeWidth(new double[] {1, 2, 3, 4, 5}));
+  }
+
+  @Test public void relativeWidth_identicalValues() {
+    assertEquals(Optional.of(0.0),
+        TrialCountPolicy.relativeWidth(new double[] {7, 7, 7, 7, 7, 7}));
+  }
+
+  @Test public void relativeWidth_minimumTrialsSpansAllValues() {
+    assertEquals(5 / 3.5,
+        TrialCountPolicy.relativeWidth(new double[] {6, 1, 5, 2, 4, 3}).get(), 1e-9);
+  }
+
+  @Test public void relativeWidth_orderStatistics() {
+    double[] values = new double[20];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = values.length - i;
+    }
+    // P(Binomial(20, 0.5) <= 5) = 0.021, so the interval is [x(6), x(15)]
+    assertEquals((15 - 6) / 10.5, TrialCountPolicy.relativeWidth(values).get(), 1e-9);
+  }
+
+  @Test public void adaptive_converges() {
+    TrialCountPolicy policy = TrialCountPolicy.adaptive(0.05, 20);
+    for (int i = 0; i < 5; i++) {
+      Trial trial = policy.recordTrial(experiment, trial(100 + i % 2));
+      assertFalse(trial.properties().containsKey(STOP_REASON_PROPERTY));
+    }
+    Trial last = policy.recordTrial(experiment, trial(100));
+    assertEquals(StopReason.CONVERGED.name(), last.properties().get(STOP_REASON_PROPERTY));
+    assertEquals(Optional.of(StopReason.CONVERGED), policy.stopReason(experiment));
+    assertEquals(6, policy.trialsRun(experiment));
+  }
+
+  @Test public void adaptive_budgetExhausted() {
+    TrialCountPolicy policy = TrialCountPolicy.adaptive(0.05, 7);
+    for (int i = 0; i < 5; i++) {
+      policy.recordTrial(experiment, trial(100 * (i + 1)));
+    }
+    // failures count against the budget
+    policy.recordFailure(experiment);
+    assertEquals(Optional.absent(), policy.stopReason(experiment));
+    Trial last = policy.recordTrial(experiment, trial(50));
+    assertEquals(StopReason.BUDGET_EXHAUSTED.name(),
+        last.properties().get(STOP_REASON_PROPERTY));
+  }
+
+  @Test public void adaptive_ignoresCorrectedRuntime() {
+    TrialCountPolicy policy = TrialCountPolicy.adaptive(0.05, 20);
+    for (int i = 0; i < 5; i++) {
+      policy.recordTrial(experiment, trial(100 + i % 2, 0.001 * (i + 1)));
+    }
+    // the corrected runtimes differ by a factor of 6, but the runtimes have converged
+    Trial last = policy.recordTrial(experiment, trial(100, 0.006));
+    assertEquals(StopReason.CONVERGED.name(), last.properties().get(STOP_REASON_PROPERTY));
+  }
+
+  @Test public void adaptive_tooFewTrials() {
+    try {
+      TrialCountPolicy.adaptive(0.05, 5);
+      fail();
+    } catch (IllegalArgumentException expected) {}
+  }
+
+  @Test public void fixed_doesNotAnnotateTrials() {
+    TrialCountPolicy policy = TrialCountPolicy.fixed(1);
+    Trial trial = trial(100);
+    assertEquals(trial, policy.recordTrial(experiment, trial));
+    assertEquals(Optional.of(StopReason.BUDGET_EXHAUSTED), policy.stopReason(experiment));
+  }
+
+  private static Trial trial(double nanos) {
+    return trialBuilder().addMeasurement(runtime(nanos)).build();
+  }
+
+  private static Trial trial(double nanos, double correctedNanos) {
+    return trialBuilder()
+        .addMeasurement(runtime(nanos))
+        .addMeasurement(measurement(RuntimeWorker.CORRECTED_DESCRIPTION, correctedNanos))
+        .addMeasurement(measurement(RuntimeWorker.OVERHEAD_DESCRIPTION, nanos - correctedNanos))
+        .build();
+  }
+}
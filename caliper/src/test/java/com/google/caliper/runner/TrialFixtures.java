@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import com.google.caliper.Benchmark;
+import com.google.caliper.config.VmConfig;
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Host;
+import com.google.caliper.model.InstrumentSpec;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Run;
+import com.google.caliper.model.Scenario;
+import com.google.caliper.model.Trial;
+import com.google.caliper.model.Value;
+import com.google.caliper.model.VmSpec;
+import com.google.caliper.worker.RuntimeWorker;
+
+import org.joda.time.Instant;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Experiments and trials of a {@link TestBenchmark} for the tests of the runner that only need
+ * some experiment or trial to work with.
+ */
+final class TrialFixtures {
+  private TrialFixtures() {}
+
+  static final VirtualMachine VM = new VirtualMachine("foo-jvm",
+      new VmConfig(new File("foo"), Arrays.<String>asList(), new File("java")));
+
+  /** Returns an experiment of {@link TestBenchmark#timeNothing} with the given parameters. */
+  static Experiment experiment(Map<String, String> userParameters) throws Exception {
+    return experiment("timeNothing", userParameters);
+  }
+
+  /** Returns an experiment of the given method of {@link TestBenchmark}. */
+  static Experiment experiment(String methodName, Map<String, String> userParameters)
+      throws Exception {
+    return new Experiment(
+        new AllocationInstrument().createInstrumentation(
+            TestBenchmark.class.getDeclaredMethod(methodName, int.class)),
+        userParameters,
+        VM);
+  }
+
+  /** Returns a builder of a trial of {@link TestBenchmark#timeNothing} with no measurements. */
+  static Trial.Builder trialBuilder() {
+    return new Trial.Builder(UUID.randomUUID())
+        .run(new Run.Builder(UUID.randomUUID()).startTime(new Instant(0)))
+        .instrumentSpec(new InstrumentSpec.Builder().className("TestInstrument"))
+        .scenario(new Scenario.Builder()
+            .host(new Host.Builder())
+            .vmSpec(new VmSpec.Builder())
+            .benchmarkSpec(new BenchmarkSpec.Builder()
+                .className(TestBenchmark.class.getName())
+                .methodName("timeNothing")));
+  }
+
+  /** Returns a runtime measurement of 10 reps that took {@code nanosPerRep} each. */
+  static Measurement runtime(double nanosPerRep) {
+    return measurement(RuntimeWorker.RUNTIME_DESCRIPTION, nanosPerRep);
+  }
+
+  /** Returns a measurement of 10 reps with the given description. */
+  static Measurement measurement(String description, double nanosPerRep) {
+    return new Measurement.Builder()
+        .value(Value.create(nanosPerRep * 10, "ns"))
+        .weight(10)
+        .description(description)
+        .build();
+  }
+
+  public static class TestBenchmark {
+    @Benchmark public void timeNothing(int reps) {}
+    @Benchmark public void timeSomething(int reps) {}
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.caliper.runner.TrialFixtures.experiment;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.caliper.runner.TrialOrder.Strategy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Set;
+
+/**
+ * Tests {@link TrialOrder}.
+ */
+@RunWith(JUnit4.class)
+public class TrialOrderTest {
+  private ImmutableList<Experiment> experiments;
+
+  @Before public void setUp() throws Exception {
+    ImmutableList.Builder<Experiment> builder = ImmutableList.builder();
+    for (int size = 0; size < 10; size++) {
+      for (String method : ImmutableList.of("timeNothing", "timeSomething")) {
+        builder.add(experiment(method, ImmutableMap.of("size", Integer.toString(size))));
+      }
+    }
+    experiments = builder.build();
+  }
+
+  @Test public void sequential() {
+    TrialOrder order = new TrialOrder(Strategy.SEQUENTIAL, 42);
+    assertEquals(experiments, order.arrange(experiments));
+    assertEquals(experiments, order.arrange(experiments));
+    assertTrue(order.properties().isEmpty());
+  }
+
+  @Test public void shuffled() {
+    TrialOrder order = new TrialOrder(Strategy.SHUFFLED, 42);
+    ImmutableList<Experiment> first = order.arrange(experiments);
+    ImmutableList<Experiment> second = order.arrange(experiments);
+    assertEquals(ImmutableMultiset.copyOf(experiments), ImmutableMultiset.copyOf(first));
+    assertFalse(first.equals(experiments));
+    assertFalse(first.equals(second));
+    assertEquals(ImmutableMap.of("trials.order", "shuffled", "trials.seed", "42"),
+        order.properties());
+  }
+
+  @Test public void shuffled_repeatableWithSeed() {
+    TrialOrder order = new TrialOrder(Strategy.SHUFFLED, 42);
+    TrialOrder repeat = new TrialOrder(Strategy.SHUFFLED, 42);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(order.arrange(experiments), repeat.arrange(experiments));
+    }
+  }
+
+  @Test public void blocked() {
+    TrialOrder order = new TrialOrder(Strategy.BLOCKED, 42);
+    ImmutableList<Experiment> arranged = order.arrange(experiments);
+    assertEquals(ImmutableMultiset.copyOf(experiments), ImmutableMultiset.copyOf(arranged));
+    assertFalse(arranged.equals(experiments));
+    Set<ImmutableMap<String, String>> blocksSeen = Sets.newHashSet();
+    for (int i = 0; i < arranged.size(); i += 2) {
+      // both methods of each size are adjacent
+      ImmutableMap<String, String> parameters = arranged.get(i).userParameters();
+      assertEquals(parameters, arranged.get(i + 1).userParameters());
+      assertTrue(blocksSeen.add(parameters));
+    }
+  }
+
+  @Test public void blocked_blockParameters() throws Exception {
+    ImmutableList.Builder<Experiment> builder = ImmutableList.builder();
+    for (int size = 0; size < 10; size++) {
+      for (String variant : ImmutableList.of("a", "b")) {
+        builder.add(experiment(
+            ImmutableMap.of("size", Integer.toString(size), "variant", variant)));
+      }
+    }
+    ImmutableList<Experiment> variants = builder.build();
+    TrialOrder order = new TrialOrder(Strategy.BLOCKED, 42, ImmutableSet.of("variant"));
+    ImmutableList<Experiment> arranged = order.arrange(variants);
+    assertEquals(ImmutableMultiset.copyOf(variants), ImmutableMultiset.copyOf(arranged));
+    for (int i = 0; i < arranged.size(); i += 2) {
+      // both variants of each size are adjacent
+      assertEquals(arranged.get(i).userParameters().get("size"),
+          arranged.get(i + 1).userParameters().get("size"));
+    }
+    assertEquals("variant", order.properties().get("trials.blockParams"));
+  }
+}
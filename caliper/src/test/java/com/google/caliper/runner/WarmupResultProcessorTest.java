@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static com.google.caliper.runner.TrialFixtures.runtime;
+import static org.junit.Assert.assertEquals;
+
+import com.google.caliper.config.CaliperConfig;
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Host;
+import com.google.caliper.model.Scenario;
+import com.google.caliper.model.Trial;
+import com.google.caliper.model.VmSpec;
+import com.google.caliper.model.WarmupMeasurement;
+import com.google.caliper.runner.TrialFixtures.TestBenchmark;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests {@link WarmupResultProcessor}.
+ */
+@RunWith(JUnit4.class)
+public class WarmupResultProcessorTest {
+  private final StringWriter stdout = new StringWriter();
+  private WarmupResultProcessor processor;
+
+  @Before public void createProcessor() throws Exception {
+    processor = new WarmupResultProcessor(new PrintWriter(stdout, true),
+        new CaliperConfig(ImmutableMap.of(
+            "results.warmup.class", WarmupResultProcessor.class.getName(),
+            "results.warmup.options.tolerance", "0.1")));
+  }
+
+  @Test public void reportsTheTimeToSteadyState() {
+    processor.processTrial(trialBuilder()
+        .addWarmupMeasurement(warmup(500, 1))
+        .addWarmupMeasurement(warmup(120, 2))
+        .addWarmupMeasurement(warmup(105, 3))
+        .addWarmupMeasurement(warmup(95, 4))
+        .build());
+    assertEquals(
+        "  warmup of " + TestBenchmark.class.getName() + ".timeNothing: within 10% of the steady "
+            + "state after 2ns; first measurement 5.00x the steady state\n",
+        stdout.toString().replace(System.getProperty("line.separator"), "\n"));
+  }
+
+  @Test public void notSteadyByTheEndOfTheWarmup() {
+    processor.processTrial(trialBuilder()
+        .scenario(new Scenario.Builder()
+            .host(new Host.Builder())
+            .vmSpec(new VmSpec.Builder())
+            .benchmarkSpec(new BenchmarkSpec.Builder()
+                .className(TestBenchmark.class.getName())
+                .methodName("timeSomething")
+                .addParameter("size", "10")))
+        .addWarmupMeasurement(warmup(200, 1))
+        .addWarmupMeasurement(warmup(150, 2))
+        .build());
+    assertEquals(
+        "  warmup of " + TestBenchmark.class.getName() + ".timeSomething {size=10}: not within "
+            + "10% of the steady state after 2ns; first measurement 2.00x the steady state\n",
+        stdout.toString().replace(System.getProperty("line.separator"), "\n"));
+  }
+
+  @Test public void trialsWithoutWarmupMeasurementsAreSkipped() {
+    processor.processTrial(trialBuilder().build());
+    assertEquals("", stdout.toString());
+  }
+
+  private static Trial.Builder trialBuilder() {
+    return TrialFixtures.trialBuilder()
+        .addMeasurement(runtime(90))
+        .addMeasurement(runtime(100))
+        .addMeasurement(runtime(110));
+  }
+
+  private static WarmupMeasurement warmup(double nanosPerRep, long elapsedNanos) {
+    return new WarmupMeasurement.Builder()
+        .measurement(runtime(nanosPerRep))
+        .elapsedNanos(elapsedNanos)
+        .build();
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.caliper.Benchmark;
+import com.google.caliper.bridge.MessageEncoding;
+import com.google.caliper.bridge.WorkerSpec;
+import com.google.caliper.config.CaliperConfig;
+import com.google.caliper.config.InvalidConfigurationException;
+import com.google.caliper.json.GsonModule;
+import com.google.caliper.model.Host;
+import com.google.caliper.model.Trial;
+import com.google.caliper.worker.WorkerMain;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.gson.Gson;
+import com.google.inject.Guice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tests {@link WorkerAgent} and running trials on agents.
+ */
+@RunWith(JUnit4.class)
+public class WorkerAgentTest {
+  @Rule public CaliperTestWatcher runner = new CaliperTestWatcher();
+
+  private final Gson gson = Guice.createInjector(new GsonModule()).getInstance(Gson.class);
+  private ServerSocket first;
+  private ServerSocket second;
+
+  @Before public void setUp() throws Exception {
+    first = startAgent("first");
+    second = startAgent("second");
+  }
+
+  @After public void tearDown() throws Exception {
+    first.close();
+    second.close();
+  }
+
+  @Test public void workerCommand_pointsWorkerAtRunner() throws Exception {
+    WorkerSpec spec = spec();
+    WorkerAgent agent = new WorkerAgent(first, gson, new Host.Builder().build(), config());
+
+    ImmutableList<String> command = agent.workerCommand(
+        request("default", ImmutableList.of("-Xint"), spec), InetAddress.getByName("192.0.2.1"));
+
+    File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+    assertEquals(java.getAbsolutePath(), command.get(0));
+    assertTrue(command.contains("-Xmx64m"));
+    assertTrue(command.contains("-Xint"));
+    assertEquals(WorkerMain.class.getName(), command.get(command.size() - 2));
+    WorkerSpec remoteSpec = gson.fromJson(Iterables.getLast(command), WorkerSpec.class);
+    assertEquals("192.0.2.1", remoteSpec.host);
+    assertEquals(1234, remoteSpec.port);
+    assertNull(remoteSpec.sampleBufferPath);
+    assertEquals(spec.trialId, remoteSpec.trialId);
+    assertEquals(MessageEncoding.BINARY, remoteSpec.encoding);
+  }
+
+  @Test public void workerCommand_rejectsUnconfiguredVms() throws Exception {
+    WorkerAgent agent = new WorkerAgent(first, gson, new Host.Builder().build(), config());
+    for (String vmName : ImmutableList.of("jdk-missing", "../../bin", "/bin")) {
+      try {
+        agent.workerCommand(request(vmName, ImmutableList.<String>of(), spec()),
+            InetAddress.getLoopbackAddress());
+        fail(vmName);
+      } catch (IOException expected) {}
+    }
+  }
+
+  @Test public void workerCommand_acceptsMeasurementOptions() throws Exception {
+    WorkerAgent agent = new WorkerAgent(first, gson, new Host.Builder().build(), config());
+    ImmutableList<String> options = ImmutableList.of("-Xms1g", "-Xss512k", "-XX:+UseG1GC",
+        "-XX:-Inline", "-XX:TieredStopAtLevel=1", "-verbose:gc",
+        "-Dsun.reflect.inflationThreshold=0", "-Dagent.configured=true");
+    assertTrue(agent.workerCommand(request("default", options, spec()),
+        InetAddress.getLoopbackAddress()).containsAll(options));
+  }
+
+  @Test public void workerCommand_rejectsOptionsThatAreNotAllowed() throws Exception {
+    WorkerAgent agent = new WorkerAgent(first, gson, new Host.Builder().build(), config());
+    for (String option : ImmutableList.of("/bin/sh", "-XX:OnError=sh -c id", "-cp",
+        "-agentpath:/tmp/evil.so", "-javaagent:/tmp/evil.jar", "-Xbootclasspath/a:/tmp/evil.jar",
+        "-Xbootclasspath/p:" + WorkerProcess.getClassPath(), "-Xlog:gc:file=/tmp/evil",
+        "-XX:ErrorFile=/tmp/evil", "-XX:HeapDumpPath=/tmp/evil",
+        "-XX:+HeapDumpOnOutOfMemoryError", "-XX:DumpLoadedClassList=/tmp/evil",
+        "-XX:SharedArchiveFile=/tmp/evil.jsa", "-Xshare:dump", "@/tmp/evil", "-Dother=true",
+        "-Xmx64m -cp /tmp")) {
+      try {
+        agent.workerCommand(request("default", ImmutableList.of(option), spec()),
+            InetAddress.getLoopbackAddress());
+        fail(option);
+      } catch (IOException expected) {}
+    }
+  }
+
+  @Test public void workerCommand_acceptsJavaAgentsOnItsClassPath() throws Exception {
+    WorkerAgent agent = new WorkerAgent(first, gson, new Host.Builder().build(), config());
+    String jar = Splitter.on(File.pathSeparatorChar).split(WorkerProcess.getClassPath())
+        .iterator().next();
+    ImmutableList<String> options =
+        ImmutableList.of("-javaagent:" + jar + "=option", "-Xbootclasspath/a:" + jar);
+    assertTrue(agent.workerCommand(request("default", options, spec()),
+        InetAddress.getLoopbackAddress()).containsAll(options));
+  }
+
+  @Test public void trialsRunOnAgents() throws Exception {
+    runner.forBenchmark(TestBenchmark.class)
+        .instrument("runtime")
+        .options(
+            "--agents=" + address(first) + "," + address(second),
+            "--trials=2",
+            "-Cinstrument.runtime.options.warmup=100ms",
+            "-Cinstrument.runtime.options.measurements=2")
+        .run();
+    ImmutableList<Trial> trials = runner.trials();
+    assertEquals(2, trials.size());
+    Set<String> agents = Sets.newHashSet();
+    Set<String> hosts = Sets.newHashSet();
+    for (Trial trial : trials) {
+      agents.add(trial.properties().get("worker.agent"));
+      hosts.add(trial.scenario().host().properties().get("agent.name"));
+    }
+    assertEquals(ImmutableSet.of(address(first), address(second)), agents);
+    assertEquals(ImmutableSet.of("first", "second"), hosts);
+  }
+
+  private ServerSocket startAgent(String name) throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+    Host host = new EnvironmentGetter().getHost();
+    final WorkerAgent agent = new WorkerAgent(serverSocket, gson,
+        new Host.Builder()
+            .addAllProperies(host.properties())
+            .addProperty("agent.name", name)
+            .build(),
+        config());
+    Thread thread = new Thread("agent-" + name) {
+      @Override public void run() {
+        agent.serve();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    return serverSocket;
+  }
+
+  /** The agents run workers with their own configuration of the VM. */
+  private static CaliperConfig config() throws InvalidConfigurationException {
+    return new CaliperConfig(ImmutableMap.of("vm.args", "-Xmx64m -XX:-TieredCompilation -Dagent.configured=true"));
+  }
+
+  private static WorkerSpec spec() {
+    return new WorkerSpec(UUID.randomUUID(), "Worker", ImmutableMap.<String, String>of(), null,
+        ImmutableList.<String>of(), "127.0.0.1", 1234, MessageEncoding.BINARY, "/tmp/samples");
+  }
+
+  private String request(String vmName, ImmutableList<String> vmOptions, WorkerSpec spec) {
+    return gson.toJson(new AgentRequest(vmName, vmOptions, spec));
+  }
+
+  private static String address(ServerSocket serverSocket) {
+    return "127.0.0.1:" + serverSocket.getLocalPort();
+  }
+
+  static final class TestBenchmark {
+    @Benchmark long sum(int reps) {
+      long sum = 0;
+      for (int i = 0; i < reps; i++) {
+        sum += i;
+      }
+      return sum;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import com.google.caliper.options.CaliperOptions;
+import com.google.caliper.runner.FakeWorkers.Sleeper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HostAndPort;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link WorkerPipeline}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class WorkerPipelineTest {
+  @Mock CaliperOptions options;
+
+  @Before public void setUp() {
+    when(options.prestartWorkers()).thenReturn(true);
+    when(options.parallelism()).thenReturn(1);
+    when(options.workerReuse()).thenReturn(1);
+    when(options.agents()).thenReturn(ImmutableList.<HostAndPort>of());
+  }
+
+  @Test public void isEnabled() {
+    assertTrue(new WorkerPipeline(options).isEnabled());
+  }
+
+  @Test public void isEnabled_notForParallelTrials() {
+    when(options.parallelism()).thenReturn(2);
+    assertFalse(new WorkerPipeline(options).isEnabled());
+  }
+
+  @Test public void isEnabled_notForPooledWorkers() {
+    when(options.workerReuse()).thenReturn(5);
+    assertFalse(new WorkerPipeline(options).isEnabled());
+  }
+
+  @Test public void awaitTurn_waitsForThePreviousWorkerToExit() throws Exception {
+    final WorkerPipeline pipeline = new WorkerPipeline(options);
+    FakeProcess first = new FakeProcess();
+    final FakeProcess second = new FakeProcess();
+    // nothing was released before the first worker
+    pipeline.awaitTurn(first);
+    final CountDownLatch released = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          pipeline.awaitTurn(second);
+          released.countDown();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    thread.start();
+    assertFalse(released.await(100, MILLISECONDS));
+    first.exit();
+    assertTrue(released.await(10, SECONDS));
+  }
+
+  @Test public void currentTrialDoneCollecting_runsTheStarterOnce() throws Exception {
+    WorkerPipeline pipeline = new WorkerPipeline(options);
+    final AtomicInteger starts = new AtomicInteger();
+    final Semaphore started = new Semaphore(0);
+    pipeline.setNextWorkerStarter(new Runnable() {
+      @Override public void run() {
+        starts.incrementAndGet();
+        started.release();
+      }
+    });
+    pipeline.currentTrialDoneCollecting();
+    pipeline.currentTrialDoneCollecting();
+    assertTrue(started.tryAcquire(10, SECONDS));
+    assertFalse(started.tryAcquire(100, MILLISECONDS));
+    assertEquals(1, starts.get());
+  }
+
+  @Test public void currentTrialDoneCollecting_noStarter() {
+    WorkerPipeline pipeline = new WorkerPipeline(options);
+    pipeline.setNextWorkerStarter(null);
+    pipeline.currentTrialDoneCollecting();
+  }
+
+  @Test public void failedPrestart_workerStartsWhenThePreviousOneExited() throws Exception {
+    WorkerPipeline pipeline = new WorkerPipeline(options);
+    Process first = createWorkerProcess(pipeline, 1000).startWorker();
+    final CountDownLatch failed = new CountDownLatch(1);
+    pipeline.setNextWorkerStarter(new Runnable() {
+      @Override public void run() {
+        failed.countDown();
+        throw new RuntimeException("could not start the worker");
+      }
+    });
+    pipeline.currentTrialDoneCollecting();
+    assertTrue(failed.await(10, SECONDS));
+    // the worker wasn't started ahead of its trial, so it is started normally, but still only
+    // released once the first one exited
+    Process second = createWorkerProcess(pipeline, 0).startWorker();
+    assertEquals(0, first.exitValue());
+    assertEquals(0, second.waitFor());
+  }
+
+  private static WorkerProcess createWorkerProcess(WorkerPipeline pipeline, long sleepMillis) {
+    return new WorkerProcess(
+        FakeWorkers.createProcessBuilder(Sleeper.class, Long.toString(sleepMillis)),
+        UUID.randomUUID(),
+        null,
+        new RuntimeShutdownHookRegistrar(),
+        pipeline);
+  }
+
+  /** A process that runs until {@link #exit} is called. */
+  private static final class FakeProcess extends Process {
+    final CountDownLatch exited = new CountDownLatch(1);
+
+    void exit() {
+      exited.countDown();
+    }
+
+    @Override public OutputStream getOutputStream() {
+      return ByteStreams.nullOutputStream();
+    }
+
+    @Override public InputStream getInputStream() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override public InputStream getErrorStream() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override public int waitFor() throws InterruptedException {
+      exited.await();
+      return 0;
+    }
+
+    @Override public int exitValue() {
+      if (exited.getCount() > 0) {
+        throw new IllegalThreadStateException();
+      }
+      return 0;
+    }
+
+    @Override public void destroy() {
+      exit();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.caliper.runner.FakeWorkers.PrintJvmName;
+import com.google.common.io.CharStreams;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Tests for {@link WorkerPool}.
+ */
+@RunWith(JUnit4.class)
+public class WorkerPoolTest {
+  private final ServerSocketService serverSocketService = new ServerSocketService(new Gson());
+  private WorkerPool pool;
+
+  @Before public void startService() {
+    serverSocketService.startAsync().awaitRunning();
+  }
+
+  @After public void stopServices() {
+    if (pool != null) {
+      pool.stopAsync().awaitTerminated();
+    }
+    serverSocketService.stopAsync().awaitTerminated();
+  }
+
+  @Test public void workersAreReused() throws Exception {
+    startPool(2);
+    List<String> first = runTrial("first");
+    List<String> second = runTrial("second");
+    List<String> third = runTrial("third");
+    assertEquals("first", last(first));
+    assertEquals("second", last(second));
+    assertEquals("third", last(third));
+    assertEquals(jvmName(first), jvmName(second));
+    // the worker was retired after two trials
+    assertFalse(jvmName(second).equals(jvmName(third)));
+  }
+
+  @Test public void outputOfTheTrialDoesNotCompleteIt() throws Exception {
+    startPool(2);
+    List<String> first = runTrial("Trial complete: " + "not the nonce");
+    List<String> second = runTrial("second");
+    assertEquals("Trial complete: not the nonce", last(first));
+    assertEquals("second", last(second));
+    assertEquals(jvmName(first), jvmName(second));
+  }
+
+  @Test public void failedTrialKillsItsWorker() throws Exception {
+    startPool(3);
+    List<String> first = runTrial("first");
+    Process failed = pool.runTrial(command("exit 3"));
+    assertEquals(3, failed.waitFor());
+    assertEquals(0, pool.liveWorkers());
+    List<String> third = runTrial("third");
+    assertEquals("third", last(third));
+    assertFalse(jvmName(first).equals(jvmName(third)));
+  }
+
+  @Test public void shutDownRetiresWorkers() throws Exception {
+    startPool(5);
+    runTrial("first");
+    assertEquals(1, pool.liveWorkers());
+    pool.stopAsync().awaitTerminated();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (pool.liveWorkers() > 0) {
+      assertTrue("workers are still running", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    try {
+      pool.runTrial(command("second"));
+      fail();
+    } catch (IllegalStateException expected) {}
+  }
+
+  private void startPool(int trialsPerWorker) {
+    pool = new WorkerPool(trialsPerWorker, serverSocketService, new RuntimeShutdownHookRegistrar());
+    pool.startAsync().awaitRunning();
+  }
+
+  private static List<String> command(String arg) {
+    return FakeWorkers.createProcessBuilder(PrintJvmName.class, arg).command();
+  }
+
+  /** Runs a trial that prints the name of its JVM and the given argument. */
+  private List<String> runTrial(String arg) throws Exception {
+    Process trial = pool.runTrial(command(arg));
+    List<String> output = CharStreams.readLines(
+        new InputStreamReader(trial.getInputStream(), Charset.defaultCharset()));
+    assertEquals(0, trial.waitFor());
+    return output;
+  }
+
+  private static String jvmName(List<String> output) {
+    return output.get(output.size() - 2);
+  }
+
+  private static String last(List<String> output) {
+    return output.get(output.size() - 1);
+  }
+}
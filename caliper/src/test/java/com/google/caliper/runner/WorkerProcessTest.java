@@ -17,18 +17,29 @@
 package com.google.caliper.runner;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.caliper.Benchmark;
+import com.google.caliper.bridge.MessageEncoding;
+import com.google.caliper.bridge.WorkerSpec;
 import com.google.caliper.config.VmConfig;
 import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.util.ShortDuration;
+import com.google.caliper.worker.RuntimeWorker;
+import com.google.caliper.worker.ThreadedRuntimeWorker;
 import com.google.caliper.worker.WorkerMain;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import com.google.gson.Gson;
 
 import org.junit.Before;
@@ -37,6 +48,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.List;
@@ -96,12 +109,120 @@ public class WorkerProcessTest {
         commandLine.subList(4, 4 + extraCommandLineArgs.size()));
     int index = 4 + extraCommandLineArgs.size();
     assertEquals("-XX:+PrintFlagsFinal", commandLine.get(index));
-    assertEquals("-XX:+PrintCompilation", commandLine.get(++index));
-    assertEquals("-XX:+PrintGC", commandLine.get(++index));
     assertEquals(WorkerMain.class.getName(), commandLine.get(++index));
     // followed by worker args...
   }
 
+  @Test public void workerSlotAffinity() throws Exception {
+    Method method = TestBenchmark.class.getDeclaredMethods()[0];
+    AllocationInstrument allocationInstrument = new AllocationInstrument();
+    allocationInstrument.setOptions(ImmutableMap.of("trackAllocations", "true"));
+    Experiment experiment = new Experiment(
+        allocationInstrument.createInstrumentation(method),
+        ImmutableMap.<String, String>of(),
+        new VirtualMachine("foo-jvm",
+            new VmConfig(new File("foo"), Arrays.asList("--doTheHustle"), new File("java"))));
+    BenchmarkSpec spec = new BenchmarkSpec.Builder()
+        .className(TestBenchmark.class.getName())
+        .methodName(method.getName())
+        .build();
+    ProcessBuilder builder = createProcess(experiment, spec,
+        new WorkerSlot(1, ImmutableList.of(2, 3)));
+    List<String> commandLine = builder.command();
+    assertEquals(ImmutableList.of("taskset", "-c", "2,3", new File("java").getAbsolutePath()),
+        commandLine.subList(0, 4));
+  }
+
+  @Test public void awaitRelease() throws Exception {
+    Method method = TestBenchmark.class.getDeclaredMethods()[0];
+    AllocationInstrument allocationInstrument = new AllocationInstrument();
+    allocationInstrument.setOptions(ImmutableMap.of("trackAllocations", "true"));
+    Experiment experiment = new Experiment(
+        allocationInstrument.createInstrumentation(method),
+        ImmutableMap.<String, String>of(),
+        new VirtualMachine("foo-jvm",
+            new VmConfig(new File("foo"), Arrays.<String>asList(), new File("java"))));
+    BenchmarkSpec spec = new BenchmarkSpec.Builder()
+        .className(TestBenchmark.class.getName())
+        .methodName(method.getName())
+        .build();
+    List<String> commandLine = WorkerProcess.buildProcess(TRIAL_ID, experiment, spec,
+        PORT_NUMBER, gson, MessageEncoding.BINARY, benchmarkClass, WorkerSlot.SERIAL, true, null,
+        null)
+        .command();
+    int index = commandLine.indexOf(WorkerMain.class.getName());
+    assertEquals("-D" + WorkerMain.AWAIT_RELEASE_PROPERTY + "=true", commandLine.get(index - 1));
+  }
+
+  @Test public void classDataArchive() throws Exception {
+    Method method = TestBenchmark.class.getDeclaredMethods()[0];
+    AllocationInstrument allocationInstrument = new AllocationInstrument();
+    allocationInstrument.setOptions(ImmutableMap.of("trackAllocations", "true"));
+    Experiment experiment = new Experiment(
+        allocationInstrument.createInstrumentation(method),
+        ImmutableMap.<String, String>of(),
+        new VirtualMachine("foo-jvm",
+            new VmConfig(new File("foo"), Arrays.<String>asList(), new File("java"))));
+    BenchmarkSpec spec = new BenchmarkSpec.Builder()
+        .className(TestBenchmark.class.getName())
+        .methodName(method.getName())
+        .build();
+    File directory = Files.createTempDir();
+    File archive = new File(new File(directory,
+        ClassDataArchives.key(WorkerProcess.workerJvmArgs(experiment, benchmarkClass))),
+        "worker.jsa");
+    try {
+      ClassDataArchives archives = new ClassDataArchives(directory, true);
+      List<String> commandLine = WorkerProcess.buildProcess(TRIAL_ID, experiment, spec,
+          PORT_NUMBER, gson, MessageEncoding.BINARY, benchmarkClass, WorkerSlot.SERIAL, false,
+          archives, null)
+          .command();
+      // no archive was prepared
+      assertFalse(Iterables.any(commandLine,
+          Predicates.containsPattern(ClassDataArchives.ARCHIVE_OPTION)));
+
+      Files.createParentDirs(archive);
+      Files.touch(archive);
+      commandLine = WorkerProcess.buildProcess(TRIAL_ID, experiment, spec, PORT_NUMBER, gson,
+          MessageEncoding.BINARY, benchmarkClass, WorkerSlot.SERIAL, false, archives, null)
+          .command();
+      int index = commandLine.indexOf("-XX:+PrintFlagsFinal");
+      assertEquals(
+          ImmutableList.of(ClassDataArchives.ARCHIVE_OPTION + archive.getAbsolutePath(),
+              "-Xshare:auto"),
+          commandLine.subList(index - 2, index));
+    } finally {
+      archive.delete();
+      archive.getParentFile().delete();
+      directory.delete();
+    }
+  }
+
+  @Test public void threadedWorkerForEveryThreadCount() throws Exception {
+    Method method = TestBenchmark.class.getDeclaredMethods()[0];
+    RuntimeInstrument instrument = new RuntimeInstrument(ShortDuration.of(100, NANOSECONDS),
+        new PrintWriter(new StringWriter()), new PrintWriter(new StringWriter()));
+    instrument.setOptions(ImmutableMap.of(
+        "timingInterval", "500ms", "gcBeforeEach", "true", "samplingInterval", "0"));
+    Experiment experiment = new Experiment(
+        instrument.createInstrumentation(method),
+        ImmutableMap.<String, String>of(),
+        new VirtualMachine("foo-jvm",
+            new VmConfig(new File("foo"), Arrays.<String>asList(), new File("java"))),
+        1);
+    // the benchmark doesn't declare thread counts
+    WorkerSpec workerSpec = WorkerProcess.workerSpec(TRIAL_ID, experiment,
+        TrialModule.benchmarkSpec(experiment, ImmutableSortedSet.of(1)), PORT_NUMBER,
+        MessageEncoding.BINARY, null);
+    assertEquals(RuntimeWorker.Pico.class.getName(), workerSpec.workerClassName);
+    // it does, so even its scenarios on one thread run in the threaded worker
+    workerSpec = WorkerProcess.workerSpec(TRIAL_ID, experiment,
+        TrialModule.benchmarkSpec(experiment, ImmutableSortedSet.of(1, 2, 4)), PORT_NUMBER,
+        MessageEncoding.BINARY, null);
+    assertEquals(ThreadedRuntimeWorker.class.getName(), workerSpec.workerClassName);
+    assertEquals("1", workerSpec.workerOptions.get("threads"));
+  }
+
   @Test public void shutdownHook_waitFor() throws Exception {
     Process worker = createWorkerProcess(FakeWorkers.Exit.class, "0").startWorker();
     assertEquals("worker-shutdown-hook-" + TRIAL_ID,
@@ -157,8 +278,13 @@ public class WorkerProcessTest {
   }
 
   private ProcessBuilder createProcess(Experiment experiment, BenchmarkSpec benchmarkSpec) {
+    return createProcess(experiment, benchmarkSpec, WorkerSlot.SERIAL);
+  }
+
+  private ProcessBuilder createProcess(Experiment experiment, BenchmarkSpec benchmarkSpec,
+      WorkerSlot workerSlot) {
     return WorkerProcess.buildProcess(TRIAL_ID, experiment, benchmarkSpec, PORT_NUMBER, gson,
-        benchmarkClass);
+        MessageEncoding.BINARY, benchmarkClass, workerSlot, false, null, null);
   }
 
   private WorkerProcess createWorkerProcess(Class<?> main, String ...args) {
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link WorkerSlot}.
+ */
+@RunWith(JUnit4.class)
+public class WorkerSlotTest {
+  @Test public void partition_single() {
+    assertEquals(ImmutableList.of(WorkerSlot.SERIAL),
+        WorkerSlot.partition(1, WorkerSlot.firstCpus(8), true));
+  }
+
+  @Test public void partition_disjointCpus() {
+    assertEquals(
+        ImmutableList.of(
+            new WorkerSlot(0, ImmutableList.of(0, 1, 2)),
+            new WorkerSlot(1, ImmutableList.of(3, 4, 5)),
+            new WorkerSlot(2, ImmutableList.of(6, 7, 8))),
+        WorkerSlot.partition(3, WorkerSlot.firstCpus(10), true));
+  }
+
+  @Test public void partition_allowedCpus() {
+    // e.g. under taskset -c 4-7,12-15
+    assertEquals(
+        ImmutableList.of(
+            new WorkerSlot(0, ImmutableList.of(4, 5)),
+            new WorkerSlot(1, ImmutableList.of(6, 7)),
+            new WorkerSlot(2, ImmutableList.of(12, 13))),
+        WorkerSlot.partition(3, WorkerSlot.parseCpuList("4-7,12-15"), true));
+  }
+
+  @Test public void partition_withoutAffinity() {
+    assertEquals(
+        ImmutableList.of(
+            new WorkerSlot(0, ImmutableList.<Integer>of()),
+            new WorkerSlot(1, ImmutableList.<Integer>of())),
+        WorkerSlot.partition(2, WorkerSlot.firstCpus(4), false));
+  }
+
+  @Test public void partition_tooManySlots() {
+    try {
+      WorkerSlot.partition(5, WorkerSlot.firstCpus(4), true);
+      fail();
+    } catch (IllegalArgumentException expected) {}
+  }
+
+  @Test public void parseCpuList() {
+    assertEquals(ImmutableList.of(0), WorkerSlot.parseCpuList("0"));
+    assertEquals(ImmutableList.of(4, 5, 6, 7), WorkerSlot.parseCpuList("4-7"));
+    assertEquals(ImmutableList.of(0, 1, 8, 10, 11), WorkerSlot.parseCpuList("0-1,8,10-11\n"));
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.caliper.bridge.StartMeasurementLogMessage;
+import com.google.caliper.bridge.VmPropertiesLogMessage;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link WorkerStartupTimer}.
+ */
+@RunWith(JUnit4.class)
+public class WorkerStartupTimerTest {
+  @Test public void noPhasesBeforeLaunch() {
+    WorkerStartupTimer timer = new WorkerStartupTimer();
+    timer.start();
+    timer.visit(new VmPropertiesLogMessage());
+    assertTrue(timer.properties().isEmpty());
+  }
+
+  @Test public void allPhases() {
+    WorkerStartupTimer timer = new WorkerStartupTimer();
+    timer.start();
+    timer.launched();
+    assertEquals(ImmutableList.of(WorkerStartupTimer.LAUNCH_PROPERTY),
+        timer.properties().keySet().asList());
+    timer.visit(new VmPropertiesLogMessage());
+    timer.visit(new StartMeasurementLogMessage());
+    // later measurements don't move the end of the warmup
+    timer.visit(new StartMeasurementLogMessage());
+    ImmutableMap<String, String> properties = timer.properties();
+    assertEquals(
+        ImmutableList.of(WorkerStartupTimer.LAUNCH_PROPERTY, WorkerStartupTimer.CONNECT_PROPERTY,
+            WorkerStartupTimer.WARMUP_PROPERTY),
+        properties.keySet().asList());
+    for (String millis : properties.values()) {
+      assertTrue(Long.parseLong(millis) >= 0);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link LatencyHistogram}.
+ */
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+  @Test public void bucketsAreContiguous() {
+    assertEquals(0, LatencyHistogram.bucketOf(0));
+    assertEquals(127, LatencyHistogram.bucketOf(127));
+    assertEquals(128, LatencyHistogram.bucketOf(128));
+    assertEquals(128, LatencyHistogram.bucketOf(129));
+    assertEquals(129, LatencyHistogram.bucketOf(130));
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    for (int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+      assertTrue(LatencyHistogram.bucketValue(bucket) > LatencyHistogram.bucketValue(bucket - 1));
+      assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.bucketValue(bucket)));
+    }
+  }
+
+  @Test public void relativeError() {
+    for (long nanos = 1; nanos > 0 && nanos < Long.MAX_VALUE / 3; nanos = nanos * 3 + 1) {
+      long value = LatencyHistogram.bucketValue(LatencyHistogram.bucketOf(nanos));
+      assertTrue(nanos + " -> " + value, Math.abs(value - nanos) <= nanos / 64.0);
+    }
+  }
+
+  @Test public void percentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 9990; i++) {
+      histogram.record(100);
+    }
+    for (int i = 0; i < 9; i++) {
+      histogram.record(1000000);
+    }
+    histogram.record(-5);
+    assertEquals(10000, histogram.count());
+    assertEquals(100, histogram.valueAtPercentile(50));
+    assertEquals(100, histogram.valueAtPercentile(99.9));
+    long millisecond = LatencyHistogram.bucketValue(LatencyHistogram.bucketOf(1000000));
+    assertEquals(millisecond, histogram.valueAtPercentile(99.92));
+    assertEquals(millisecond, histogram.valueAtPercentile(100));
+    // the negative latency was counted as 0
+    assertEquals(0, histogram.valueAtPercentile(0.01));
+
+    histogram.reset();
+    assertEquals(0, histogram.count());
+    histogram.record(LatencyHistogram.bucketOf(5000), 3);
+    assertEquals(3, histogram.count(LatencyHistogram.bucketOf(5000)));
+    assertEquals(LatencyHistogram.bucketValue(LatencyHistogram.bucketOf(5000)),
+        histogram.valueAtPercentile(50));
+  }
+
+  @Test public void counts() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(100);
+    histogram.record(100);
+    histogram.record(1000000);
+    long millisecond = LatencyHistogram.bucketValue(LatencyHistogram.bucketOf(1000000));
+    assertEquals(ImmutableSortedMap.of(100L, 2L, millisecond, 1L), histogram.counts());
+
+    LatencyHistogram copy = new LatencyHistogram();
+    copy.recordAll(histogram.counts());
+    copy.recordAll(histogram.counts());
+    assertEquals(6, copy.count());
+    assertEquals(ImmutableSortedMap.of(100L, 4L, millisecond, 2L), copy.counts());
+  }
+}
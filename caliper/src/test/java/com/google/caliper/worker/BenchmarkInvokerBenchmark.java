@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+
+import java.lang.reflect.Method;
+
+/**
+ * Calibrates the overhead that a worker adds to each call of a benchmark method, which is what
+ * is timed along with a macrobenchmark or a {@link com.google.caliper.api.BeforeRep} method.  The
+ * called method does next to nothing, so the reported time is the overhead of calling it:
+ * directly, through the invoker that the workers generate, and with {@link Method#invoke}, as
+ * the workers used to.
+ *
+ * <p>Run it with the test classpath, e.g.
+ * {@code CaliperMain com.google.caliper.worker.BenchmarkInvokerBenchmark -i runtime}.
+ */
+public class BenchmarkInvokerBenchmark {
+  enum Call {
+    DIRECT,
+    GENERATED,
+    REFLECTIVE
+  }
+
+  @Param Call call;
+
+  private final Target target = new Target();
+  private Method method;
+  private BenchmarkInvoker invoker;
+
+  @BeforeExperiment void setUp() throws Exception {
+    method = Target.class.getDeclaredMethod("increment");
+    method.setAccessible(true);
+    invoker = BenchmarkInvoker.create(target, method);
+    if (invoker.isReflective()) {
+      throw new AssertionError("the invoker of " + method + " wasn't generated");
+    }
+  }
+
+  @Benchmark int invoke(long reps) throws Exception {
+    switch (call) {
+      case DIRECT:
+        for (long i = 0; i < reps; i++) {
+          target.increment();
+        }
+        break;
+      case GENERATED:
+        for (long i = 0; i < reps; i++) {
+          invoker.invoke(0);
+        }
+        break;
+      case REFLECTIVE:
+        for (long i = 0; i < reps; i++) {
+          method.invoke(target);
+        }
+        break;
+      default:
+        throw new AssertionError(call);
+    }
+    return target.count;
+  }
+
+  static final class Target {
+    int count;
+
+    int increment() {
+      return ++count;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.caliper.api.Blackhole;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Tests {@link BenchmarkInvoker}.
+ */
+@RunWith(JUnit4.class)
+public class BenchmarkInvokerTest {
+  @Test public void intReps() throws Exception {
+    Target target = new Target();
+    BenchmarkInvoker invoker = invoker(target, "intReps", int.class);
+    assertFalse(invoker.isReflective());
+    assertEquals(84.0, invoker.invoke(42), 0);
+    assertEquals(42, target.reps);
+  }
+
+  @Test public void longReps() throws Exception {
+    Target target = new Target();
+    BenchmarkInvoker invoker = invoker(target, "longReps", long.class);
+    assertFalse(invoker.isReflective());
+    assertEquals(0, invoker.invoke(1L << 40), 0);
+    assertEquals(1L << 40, target.reps);
+  }
+
+  @Test public void blackhole() throws Exception {
+    Target target = new Target();
+    BenchmarkInvoker invoker = invoker(target, "consume", long.class, Blackhole.class);
+    assertFalse(invoker.isReflective());
+    invoker.invoke(3);
+    assertEquals(3, target.reps);
+    assertSame(invoker.blackhole, target.blackhole);
+  }
+
+  @Test public void blackhole_reflective() throws Exception {
+    Target target = new Target();
+    BenchmarkInvoker invoker = invoker(target, "privateConsume", int.class, Blackhole.class);
+    assertTrue(invoker.isReflective());
+    invoker.invoke(3);
+    assertEquals(3, target.reps);
+    assertSame(invoker.blackhole, target.blackhole);
+  }
+
+  @Test public void noReps() throws Exception {
+    Target target = new Target();
+    BenchmarkInvoker invoker = invoker(target, "measure");
+    assertFalse(invoker.isReflective());
+    assertEquals(1.5, invoker.invoke(0), 0);
+    assertEquals(1, target.reps);
+  }
+
+  @Test public void nonNumericResult() throws Exception {
+    BenchmarkInvoker invoker = invoker(new Target(), "name");
+    assertFalse(invoker.isReflective());
+    assertEquals(0, invoker.invoke(0), 0);
+  }
+
+  @Test public void privateMethod_reflective() throws Exception {
+    Target target = new Target();
+    BenchmarkInvoker invoker = invoker(target, "privateReps", int.class);
+    assertTrue(invoker.isReflective());
+    assertEquals(7.0, invoker.invoke(7), 0);
+    assertEquals(7, target.reps);
+  }
+
+  @Test public void throwablesAreWrapped() throws Exception {
+    for (String name : new String[] {"fails", "privateFails"}) {
+      try {
+        invoker(new Target(), name).invoke(0);
+        fail();
+      } catch (InvocationTargetException expected) {
+        assertSame(Target.ERROR, expected.getCause());
+      }
+    }
+  }
+
+  private static BenchmarkInvoker invoker(Object target, String name, Class<?>... parameterTypes)
+      throws Exception {
+    Method method = target.getClass().getDeclaredMethod(name, parameterTypes);
+    method.setAccessible(true);
+    return BenchmarkInvoker.create(target, method);
+  }
+
+  private static final class Target {
+    static final Error ERROR = new AssertionError("benchmark failed");
+
+    long reps;
+    Blackhole blackhole;
+
+    int intReps(int reps) {
+      this.reps = reps;
+      return reps * 2;
+    }
+
+    void longReps(long reps) {
+      this.reps = reps;
+    }
+
+    void consume(long reps, Blackhole blackhole) {
+      this.reps = reps;
+      this.blackhole = blackhole;
+      blackhole.consume(reps);
+    }
+
+    double measure() {
+      reps++;
+      return 1.5;
+    }
+
+    String name() {
+      return "target";
+    }
+
+    void fails() {
+      throw ERROR;
+    }
+
+    private int privateReps(int reps) {
+      this.reps = reps;
+      return reps;
+    }
+
+    private void privateConsume(int reps, Blackhole blackhole) {
+      this.reps = reps;
+      this.blackhole = blackhole;
+      blackhole.consume(this);
+    }
+
+    private void privateFails() {
+      throw ERROR;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.caliper.api.AfterRep;
+import com.google.caliper.api.BeforeRep;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.util.LatencyHistogram;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+/**
+ * Tests {@link LatencyHistogramWorker}.
+ */
+@RunWith(JUnit4.class)
+public class LatencyHistogramWorkerTest {
+  @Test public void measure_reportsTheHistogramAsLatencies() throws Exception {
+    final Benchmark benchmark = new Benchmark();
+    // every other invocation takes 10 times as long
+    Ticker ticker = new Ticker() {
+      long nanos;
+
+      @Override public long read() {
+        return nanos += (benchmark.invocations % 2 == 0) ? 100 : 1000;
+      }
+    };
+    LatencyHistogramWorker worker = new LatencyHistogramWorker(benchmark,
+        Benchmark.class.getDeclaredMethod("macro"), ticker,
+        ImmutableMap.of("timingIntervalNanos", "10000", "gcBeforeEach", "false"));
+    worker.preMeasure();
+    List<Measurement> measurements = ImmutableList.copyOf(worker.measure());
+
+    assertEquals(1, measurements.size());
+    Measurement runtime = measurements.get(0);
+    assertEquals(RuntimeWorker.RUNTIME_DESCRIPTION, runtime.description());
+    assertEquals(benchmark.invocations, runtime.weight(), 0);
+    assertEquals(benchmark.invocations, benchmark.beforeReps);
+    assertEquals(benchmark.invocations, benchmark.afterReps);
+
+    ImmutableSortedMap<Long, Long> latencies = worker.latencies();
+    long slowValue = LatencyHistogram.bucketValue(LatencyHistogram.bucketOf(1000));
+    assertEquals(ImmutableSet.of(100L, slowValue), latencies.keySet());
+    long fast = latencies.get(100L);
+    long slow = latencies.get(slowValue);
+    assertEquals(benchmark.invocations, fast + slow);
+    assertEquals(runtime.value().magnitude(), 100 * fast + 1000 * slow, 0);
+  }
+
+  static final class Benchmark {
+    int invocations;
+    int beforeReps;
+    int afterReps;
+
+    @BeforeRep void beforeRep() {
+      beforeReps++;
+    }
+
+    void macro() {
+      invocations++;
+    }
+
+    @AfterRep void afterRep() {
+      afterReps++;
+    }
+  }
+}
@@ -7,14 +7,27 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import com.google.caliper.api.Blackhole;
+import com.google.caliper.bridge.SampleBuffer;
+import com.google.caliper.model.Measurement;
 import com.google.caliper.util.ShortDuration;
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
+import java.lang.reflect.Method;
 import java.math.BigDecimal;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Tests {@link RuntimeWorker}.
@@ -43,4 +56,132 @@ public class RuntimeWorkerTest {
         TIMING_INTERVAL.to(NANOSECONDS), 0.5);
     assertEquals(110, targetReps);
   }
+
+  @Test public void measure_reportsOverheadAndCorrectedRuntime() throws Exception {
+    // every timing takes 100ns, so the empty benchmark is as slow as any other
+    Ticker ticker = new Ticker() {
+      long nanos;
+
+      @Override public long read() {
+        return nanos += 100;
+      }
+    };
+    RuntimeWorker worker = new RuntimeWorker.Micro(new Benchmark(),
+        Benchmark.class.getDeclaredMethod("time", int.class), new Random(0), ticker,
+        ImmutableMap.of("timingIntervalNanos", "10000", "gcBeforeEach", "false"),
+        Optional.<SampleBuffer>absent());
+    worker.bootstrap();
+    worker.preMeasure();
+    List<Measurement> measurements = ImmutableList.copyOf(worker.measure());
+
+    assertEquals(3, measurements.size());
+    Measurement runtime = measurements.get(0);
+    Measurement overhead = measurements.get(1);
+    Measurement corrected = measurements.get(2);
+    assertEquals(RuntimeWorker.RUNTIME_DESCRIPTION, runtime.description());
+    assertEquals(RuntimeWorker.OVERHEAD_DESCRIPTION, overhead.description());
+    assertEquals(RuntimeWorker.CORRECTED_DESCRIPTION, corrected.description());
+    assertEquals(100, runtime.value().magnitude(), 0);
+    // the overhead was measured with the 10000 reps that the benchmark was expected to need, and
+    // again with the reps of the measurement, and the least of the two was kept
+    assertEquals(Math.min(0.01, 100 / runtime.weight()),
+        overhead.value().magnitude() / overhead.weight(), 1e-9);
+    assertEquals(Math.max(0, 100 - overhead.value().magnitude()), corrected.value().magnitude(),
+        1e-9);
+    for (Measurement measurement : measurements) {
+      assertEquals(runtime.weight(), measurement.weight(), 0);
+    }
+  }
+
+  @Test public void measure_samplesSingleReps() throws Exception {
+    final BimodalBenchmark benchmark = new BimodalBenchmark();
+    Ticker ticker = new Ticker() {
+      @Override public long read() {
+        return benchmark.nanos;
+      }
+    };
+    File file = File.createTempFile("samples", ".buf");
+    try {
+      SampleBuffer buffer = SampleBuffer.create(file, 1 << 16);
+      RuntimeWorker worker = new RuntimeWorker.Micro(benchmark,
+          BimodalBenchmark.class.getDeclaredMethod("time", int.class), new Random(0), ticker,
+          ImmutableMap.of("timingIntervalNanos", "100000", "gcBeforeEach", "false",
+              "samplingInterval", "4"),
+          Optional.of(SampleBuffer.open(file)));
+      worker.bootstrap();
+      worker.preMeasure();
+      // the reps are sampled before the measurement starts
+      long[] samples = new long[1 << 16];
+      int count = buffer.drainTo(samples);
+      assertEquals(count, worker.samplesWritten());
+      List<Measurement> measurements = ImmutableList.copyOf(worker.measure());
+
+      assertEquals(3, measurements.size());
+      long reps = (long) measurements.get(0).weight();
+      assertEquals(reps / 4, count);
+      int slow = 0;
+      for (int i = 0; i < count; i++) {
+        // the empty benchmark takes no time, so none is subtracted
+        if (samples[i] == 1000) {
+          slow++;
+        } else {
+          assertEquals(10, samples[i]);
+        }
+      }
+      assertEquals((reps / 4 + 2) / 3, slow);
+      // nothing else was sampled, such as the calibration or the measurement
+      assertEquals(0, buffer.drainTo(samples));
+      assertEquals(count, worker.samplesWritten());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test public void emptyBenchmark_takesTheParametersOfTheBenchmark() throws Exception {
+    for (Method method : ImmutableList.of(
+        BlackholeBenchmark.class.getDeclaredMethod("intReps", int.class, Blackhole.class),
+        BlackholeBenchmark.class.getDeclaredMethod("longReps", long.class, Blackhole.class))) {
+      BenchmarkInvoker invoker = RuntimeWorker.EmptyBenchmark.invoker(
+          method, BenchmarkInvoker.create(new BlackholeBenchmark(), method));
+      assertFalse(invoker.isReflective());
+      invoker.invoke(10);
+    }
+  }
+
+  @Test public void emptyBenchmark_isCalledLikeTheBenchmark() throws Exception {
+    Method method = PrivateBenchmark.class.getDeclaredMethod("time", int.class);
+    BenchmarkInvoker benchmarkInvoker = BenchmarkInvoker.create(new PrivateBenchmark(), method);
+    assertTrue(benchmarkInvoker.isReflective());
+    BenchmarkInvoker invoker = RuntimeWorker.EmptyBenchmark.invoker(method, benchmarkInvoker);
+    assertTrue(invoker.isReflective());
+    invoker.invoke(10);
+  }
+
+  static final class Benchmark {
+    void time(int reps) {}
+  }
+
+  static final class PrivateBenchmark {
+    private void time(int reps) {}
+  }
+
+  static final class BlackholeBenchmark {
+    void intReps(int reps, Blackhole blackhole) {}
+
+    void longReps(long reps, Blackhole blackhole) {}
+  }
+
+  /** Takes 10ns per rep, except that every third call with a single rep takes 1000ns. */
+  static final class BimodalBenchmark {
+    long nanos;
+    int singleReps;
+
+    void time(int reps) {
+      if (reps == 1 && singleReps++ % 3 == 0) {
+        nanos += 1000;
+      } else {
+        nanos += 10L * reps;
+      }
+    }
+  }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.caliper.model.Measurement;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests {@link ThreadedRuntimeWorker}.
+ */
+@RunWith(JUnit4.class)
+public class ThreadedRuntimeWorkerTest {
+  @Test public void measure_runsTheRepsOnEveryThread() throws Exception {
+    Benchmark benchmark = new Benchmark();
+    ThreadedRuntimeWorker worker = worker(benchmark, "time", 4);
+    worker.bootstrap();
+    worker.preMeasure();
+    List<Measurement> measurements = ImmutableList.copyOf(worker.measure());
+
+    assertEquals(4 + 4, measurements.size());
+    Measurement runtime = measurements.get(0);
+    assertEquals(RuntimeWorker.RUNTIME_DESCRIPTION, runtime.description());
+    assertEquals("ns", runtime.value().unit());
+    // the initial reps and the measured reps, on each of the 4 threads
+    assertEquals(4 * RuntimeWorker.INITIAL_REPS + (long) runtime.weight(), benchmark.reps.get());
+    assertEquals(4, benchmark.threadNames.size());
+
+    Measurement overhead = measurements.get(1);
+    Measurement corrected = measurements.get(2);
+    assertEquals(RuntimeWorker.OVERHEAD_DESCRIPTION, overhead.description());
+    assertEquals(RuntimeWorker.CORRECTED_DESCRIPTION, corrected.description());
+    assertEquals(runtime.weight(), overhead.weight(), 0);
+    assertEquals(runtime.weight(), corrected.weight(), 0);
+    assertEquals(Math.max(0, runtime.value().magnitude() - overhead.value().magnitude()),
+        corrected.value().magnitude(), 1e-9);
+
+    Measurement throughput = measurements.get(3);
+    assertEquals(ThreadedRuntimeWorker.THROUGHPUT_DESCRIPTION, throughput.description());
+    assertEquals("ops/s", throughput.value().unit());
+    assertEquals(runtime.weight() / runtime.value().magnitude() * 1e9,
+        throughput.value().magnitude(), throughput.value().magnitude() * 1e-9);
+    for (int i = 0; i < 4; i++) {
+      Measurement threadThroughput = measurements.get(4 + i);
+      assertEquals(ThreadedRuntimeWorker.THREAD_THROUGHPUT_DESCRIPTION_PREFIX + i,
+          threadThroughput.description());
+      assertEquals("ops/s", threadThroughput.value().unit());
+    }
+  }
+
+  @Test public void failingThread() throws Exception {
+    ThreadedRuntimeWorker worker = worker(new Benchmark(), "fail", 3);
+    try {
+      worker.bootstrap();
+      fail();
+    } catch (InvocationTargetException expected) {
+      assertSame(Benchmark.ERROR, expected.getCause());
+    }
+  }
+
+  private static ThreadedRuntimeWorker worker(Benchmark benchmark, String methodName, int threads)
+      throws Exception {
+    return new ThreadedRuntimeWorker(benchmark,
+        Benchmark.class.getDeclaredMethod(methodName, long.class), new Random(0),
+        Ticker.systemTicker(),
+        ImmutableMap.of("threads", Integer.toString(threads), "timingIntervalNanos", "1000000",
+            "gcBeforeEach", "false"));
+  }
+
+  static final class Benchmark {
+    static final RuntimeException ERROR = new IllegalStateException("benchmark failed");
+
+    final AtomicLong reps = new AtomicLong();
+    final Set<String> threadNames = Sets.newConcurrentHashSet();
+
+    void time(long reps) {
+      threadNames.add(Thread.currentThread().getName());
+      this.reps.addAndGet(reps);
+    }
+
+    void fail(long reps) {
+      throw ERROR;
+    }
+  }
+}
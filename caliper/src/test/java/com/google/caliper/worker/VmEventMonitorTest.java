@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.caliper.bridge.CaliperControlLogMessage;
+import com.google.caliper.bridge.GcLogMessage;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link VmEventMonitor}.
+ */
+@RunWith(JUnit4.class)
+public class VmEventMonitorTest {
+  private VmEventMonitor monitor;
+
+  @Before public void setUp() {
+    monitor = new VmEventMonitor();
+  }
+
+  @After public void tearDown() {
+    monitor.close();
+  }
+
+  @Test public void gcDuringTiming() {
+    monitor.timingStarting();
+    System.gc();
+    ImmutableList<CaliperControlLogMessage> events = monitor.timingEnded();
+
+    GcLogMessage gc = Iterables.getOnlyElement(Iterables.filter(events, GcLogMessage.class));
+    assertEquals(GcLogMessage.Type.FULL, gc.type());
+    assertNotNull(gc.startOffsetMillis());
+    // the start of the window and of the collection are both truncated to the millisecond
+    assertTrue(gc.startOffsetMillis() >= -1);
+  }
+
+  @Test public void gcOutsideOfTiming() {
+    System.gc();
+    monitor.timingStarting();
+    assertTrue(Iterables.isEmpty(Iterables.filter(monitor.timingEnded(), GcLogMessage.class)));
+  }
+}
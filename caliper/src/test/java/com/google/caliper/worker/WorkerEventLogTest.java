@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.caliper.worker;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.caliper.bridge.BinaryMessageCodec;
+import com.google.caliper.bridge.BridgeModule;
+import com.google.caliper.bridge.CaliperControlLogMessage;
+import com.google.caliper.bridge.MessageEncoding;
+import com.google.caliper.bridge.Renderer;
+import com.google.caliper.bridge.ShouldContinueMessage;
+import com.google.caliper.json.GsonModule;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Value;
+import com.google.gson.Gson;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Tests the credits that {@link WorkerEventLog} measures with.
+ */
+@RunWith(JUnit4.class)
+public class WorkerEventLogTest {
+  private static final Measurement MEASUREMENT = new Measurement.Builder()
+      .description("runtime")
+      .weight(1)
+      .value(Value.create(1, "ns"))
+      .build();
+
+  @Inject Renderer<CaliperControlLogMessage> renderer;
+  @Inject Gson gson;
+
+  private Socket workerSocket;
+  private Socket runnerSocket;
+  private DataOutputStream runner;
+  private VmEventMonitor vmEventMonitor;
+  private WorkerEventLog log;
+
+  @Before public void setUp() throws IOException {
+    Guice.createInjector(new GsonModule(), new BridgeModule()).injectMembers(this);
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    ServerSocket serverSocket = new ServerSocket(0, 1, localhost);
+    try {
+      workerSocket = new Socket(localhost, serverSocket.getLocalPort());
+      runnerSocket = serverSocket.accept();
+    } finally {
+      serverSocket.close();
+    }
+    runner = new DataOutputStream(runnerSocket.getOutputStream());
+    vmEventMonitor = new VmEventMonitor();
+    log = new WorkerEventLog(workerSocket, MessageEncoding.BINARY, renderer, gson, vmEventMonitor);
+  }
+
+  @After public void tearDown() throws IOException {
+    vmEventMonitor.close();
+    workerSocket.close();
+    runnerSocket.close();
+  }
+
+  @Test public void measuresWithoutWaitingWhileThereAreCredits() throws IOException {
+    BinaryMessageCodec.write(runner, new ShouldContinueMessage(true, 2));
+    assertTrue(log.notifyMeasurementEnding(MEASUREMENT));
+    // nothing more has been sent, but there is a credit left
+    assertTrue(log.notifyMeasurementEnding(MEASUREMENT));
+
+    BinaryMessageCodec.write(runner, new ShouldContinueMessage(false));
+    assertFalse(log.notifyMeasurementEnding(MEASUREMENT));
+  }
+
+  @Test public void stopsEvenWithCreditsLeft() throws IOException {
+    BinaryMessageCodec.write(runner, new ShouldContinueMessage(true, 3));
+    assertTrue(log.notifyMeasurementEnding(MEASUREMENT));
+
+    BinaryMessageCodec.write(runner, new ShouldContinueMessage(false));
+    runner.flush();
+    waitUntilReceived();
+    assertFalse(log.notifyMeasurementEnding(MEASUREMENT));
+  }
+
+  private void waitUntilReceived() throws IOException {
+    while (workerSocket.getInputStream().available() == 0) {
+      Thread.yield();
+    }
+  }
+}
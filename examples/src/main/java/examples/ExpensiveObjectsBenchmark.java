@@ -18,6 +18,8 @@ package examples;
 
 
 import com.google.caliper.Benchmark;
+import com.google.caliper.api.Blackhole;
+
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
@@ -26,44 +28,43 @@ import java.util.Locale;
 /**
  * Benchmarks creation and cloning various expensive objects.
  */
-@SuppressWarnings({"ResultOfObjectAllocationIgnored"}) // TODO: should fix!
 public class ExpensiveObjectsBenchmark {
-  @Benchmark void newDecimalFormatSymbols(int reps) {
+  @Benchmark void newDecimalFormatSymbols(int reps, Blackhole blackhole) {
     for (int i = 0; i < reps; ++i) {
-      new DecimalFormatSymbols(Locale.US);
+      blackhole.consume(new DecimalFormatSymbols(Locale.US));
     }
   }
 
-  @Benchmark void clonedDecimalFormatSymbols(int reps) {
+  @Benchmark void clonedDecimalFormatSymbols(int reps, Blackhole blackhole) {
     DecimalFormatSymbols dfs = new DecimalFormatSymbols(Locale.US);
     for (int i = 0; i < reps; ++i) {
-      dfs.clone();
+      blackhole.consume(dfs.clone());
     }
   }
 
-  @Benchmark void newNumberFormat(int reps) {
+  @Benchmark void newNumberFormat(int reps, Blackhole blackhole) {
     for (int i = 0; i < reps; ++i) {
-      NumberFormat.getInstance(Locale.US);
+      blackhole.consume(NumberFormat.getInstance(Locale.US));
     }
   }
 
-  @Benchmark void clonedNumberFormat(int reps) {
+  @Benchmark void clonedNumberFormat(int reps, Blackhole blackhole) {
     NumberFormat nf = NumberFormat.getInstance(Locale.US);
     for (int i = 0; i < reps; ++i) {
-      nf.clone();
+      blackhole.consume(nf.clone());
     }
   }
 
-  @Benchmark void newSimpleDateFormat(int reps) {
+  @Benchmark void newSimpleDateFormat(int reps, Blackhole blackhole) {
     for (int i = 0; i < reps; ++i) {
-      new SimpleDateFormat();
+      blackhole.consume(new SimpleDateFormat());
     }
   }
 
-  @Benchmark void clonedSimpleDateFormat(int reps) {
+  @Benchmark void clonedSimpleDateFormat(int reps, Blackhole blackhole) {
     SimpleDateFormat sdf = new SimpleDateFormat();
     for (int i = 0; i < reps; ++i) {
-      sdf.clone();
+      blackhole.consume(sdf.clone());
     }
   }
 }